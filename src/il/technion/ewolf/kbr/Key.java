@@ -14,7 +14,9 @@ import org.apache.commons.codec.binary.Base64;
 public class Key implements Serializable, Comparable<Key> {
 
 	private static final long serialVersionUID = 4137662182397711129L;
-	private int color;
+	// the cached color in the low 16 bits and the number of colors it was
+	// calculated for in the high bits, 0 until it is calculated
+	private transient int color;
 	private final byte[] bytes;
 
 	public Key(final byte[] bytes) {
@@ -40,9 +42,16 @@ public class Key implements Serializable, Comparable<Key> {
 	 * @return the calculated color
 	 */
 	public int getColor(final int nrColors) {
-		if (this.color < 0)
-			this.color = Math.abs(getInt().intValue()) % nrColors;
-		return this.color;
+		// a single field, so a racing thread sees a color and its number of
+		// colors together
+		final int c = this.color;
+		if (c >>> 16 == nrColors)
+			return c & 0xffff;
+
+		final int $ = Math.abs(getInt().intValue()) % nrColors;
+		if (nrColors < 0x10000)
+			this.color = nrColors << 16 | $;
+		return $;
 	}
 
 	/**
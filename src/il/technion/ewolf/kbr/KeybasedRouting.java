@@ -26,6 +26,7 @@ import java.net.URI;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the main class of openkad
@@ -63,6 +64,31 @@ public interface KeybasedRouting {
 	 */
 	public List<Node> findNode(Key k);
 	
+	/**
+	 * Stores a value at the nodes closest to the given key. The nodes keep the value
+	 * until its time to live elapses (bounded by openkad.store.max_ttl) and it can be
+	 * retrieved by any node using {@link #get(Key)}
+	 * 
+	 * This method is blocking ! it returns after all the closest nodes answered (or timed out)
+	 * 
+	 * @param key the value's key
+	 * @param value the value, no larger than openkad.store.max_value_size
+	 * @param ttl the value's time to live
+	 * @param unit the ttl unit
+	 * @return the number of nodes that stored the value
+	 */
+	public int put(Key key, byte[] value, long ttl, TimeUnit unit);
+	
+	/**
+	 * Retrieves a value stored using {@link #put(Key, byte[], long, TimeUnit)}
+	 * 
+	 * This method is blocking !
+	 * 
+	 * @param key the value's key
+	 * @return the value, or null if none of the nodes closest to the key has it
+	 */
+	public byte[] get(Key key);
+	
 	/**
 	 * Registers a {@link MessageHandler} for receiving messages sent with a particular tag.
 	 * All incoming messages and requests sent with the given tag will cause
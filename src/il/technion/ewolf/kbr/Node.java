@@ -28,6 +28,23 @@ public class Node implements Serializable,Comparable<Node> {
 	private InetAddress addr = null;
 	private Map<String, Integer> portFromScheme = new HashMap<String, Integer>();
 	
+	// resolved socket addresses, cleared when the address or endpoints change
+	private transient volatile ResolvedAddress lastResolved = null;
+	private transient volatile Map<String, SocketAddress> addrFromScheme = Collections.emptyMap();
+	
+	/**
+	 * The socket address of a single protocol
+	 */
+	private static final class ResolvedAddress {
+		private final String scheme;
+		private final SocketAddress addr;
+		
+		ResolvedAddress(String scheme, SocketAddress addr) {
+			this.scheme = scheme;
+			this.addr = addr;
+		}
+	}
+	
 	// dummy node
 	/**
 	 * Creates a dummy node with no key in it
@@ -54,7 +71,8 @@ public class Node implements Serializable,Comparable<Node> {
 	
 	/**
 	 * The endpoints map is a map containing all the nodes available protocols as keys
-	 * and the protocol's port as values
+	 * and the protocol's port as values.
+	 * The returned map may be shared with other nodes, do not modify it
 	 *  
 	 * @return node's protocols
 	 */
@@ -62,6 +80,20 @@ public class Node implements Serializable,Comparable<Node> {
 		return portFromScheme;
 	}
 	
+	/**
+	 * Replaces the endpoints map with an equal (shared) one
+	 * @param portFromScheme the new endpoints map
+	 */
+	void setAllEndpoints(Map<String, Integer> portFromScheme) {
+		this.portFromScheme = portFromScheme;
+		clearResolved();
+	}
+	
+	private void clearResolved() {
+		lastResolved = null;
+		addrFromScheme = Collections.emptyMap();
+	}
+	
 	/**
 	 * Creates a uri from a given protocol name
 	 * @param scheme the protocol name (such as http or openkad.udp)
@@ -89,12 +121,31 @@ public class Node implements Serializable,Comparable<Node> {
 	}
 	
 	/**
-	 * Creates a SocketAddress from a protocol name
+	 * Creates a SocketAddress from a protocol name.
+	 * The address is created once and reused until the node's address or
+	 * endpoints change. The most recently used protocol (usually the kademlia
+	 * protocol) is checked first
 	 * @param scheme the protocol name
 	 * @return
 	 */
 	public SocketAddress getSocketAddress(String scheme) {
-		return new InetSocketAddress(addr, getPort(scheme));
+		ResolvedAddress r = lastResolved;
+		if (r != null && (r.scheme == scheme || r.scheme.equals(scheme)))
+			return r.addr;
+		
+		// transient fields are null after de-serialization
+		Map<String, SocketAddress> m = addrFromScheme;
+		SocketAddress $ = m == null ? null : m.get(scheme);
+		if ($ == null) {
+			$ = new InetSocketAddress(addr, getPort(scheme));
+			Map<String, SocketAddress> newMap = m == null
+					? new HashMap<String, SocketAddress>()
+					: new HashMap<String, SocketAddress>(m);
+			newMap.put(scheme, $);
+			addrFromScheme = newMap;
+		}
+		lastResolved = new ResolvedAddress(scheme, $);
+		return $;
 	}
 	
 	/**
@@ -104,8 +155,12 @@ public class Node implements Serializable,Comparable<Node> {
 	 * @param scheme the protocol name
 	 * @param port the protocol port
 	 */
-	public void addEndpoint(String scheme, int port) {
-		portFromScheme.put(scheme, port);
+	public synchronized void addEndpoint(String scheme, int port) {
+		// the endpoints map may be shared, never modify it in place
+		Map<String, Integer> m = new HashMap<String, Integer>(portFromScheme);
+		m.put(scheme, port);
+		portFromScheme = m;
+		clearResolved();
 	}
 	
 	/**
@@ -123,6 +178,7 @@ public class Node implements Serializable,Comparable<Node> {
 	 */
 	public void setInetAddress(InetAddress addr) {
 		this.addr = addr;
+		clearResolved();
 	}
 	
 	/**
@@ -0,0 +1,99 @@
+package il.technion.ewolf.kbr;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Holds a canonical instance for every node currently in use.
+ * Nodes are identified by their key, address and endpoints, so 2 equal nodes
+ * that differ in their contact information are not merged.
+ * The endpoints maps are interned as well: all the nodes with the same set of
+ * protocols and ports share a single immutable map.
+ *
+ * The registry only holds weak references, a node that is no longer in use
+ * anywhere is removed by the garbage collector.
+ * Do not change a node's address or endpoints after it was interned.
+ *
+ */
+public class NodeRegistry {
+
+	private static final class NodeId {
+		private final Key key;
+		private final InetAddress addr;
+		private final Map<String, Integer> endpoints;
+		private final int hash;
+
+		NodeId(Key key, InetAddress addr, Map<String, Integer> endpoints) {
+			this.key = key;
+			this.addr = addr;
+			this.endpoints = endpoints;
+			int h = key == null ? 0 : key.hashCode();
+			h = 31 * h + (addr == null ? 0 : addr.hashCode());
+			this.hash = 31 * h + endpoints.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof NodeId))
+				return false;
+			NodeId other = (NodeId) obj;
+			return hash == other.hash
+				&& (key == null ? other.key == null : key.equals(other.key))
+				&& (addr == null ? other.addr == null : addr.equals(other.addr))
+				&& endpoints.equals(other.endpoints);
+		}
+	}
+
+	private final ConcurrentMap<NodeId, Node> nodes = new MapMaker().weakValues().makeMap();
+	private final Interner<Map<String, Integer>> endpoints = Interners.newWeakInterner();
+
+	/**
+	 * Returns the canonical instance of the given node. If there is none,
+	 * the given node becomes the canonical one
+	 *
+	 * @param n a node, usually just de-serialized
+	 * @return a node with the same key, address and endpoints as n
+	 */
+	public Node intern(Node n) {
+		if (n == null)
+			return null;
+
+		Map<String, Integer> e = n.getAllEndpoints();
+		NodeId id = new NodeId(n.getKey(), n.getInetAddress(), e);
+		Node $ = nodes.get(id);
+		if ($ != null)
+			return $;
+
+		n.setAllEndpoints(endpoints.intern(ImmutableMap.copyOf(e)));
+		$ = nodes.putIfAbsent(new NodeId(n.getKey(), n.getInetAddress(), n.getAllEndpoints()), n);
+		return $ == null ? n : $;
+	}
+
+	/**
+	 * @param l a list of nodes
+	 * @return a new list with the canonical instances of all the nodes in l
+	 */
+	public List<Node> internAll(List<Node> l) {
+		if (l == null)
+			return null;
+		List<Node> $ = new ArrayList<Node>(l.size());
+		for (Node n : l)
+			$.add(intern(n));
+		return $;
+	}
+}
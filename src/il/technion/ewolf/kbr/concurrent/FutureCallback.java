@@ -21,6 +21,26 @@ public class FutureCallback<T, A> implements Future<T>, CompletionHandler<T, A>
 	private Throwable exc = null;
 	private boolean isDone = false;
 	private boolean isCancelled = false;
+	private final Scheduler scheduler;
+	
+	public FutureCallback() {
+		this(null);
+	}
+	
+	/**
+	 * @param scheduler get() blocks through it, so the result can be waited
+	 *        for in virtual time
+	 */
+	public FutureCallback(Scheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+	
+	private void wakeAll() {
+		if (scheduler == null)
+			notifyAll();
+		else
+			scheduler.wakeAll(this);
+	}
 	
 	@Override
 	public synchronized void completed(T result, A attachment) {
@@ -28,7 +48,7 @@ public class FutureCallback<T, A> implements Future<T>, CompletionHandler<T, A>
 			return;
 		this.result = result;
 		isDone = true;
-		notifyAll();
+		wakeAll();
 	}
 
 	
@@ -38,7 +58,7 @@ public class FutureCallback<T, A> implements Future<T>, CompletionHandler<T, A>
 			return;
 		this.exc = exc;
 		isDone = true;
-		notifyAll();
+		wakeAll();
 	}
 
 	@Override
@@ -49,11 +69,22 @@ public class FutureCallback<T, A> implements Future<T>, CompletionHandler<T, A>
 
 	@Override
 	public synchronized T get() throws InterruptedException, ExecutionException {
-		try {
-			return get(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
-		} catch (TimeoutException e) {
-			throw new AssertionError();
+		if (scheduler == null) {
+			try {
+				return get(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				throw new AssertionError();
+			}
 		}
+		
+		while (!isCancelled() && !isDone())
+			scheduler.await(this);
+		
+		if (isCancelled())
+			throw new CancellationException();
+		if (exc != null)
+			throw new ExecutionException(exc);
+		return result;
 	}
 	
 	@Override
@@ -0,0 +1,35 @@
+package il.technion.ewolf.kbr.concurrent;
+
+/**
+ * A count down latch blocking through a {@link Scheduler}, so it can be
+ * used by code running in virtual time
+ *
+ */
+public class Latch {
+
+	private final Scheduler scheduler;
+	private int count;
+
+	public Latch(Scheduler scheduler, int count) {
+		this.scheduler = scheduler;
+		this.count = count;
+	}
+
+	public synchronized void countDown() {
+		if (count > 0 && --count == 0)
+			scheduler.wakeAll(this);
+	}
+
+	/**
+	 * Waits until the count reaches zero
+	 * @throws InterruptedException
+	 */
+	public synchronized void await() throws InterruptedException {
+		while (count > 0)
+			scheduler.await(this);
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+}
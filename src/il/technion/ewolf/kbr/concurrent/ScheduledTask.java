@@ -0,0 +1,25 @@
+package il.technion.ewolf.kbr.concurrent;
+
+/**
+ * A task to be executed by a {@link Scheduler}, once or repeatedly.
+ * Same as java.util.TimerTask but its cancellation can be seen by any scheduler
+ *
+ */
+public abstract class ScheduledTask implements Runnable {
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Cancels all future executions of this task
+	 * @return false if the task was already cancelled
+	 */
+	public boolean cancel() {
+		boolean $ = !cancelled;
+		cancelled = true;
+		return $;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
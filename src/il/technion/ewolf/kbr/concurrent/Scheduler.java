@@ -0,0 +1,60 @@
+package il.technion.ewolf.kbr.concurrent;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A clock and a scheduler of delayed tasks.
+ * All the time dependent code should use it instead of System.currentTimeMillis
+ * and java.util.Timer, so it can run in virtual time.
+ *
+ * Threads waiting for each other (an operation waiting for responses) block
+ * and hand work to executors through it as well, so a virtual clock knows
+ * when all the threads are done with the current time
+ *
+ */
+public interface Scheduler {
+
+	/**
+	 * @return the current time in millis
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * Executes a task once after the given delay
+	 * @param task the task
+	 * @param delay delay in millis
+	 */
+	void schedule(ScheduledTask task, long delay);
+
+	/**
+	 * Executes a task repeatedly, period millis after each execution ended
+	 * @param task the task
+	 * @param delay delay of the first execution in millis
+	 * @param period delay between executions in millis
+	 */
+	void schedule(ScheduledTask task, long delay, long period);
+
+	/**
+	 * Same as monitor.wait(): the caller must hold the monitor, and may
+	 * return without being woken up so the condition must be checked again
+	 * @param monitor the object to wait on
+	 * @throws InterruptedException
+	 */
+	void await(Object monitor) throws InterruptedException;
+
+	/**
+	 * Same as monitor.notifyAll(), wakes all the threads waiting on monitor
+	 * with {@link #await(Object)}. The caller must hold the monitor
+	 * @param monitor the object waited on
+	 */
+	void wakeAll(Object monitor);
+
+	/**
+	 * Executes a task in another thread
+	 * @param executor the executor to run the task
+	 * @param task the task
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor
+	 *         rejected the task
+	 */
+	void execute(Executor executor, Runnable task);
+}
@@ -0,0 +1,61 @@
+package il.technion.ewolf.kbr.concurrent;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+
+/**
+ * Schedules tasks on a java.util.Timer in real time
+ *
+ */
+public class TimerScheduler implements Scheduler {
+
+	private final Timer timer;
+
+	public TimerScheduler(Timer timer) {
+		this.timer = timer;
+	}
+
+	private static TimerTask wrap(final ScheduledTask task) {
+		return new TimerTask() {
+			@Override
+			public void run() {
+				if (task.isCancelled()) {
+					cancel();
+					return;
+				}
+				task.run();
+			}
+		};
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public void schedule(ScheduledTask task, long delay) {
+		timer.schedule(wrap(task), delay);
+	}
+
+	@Override
+	public void schedule(ScheduledTask task, long delay, long period) {
+		timer.schedule(wrap(task), delay, period);
+	}
+
+	@Override
+	public void await(Object monitor) throws InterruptedException {
+		monitor.wait();
+	}
+
+	@Override
+	public void wakeAll(Object monitor) {
+		monitor.notifyAll();
+	}
+
+	@Override
+	public void execute(Executor executor, Runnable task) {
+		executor.execute(task);
+	}
+}
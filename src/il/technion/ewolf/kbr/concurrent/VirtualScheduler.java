@@ -0,0 +1,341 @@
+package il.technion.ewolf.kbr.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A discrete event scheduler running in virtual time.
+ * The clock only moves when the scheduler is driven: each step jumps the clock
+ * to the earliest pending task and runs it on the driving thread, so hours of
+ * timers take as long as running the tasks themselves.
+ *
+ * Tasks scheduled at the same time run in the order they were scheduled.
+ * Code blocking on results (like a lookup waiting for responses) should be
+ * started with {@link #submit(Callable)} while another thread drives the
+ * scheduler with {@link #runUntilDone(Future, long)}.
+ *
+ * The scheduler counts the threads that have work to do: a submitted thread
+ * stops counting while it waits in {@link #await(Object)} and counts again
+ * as soon as {@link #wakeAll(Object)} wakes it, and a task handed to an
+ * executor counts from {@link #execute(Executor, Runnable)} until it ran,
+ * so the executor must not queue it behind tasks waiting for the clock (see
+ * {@link #newExecutor(String)}). The clock only moves when the count is
+ * zero, so a thread blocking in any other way stops the clock until it is
+ * done.
+ *
+ */
+public class VirtualScheduler implements Scheduler {
+
+	private static final class Event implements Comparable<Event> {
+		private final long time;
+		private final long seq;
+		private final ScheduledTask task;
+		private final long period;
+
+		Event(long time, long seq, ScheduledTask task, long period) {
+			this.time = time;
+			this.seq = seq;
+			this.task = task;
+			this.period = period;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			if (time != o.time)
+				return time < o.time ? -1 : 1;
+			return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+		}
+	}
+
+	private static final class Waiter {
+		private final Thread thread;
+		private final boolean wasBusy;
+		private boolean isWoken = false;
+
+		Waiter(Thread thread, boolean wasBusy) {
+			this.thread = thread;
+			this.wasBusy = wasBusy;
+		}
+	}
+
+	// state
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private volatile long now;
+	private long seq = 0;
+
+	// pending work of other threads
+	private final Set<Thread> busyThreads = new HashSet<Thread>();
+	private int nrHandedOff = 0;
+	private final Map<Object, List<Waiter>> waitersByMonitor = new IdentityHashMap<Object, List<Waiter>>();
+
+	/**
+	 * @param startTime the initial virtual time in millis
+	 */
+	public VirtualScheduler(long startTime) {
+		this.now = startTime;
+	}
+
+	public VirtualScheduler() {
+		this(System.currentTimeMillis());
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public void schedule(ScheduledTask task, long delay) {
+		add(task, delay, 0);
+	}
+
+	@Override
+	public void schedule(ScheduledTask task, long delay, long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("period must be positive");
+		add(task, delay, period);
+	}
+
+	private synchronized void add(ScheduledTask task, long delay, long period) {
+		events.add(new Event(now + Math.max(0, delay), seq++, task, period));
+		notifyAll();
+	}
+
+	@Override
+	public void await(Object monitor) throws InterruptedException {
+		Waiter w;
+		synchronized (this) {
+			w = new Waiter(Thread.currentThread(), busyThreads.remove(Thread.currentThread()));
+			List<Waiter> waiters = waitersByMonitor.get(monitor);
+			if (waiters == null)
+				waitersByMonitor.put(monitor, waiters = new ArrayList<Waiter>());
+			waiters.add(w);
+			notifyAll();
+		}
+
+		try {
+			// isWoken is set while holding the monitor
+			while (!w.isWoken)
+				monitor.wait();
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				if (!w.isWoken) {
+					waitersByMonitor.get(monitor).remove(w);
+					if (w.wasBusy)
+						busyThreads.add(w.thread);
+				}
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void wakeAll(Object monitor) {
+		synchronized (this) {
+			List<Waiter> waiters = waitersByMonitor.remove(monitor);
+			for (int i = 0; waiters != null && i < waiters.size(); ++i) {
+				Waiter w = waiters.get(i);
+				w.isWoken = true;
+				// busy before it runs, so the clock waits for it
+				if (w.wasBusy)
+					busyThreads.add(w.thread);
+			}
+		}
+		monitor.notifyAll();
+	}
+
+	@Override
+	public void execute(Executor executor, final Runnable task) {
+		synchronized (this) {
+			++nrHandedOff;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					runHandedOff(task);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				--nrHandedOff;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a task counted by execute, the running thread is busy until the
+	 * task blocks or ends
+	 */
+	private void runHandedOff(Runnable task) {
+		Thread current = Thread.currentThread();
+		boolean wasIdle;
+		synchronized (this) {
+			--nrHandedOff;
+			// the executor may run the task in the calling thread
+			wasIdle = busyThreads.add(current);
+		}
+		try {
+			task.run();
+		} finally {
+			if (wasIdle) {
+				synchronized (this) {
+					busyThreads.remove(current);
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a task in a new thread, counted as pending work until it blocks
+	 * or ends
+	 * @param task the task, usually blocking on the results of other nodes
+	 * @return the task's result
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		final FutureTask<T> $ = new FutureTask<T>(task);
+		execute(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				Thread t = new Thread(command, "openkad.virtual.submitted");
+				t.setDaemon(true);
+				t.start();
+			}
+		}, $);
+		return $;
+	}
+
+	/**
+	 * @param name prefix of the threads' names
+	 * @return an executor for tasks handed off with
+	 *         {@link #execute(Executor, Runnable)}, starting a thread if all
+	 *         its threads are busy instead of queueing the task
+	 */
+	public ExecutorService newExecutor(final String name) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private int threadNr = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + (++threadNr));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return number of threads with work to do and tasks waiting for a
+	 *         thread, the clock does not move until it is zero
+	 */
+	public synchronized int getNrBusy() {
+		return busyThreads.size() + nrHandedOff;
+	}
+
+	private synchronized Event poll(long until) {
+		while (!events.isEmpty()) {
+			Event e = events.peek();
+			if (e.time > until)
+				return null;
+			events.poll();
+			if (e.task.isCancelled())
+				continue;
+			if (e.time > now)
+				now = e.time;
+			return e;
+		}
+		return null;
+	}
+
+	private void run(Event e) {
+		try {
+			e.task.run();
+		} catch (Exception exc) {
+			// a failing task should not stop the simulation
+			exc.printStackTrace();
+		}
+		if (e.period > 0 && !e.task.isCancelled())
+			add(e.task, e.period, e.period);
+	}
+
+	/**
+	 * Runs the earliest pending task, moving the clock to its time
+	 * @return false if there are no pending tasks
+	 */
+	public boolean runNext() {
+		Event e = poll(Long.MAX_VALUE);
+		if (e == null)
+			return false;
+		run(e);
+		return true;
+	}
+
+	/**
+	 * Runs all the tasks due in the next millis, including the ones they
+	 * schedule, and moves the clock to the end of that period
+	 * @param millis virtual time to advance
+	 */
+	public void advance(long millis) {
+		long until = now + millis;
+		for (Event e = poll(until); e != null; e = poll(until))
+			run(e);
+		synchronized (this) {
+			if (now < until)
+				now = until;
+		}
+	}
+
+	/**
+	 * Drives the scheduler until the given future is done. Other threads may
+	 * still be working on a task's consequences (sending a request, handling
+	 * a response), so the next task only runs when no thread is busy
+	 *
+	 * @param future the result to wait for, computed by other threads
+	 * @param maxTime maximum virtual time to advance in millis
+	 * @return true if the future is done, false if maxTime elapsed first
+	 * @throws InterruptedException
+	 */
+	public boolean runUntilDone(Future<?> future, long maxTime) throws InterruptedException {
+		long until = now + maxTime;
+		while (!future.isDone()) {
+			Event e;
+			synchronized (this) {
+				if (getNrBusy() > 0 || events.isEmpty()) {
+					// waiting for other threads, the timeout only polls the
+					// future which does not notify when it is done
+					wait(10);
+					continue;
+				}
+				if (events.peek().time > until)
+					return false;
+				e = poll(until);
+			}
+			if (e != null)
+				run(e);
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of pending tasks, including cancelled ones not yet removed
+	 */
+	public synchronized int getNrPending() {
+		return events.size();
+	}
+}
@@ -1,88 +1,247 @@
 package il.technion.ewolf.kbr.openkad;
 
+import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.name.Named;
 
+/**
+ * Saves the routing table to the nodes file and loads it back on startup.
+ *
+ * The nodes are saved in a compact binary snapshot:
+ * magic, version, key length and then a record per node containing its key,
+ * address, endpoints and last contact time. The snapshot is written to a
+ * temporary file which atomically replaces the nodes file, so a crash while
+ * saving leaves the previous snapshot intact.
+ * Files saved by older versions (a serialized List of Node) can still be loaded.
+ */
 public class BootstrapNodesSaver {
 
-	
+	private static final int MAGIC = 0x4b414453; // "KADS"
+	private static final byte VERSION = 1;
+	private static final byte RECORD = 1;
+	private static final byte END = 0;
+
 	private final KadBuckets kBuckets;
 	private final Provider<KadNode> kadNodeProvider;
 	private final File nodesFile;
-	
+	private final long saveInterval;
+
+	// state
+	private Timer saveTimer = null;
+
 	@Inject
 	BootstrapNodesSaver(
 			KadBuckets kBuckets,
 			Provider<KadNode> kadNodeProvider,
-			@Named("openkad.file.nodes") File nodesFile) {
-		
+			@Named("openkad.file.nodes") File nodesFile,
+			@Named("openkad.file.nodes.save_interval") long saveInterval) {
+
 		this.kBuckets = kBuckets;
 		this.kadNodeProvider = kadNodeProvider;
 		this.nodesFile = nodesFile;
+		this.saveInterval = saveInterval;
+	}
+
+	/**
+	 * Starts saving the routing table periodically in the background
+	 */
+	public synchronized void start() {
+		if (saveInterval <= 0 || saveTimer != null)
+			return;
+
+		saveTimer = new Timer("openkad-nodes-saver", true);
+		saveTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					saveNow();
+				} catch (IOException e) {
+					// the previous snapshot is still valid
+					e.printStackTrace();
+				}
+			}
+		}, saveInterval, saveInterval);
 	}
-	
-	
-	public void start() {
-		
+
+	/**
+	 * Stops the periodic saves and saves the routing table one last time
+	 * @throws IOException
+	 */
+	public void shutdown() throws IOException {
+		synchronized (this) {
+			if (saveTimer != null)
+				saveTimer.cancel();
+			saveTimer = null;
+		}
+		saveNow();
 	}
-	
-	
-	public void saveNow() throws IOException {
-		FileOutputStream fout = null;
-		ObjectOutputStream oout = null;
+
+	public synchronized void saveNow() throws IOException {
+		List<KadNode> nodes = kBuckets.getAllKadNodes();
+
+		File dir = nodesFile.getAbsoluteFile().getParentFile();
+		File tmpFile = File.createTempFile(nodesFile.getName(), ".tmp", dir);
 		try {
-			fout = new FileOutputStream(nodesFile);
-			oout = new ObjectOutputStream(fout);
-			
-			oout.writeObject(kBuckets.getAllNodes());
-			
-		} finally {
-			if (oout != null)
-				oout.close();
-			if (fout != null)
+			FileOutputStream fout = new FileOutputStream(tmpFile);
+			try {
+				DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fout));
+				writeSnapshot(dout, nodes);
+				dout.flush();
+				fout.getChannel().force(true);
+			} finally {
 				fout.close();
+			}
+
+			try {
+				Files.move(tmpFile.toPath(), nodesFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), nodesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmpFile.delete();
 		}
 	}
-	
-	
-	@SuppressWarnings("unchecked")
-	public void load() throws IOException {
+
+	private void writeSnapshot(DataOutputStream dout, List<KadNode> nodes) throws IOException {
+		dout.writeInt(MAGIC);
+		dout.writeByte(VERSION);
+
+		for (KadNode kadNode : nodes) {
+			Node n = kadNode.getNode();
+			if (n.getInetAddress() == null)
+				continue;
+
+			dout.writeByte(RECORD);
+			byte[] key = n.getKey().getBytes();
+			dout.writeByte(key.length);
+			dout.write(key);
+
+			byte[] addr = n.getInetAddress().getAddress();
+			dout.writeByte(addr.length);
+			dout.write(addr);
+
+			Map<String, Integer> endpoints = n.getAllEndpoints();
+			dout.writeByte(endpoints.size());
+			for (Map.Entry<String, Integer> e : endpoints.entrySet()) {
+				dout.writeUTF(e.getKey());
+				dout.writeShort(e.getValue());
+			}
+
+			dout.writeLong(kadNode.getLastContact());
+		}
+		dout.writeByte(END);
+	}
+
+	/**
+	 * Loads the saved nodes into the buckets, the nodes are inserted
+	 * while reading the file
+	 * @return all the loaded nodes, nodes from a snapshot are ordered by
+	 *         their last contact, the most recent first
+	 * @throws IOException
+	 */
+	public List<Node> load() throws IOException {
 		if (nodesFile.length() == 0L)
-			return;
-		
-		FileInputStream fin = null;
-		ObjectInputStream oin = null;
+			return Collections.emptyList();
+
+		InputStream in = new BufferedInputStream(new FileInputStream(nodesFile));
+		try {
+			DataInputStream din = new DataInputStream(in);
+			in.mark(4);
+			if (din.readInt() == MAGIC)
+				return loadSnapshot(din);
+
+			in.reset();
+			return loadLegacy(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private List<Node> loadSnapshot(DataInputStream din) throws IOException {
+		final Map<Node, Long> lastContact = new HashMap<Node, Long>();
+		List<Node> $ = new ArrayList<Node>();
+		byte version = din.readByte();
+		if (version != VERSION)
+			throw new IOException("unknown nodes file version: " + version);
+
+		try {
+			while (din.readByte() == RECORD) {
+				byte[] key = new byte[din.readUnsignedByte()];
+				din.readFully(key);
+
+				byte[] addr = new byte[din.readUnsignedByte()];
+				din.readFully(addr);
+
+				Node n = new Node(new Key(key));
+				n.setInetAddress(InetAddress.getByAddress(addr));
+
+				int nrEndpoints = din.readUnsignedByte();
+				for (int i = 0; i < nrEndpoints; ++i) {
+					String scheme = din.readUTF();
+					n.addEndpoint(scheme, din.readUnsignedShort());
+				}
+
+				// inserted as never contacted, the saved time may be long
+				// gone. the warm start ping marks the nodes that answer
+				lastContact.put(n, din.readLong());
+				kBuckets.insert(kadNodeProvider.get().setNode(n));
+				$.add(n);
+			}
+		} catch (EOFException e) {
+			// truncated file, keep the nodes loaded so far
+		}
+
+		// the nodes seen last are the most likely to be alive, ping them first
+		Collections.sort($, new Comparator<Node>() {
+			@Override
+			public int compare(Node n1, Node n2) {
+				return lastContact.get(n2).compareTo(lastContact.get(n1));
+			}
+		});
+		return $;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Node> loadLegacy(InputStream in) throws IOException {
 		List<Node> nodes;
 		try {
-			fin = new FileInputStream(nodesFile);
-			oin = new ObjectInputStream(fin);
-			
-			nodes = (List<Node>) oin.readObject();
+			nodes = (List<Node>) new ObjectInputStream(in).readObject();
 		} catch (ClassNotFoundException e) {
 			throw new IOException(e);
-			
-		} finally {
-			if (oin != null)
-				oin.close();
-			if (fin != null)
-				fin.close();
 		}
-		
+
 		for (Node n : nodes) {
 			kBuckets.insert(kadNodeProvider.get().setNode(n));
 		}
+		return nodes;
 	}
-	
+
 }
@@ -7,10 +7,17 @@ import il.technion.ewolf.kbr.MessageHandler;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.concurrent.FutureTransformer;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.openkad.bucket.KadBucketsUpdater;
 import il.technion.ewolf.kbr.openkad.handlers.FindNodeHandler;
+import il.technion.ewolf.kbr.openkad.handlers.FindValueHandler;
 import il.technion.ewolf.kbr.openkad.handlers.ForwardHandler;
 import il.technion.ewolf.kbr.openkad.handlers.PingHandler;
 import il.technion.ewolf.kbr.openkad.handlers.StoreHandler;
+import il.technion.ewolf.kbr.openkad.handlers.StoreValueHandler;
+import il.technion.ewolf.kbr.openkad.handlers.StoreValuesHandler;
+import il.technion.ewolf.kbr.openkad.metrics.Histogram;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
 import il.technion.ewolf.kbr.openkad.msg.ContentMessage;
 import il.technion.ewolf.kbr.openkad.msg.ContentRequest;
 import il.technion.ewolf.kbr.openkad.msg.ContentResponse;
@@ -21,7 +28,14 @@ import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.TagMessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 import il.technion.ewolf.kbr.openkad.op.FindValueOperation;
+import il.technion.ewolf.kbr.openkad.op.GetValueOperation;
 import il.technion.ewolf.kbr.openkad.op.JoinOperation;
+import il.technion.ewolf.kbr.openkad.op.JoinProgressListener;
+import il.technion.ewolf.kbr.openkad.op.LookupTrace;
+import il.technion.ewolf.kbr.openkad.op.LookupTracer;
+import il.technion.ewolf.kbr.openkad.op.PutValueOperation;
+import il.technion.ewolf.kbr.openkad.op.WarmStartOperation;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -31,10 +45,13 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.google.inject.Guice;
 import com.google.inject.Inject;
@@ -55,18 +72,33 @@ public class KadNet implements KeybasedRouting {
 	private final Provider<PingHandler> pingHandler;
 	private final Provider<StoreHandler> storeHandlerProvider;
 	private final Provider<ForwardHandler> forwardHandlerProvider;
+	private final Provider<StoreValueHandler> storeValueHandlerProvider;
+	private final Provider<FindValueHandler> findValueHandlerProvider;
+	private final Provider<StoreValuesHandler> storeValuesHandlerProvider;
+	private final Provider<PutValueOperation> putValueOperationProvider;
+	private final Provider<GetValueOperation> getValueOperationProvider;
 
 	private final Node localNode;
 	private final Communicator kadServer;
 	private final NodeStorage nodeStorage;
+	private final KadBucketsUpdater bucketsUpdater;
 	private final KeyFactory keyFactory;
 	private final ExecutorService clientExecutor;
 	private final int bucketSize;
-	private final TimerTask refreshTask;
+	private final ScheduledTask refreshTask;
+	private final ScheduledTask republishTask;
 	private final BootstrapNodesSaver bootstrapNodesSaver;
+	private final WarmStartOperation warmStartOperation;
+	private final MetricsRegistry metrics;
+	private final boolean exportMetrics;
+	private final LookupTracer lookupTracer;
+	private final ValueStore valueStore;
+	private final int maxValueSize;
+	private final Histogram findNodeLatency;
+	private final Histogram joinLatency;
 
 	// testing
-	private final List<Integer> findNodeHopsHistogram;
+	private final Histogram findNodeHopsHistogram;
 
 	// state
 	private final Map<String, MessageDispatcher<?>> dispatcherFromTag = new HashMap<String, MessageDispatcher<?>>();
@@ -84,18 +116,31 @@ public class KadNet implements KeybasedRouting {
 			Provider<PingHandler> pingHandler,
 			Provider<StoreHandler> storeHandlerProvider,
 			Provider<ForwardHandler> forwardHandlerProvider,
+			Provider<StoreValueHandler> storeValueHandlerProvider,
+			Provider<FindValueHandler> findValueHandlerProvider,
+			Provider<StoreValuesHandler> storeValuesHandlerProvider,
+			Provider<PutValueOperation> putValueOperationProvider,
+			Provider<GetValueOperation> getValueOperationProvider,
 
 			@Named("openkad.local.node") Node localNode,
 			Communicator kadServer,
 			NodeStorage nodeStorage,
+			KadBucketsUpdater bucketsUpdater,
 			KeyFactory keyFactory,
 			@Named("openkad.executors.client") ExecutorService clientExecutor,
 			@Named("openkad.bucket.kbuckets.maxsize") int bucketSize,
-			@Named("openkad.refresh.task") TimerTask refreshTask,
+			@Named("openkad.refresh.task") ScheduledTask refreshTask,
+			@Named("openkad.republish.task") ScheduledTask republishTask,
 			BootstrapNodesSaver bootstrapNodesSaver,
+			WarmStartOperation warmStartOperation,
+			MetricsRegistry metrics,
+			@Named("openkad.metrics.jmx") boolean exportMetrics,
+			LookupTracer lookupTracer,
+			ValueStore valueStore,
+			@Named("openkad.store.max_value_size") int maxValueSize,
 
 			// testing
-			@Named("openkad.testing.findNodeHopsHistogram") List<Integer> findNodeHopsHistogram) {
+			@Named("openkad.testing.findNodeHopsHistogram") Histogram findNodeHopsHistogram) {
 
 		this.msgDispatcherProvider = msgDispatcherProvider;
 		this.joinOperationProvider = joinOperationProvider;
@@ -107,15 +152,30 @@ public class KadNet implements KeybasedRouting {
 		this.pingHandler = pingHandler;
 		this.storeHandlerProvider = storeHandlerProvider;
 		this.forwardHandlerProvider = forwardHandlerProvider;
+		this.storeValueHandlerProvider = storeValueHandlerProvider;
+		this.findValueHandlerProvider = findValueHandlerProvider;
+		this.storeValuesHandlerProvider = storeValuesHandlerProvider;
+		this.putValueOperationProvider = putValueOperationProvider;
+		this.getValueOperationProvider = getValueOperationProvider;
 
 		this.localNode = localNode;
 		this.kadServer = kadServer;
 		this.nodeStorage = nodeStorage;
+		this.bucketsUpdater = bucketsUpdater;
 		this.keyFactory = keyFactory;
 		this.clientExecutor = clientExecutor;
 		this.bucketSize = bucketSize;
 		this.refreshTask = refreshTask;
+		this.republishTask = republishTask;
 		this.bootstrapNodesSaver = bootstrapNodesSaver;
+		this.warmStartOperation = warmStartOperation;
+		this.metrics = metrics;
+		this.exportMetrics = exportMetrics;
+		this.lookupTracer = lookupTracer;
+		this.valueStore = valueStore;
+		this.maxValueSize = maxValueSize;
+		this.findNodeLatency = metrics.histogram("openkad.latency.op.findNode");
+		this.joinLatency = metrics.histogram("openkad.latency.op.join");
 
 		// testing
 		this.findNodeHopsHistogram = findNodeHopsHistogram;
@@ -129,26 +189,72 @@ public class KadNet implements KeybasedRouting {
 		findNodeHandlerProvider.get().register();
 		storeHandlerProvider.get().register();
 		forwardHandlerProvider.get().register();
+		storeValueHandlerProvider.get().register();
+		findValueHandlerProvider.get().register();
+		storeValuesHandlerProvider.get().register();
 
+		bucketsUpdater.start();
 		nodeStorage.registerIncomingMessageHandler();
 		kadServerThread = new Thread(kadServer);
 		kadServerThread.start();
 
-		bootstrapNodesSaver.load();
+		if (exportMetrics) {
+			try {
+				metrics.registerMBean("il.technion.ewolf.kbr.openkad:type=KadNet,key="
+						+ ObjectName.quote(localNode.getKey().toString()));
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// check which of the saved nodes are still alive
+		warmStartOperation.doWarmStart(bootstrapNodesSaver.load());
 		bootstrapNodesSaver.start();
 	}
 
+	/**
+	 * Waits until enough buckets are populated with saved nodes that answered
+	 * a ping, or until all the saved nodes were pinged
+	 * 
+	 * @param timeout maximum time to wait
+	 * @param unit the timeout unit
+	 * @return true if the warm start is done, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitWarmStart(long timeout, TimeUnit unit) throws InterruptedException {
+		return warmStartOperation.awaitReady(timeout, unit);
+	}
+
 	@Override
 	public void join(Collection<URI> bootstraps) {
+		long startTime = System.nanoTime();
 		joinOperationProvider.get().addBootstrap(bootstraps).doJoin();
+		joinLatency.record((System.nanoTime() - startTime) / 1000);
+	}
+
+	/**
+	 * Same as {@link #join(Collection)} but reports the join progress
+	 * 
+	 * @param bootstraps all the known nodes in the other network
+	 * @param progressListener notified after each lookup of the join
+	 */
+	public void join(Collection<URI> bootstraps, JoinProgressListener progressListener) {
+		long startTime = System.nanoTime();
+		joinOperationProvider.get()
+			.setProgressListener(progressListener)
+			.addBootstrap(bootstraps)
+			.doJoin();
+		joinLatency.record((System.nanoTime() - startTime) / 1000);
 	}
 
 	@Override
 	public List<Node> findNode(Key k) {
 		FindValueOperation op = findValueOperationProvider.get().setKey(k);
 
+		long startTime = System.nanoTime();
 		List<Node> result = op.doFindValue();
-		findNodeHopsHistogram.add(op.getNrQueried());
+		findNodeLatency.record((System.nanoTime() - startTime) / 1000);
+		findNodeHopsHistogram.record(op.getNrQueried());
 
 		List<Node> $ = new ArrayList<Node>(result);
 
@@ -160,6 +266,38 @@ public class KadNet implements KeybasedRouting {
 		return result;
 	}
 
+	@Override
+	public int put(Key key, byte[] value, long ttl, TimeUnit unit) {
+		if (value.length > maxValueSize)
+			throw new IllegalArgumentException("value is larger than " + maxValueSize + " bytes");
+		return putValueOperationProvider.get()
+			.setKey(key)
+			.setValue(value)
+			.setTtl(unit.toMillis(ttl))
+			.doPut();
+	}
+
+	@Override
+	public byte[] get(Key key) {
+		return getValueOperationProvider.get()
+			.setKey(key)
+			.doGet();
+	}
+
+	/**
+	 * @return all the metrics of this node
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the traces of the last sampled lookups, oldest first
+	 */
+	public List<LookupTrace> getLookupTraces() {
+		return lookupTracer.dump();
+	}
+
 	@Override
 	public KeyFactory getKeyFactory() {
 		return keyFactory;
@@ -265,12 +403,16 @@ public class KadNet implements KeybasedRouting {
 	@Override
 	public void shutdown() {
 		try {
-			bootstrapNodesSaver.saveNow();
+			bootstrapNodesSaver.shutdown();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 		refreshTask.cancel();
+		republishTask.cancel();
 		kadServer.shutdown(kadServerThread);
+		bucketsUpdater.shutdown();
+		valueStore.close();
+		metrics.unregisterMBean();
 	}
 }
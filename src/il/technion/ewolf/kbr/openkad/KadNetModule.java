@@ -4,33 +4,60 @@ import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.KeyFactory;
 import il.technion.ewolf.kbr.KeybasedRouting;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.NodeRegistry;
 import il.technion.ewolf.kbr.RandomKeyFactory;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.concurrent.TimerScheduler;
 import il.technion.ewolf.kbr.openkad.bucket.Bucket;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
+import il.technion.ewolf.kbr.openkad.bucket.KadBucketsUpdater;
 import il.technion.ewolf.kbr.openkad.bucket.StableBucket;
 import il.technion.ewolf.kbr.openkad.cache.DummyKadCache;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.cache.NearestKeyKadCache;
 import il.technion.ewolf.kbr.openkad.handlers.FindNodeHandler;
 import il.technion.ewolf.kbr.openkad.handlers.ForwardHandler;
 import il.technion.ewolf.kbr.openkad.handlers.KademliaFindNodeHandler;
 import il.technion.ewolf.kbr.openkad.handlers.PingHandler;
+import il.technion.ewolf.kbr.openkad.handlers.FindValueHandler;
 import il.technion.ewolf.kbr.openkad.handlers.StoreHandler;
+import il.technion.ewolf.kbr.openkad.handlers.StoreValueHandler;
+import il.technion.ewolf.kbr.openkad.handlers.StoreValuesHandler;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.metrics.Histogram;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
 import il.technion.ewolf.kbr.openkad.msg.ContentRequest;
+import il.technion.ewolf.kbr.openkad.msg.EnvelopeMessage;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.FindValueRequest;
 import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.msg.StoreValueRequest;
+import il.technion.ewolf.kbr.openkad.msg.StoreValuesRequest;
 import il.technion.ewolf.kbr.openkad.net.Communicator;
 import il.technion.ewolf.kbr.openkad.net.JsonZippedKadSerializer;
 import il.technion.ewolf.kbr.openkad.net.KadSerializer;
 import il.technion.ewolf.kbr.openkad.net.KadServer;
+import il.technion.ewolf.kbr.openkad.net.MessageBatcher;
 import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
 import il.technion.ewolf.kbr.openkad.op.EagerColorFindValueOperation;
 import il.technion.ewolf.kbr.openkad.op.FindNodeOperation;
 import il.technion.ewolf.kbr.openkad.op.FindValueOperation;
+import il.technion.ewolf.kbr.openkad.op.GetValueOperation;
+import il.technion.ewolf.kbr.openkad.op.HedgePolicy;
 import il.technion.ewolf.kbr.openkad.op.JoinOperation;
 import il.technion.ewolf.kbr.openkad.op.KadFindNodeOperation;
 import il.technion.ewolf.kbr.openkad.op.KadLocalCacheFindValueOperation;
+import il.technion.ewolf.kbr.openkad.op.LookupTracer;
+import il.technion.ewolf.kbr.openkad.op.PutValueOperation;
+import il.technion.ewolf.kbr.openkad.op.RefreshOperation;
+import il.technion.ewolf.kbr.openkad.op.RepublishOperation;
+import il.technion.ewolf.kbr.openkad.op.WarmStartOperation;
+import il.technion.ewolf.kbr.openkad.store.LogValueStore;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
 
 import java.io.File;
 import java.io.IOException;
@@ -40,18 +67,18 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -62,7 +89,6 @@ import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
-import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 public class KadNetModule extends AbstractModule {
@@ -87,34 +113,103 @@ public class KadNetModule extends AbstractModule {
 		// handling registered callback
 		defaultProps.setProperty("openkad.executors.client.nrthreads", "1");
 		defaultProps.setProperty("openkad.executors.client.max_pending", "1");
-		// forwarding find node requests
-		defaultProps.setProperty("openkad.executors.forward.nrthreads", "2");
-		defaultProps.setProperty("openkad.executors.forward.max_pending", "2");
-		// executing the long find node operations
-		defaultProps.setProperty("openkad.executors.op.nrthreads", "1");
-		defaultProps.setProperty("openkad.executors.op.max_pending", "1");
+		// max number of forwarded find node requests resolved or relayed at
+		// the same time, any request beyond it is nacked
+		defaultProps.setProperty("openkad.forward.max_inflight", "1024");
 		// sending back pings
 		defaultProps.setProperty("openkad.executors.ping.nrthreads", "1");
 		defaultProps.setProperty("openkad.executors.ping.max_pending", "16");
+		// nrthreads is the max number of concurrent bucket refreshes
+		defaultProps.setProperty("openkad.executors.refresh.nrthreads", "2");
+		defaultProps.setProperty("openkad.executors.refresh.max_pending", "160");
+		// number of concurrent bucket lookups while joining
+		defaultProps.setProperty("openkad.join.parallelism", "4");
+		defaultProps.setProperty("openkad.executors.join.max_pending", "160");
 		// cache settings
 		defaultProps.setProperty("openkad.cache.validtime", TimeUnit.HOURS.toMillis(10) + "");
 		defaultProps.setProperty("openkad.cache.size", "100");
 		defaultProps.setProperty("openkad.cache.share", "1");
+		// minimum common prefix (in bits) of a cached key whose result can be used
+		// as a starting point for a lookup of another key
+		defaultProps.setProperty("openkad.cache.nearest.min_prefix", "8");
+		// memory budget of the weighted cache and the resolution of its expiry
+		defaultProps.setProperty("openkad.cache.max_bytes", 1024 * 1024 + "");
+		defaultProps.setProperty("openkad.cache.wheel.tick", TimeUnit.MINUTES.toMillis(1) + "");
+		// fraction of the lookups whose requests are traced, and the number of
+		// finished traces kept in memory
+		defaultProps.setProperty("openkad.trace.sample_rate", "0.01");
+		defaultProps.setProperty("openkad.trace.buffer_size", "256");
+		// export the metrics of every node over JMX
+		defaultProps.setProperty("openkad.metrics.jmx", "true");
+		// sniffed nodes waiting to be inserted to the buckets
+		defaultProps.setProperty("openkad.bucket.updater.max_pending", "1024");
+		defaultProps.setProperty("openkad.bucket.updater.batch_size", "128");
+		// repeated sightings of the same node within this window are ignored
+		defaultProps.setProperty("openkad.bucket.updater.dedup_window", TimeUnit.SECONDS.toMillis(1) + "");
+		// number of candidates remembered for replacing dead nodes in a full bucket
+		defaultProps.setProperty("openkad.bucket.replacement.maxsize", "8");
 		// minimum time between successive pings
 		defaultProps.setProperty("openkad.bucket.valid_timespan", TimeUnit.HOURS.toMillis(24) + "");
 		// network timeouts and concurrency level
 		defaultProps.setProperty("openkad.net.concurrency", "3");
 		defaultProps.setProperty("openkad.net.timeout", TimeUnit.SECONDS.toMillis(3) + "");
 		defaultProps.setProperty("openkad.net.forwarded.timeout", TimeUnit.SECONDS.toMillis(30) + "");
+		// messages to the same node sent within this window (millis) share a
+		// single packet, 0 sends every message right away
+		defaultProps.setProperty("openkad.net.batch.window", "0");
+		// max bytes of a packet carrying several messages, envelope included.
+		// kept under the 1500 bytes ethernet mtu: a fragmented packet is lost
+		// with all its messages when any of its fragments is lost
+		defaultProps.setProperty("openkad.net.batch.max_bytes", "1400");
+		// a lookup request not answered within this percentile of its destination's
+		// response times is sent to another node as well
+		defaultProps.setProperty("openkad.hedge.percentile", "95");
+		defaultProps.setProperty("openkad.hedge.min_samples", "8");
+		defaultProps.setProperty("openkad.hedge.max_nodes", "1024");
+		// extra requests allowed for hedging, as a fraction of the requests sent
+		defaultProps.setProperty("openkad.hedge.budget", "0.05");
+		defaultProps.setProperty("openkad.hedge.max_burst", "10");
 
 		defaultProps.setProperty("openkad.color.candidates", "1");
-		// interval between successive find node operations for refresh buckets
-		defaultProps.setProperty("openkad.refresh.interval", TimeUnit.SECONDS.toMillis(30) + "");
+		// a bucket is refreshed if no lookup was done in it for this interval
+		defaultProps.setProperty("openkad.refresh.interval", TimeUnit.HOURS.toMillis(1) + "");
+		// interval between successive checks for idle buckets
+		defaultProps.setProperty("openkad.refresh.check_interval", TimeUnit.MINUTES.toMillis(1) + "");
+		// refreshes of idle buckets are spread randomly over this timespan
+		defaultProps.setProperty("openkad.refresh.jitter", TimeUnit.SECONDS.toMillis(30) + "");
 
 		// local configuration, please touch
 		defaultProps.setProperty("openkad.net.udp.port", "-1");
 		defaultProps.setProperty("openkad.local.key", "");
 		defaultProps.setProperty("openkad.file.nodes.path", "nodes");
+		// interval between successive snapshots of the routing table, 0 to save only on shutdown
+		defaultProps.setProperty("openkad.file.nodes.save_interval", TimeUnit.MINUTES.toMillis(5) + "");
+
+		// saved nodes are pinged on startup at this rate (pings per second)
+		defaultProps.setProperty("openkad.warmstart.rate", "20");
+		// the node is ready when this many buckets have saved nodes that answered
+		defaultProps.setProperty("openkad.warmstart.min_buckets", "4");
+
+		// directory of the values stored by all the local nodes, each node
+		// stores its values in a sub directory named after its udp port
+		defaultProps.setProperty("openkad.store.path", "store");
+		// the store appends to a log split into segments of this size
+		defaultProps.setProperty("openkad.store.segment_size", 64 * 1024 * 1024 + "");
+		// force every write to the disk before answering a store request
+		defaultProps.setProperty("openkad.store.sync", "false");
+		// segments with less than this fraction of live data are compacted
+		defaultProps.setProperty("openkad.store.compaction.min_live", "0.5");
+		defaultProps.setProperty("openkad.store.compaction.interval", TimeUnit.MINUTES.toMillis(10) + "");
+		// values larger than this are refused, a value must fit in a single message
+		defaultProps.setProperty("openkad.store.max_value_size", 32 * 1024 + "");
+		// stored values expire after this time at most
+		defaultProps.setProperty("openkad.store.max_ttl", TimeUnit.HOURS.toMillis(24) + "");
+		// stored values are sent to the current closest nodes at this interval
+		defaultProps.setProperty("openkad.republish.interval", TimeUnit.HOURS.toMillis(1) + "");
+		// republished values are sent in batches of this many bytes per node,
+		// paced to max_rate bytes per second
+		defaultProps.setProperty("openkad.republish.batch_size", 16 * 1024 + "");
+		defaultProps.setProperty("openkad.republish.max_rate", 64 * 1024 + "");
 
 		// misc
 		defaultProps.setProperty("openkad.seed", "0");
@@ -149,14 +244,23 @@ public class KadNetModule extends AbstractModule {
 		bind(FindNodeRequest.class);
 		bind(ForwardRequest.class);
 		bind(ContentRequest.class);
+		bind(StoreValueRequest.class);
+		bind(FindValueRequest.class);
+		bind(StoreValuesRequest.class);
+		bind(EnvelopeMessage.class);
 
 		bind(KadNode.class);
 		// .to(UndeadKadNode.class);
 		bind(KadBuckets.class).in(Scopes.SINGLETON);
+		bind(KadBucketsUpdater.class).in(Scopes.SINGLETON);
+		bind(NodeRegistry.class).in(Scopes.SINGLETON);
+		bind(LookupTracer.class).in(Scopes.SINGLETON);
+		bind(HedgePolicy.class).in(Scopes.SINGLETON);
 		bind(KBuckets.class).to(KadBuckets.class).in(Scopes.SINGLETON);
 		bind(NodeStorage.class).to(KadBuckets.class).in(Scopes.SINGLETON);
 
 		bind(MessageDispatcher.class);
+		bind(MessageBatcher.class).in(Scopes.SINGLETON);
 		// this line causes messages to be also compressed
 		// JsonZippedKadSerializer - is the same without compressing. (takes CPU
 		// resources).
@@ -169,7 +273,10 @@ public class KadNetModule extends AbstractModule {
 		// .to(LRUKadCache.class)
 		// .in(Scopes.SINGLETON);
 
-		bind(KadCache.class).to(DummyKadCache.class)
+		bind(KadCache.class).annotatedWith(Names.named("openkad.cache.nearest.cache"))
+				.to(DummyKadCache.class)
+		// .to(TinyLfuKadCache.class)
+		// .to(WeightedTimedKadCache.class)
 		// .to(OptimalKadCache.class)
 		// .to(LRUKadCache.class)
 		// .to(VisionKadCache.class)
@@ -179,6 +286,10 @@ public class KadNetModule extends AbstractModule {
 				// .to(LRUKadCache.class)
 				// .to(StoppableCache.class)
 				.in(Scopes.SINGLETON);
+		// lookups of keys that are not cached can start from the cached
+		// result of the nearest cached key
+		bind(NearestKeyKadCache.class).in(Scopes.SINGLETON);
+		bind(KadCache.class).to(NearestKeyKadCache.class);
 		// only for debug.
 		// this.bind(genericLRUKadCache.class).to(GenericVisionKadCache.class);
 		bind(JoinOperation.class);
@@ -195,6 +306,9 @@ public class KadNetModule extends AbstractModule {
 		bind(PingHandler.class);
 		bind(StoreHandler.class);
 		bind(ForwardHandler.class);
+		bind(StoreValueHandler.class);
+		bind(FindValueHandler.class);
+		bind(StoreValuesHandler.class);
 		// bind(ResetableGuessingBloomFilter.class).in(Scopes.SINGLETON);
 
 		bind(FindValueOperation.class).annotatedWith(Names.named("openkad.op.findvalue"))
@@ -213,17 +327,24 @@ public class KadNetModule extends AbstractModule {
 		// .to(KadCacheFindValueOperation.class);
 				.to(EagerColorFindValueOperation.class);
 
+		bind(ValueStore.class).to(LogValueStore.class).in(Scopes.SINGLETON);
+		bind(PutValueOperation.class);
+		bind(GetValueOperation.class);
+		bind(RepublishOperation.class).in(Scopes.SINGLETON);
+
 		bind(BootstrapNodesSaver.class).in(Scopes.SINGLETON);
+		bind(WarmStartOperation.class).in(Scopes.SINGLETON);
 		bind(KeybasedRouting.class).to(KadNet.class).in(Scopes.SINGLETON);
 
 	}
 	@Provides
 	@Named("openkad.bucket.kbuckets")
 	Bucket provideKBucket(@Named("openkad.bucket.kbuckets.maxsize") final int maxSize,
+			@Named("openkad.bucket.replacement.maxsize") final int maxReplacementCacheSize,
 			@Named("openkad.bucket.valid_timespan") final long validTimespan,
 			@Named("openkad.executors.ping") final ExecutorService pingExecutor, final Provider<PingRequest> pingRequestProvider,
-			final Provider<MessageDispatcher<Void>> msgDispatcherProvider) {
-		return new StableBucket(maxSize, validTimespan, pingExecutor, pingRequestProvider, msgDispatcherProvider);
+			final Provider<MessageDispatcher<Void>> msgDispatcherProvider, final Scheduler scheduler) {
+		return new StableBucket(maxSize, maxReplacementCacheSize, validTimespan, pingExecutor, pingRequestProvider, msgDispatcherProvider, scheduler);
 	}
 
 	@Provides
@@ -262,6 +383,16 @@ public class KadNetModule extends AbstractModule {
 		return new DatagramSocket(localNode.getPort(kadScheme));
 	}
 
+	@Provides
+	@Named("openkad.store.dir")
+	@Singleton
+	String provideStoreDir(@Named("openkad.store.path") final String path,
+			@Named("openkad.scheme.name") final String kadScheme,
+			@Named("openkad.local.node") final Node localNode) {
+		// the port is the same after a restart, unlike a generated key
+		return new File(path, "" + localNode.getPort(kadScheme)).getPath();
+	}
+
 	@Provides
 	@Named("openkad.executors.server")
 	@Singleton
@@ -279,19 +410,25 @@ public class KadNetModule extends AbstractModule {
 	}
 
 	@Provides
-	@Named("openkad.executors.forward")
+	@Named("openkad.executors.refresh")
 	@Singleton
-	ExecutorService provideColorExecutor(@Named("openkad.executors.forward.nrthreads") final int nrThreads,
-			@Named("openkad.executors.forward.max_pending") final int maxPending) {
-		return new ThreadPoolExecutor(1, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
+	ExecutorService provideRefreshExecutor(@Named("openkad.executors.refresh.nrthreads") final int nrThreads,
+			@Named("openkad.executors.refresh.max_pending") final int maxPending) {
+		// all threads are core threads, otherwise refreshes will not run
+		// concurrently until the pending queue is full
+		ThreadPoolExecutor $ = new ThreadPoolExecutor(nrThreads, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
+		$.allowCoreThreadTimeOut(true);
+		return $;
 	}
 
 	@Provides
-	@Named("openkad.executors.op")
+	@Named("openkad.executors.join")
 	@Singleton
-	ExecutorService provideOperationExecutor(@Named("openkad.executors.op.nrthreads") final int nrThreads,
-			@Named("openkad.executors.op.max_pending") final int maxPending) {
-		return new ThreadPoolExecutor(1, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
+	ExecutorService provideJoinExecutor(@Named("openkad.join.parallelism") final int parallelism,
+			@Named("openkad.executors.join.max_pending") final int maxPending) {
+		ThreadPoolExecutor $ = new ThreadPoolExecutor(parallelism, parallelism, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
+		$.allowCoreThreadTimeOut(true);
+		return $;
 	}
 
 	@Provides
@@ -309,6 +446,13 @@ public class KadNetModule extends AbstractModule {
 		return new ArrayBlockingQueue<MessageDispatcher<?>>(concurrency, true);
 	}
 
+	@Provides
+	@Named("openkad.net.req_queue.pending")
+	@Singleton
+	Deque<MessageDispatcher<?>> providePendingRequestsQueue() {
+		return new ConcurrentLinkedDeque<MessageDispatcher<?>>();
+	}
+
 	@Provides
 	@Named("openkad.rnd.id")
 	long provideRandomId(@Named("openkad.rnd") final Random rnd) {
@@ -351,22 +495,60 @@ public class KadNetModule extends AbstractModule {
 
 	}
 
+	@Provides
+	@Singleton
+	Scheduler provideScheduler(@Named("openkad.timer") final Timer timer) {
+		return new TimerScheduler(timer);
+	}
+
 	@Provides
 	@Named("openkad.refresh.task")
 	@Singleton
-	TimerTask provideRefreshTask(final Provider<KadFindNodeOperation> findNodeOperationProvider, final KeyFactory keyFactory) {
+	ScheduledTask provideRefreshTask(final Provider<RefreshOperation> refreshOperationProvider) {
+
+		return new ScheduledTask() {
+
+			@Override
+			public void run() {
+				refreshOperationProvider.get().doRefresh();
+			}
+		};
+	}
+	@Provides
+	@Named("openkad.republish.task")
+	@Singleton
+	ScheduledTask provideRepublishTask(final Provider<RepublishOperation> republishOperationProvider,
+			@Named("openkad.executors.refresh") final ExecutorService refreshExecutor,
+			final Scheduler scheduler) {
 
-		return new TimerTask() {
+		return new ScheduledTask() {
 
 			@Override
 			public void run() {
-				/*
-				 * findNodeOperationProvider.get()
-				 * .setKey(keyFactory.generate()) .doFindNode();
-				 */
+				try {
+					scheduler.execute(refreshExecutor, new Runnable() {
+						@Override
+						public void run() {
+							// the batches are sent in the background, a run
+							// is skipped if the previous one is still sending
+							republishOperationProvider.get().doRepublish(null, new CompletionHandler<Integer, Void>() {
+								@Override
+								public void completed(Integer nrStored, Void nothing) {
+								}
+
+								@Override
+								public void failed(Throwable exc, Void nothing) {
+								}
+							});
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// the values will be republished in the next interval
+				}
 			}
 		};
 	}
+
 	@Provides
 	@Named("openkad.local.color")
 	@Singleton
@@ -384,87 +566,142 @@ public class KadNetModule extends AbstractModule {
 		return $;
 	}
 
+	private void bindCounter(final MetricsRegistry metrics, final String name) {
+		bind(Counter.class).annotatedWith(Names.named(name)).toInstance(metrics.counter(name));
+	}
+
 	private void bindTestingParams() {
 
+		// all the metrics of this node, including the testing params
+		final MetricsRegistry metrics = new MetricsRegistry();
+		bind(MetricsRegistry.class).toInstance(metrics);
+
 		// number of incoming messages
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrIncomingMessages")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrIncomingMessages");
 
 		// number of find nodes with wrong color
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrFindNodesWithWrongColor")).toInstance(
-				new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrFindNodesWithWrongColor");
 
 		// number of handled forward requests
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrForwardHandling")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrForwardHandling");
 
 		// number of handled forward requests from initiator
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrForwardHandlingFromInitiator")).toInstance(
-				new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrForwardHandlingFromInitiator");
 
 		// number of nacks recved
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrNacks")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrNacks");
 
 		// number of long timeouts
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrLongTimeouts")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrLongTimeouts");
 
 		// max number of hops until the result is found (or calculated)
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.maxHopsToResult")).toInstance(new AtomicInteger(0));
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.maxHopsToResult")).toInstance(
+				metrics.intGauge("openkad.testing.maxHopsToResult"));
 
 		// remote cache hits
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.remoteCacheHits")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.remoteCacheHits");
 
 		// local cache hits
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.localCacheHits")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.localCacheHits");
+
+		// number of idle buckets refreshes
+		bindCounter(metrics, "openkad.testing.nrBucketRefreshes");
+
+		// time from startup until the warm start was done (in millis)
+		bind(AtomicLong.class).annotatedWith(Names.named("openkad.testing.warmStartTime")).toInstance(
+				metrics.longGauge("openkad.testing.warmStartTime"));
 
 		// number of hops histogram for all find node operations I caused
 		// cache hits (find node hops = 0) will not be in here
-		bind(new TypeLiteral<List<Integer>>() {
-		}).annotatedWith(Names.named("openkad.testing.findNodeHopsHistogram")).toInstance(
-				Collections.synchronizedList(new ArrayList<Integer>()));
+		bind(Histogram.class).annotatedWith(Names.named("openkad.testing.findNodeHopsHistogram")).toInstance(metrics.histogram("openkad.testing.findNodeHopsHistogram"));
 
 		// number of hops histogram for all forward operations
-		bind(new TypeLiteral<List<Integer>>() {
-		}).annotatedWith(Names.named("openkad.testing.hopsToResultHistogram")).toInstance(
-				Collections.synchronizedList(new ArrayList<Integer>()));
+		bind(Histogram.class).annotatedWith(Names.named("openkad.testing.hopsToResultHistogram")).toInstance(metrics.histogram("openkad.testing.hopsToResultHistogram"));
 
 		// number of hits when requesting find node
 		// instead of returning the correct K bucket, we simply return
 		// the cached result
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrFindnodeHits")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrFindnodeHits");
 
 		// number of times we did not find anything in the cached results
 		// for find node request and returned instead the right K bucjet
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrFindnodeMiss")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrFindnodeMiss");
 
 		// number of local cache hits
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrLocalCacheHits")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrLocalCacheHits");
 
 		// number of times the cache results was to short
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrShortCacheHits")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrShortCacheHits");
 
 		// number of times the cache of a remote machine had a hit
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrRemoteCacheHits")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrRemoteCacheHits");
 
 		// the max size of the optimal cache
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.optimalCacheMaxSize"))
-				.toInstance(new AtomicInteger(0));
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.optimalCacheMaxSize")).toInstance(
+				metrics.intGauge("openkad.testing.optimalCacheMaxSize"));
+
+		// number of lookups that started from the cached result of a nearest key
+		bindCounter(metrics, "openkad.testing.nrNearestCacheHits");
+
+		// number of cache entries evicted to stay within the memory budget,
+		// because they expired and because they were replaced by a newer result
+		bindCounter(metrics, "openkad.testing.nrCacheEvictionsBySize");
+		bindCounter(metrics, "openkad.testing.nrCacheEvictionsByExpiry");
+		bindCounter(metrics, "openkad.testing.nrCacheEvictionsByReplace");
 
 		// counts the number of incoming pings
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrIncomingPings")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrIncomingPings");
 
 		// counts the number of outgoing pings
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrOutgoingPings")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrOutgoingPings");
 
 		// counts the number of short timeouts in the forward algo
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrShortForwardTimeouts")).toInstance(
-				new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrShortForwardTimeouts");
 
 		// total amount of nacks sent
-		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrNacksSent")).toInstance(new AtomicInteger(0));
+		bindCounter(metrics, "openkad.testing.nrNacksSent");
+
+		// number of forwarded find node requests currently resolved or relayed
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrForwardsInFlight")).toInstance(
+				metrics.intGauge("openkad.testing.nrForwardsInFlight"));
+
+		// number of forwarded find node requests attached to a running lookup of the same key
+		bindCounter(metrics, "openkad.testing.nrAttachedForwards");
+
+		// number of sniffed nodes dropped because the buckets updater was overloaded
+		bindCounter(metrics, "openkad.testing.nrDroppedSightings");
 
 		// total amount of bytes sent
-		bind(AtomicLong.class).annotatedWith(Names.named("openkad.testing.nrBytesSent")).toInstance(new AtomicLong(0));
+		bindCounter(metrics, "openkad.testing.nrBytesSent");
 
 		// total amount of bytes recved
-		bind(AtomicLong.class).annotatedWith(Names.named("openkad.testing.nrBytesRecved")).toInstance(new AtomicLong(0));
+		bindCounter(metrics, "openkad.testing.nrBytesRecved");
+
+		// number of packets carrying more than one message
+		bindCounter(metrics, "openkad.testing.nrEnvelopesSent");
+
+		// number of messages sent in those packets
+		bindCounter(metrics, "openkad.testing.nrBatchedMessages");
+
+		// number of lookup requests sent to another node since the first was too slow
+		bindCounter(metrics, "openkad.testing.nrHedgedRequests");
+
+		// number of hedged requests answered before the request they hedged
+		bindCounter(metrics, "openkad.testing.nrHedgeWins");
+
+		// total amount of values stored for other nodes
+		bindCounter(metrics, "openkad.testing.nrStoredValues");
+
+		// number of lookups done for republishing values
+		bindCounter(metrics, "openkad.testing.nrRepublishLookups");
+
+		// number of republished values stored by other nodes
+		bindCounter(metrics, "openkad.testing.nrRepublishedValues");
+
+		// number of values not republished since they were received from another replica
+		bindCounter(metrics, "openkad.testing.nrRepublishSkipped");
+
+		// number of republishes skipped since the previous one was still sending
+		bindCounter(metrics, "openkad.testing.nrOverlappingRepublishes");
 	}
 }
@@ -1,6 +1,7 @@
 package il.technion.ewolf.kbr.openkad;
 
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -23,10 +24,12 @@ public class KadNode {
 	private final AtomicLong lastContactTimestamp = new AtomicLong(0);
 	private final AtomicBoolean beingPinged = new AtomicBoolean(false);
 	protected Node node;
+	private final Scheduler scheduler;
 	
 	
 	@Inject
-	public KadNode() {
+	public KadNode(Scheduler scheduler) {
+		this.scheduler = scheduler;
 	}
 	
 	@Override
@@ -79,7 +82,7 @@ public class KadNode {
 	 * @return this for fluent interface
 	 */
 	public KadNode setNodeWasContacted() {
-		lastContactTimestamp.set(System.currentTimeMillis());
+		lastContactTimestamp.set(scheduler.currentTimeMillis());
 		return this;
 	}
 	
@@ -106,7 +109,7 @@ public class KadNode {
 	 * @return true if setNodeWasContacted was invoked in the passed validTimespan millies
 	 */
 	public boolean isPingStillValid(long validTimespan) {
-		return lastContactTimestamp.get() + validTimespan > System.currentTimeMillis();
+		return lastContactTimestamp.get() + validTimespan > scheduler.currentTimeMillis();
 	}
 
 	/**
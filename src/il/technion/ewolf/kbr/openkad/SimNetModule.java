@@ -0,0 +1,71 @@
+package il.technion.ewolf.kbr.openkad;
+
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.net.Communicator;
+import il.technion.ewolf.kbr.openkad.net.SimCommunicator;
+import il.technion.ewolf.kbr.openkad.net.SimNetwork;
+
+import java.util.Timer;
+import java.util.concurrent.ExecutorService;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import com.google.inject.Scopes;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+
+/**
+ * Runs a node over a {@link SimNetwork} instead of udp sockets.
+ * Should override a {@link KadNetModule}, each node in the network must have
+ * a unique openkad.net.udp.port which is used as its address:
+ *
+ * <pre>
+ * SimNetwork network = new SimNetwork().setLatency(10, 100, TimeUnit.MILLISECONDS);
+ * Injector injector = Guice.createInjector(SimNetModule.override(
+ * 		new KadNetModule().setProperty("openkad.net.udp.port", "10000"), network));
+ * </pre>
+ *
+ * Over a network running in virtual time the executors of blocking work get
+ * a thread for each task, since a queued task would wait for threads blocked
+ * on the virtual clock.
+ *
+ */
+public class SimNetModule extends AbstractModule {
+
+	private final SimNetwork network;
+
+	public SimNetModule(SimNetwork network) {
+		this.network = network;
+	}
+
+	/**
+	 * @param kadNetModule the node's configuration
+	 * @param network the network shared by all the nodes
+	 * @return the node's configuration running over the given network
+	 */
+	public static Module override(KadNetModule kadNetModule, SimNetwork network) {
+		return Modules.override(kadNetModule).with(new SimNetModule(network));
+	}
+
+	@Override
+	protected void configure() {
+		bind(SimNetwork.class).toInstance(network);
+		bind(SimCommunicator.class).in(Scopes.SINGLETON);
+		bind(Communicator.class).to(SimCommunicator.class).in(Scopes.SINGLETON);
+
+		// one timer thread for the whole network
+		bind(Timer.class).annotatedWith(Names.named("openkad.timer")).toInstance(network.getTimer());
+		bind(Scheduler.class).toInstance(network.getScheduler());
+
+		if (network.isVirtual()) {
+			bindVirtualExecutor("openkad.executors.join");
+			bindVirtualExecutor("openkad.executors.ping");
+			bindVirtualExecutor("openkad.executors.refresh");
+		}
+	}
+
+	private void bindVirtualExecutor(String name) {
+		bind(ExecutorService.class).annotatedWith(Names.named(name))
+			.toInstance(network.getVirtualScheduler().newExecutor(name));
+	}
+}
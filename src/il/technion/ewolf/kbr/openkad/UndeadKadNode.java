@@ -1,12 +1,14 @@
 package il.technion.ewolf.kbr.openkad;
 
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+
 import com.google.inject.Inject;
 
 public class UndeadKadNode extends KadNode {
 
 	@Inject
-	UndeadKadNode() {
-		
+	UndeadKadNode(Scheduler scheduler) {
+		super(scheduler);
 	}
 	
 	public void markDead() {
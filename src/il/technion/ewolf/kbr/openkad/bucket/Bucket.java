@@ -19,16 +19,34 @@ public interface Bucket {
 	 */
 	public void insert(KadNode n);
 
+	/**
+	 * Adds a batch of new nodes to the bucket, as if insert was invoked
+	 * for each one of them in order
+	 * @param nodes the new nodes
+	 */
+	public void insertAll(Collection<KadNode> nodes);
+
 	/**
 	 * Adds all nodes in bucket to the given collection
 	 * @param c the collection the nodes will be added to
 	 */
 	void addNodesTo(Collection<Node> c);
 
+	/**
+	 * Adds all nodes in bucket, with their contact information, to the given collection
+	 * @param c the collection the nodes will be added to
+	 */
+	void addKadNodesTo(Collection<KadNode> c);
+
 	/**
 	 * Marks a node as dead: the dead node will be replace if 
 	 * insert was invoked 
 	 * @param n the dead node
 	 */
 	public void markDead(Node n);
+
+	/**
+	 * @return a number that changes every time the nodes in the bucket change
+	 */
+	public long getVersion();
 }
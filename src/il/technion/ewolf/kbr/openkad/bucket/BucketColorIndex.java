@@ -0,0 +1,70 @@
+package il.technion.ewolf.kbr.openkad.bucket;
+
+import il.technion.ewolf.kbr.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The nodes of a single bucket grouped by their color.
+ * The groups are rebuilt the first time they are needed after the bucket's
+ * nodes have changed, so the colors are calculated once per bucket change
+ * and not on every query
+ *
+ */
+class BucketColorIndex {
+
+	// state
+	private long version = -1;
+	private final List<List<Node>> nodesByColor;
+	private int size = 0;
+
+	// dependencies
+	private final Bucket bucket;
+	private final int nrColors;
+
+	BucketColorIndex(Bucket bucket, int nrColors) {
+		this.bucket = bucket;
+		this.nrColors = nrColors;
+		this.nodesByColor = new ArrayList<List<Node>>(nrColors);
+		for (int i = 0; i < nrColors; ++i)
+			nodesByColor.add(new ArrayList<Node>());
+	}
+
+	private void update() {
+		long v = bucket.getVersion();
+		if (v == version)
+			return;
+
+		// the version is read first, a change made while copying the nodes
+		// will cause another update
+		List<Node> nodes = new ArrayList<Node>();
+		bucket.addNodesTo(nodes);
+		for (List<Node> l : nodesByColor)
+			l.clear();
+		for (Node n : nodes)
+			nodesByColor.get(n.getKey().getColor(nrColors)).add(n);
+		size = nodes.size();
+		version = v;
+	}
+
+	/**
+	 * @return the number of nodes in the bucket
+	 */
+	synchronized int size() {
+		update();
+		return size;
+	}
+
+	/**
+	 * Adds all the nodes in the bucket with the given color to the given
+	 * collection
+	 * @param c the collection the nodes will be added to
+	 * @param color the nodes' color
+	 */
+	synchronized void addNodesTo(Collection<Node> c, int color) {
+		update();
+		c.addAll(nodesByColor.get(color));
+	}
+}
@@ -16,11 +16,24 @@ public class DummyBucket implements Bucket {
 	public void insert(KadNode n) {
 	}
 
+	@Override
+	public void insertAll(Collection<KadNode> nodes) {
+	}
+
 	@Override
 	public void addNodesTo(Collection<Node> c) {
 	}
 
+	@Override
+	public void addKadNodesTo(Collection<KadNode> c) {
+	}
+
 	@Override
 	public void markDead(Node n) {
 	}
+
+	@Override
+	public long getVersion() {
+		return 0;
+	}
 }
@@ -5,6 +5,7 @@ import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.openkad.KadNode;
 import il.technion.ewolf.kbr.openkad.NodeStorage;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface KBuckets extends NodeStorage {
@@ -15,6 +16,23 @@ public interface KBuckets extends NodeStorage {
 	 */
 	public abstract List<Key> randomKeysForAllBuckets();
 
+	/**
+	 * Uses the keyFactory to generate keys only for the buckets that were not
+	 * looked up for at least idleTime milliseconds. Buckets closer to the local
+	 * node than the closest known node are skipped since the network is too
+	 * small to fill them
+	 * @param idleTime minimum time since the last lookup in a bucket
+	 * @return a list of random keys where no 2 keys will fit into the same bucket
+	 */
+	public abstract List<Key> randomKeysForIdleBuckets(long idleTime);
+
+	/**
+	 * Records a lookup for the given key, the bucket the key fits into
+	 * will not be considered idle until the refresh interval passes
+	 * @param k the looked up key
+	 */
+	public abstract void markLookup(Key k);
+
 	/**
 	 * Inserts a node to the data structure
 	 * The can be rejected, depending on the bucket policy
@@ -22,6 +40,13 @@ public interface KBuckets extends NodeStorage {
 	 */
 	public abstract void insert(KadNode node);
 
+	/**
+	 * Inserts a batch of nodes to the data structure
+	 * Each node can be rejected, depending on the bucket policy
+	 * @param nodes
+	 */
+	public abstract void insertAll(Collection<KadNode> nodes);
+
 
 	
 	public abstract void markAsDead(Node n);
@@ -54,6 +79,16 @@ public interface KBuckets extends NodeStorage {
 	 */
 	public abstract List<Node> getClosestNodesByColor(Key k, int n);
 
+	/**
+	 * Returns the nodes with the given color from a single bucket. The bucket
+	 * number is calculated using the given key as in getAllFromBucket
+	 * 
+	 * @param k key to calculate the bucket from
+	 * @param color the nodes' color
+	 * @return a list of nodes from a particular bucket with a particular color
+	 */
+	public abstract List<Node> getAllFromBucketByColor(Key k, int color);
+
 	public abstract String toString();
 
 }
\ No newline at end of file
@@ -3,11 +3,12 @@ package il.technion.ewolf.kbr.openkad.bucket;
 import static ch.lambdaj.Lambda.on;
 import static ch.lambdaj.Lambda.sort;
 import il.technion.ewolf.kbr.Key;
-import il.technion.ewolf.kbr.KeyColorComparator;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.KeyFactory;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.NodeRegistry;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.KadNode;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
 import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
@@ -22,9 +23,12 @@ import il.technion.ewolf.kbr.openkad.net.filter.TypeExcluderMessageFilter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -42,24 +46,33 @@ import com.google.inject.name.Named;
 public class KadBuckets implements KBuckets {
 
 	private final Provider<MessageDispatcher<Object>> msgDispatcherProvider;
-	private final Provider<KadNode> kadNodeProvider;
+	private final KadBucketsUpdater updater;
+	private final NodeRegistry nodeRegistry;
 	private final Bucket[] kbuckets;// 默认160
+	private final BucketColorIndex[] colorIndex;
+	private final AtomicLongArray lastLookup;
 	protected final Node localNode;
 	private final KeyFactory keyFactory;
 	private final int nrColors;
+	private final Scheduler scheduler;
 
 	@Inject
-	protected KadBuckets(KeyFactory keyFactory, Provider<KadNode> kadNodeProvider, Provider<MessageDispatcher<Object>> msgDispatcherProvider, @Named("openkad.bucket.kbuckets") Provider<Bucket> kBucketProvider, @Named("openkad.local.node") Node localNode, @Named("openkad.color.nrcolors") int nrColors) {
+	protected KadBuckets(KeyFactory keyFactory, KadBucketsUpdater updater, NodeRegistry nodeRegistry, Provider<MessageDispatcher<Object>> msgDispatcherProvider, @Named("openkad.bucket.kbuckets") Provider<Bucket> kBucketProvider, @Named("openkad.local.node") Node localNode, @Named("openkad.color.nrcolors") int nrColors, Scheduler scheduler) {
 		this.keyFactory = keyFactory;
 		this.msgDispatcherProvider = msgDispatcherProvider;
-		this.kadNodeProvider = kadNodeProvider;
+		this.updater = updater;
+		this.nodeRegistry = nodeRegistry;
 		this.localNode = localNode;
 		this.nrColors = nrColors;
+		this.scheduler = scheduler;
 
 		kbuckets = new Bucket[keyFactory.getBitLength()];
+		colorIndex = new BucketColorIndex[kbuckets.length];
 		for (int i = 0; i < kbuckets.length; ++i) {
 			kbuckets[i] = kBucketProvider.get();
+			colorIndex[i] = new BucketColorIndex(kbuckets[i], nrColors);
 		}
+		lastLookup = new AtomicLongArray(kbuckets.length);
 	}
 
 	/**
@@ -76,8 +89,36 @@ public class KadBuckets implements KBuckets {
 		return $;
 	}
 
+	public List<Key> randomKeysForIdleBuckets(long idleTime) {
+		List<Key> $ = new ArrayList<Key>();
+		List<Node> nodes = new ArrayList<Node>();
+		long now = scheduler.currentTimeMillis();
+		boolean foundClosest = false;
+		for (int i = 0; i < kbuckets.length; ++i) {
+			if (!foundClosest) {
+				// buckets closer than the closest known node are empty
+				kbuckets[i].addNodesTo(nodes);
+				if (nodes.isEmpty())
+					continue;
+				foundClosest = true;
+			}
+			if (lastLookup.get(i) + idleTime > now)
+				continue;
+			$.add(keyFactory.generate(i).xor(localNode.getKey()));
+		}
+		return $;
+	}
+
+	public void markLookup(Key k) {
+		int i = getKBucketIndex(k);
+		if (i == -1)
+			return;
+		lastLookup.set(i, scheduler.currentTimeMillis());
+	}
+
 	/**
 	 * Register this data structure to listen to incoming messages and update itself accordingly. Invoke this method after creating the entire system
+	 * The sniffed nodes are not inserted on the server threads, they are handed to the {@link KadBucketsUpdater}
 	 */
 	public synchronized void registerIncomingMessageHandler() {
 		msgDispatcherProvider.get().setConsumable(false)
@@ -94,7 +135,8 @@ public class KadBuckets implements KBuckets {
 
 					@Override
 					public void completed(KadMessage msg, Object attachment) {
-						KadBuckets.this.insert(kadNodeProvider.get().setNode(msg.getSrc()).setNodeWasContacted());
+						// keep only the canonical instance of the src
+						updater.sighted(nodeRegistry.intern(msg.getSrc()), true);
 
 						// try to sniff the message for more information, such as
 						// nodes in its content
@@ -111,7 +153,7 @@ public class KadBuckets implements KBuckets {
 
 						if (nodes != null) {
 							for (int i = 0; i < nodes.size(); i++) {
-								KadBuckets.this.insert(kadNodeProvider.get().setNode(nodes.get(i)));
+								updater.sighted(nodes.get(i), false);
 							}
 						}
 					}
@@ -172,9 +214,37 @@ public class KadBuckets implements KBuckets {
 		if (i == -1)
 			return;
 
+		// calculate the color once, before the node is shared with the queries
+		node.getNode().getKey().getColor(nrColors);
 		kbuckets[i].insert(node);// 插入代指定的楼层
 	}
 
+	/**
+	 * Inserts a batch of nodes to the data structure. Nodes are grouped by their
+	 * bucket so each bucket is updated once per batch
+	 * 
+	 * @param nodes
+	 */
+	public void insertAll(Collection<KadNode> nodes) {
+		Map<Integer, List<KadNode>> nodesFromBucket = new HashMap<Integer, List<KadNode>>();
+		for (KadNode node : nodes) {
+			int i = getKBucketIndex(node.getNode().getKey());
+			if (i == -1)
+				continue;
+			node.getNode().getKey().getColor(nrColors);
+
+			List<KadNode> l = nodesFromBucket.get(i);
+			if (l == null) {
+				l = new ArrayList<KadNode>();
+				nodesFromBucket.put(i, l);
+			}
+			l.add(node);
+		}
+
+		for (Map.Entry<Integer, List<KadNode>> e : nodesFromBucket.entrySet())
+			kbuckets[e.getKey()].insertAll(e.getValue());
+	}
+
 	/**
 	 * 获取所有的节点
 	 * @return a list containing all the nodes in the data structure
@@ -187,6 +257,18 @@ public class KadBuckets implements KBuckets {
 		return $;
 	}
 
+	/**
+	 * @return a list containing all the nodes in the data structure with their
+	 *         contact information
+	 */
+	public List<KadNode> getAllKadNodes() {
+		List<KadNode> $ = new ArrayList<KadNode>();
+		for (int i = 0; i < kbuckets.length; ++i) {
+			kbuckets[i].addKadNodesTo($);
+		}
+		return $;
+	}
+
 	public void markAsDead(Node n) {
 		int i = getKBucketIndex(n.getKey());
 		if (i == -1)
@@ -248,15 +330,63 @@ public class KadBuckets implements KBuckets {
 	 * 这个和上面一样，只是比较器不一样
 	 */
 	public List<Node> getClosestNodesByColor(Key k, int n) {
-		List<Node> $ = getClosestNodes(k, n, getKBucketIndex(k), kbuckets);
-		if ($.isEmpty())
-			return $;
-		$ = sort($, on(Node.class).getKey(), new KeyColorComparator(k, nrColors));
+		// the same buckets getClosestNodes takes its nodes from
+		int index = Math.max(0, getKBucketIndex(k));
+		List<BucketColorIndex> region = new ArrayList<BucketColorIndex>();
+		region.add(colorIndex[index]);
+		int size = colorIndex[index].size();
+		for (int i = 1; size < n && (index + i < colorIndex.length || 0 <= index - i); ++i) {
+			if (index + i < colorIndex.length) {
+				region.add(colorIndex[index + i]);
+				size += colorIndex[index + i].size();
+			}
+			if (0 <= index - i) {
+				region.add(colorIndex[index - i]);
+				size += colorIndex[index - i].size();
+			}
+		}
+
+		// take the nodes by their color's distance from the key's color, nodes
+		// with the same color distance are sorted by their key
+		int color = k.getColor(nrColors);
+		KeyComparator keyComparator = new KeyComparator(k);
+		List<Node> $ = new ArrayList<Node>();
+		for (int d = 0; d < nrColors && $.size() < n; ++d) {
+			List<Node> sameDistance = new ArrayList<Node>();
+			for (BucketColorIndex b : region) {
+				if (0 <= color - d)
+					b.addNodesTo(sameDistance, color - d);
+				if (d != 0 && color + d < nrColors)
+					b.addNodesTo(sameDistance, color + d);
+			}
+			if (sameDistance.size() > 1)
+				sameDistance = sort(sameDistance, on(Node.class).getKey(), keyComparator);
+			$.addAll(sameDistance);
+		}
 		if ($.size() > n)
 			$.subList(n, $.size()).clear();
 		return $;
 	}
 
+	/**
+	 * Returns the nodes with the given color from the bucket the given key
+	 * fits into
+	 * 
+	 * @param k
+	 *            key to calculate the bucket from
+	 * @param color
+	 *            the nodes' color
+	 * @return a list of nodes from a particular bucket with a particular color
+	 */
+	public List<Node> getAllFromBucketByColor(Key k, int color) {
+		int i = getKBucketIndex(k);
+		if (i == -1)
+			return Collections.emptyList();
+		List<Node> $ = new ArrayList<Node>();
+		colorIndex[i].addNodesTo($, color);
+		return $;
+	}
+
 	@Override
 	public String toString() {
 		String $ = "";
@@ -0,0 +1,249 @@
+package il.technion.ewolf.kbr.openkad.bucket;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Single writer for all the nodes sniffed from incoming messages.
+ * The server threads only queue sightings, a single maintenance thread
+ * drains the queue, merges repeated sightings of the same node and inserts
+ * the survivors into the buckets in batches.
+ *
+ * The queue is drained by a task handed to the maintenance thread through
+ * the scheduler whenever sightings are queued, so a virtual clock does not
+ * move while sightings are waiting to be applied.
+ *
+ * When the queue is full new sightings are dropped (and counted), losing a
+ * sighting only delays the routing table update.
+ */
+public class KadBucketsUpdater {
+
+	/**
+	 * A single observation of a node: either we received a message from it
+	 * (contacted) or some other node told us about it
+	 */
+	private static final class Sighting {
+		private final Node node;
+		private final boolean contacted;
+		private final long timestamp;
+
+		Sighting(Node node, boolean contacted, long timestamp) {
+			this.node = node;
+			this.contacted = contacted;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// dependencies
+	private final Provider<KadBuckets> kBucketsProvider;
+	private final Provider<KadNode> kadNodeProvider;
+	private final int batchSize;
+	private final long dedupWindow;
+	private final Scheduler scheduler;
+
+	// testing
+	private final Counter nrDroppedSightings;
+
+	// state
+	private final BlockingQueue<Sighting> pending;
+	private final AtomicBoolean isDraining = new AtomicBoolean(false);
+	private final AtomicLong nrQueued = new AtomicLong(0);
+	private final AtomicLong nrDrained = new AtomicLong(0);
+	// only touched by the draining task
+	private final Map<Node, Sighting> recentlyApplied = new HashMap<Node, Sighting>();
+	private long lastPurge = 0;
+	private ExecutorService updaterExecutor = null;
+
+	@Inject
+	KadBucketsUpdater(
+			Provider<KadBuckets> kBucketsProvider,
+			Provider<KadNode> kadNodeProvider,
+			@Named("openkad.bucket.updater.max_pending") int maxPending,
+			@Named("openkad.bucket.updater.batch_size") int batchSize,
+			@Named("openkad.bucket.updater.dedup_window") long dedupWindow,
+			Scheduler scheduler,
+
+			// testing
+			@Named("openkad.testing.nrDroppedSightings") Counter nrDroppedSightings) {
+
+		this.kBucketsProvider = kBucketsProvider;
+		this.kadNodeProvider = kadNodeProvider;
+		this.batchSize = batchSize;
+		this.dedupWindow = dedupWindow;
+		this.scheduler = scheduler;
+		this.nrDroppedSightings = nrDroppedSightings;
+
+		this.pending = new ArrayBlockingQueue<Sighting>(maxPending);
+	}
+
+	/**
+	 * Queues a sighting of a node. Never blocks.
+	 *
+	 * @param n the sighted node
+	 * @param contacted true if a message was received from n, false if n was
+	 *            only mentioned in some other node's message
+	 * @return false if the sighting was dropped
+	 */
+	public boolean sighted(Node n, boolean contacted) {
+		if (!pending.offer(new Sighting(n, contacted, scheduler.currentTimeMillis()))) {
+			nrDroppedSightings.increment();
+			return false;
+		}
+		nrQueued.incrementAndGet();
+		drainLater();
+		return true;
+	}
+
+	/**
+	 * Starts the maintenance thread
+	 */
+	public synchronized void start() {
+		if (updaterExecutor != null)
+			return;
+		updaterExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread $ = new Thread(r, "openkad.bucket.updater");
+				$.setDaemon(true);
+				return $;
+			}
+		});
+		drainLater();
+	}
+
+	/**
+	 * Stops the maintenance thread, pending sightings are discarded
+	 */
+	public void shutdown() {
+		ExecutorService executor;
+		synchronized (this) {
+			executor = updaterExecutor;
+			updaterExecutor = null;
+			scheduler.wakeAll(this);
+		}
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * Waits until all the sightings queued before this call were applied to
+	 * the buckets. Returns immediately if the updater is not running.
+	 * @throws InterruptedException
+	 */
+	public synchronized void flush() throws InterruptedException {
+		long target = nrQueued.get();
+		while (updaterExecutor != null && nrDrained.get() < target)
+			scheduler.await(this);
+	}
+
+	/**
+	 * Hands a draining task to the maintenance thread unless one is already
+	 * there
+	 */
+	private void drainLater() {
+		if (pending.isEmpty() || !isDraining.compareAndSet(false, true))
+			return;
+
+		synchronized (this) {
+			try {
+				if (updaterExecutor != null) {
+					scheduler.execute(updaterExecutor, drainer);
+					return;
+				}
+			} catch (RejectedExecutionException e) {
+				// shutting down
+			}
+		}
+		// not running, sightings wait for start
+		isDraining.set(false);
+	}
+
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			final List<Sighting> batch = new ArrayList<Sighting>(batchSize);
+			try {
+				while (pending.drainTo(batch, batchSize) > 0) {
+					try {
+						apply(batch);
+					} catch (Exception e) {
+						// a bad sighting should not kill the updater
+						e.printStackTrace();
+					}
+					nrDrained.addAndGet(batch.size());
+					batch.clear();
+				}
+				purgeRecentlyApplied();
+			} finally {
+				isDraining.set(false);
+				synchronized (KadBucketsUpdater.this) {
+					scheduler.wakeAll(KadBucketsUpdater.this);
+				}
+			}
+			// sightings queued after the last drain but before the flag was cleared
+			drainLater();
+		}
+	};
+
+	private void apply(List<Sighting> batch) {
+		// merge all sightings of the same node in this batch
+		Map<Node, Sighting> merged = new LinkedHashMap<Node, Sighting>();
+		for (Sighting s : batch) {
+			Sighting prev = merged.get(s.node);
+			if (prev == null || (s.contacted && (!prev.contacted || prev.timestamp < s.timestamp)))
+				merged.put(s.node, s);
+		}
+
+		List<KadNode> toInsert = new ArrayList<KadNode>(merged.size());
+		for (Sighting s : merged.values()) {
+			// skip nodes we have just inserted unless the new sighting
+			// carries more information than the applied one
+			Sighting applied = recentlyApplied.get(s.node);
+			if (applied != null && applied.timestamp + dedupWindow > s.timestamp && (applied.contacted || !s.contacted))
+				continue;
+
+			KadNode kadNode = kadNodeProvider.get().setNode(s.node);
+			if (s.contacted)
+				kadNode.setNodeWasContacted(s.timestamp);
+			toInsert.add(kadNode);
+			recentlyApplied.put(s.node, s);
+		}
+
+		if (!toInsert.isEmpty())
+			kBucketsProvider.get().insertAll(toInsert);
+	}
+
+	private void purgeRecentlyApplied() {
+		long now = scheduler.currentTimeMillis();
+		if (lastPurge + dedupWindow > now)
+			return;
+		lastPurge = now;
+
+		Iterator<Sighting> it = recentlyApplied.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().timestamp + dedupWindow <= now)
+				it.remove();
+		}
+	}
+}
@@ -22,6 +22,7 @@ public class SlackBucket implements Bucket {
 	
 	private final List<KadNode> bucket;
 	private final int maxSize;
+	private volatile long version = 0;
 	
 	@Inject
 	public SlackBucket(int maxSize) {
@@ -44,6 +45,15 @@ public class SlackBucket implements Bucket {
 				bucket.remove(0);
 			
 			bucket.add(n);
+			++version;
+		}
+	}
+
+	@Override
+	public void insertAll(Collection<KadNode> nodes) {
+		synchronized (bucket) {
+			for (KadNode n : nodes)
+				insert(n);
 		}
 	}
 
@@ -56,8 +66,20 @@ public class SlackBucket implements Bucket {
 		}
 	}
 
+	@Override
+	public void addKadNodesTo(Collection<KadNode> c) {
+		synchronized (bucket) {
+			c.addAll(bucket);
+		}
+	}
+
 	@Override
 	public void markDead(Node n) {
 		// nothing to do
 	}
+
+	@Override
+	public long getVersion() {
+		return version;
+	}
 }
@@ -2,6 +2,7 @@ package il.technion.ewolf.kbr.openkad.bucket;
 
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.KadNode;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
@@ -22,6 +23,12 @@ import com.google.inject.name.Named;
 /**
  * A bucket with the following policy:具有下列政策斗： when inserting a node do the following:当插入一个节点做如下： 1. if the node is already in the bucket, move it to be the last 1。如果该节点已经在斗，移动它是最后一次 2. if the node is not in the bucket and the bucket is not full, move it to be the last in the bucket 2。如果节点不在铲斗、斗是不充分的，将其移动到桶上 3. if the node is not in the bucket and the bucket is full, ping the first node in the bucket: 3。如果节点不在桶和桶是满的，平中的第一个节点的桶： a. if it returned a ping, move it to be the last in bucket and don't insert the given node 如果它返回一个平，把它在桶上，不要插入节点 b. if it did not returned a ping, remove it from the bucket and insert the given node as last 如果它没有返回平，把它从桶中插入给定的节点上
  * 
+ * Nodes that could not be inserted because the bucket was full are remembered in a bounded
+ * replacement cache (most recent last). When a node in the bucket is found dead it is replaced
+ * with the most recent node from the replacement cache, and the first node in the bucket is
+ * pinged only when it is suspected (its last contact is older than openkad.bucket.valid_timespan)
+ * and there is a replacement waiting for its place.
+ * 
  * @author eyal.kibbar@gmail.com
  *
  */
@@ -29,23 +36,30 @@ public class StableBucket implements Bucket {
 
 	// state
 	private final List<KadNode> bucket;
+	private final LinkedList<KadNode> replacementCache;
+	private volatile long version = 0;
 
 	// dependencies
 	private final int maxSize;
+	private final int maxReplacementCacheSize;
 	private final long validTimespan;
 	private final Provider<PingRequest> pingRequestProvider;
 	private final Provider<MessageDispatcher<Void>> msgDispatcherProvider;
+	private final Scheduler scheduler;
 	private final ExecutorService pingExecutor;
 
 	@Inject
-	public StableBucket(int maxSize, @Named("openkad.bucket.valid_timespan") long validTimespan, @Named("openkad.executors.ping") ExecutorService pingExecutor, Provider<PingRequest> pingRequestProvider, Provider<MessageDispatcher<Void>> msgDispatcherProvider) {
+	public StableBucket(int maxSize, @Named("openkad.bucket.replacement.maxsize") int maxReplacementCacheSize, @Named("openkad.bucket.valid_timespan") long validTimespan, @Named("openkad.executors.ping") ExecutorService pingExecutor, Provider<PingRequest> pingRequestProvider, Provider<MessageDispatcher<Void>> msgDispatcherProvider, Scheduler scheduler) {
 
 		this.maxSize = maxSize;
+		this.maxReplacementCacheSize = maxReplacementCacheSize;
 		this.bucket = new LinkedList<KadNode>();
+		this.replacementCache = new LinkedList<KadNode>();
 		this.validTimespan = validTimespan;
 		this.pingExecutor = pingExecutor;
 		this.pingRequestProvider = pingRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.scheduler = scheduler;
 	}
 
 	@Override
@@ -64,7 +78,9 @@ public class StableBucket implements Bucket {
 			}
 		} else if (bucket.size() < maxSize) {// 没有找到,并且没有满 直接添加
 			// not found in bucket and there is enough room for n
+			replacementCache.remove(n);
 			bucket.add(n);
+			++version;
 
 		} else {// 没有找到，但是满了
 			// n is not in bucket and bucket is full
@@ -74,35 +90,80 @@ public class StableBucket implements Bucket {
 			if (n.hasNeverContacted())
 				return;
 
-			// check the first node, ping him if no one else is currently pinging
 			KadNode inBucketReplaceCandidate = bucket.get(0);// 取最老的一个
 
 			// the first node was only inserted indirectly (meaning, I never recved
-			// a msg from it !) and I did recv a msg from n.
+			// a msg from it !) or was marked dead and I did recv a msg from n.
 			if (inBucketReplaceCandidate.hasNeverContacted()) {// 检测这个有没有返回过信息，没有就删除他，他新的插入到最后
 				bucket.remove(inBucketReplaceCandidate);
+				replacementCache.remove(n);
 				bucket.add(n);
+				++version;
 				return;
 			}
 
-			// ping is still valid, don't replace检测是否超过有效时间了，没有就直接返回
+			// remember n for when a place in the bucket will be available
+			addReplacement(n);
+
+			// ping is still valid, the first node is not suspected检测是否超过有效时间了，没有就直接返回
 			if (inBucketReplaceCandidate.isPingStillValid(validTimespan))
 				return;
 
-			// send ping and act accordingly
+			// send ping if no one else is currently pinging
 			if (inBucketReplaceCandidate.lockForPing()) {
-				sendPing(bucket.get(0), n);
+				sendPing(inBucketReplaceCandidate);
 			}
 		}
 	}
 
+	/**
+	 * Adds a node to the end of the replacement cache (as the most recent candidate),
+	 * evicting the oldest candidate if the cache is full
+	 * 
+	 * @param n a node that we heard from directly
+	 */
+	private void addReplacement(KadNode n) {
+		int i = replacementCache.indexOf(n);
+		if (i != -1) {
+			KadNode s = replacementCache.remove(i);
+			if (s.getLastContact() > n.getLastContact())
+				n.setNodeWasContacted(s.getLastContact());
+		}
+		replacementCache.addLast(n);
+		while (replacementCache.size() > maxReplacementCacheSize)
+			replacementCache.removeFirst();
+	}
+
+	/**
+	 * Replaces a dead node in the bucket with the most recent node from the
+	 * replacement cache
+	 * 
+	 * @param dead a node in the bucket
+	 * @return true if the dead node was replaced
+	 */
+	private boolean replaceFromCache(KadNode dead) {
+		if (replacementCache.isEmpty())
+			return false;
+		if (!bucket.remove(dead))
+			return false;
+		bucket.add(replacementCache.removeLast());
+		++version;
+		return true;
+	}
+
+	@Override
+	public synchronized void insertAll(Collection<KadNode> nodes) {
+		for (KadNode n : nodes)
+			insert(n);
+	}
+
 	/**
 	 * ping通就不处理，没有就替换
+	 * If the ping fails, inBucket is replaced with the most recent node in the replacement cache
 	 * 
 	 * @param inBucket
-	 * @param replaceIfFailed
 	 */
-	private void sendPing(final KadNode inBucket, final KadNode replaceIfFailed) {
+	private void sendPing(final KadNode inBucket) {
 
 		final PingRequest pingRequest = pingRequestProvider.get();
 
@@ -126,21 +187,13 @@ public class StableBucket implements Bucket {
 					public void failed(Throwable exc, Void nothing) {
 						// ping was not recved
 						synchronized (StableBucket.this) {
-							// try to remove the already in bucket and
-							// replace it with the new candidate that we
-							// just heard from.
-							if (bucket.remove(inBucket)) {
-								// successfully removed the old node that
-								// did not answer my ping
-
-								// try insert the new candidate
-								if (!bucket.add(replaceIfFailed)) {
-									// candidate was already in bucket
-									// return the inBucket to be the oldest node in
-									// the bucket since we don't want our bucket
-									// to shrink unnecessarily
-									bucket.add(0, inBucket);
-								}
+							// try to replace the already in bucket node with the
+							// most recent candidate we heard from. if there is no
+							// candidate the node stays (marked dead) since we don't
+							// want our bucket to shrink unnecessarily
+							if (!replaceFromCache(inBucket) && bucket.remove(inBucket)) {
+								inBucket.markDead();
+								bucket.add(0, inBucket);
 							}
 						}
 						inBucket.releasePingLock();
@@ -148,7 +201,7 @@ public class StableBucket implements Bucket {
 				});
 
 		try {
-			pingExecutor.execute(new Runnable() {
+			scheduler.execute(pingExecutor, new Runnable() {
 
 				@Override
 				public void run() {
@@ -162,16 +215,21 @@ public class StableBucket implements Bucket {
 
 	/**
 	 * 把当前k桶中的n节点删除
+	 * The dead node is swapped with the most recent node in the replacement cache.
+	 * If the cache is empty it is marked dead and moved to front
 	 */
 	@Override
 	public synchronized void markDead(Node n) {
 		for (int i = 0; i < bucket.size(); ++i) {
 			KadNode kadNode = bucket.get(i);
 			if (kadNode.getNode().equals(n)) {
+				if (replaceFromCache(kadNode))
+					return;
 				// mark dead an move to front
 				kadNode.markDead();
 				bucket.remove(i);
 				bucket.add(0, kadNode);
+				return;
 			}
 		}
 	}
@@ -186,6 +244,16 @@ public class StableBucket implements Bucket {
 		}
 	}
 
+	@Override
+	public synchronized void addKadNodesTo(Collection<KadNode> c) {
+		c.addAll(bucket);
+	}
+
+	@Override
+	public long getVersion() {
+		return version;
+	}
+
 	@Override
 	public synchronized String toString() {
 		return bucket.toString();
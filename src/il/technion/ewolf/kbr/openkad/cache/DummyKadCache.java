@@ -21,6 +21,11 @@ public class DummyKadCache implements KadCache {
 		return null;
 	}
 
+	@Override
+	public boolean contains(Key key) {
+		return false;
+	}
+
 	@Override
 	public void clear() {
 	}
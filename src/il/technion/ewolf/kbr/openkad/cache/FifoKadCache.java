@@ -84,6 +84,11 @@ public class FifoKadCache implements KadCache {
 		return cacheEntry == null ? null : cacheEntry.getNodes();
 	}
 
+	@Override
+	public synchronized boolean contains(Key key) {
+		return entryFromKey.containsKey(key);
+	}
+
 	@Override
 	public synchronized void clear() {
 		entryFromKey.clear();
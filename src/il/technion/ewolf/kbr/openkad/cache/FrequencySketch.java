@@ -0,0 +1,87 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+/**
+ * A count-min sketch estimating how many times each key was accessed recently.
+ * Counters are 4 bits (saturating at 15), packed 16 to a long. After sampleSize
+ * increments all the counters are halved so old popularity fades away.
+ *
+ * Not thread safe, callers must synchronize.
+ *
+ */
+class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int size = 0;
+
+	/**
+	 * @param maxEntries the maximum number of entries in the cache using this sketch
+	 */
+	FrequencySketch(int maxEntries) {
+		int n = Integer.highestOneBit(Math.max(maxEntries, 16) - 1) << 1;
+		this.table = new long[n];
+		this.tableMask = n - 1;
+		this.sampleSize = 10 * Math.max(maxEntries, 16);
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	/**
+	 * @param hash the key's hash code
+	 * @return the estimated number of recent accesses (0 to 15)
+	 */
+	int frequency(int hash) {
+		int h = spread(hash);
+		int $ = 15;
+		for (int i = 0; i < DEPTH; ++i) {
+			// each row uses a different nibble in its long
+			int offset = (((h >>> (i << 3)) & 3) + (i << 2)) << 2;
+			int count = (int) ((table[indexOf(h, i)] >>> offset) & 0xfL);
+			$ = Math.min($, count);
+		}
+		return $;
+	}
+
+	/**
+	 * Records an access of the key
+	 * @param hash the key's hash code
+	 */
+	void increment(int hash) {
+		int h = spread(hash);
+		boolean added = false;
+		for (int i = 0; i < DEPTH; ++i) {
+			int offset = (((h >>> (i << 3)) & 3) + (i << 2)) << 2;
+			int index = indexOf(h, i);
+			long mask = 0xfL << offset;
+			if ((table[index] & mask) != mask) {
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+
+		if (added && ++size == sampleSize)
+			reset();
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; ++i)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		size /= 2;
+	}
+}
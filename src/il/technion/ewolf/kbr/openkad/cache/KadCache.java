@@ -17,6 +17,15 @@ public interface KadCache {
 	
 	public List<Node> search(Key key);
 	
+	/**
+	 * Checks if a result is cached for the given key without counting it as
+	 * a use of the result, so it does not affect which entries are evicted
+	 * 
+	 * @param key the requested key
+	 * @return true if search may return a result for key
+	 */
+	public boolean contains(Key key);
+	
 	public void clear();
 	
 }
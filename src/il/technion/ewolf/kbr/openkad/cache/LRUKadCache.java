@@ -97,6 +97,12 @@ public class LRUKadCache implements KadCache {
 		return null;
 	}
 
+	@Override
+	public synchronized boolean contains(Key key) {
+		// does not move the entry to the head
+		return entryFromKey.containsKey(key);
+	}
+
 	@Override
 	public synchronized void clear() {
 		entryFromKey.clear();
@@ -0,0 +1,171 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import static ch.lambdaj.Lambda.on;
+import static ch.lambdaj.Lambda.sort;
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyComparator;
+import il.technion.ewolf.kbr.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.primitives.UnsignedBytes;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Decorates a cache with an index of the cached keys ordered by their bits,
+ * so the cached result of the key nearest (by XOR distance) to a given key
+ * can be found. The key sharing the longest prefix with a given key is always
+ * one of its 2 neighbours in this order.
+ *
+ * A nearest result is not the result of the requested key, it should only be
+ * used as a starting point for a lookup. Only cached keys sharing at least
+ * openkad.cache.nearest.min_prefix bits with the requested key are considered.
+ *
+ */
+public class NearestKeyKadCache implements KadCache {
+
+	private static final Comparator<Key> KEY_ORDER = new Comparator<Key>() {
+		private final Comparator<byte[]> bytesOrder = UnsignedBytes.lexicographicalComparator();
+
+		@Override
+		public int compare(Key k1, Key k2) {
+			return bytesOrder.compare(k1.getBytes(), k2.getBytes());
+		}
+	};
+
+	// dependencies
+	private final KadCache cache;
+	private final int minPrefix;
+	private final int maxIndexSize;
+
+	// state
+	private final ConcurrentSkipListSet<Key> index = new ConcurrentSkipListSet<Key>(KEY_ORDER);
+	private final AtomicInteger indexSize = new AtomicInteger(0);
+
+	@Inject
+	NearestKeyKadCache(
+			@Named("openkad.cache.nearest.cache") KadCache cache,
+			@Named("openkad.cache.nearest.min_prefix") int minPrefix,
+			@Named("openkad.cache.size") int size) {
+
+		this.cache = cache;
+		this.minPrefix = minPrefix;
+		this.maxIndexSize = 2 * size;
+	}
+
+	@Override
+	public void insert(Key key, List<Node> nodes) {
+		cache.insert(key, nodes);
+		if (index.add(key) && indexSize.incrementAndGet() > maxIndexSize)
+			pruneIndex();
+	}
+
+	@Override
+	public List<Node> search(Key key) {
+		return cache.search(key);
+	}
+
+	@Override
+	public boolean contains(Key key) {
+		return cache.contains(key);
+	}
+
+	/**
+	 * Searches the cached result of the nearest cached key. Only the returned
+	 * result is counted as a use by the real cache, the keys probed on the way
+	 * are not.
+	 *
+	 * @param key the requested key
+	 * @return the cached result of the nearest key, or null if no cached key
+	 *         shares at least openkad.cache.nearest.min_prefix bits with key
+	 */
+	public List<Node> searchNearest(Key key) {
+		while (true) {
+			Key nearest = nearestOf(key, index.floor(key), index.ceiling(key));
+			if (nearest == null || commonPrefixLength(key, nearest) < minPrefix)
+				return null;
+
+			List<Node> $ = cache.contains(nearest) ? cache.search(nearest) : null;
+			if ($ != null)
+				return $;
+
+			// evicted from the real cache
+			removeFromIndex(nearest);
+		}
+	}
+
+	@Override
+	public void clear() {
+		cache.clear();
+		index.clear();
+		indexSize.set(0);
+	}
+
+	/**
+	 * Merges the nodes of 2 results to a single result
+	 *
+	 * @param key the requested key
+	 * @param nodes1 first result
+	 * @param nodes2 second result
+	 * @param n max number of nodes in the merged result
+	 * @return the n nodes closest to key from both results
+	 */
+	public static List<Node> mergeClosest(Key key, Collection<Node> nodes1, Collection<Node> nodes2, int n) {
+		Set<Node> all = new LinkedHashSet<Node>(nodes1);
+		all.addAll(nodes2);
+		List<Node> $ = sort(new ArrayList<Node>(all), on(Node.class).getKey(), new KeyComparator(key));
+		if ($.size() > n)
+			$.subList(n, $.size()).clear();
+		return $;
+	}
+
+	private static int commonPrefixLength(Key k1, Key k2) {
+		// the index of the first different bit, counting from the LSB
+		return k1.getBitLength() - 1 - k1.xor(k2).getFirstSetBitIndex();
+	}
+
+	private static Key nearestOf(Key key, Key k1, Key k2) {
+		if (k1 == null)
+			return k2;
+		if (k2 == null)
+			return k1;
+		return new KeyComparator(key).compare(k1, k2) <= 0 ? k1 : k2;
+	}
+
+	private void removeFromIndex(Key key) {
+		if (index.remove(key))
+			indexSize.decrementAndGet();
+	}
+
+	/**
+	 * Removes the keys that were evicted from the real cache
+	 */
+	private synchronized void pruneIndex() {
+		if (indexSize.get() <= maxIndexSize)
+			return;
+
+		Iterator<Key> it = index.iterator();
+		while (it.hasNext()) {
+			Key k = it.next();
+			if (!cache.contains(k))
+				removeFromIndex(k);
+		}
+
+		// the real cache does not evict, forget keys from the start of the order
+		while (indexSize.get() > maxIndexSize) {
+			Key k = index.pollFirst();
+			if (k == null)
+				break;
+			indexSize.decrementAndGet();
+		}
+	}
+}
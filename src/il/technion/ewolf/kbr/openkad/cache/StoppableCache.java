@@ -35,6 +35,11 @@ public class StoppableCache implements KadCache {
 		return realCache.search(key);
 	}
 
+	@Override
+	public boolean contains(Key key) {
+		return realCache.contains(key);
+	}
+
 	@Override
 	public void clear() {
 		realCache.clear();
@@ -2,6 +2,7 @@ package il.technion.ewolf.kbr.openkad.cache;
 
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 
 import java.util.HashMap;
 import java.util.List;
@@ -21,6 +22,7 @@ import com.google.inject.name.Named;
 public class TimeLimitedKadCache implements KadCache {
 
 	private final long validTime;
+	private final Scheduler scheduler;
 	private final AtomicInteger optimalCacheMaxSize;
 
 	protected class CacheEntry {
@@ -31,7 +33,7 @@ public class TimeLimitedKadCache implements KadCache {
 		CacheEntry(final List<Node> nodes, final Key key) {
 			this.nodes = nodes;
 			this.key = key;
-			this.timestamp = System.currentTimeMillis();
+			this.timestamp = scheduler.currentTimeMillis();
 		}
 
 		public List<Node> getNodes() {
@@ -39,7 +41,7 @@ public class TimeLimitedKadCache implements KadCache {
 		}
 
 		public boolean isValid() {
-			return timestamp + validTime > System.currentTimeMillis();
+			return timestamp + validTime > scheduler.currentTimeMillis();
 		}
 
 		public Key getKey() {
@@ -51,8 +53,10 @@ public class TimeLimitedKadCache implements KadCache {
 
 	@Inject
 	TimeLimitedKadCache(@Named("openkad.cache.validtime") final long validTime,
+			final Scheduler scheduler,
 			@Named("openkad.testing.optimalCacheMaxSize") final AtomicInteger optimalCacheMaxSize) {
 		this.validTime = validTime;
+		this.scheduler = scheduler;
 		this.optimalCacheMaxSize = optimalCacheMaxSize;
 	}
 
@@ -81,6 +85,12 @@ public class TimeLimitedKadCache implements KadCache {
 		return cacheEntry.getNodes();
 	}
 
+	@Override
+	public synchronized boolean contains(final Key key) {
+		final CacheEntry cacheEntry = searchCacheEntry(key);
+		return cacheEntry != null && cacheEntry.isValid();
+	}
+
 	protected void remove(final CacheEntry entry) {
 		cache.remove(entry.getKey());
 	}
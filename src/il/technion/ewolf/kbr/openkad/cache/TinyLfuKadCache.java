@@ -0,0 +1,275 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Caches nodes according to the W-TinyLFU policy:
+ * new entries enter a small LRU window, entries leaving the window compete with
+ * the main space's victim and only the one accessed more often (according to a
+ * frequency sketch) stays. The main space is a segmented LRU: entries accessed
+ * again are promoted from the probation segment to the protected one.
+ *
+ * Searches never lock: the entry is read from a concurrent map and the access
+ * is recorded in a lossy buffer which is replayed on the policy in batches.
+ * Inserts and the replays are done under a single eviction lock, all policy
+ * operations are O(1).
+ *
+ */
+public class TinyLfuKadCache implements KadCache {
+
+	private static final int READ_BUFFER_SIZE = 128;
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	private static final int DRAIN_THRESHOLD_MASK = 31;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final class CacheEntry {
+		private final Key key;
+		private volatile List<Node> nodes;
+
+		// policy state, guarded by the eviction lock
+		private CacheEntry prev = null;
+		private CacheEntry next = null;
+		private int queue = WINDOW;
+		private boolean removed = false;
+
+		CacheEntry(Key key, List<Node> nodes) {
+			this.key = key;
+			this.nodes = nodes;
+		}
+	}
+
+	/**
+	 * A doubly linked LRU list, head is the least recently used
+	 */
+	private static final class AccessOrderList {
+		private final CacheEntry sentinel = new CacheEntry(null, null);
+		private int size = 0;
+
+		AccessOrderList() {
+			sentinel.prev = sentinel;
+			sentinel.next = sentinel;
+		}
+
+		void addLast(CacheEntry e) {
+			e.prev = sentinel.prev;
+			e.next = sentinel;
+			sentinel.prev.next = e;
+			sentinel.prev = e;
+			++size;
+		}
+
+		void remove(CacheEntry e) {
+			e.prev.next = e.next;
+			e.next.prev = e.prev;
+			e.prev = null;
+			e.next = null;
+			--size;
+		}
+
+		void moveToLast(CacheEntry e) {
+			remove(e);
+			addLast(e);
+		}
+
+		CacheEntry peekFirst() {
+			return sentinel.next == sentinel ? null : sentinel.next;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			sentinel.prev = sentinel;
+			sentinel.next = sentinel;
+			size = 0;
+		}
+	}
+
+	// dependencies
+	private final int kBucketSize;
+	private final int maxWindow;
+	private final int maxProtected;
+	private final int maxMain;
+
+	// state
+	private final ConcurrentHashMap<Key, CacheEntry> entryFromKey;
+	private final AtomicReferenceArray<CacheEntry> readBuffer = new AtomicReferenceArray<CacheEntry>(READ_BUFFER_SIZE);
+	private final AtomicInteger readCounter = new AtomicInteger(0);
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	// guarded by the eviction lock
+	private final FrequencySketch sketch;
+	private final AccessOrderList window = new AccessOrderList();
+	private final AccessOrderList probation = new AccessOrderList();
+	private final AccessOrderList protectedSegment = new AccessOrderList();
+
+	@Inject
+	TinyLfuKadCache(
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.cache.size") int size) {
+
+		this.kBucketSize = kBucketSize;
+		// 1% window, 80% of the main space is protected
+		this.maxWindow = Math.max(1, size / 100);
+		this.maxMain = Math.max(1, size - maxWindow);
+		this.maxProtected = Math.max(1, maxMain * 4 / 5);
+		this.entryFromKey = new ConcurrentHashMap<Key, CacheEntry>(size);
+		this.sketch = new FrequencySketch(size);
+	}
+
+	@Override
+	public void insert(Key key, List<Node> nodes) {
+		if (nodes.size() != kBucketSize)
+			return;
+
+		evictionLock.lock();
+		try {
+			drainReadBuffer();
+			sketch.increment(key.hashCode());
+
+			CacheEntry e = entryFromKey.get(key);
+			if (e != null) {
+				e.nodes = nodes;
+				onAccess(e);
+				return;
+			}
+
+			e = new CacheEntry(key, nodes);
+			entryFromKey.put(key, e);
+			e.queue = WINDOW;
+			window.addLast(e);
+			evict();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	@Override
+	public List<Node> search(Key key) {
+		CacheEntry e = entryFromKey.get(key);
+		if (e == null)
+			return null;
+
+		recordRead(e);
+		return e.nodes;
+	}
+
+	@Override
+	public boolean contains(Key key) {
+		// not recorded in the sketch nor in the read buffer
+		return entryFromKey.containsKey(key);
+	}
+
+	@Override
+	public void clear() {
+		evictionLock.lock();
+		try {
+			// entries still referenced by the read buffer or by concurrent
+			// searches must not touch the policy lists
+			for (CacheEntry e : entryFromKey.values())
+				e.removed = true;
+			entryFromKey.clear();
+			for (int i = 0; i < READ_BUFFER_SIZE; ++i)
+				readBuffer.set(i, null);
+			window.clear();
+			probation.clear();
+			protectedSegment.clear();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private void recordRead(CacheEntry e) {
+		// lossy: a slot that was not drained yet is overwritten
+		int i = readCounter.getAndIncrement();
+		readBuffer.lazySet(i & READ_BUFFER_MASK, e);
+
+		if ((i & DRAIN_THRESHOLD_MASK) == DRAIN_THRESHOLD_MASK && evictionLock.tryLock()) {
+			try {
+				drainReadBuffer();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	private void drainReadBuffer() {
+		for (int i = 0; i < READ_BUFFER_SIZE; ++i) {
+			CacheEntry e = readBuffer.getAndSet(i, null);
+			if (e == null || e.removed)
+				continue;
+			sketch.increment(e.key.hashCode());
+			onAccess(e);
+		}
+	}
+
+	private void onAccess(CacheEntry e) {
+		switch (e.queue) {
+		case WINDOW:
+			window.moveToLast(e);
+			break;
+
+		case PROBATION:
+			// accessed again, promote
+			probation.remove(e);
+			e.queue = PROTECTED;
+			protectedSegment.addLast(e);
+			if (protectedSegment.size() > maxProtected) {
+				CacheEntry demoted = protectedSegment.peekFirst();
+				protectedSegment.remove(demoted);
+				demoted.queue = PROBATION;
+				probation.addLast(demoted);
+			}
+			break;
+
+		case PROTECTED:
+			protectedSegment.moveToLast(e);
+			break;
+		}
+	}
+
+	private void evict() {
+		while (window.size() > maxWindow) {
+			CacheEntry candidate = window.peekFirst();
+			window.remove(candidate);
+
+			if (probation.size() + protectedSegment.size() < maxMain) {
+				candidate.queue = PROBATION;
+				probation.addLast(candidate);
+				continue;
+			}
+
+			AccessOrderList victimList = probation.size() > 0 ? probation : protectedSegment;
+			CacheEntry victim = victimList.peekFirst();
+
+			// the candidate must be more popular than the victim to get in
+			if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+				victimList.remove(victim);
+				remove(victim);
+				candidate.queue = PROBATION;
+				probation.addLast(candidate);
+			} else {
+				remove(candidate);
+			}
+		}
+	}
+
+	private void remove(CacheEntry e) {
+		e.removed = true;
+		entryFromKey.remove(e.key, e);
+	}
+}
@@ -0,0 +1,237 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Caches nodes within a memory budget of openkad.cache.max_bytes.
+ * Each entry's weight is estimated from the number of nodes in it and the size
+ * of their keys, the least recently used entries are evicted until the total
+ * weight is within the budget.
+ *
+ * Entries expire openkad.cache.validtime after they were inserted. Expired
+ * entries are removed proactively by a hashed timer wheel which is advanced
+ * every openkad.cache.wheel.tick, so they do not hold memory until accessed.
+ *
+ */
+public class WeightedTimedKadCache implements KadCache {
+
+	// rough object sizes in bytes (64 bit jvm with compressed oops)
+	private static final int ENTRY_OVERHEAD = 96;
+	private static final int LIST_SLOT = 4;
+	private static final int NODE_OVERHEAD = 64;
+	private static final int KEY_OVERHEAD = 32;
+	private static final int MAX_WHEEL_SIZE = 4096;
+
+	private static final class CacheEntry {
+		private final Key key;
+		private final List<Node> nodes;
+		private final int weight;
+		private final long expireTime;
+
+		CacheEntry(Key key, List<Node> nodes, long expireTime) {
+			this.key = key;
+			this.nodes = nodes;
+			this.weight = estimateWeight(key, nodes);
+			this.expireTime = expireTime;
+		}
+	}
+
+	// dependencies
+	private final int kBucketSize;
+	private final long maxBytes;
+	private final long validTime;
+	private final long tick;
+	private final Scheduler scheduler;
+
+	// testing
+	private final Counter nrEvictionsBySize;
+	private final Counter nrEvictionsByExpiry;
+	private final Counter nrEvictionsByReplace;
+
+	// state
+	private final LinkedHashMap<Key, CacheEntry> entryFromKey = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true);
+	private final List<Set<CacheEntry>> wheel;
+	private long weight = 0;
+	private long wheelTime;
+
+	@Inject
+	WeightedTimedKadCache(
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.cache.max_bytes") long maxBytes,
+			@Named("openkad.cache.validtime") long validTime,
+			@Named("openkad.cache.wheel.tick") long tick,
+			final Scheduler scheduler,
+
+			// testing
+			@Named("openkad.testing.nrCacheEvictionsBySize") Counter nrEvictionsBySize,
+			@Named("openkad.testing.nrCacheEvictionsByExpiry") Counter nrEvictionsByExpiry,
+			@Named("openkad.testing.nrCacheEvictionsByReplace") Counter nrEvictionsByReplace) {
+
+		this.kBucketSize = kBucketSize;
+		this.maxBytes = maxBytes;
+		this.validTime = validTime;
+		this.tick = tick;
+		this.scheduler = scheduler;
+		this.nrEvictionsBySize = nrEvictionsBySize;
+		this.nrEvictionsByExpiry = nrEvictionsByExpiry;
+		this.nrEvictionsByReplace = nrEvictionsByReplace;
+
+		// enough slots so an entry usually expires in its first round
+		long nrTicks = Math.max(1, validTime / tick);
+		int wheelSize = (int) Math.min(MAX_WHEEL_SIZE, Long.highestOneBit(nrTicks) << 1);
+		this.wheel = new ArrayList<Set<CacheEntry>>(wheelSize);
+		for (int i = 0; i < wheelSize; ++i)
+			wheel.add(new LinkedHashSet<CacheEntry>());
+		this.wheelTime = scheduler.currentTimeMillis() / tick;
+
+		scheduler.schedule(new ScheduledTask() {
+			@Override
+			public void run() {
+				expire(scheduler.currentTimeMillis());
+			}
+		}, tick, tick);
+	}
+
+	/**
+	 * Estimates the memory held by a cache entry
+	 * @param key the entry's key
+	 * @param nodes the entry's nodes
+	 * @return estimated weight in bytes
+	 */
+	static int estimateWeight(Key key, List<Node> nodes) {
+		int $ = ENTRY_OVERHEAD + KEY_OVERHEAD + key.getByteLength();
+		for (Node n : nodes) {
+			$ += LIST_SLOT + NODE_OVERHEAD;
+			if (n.getKey() != null)
+				$ += KEY_OVERHEAD + n.getKey().getByteLength();
+		}
+		return $;
+	}
+
+	private Set<CacheEntry> slotOf(long expireTime) {
+		return wheel.get((int) ((expireTime / tick) & (wheel.size() - 1)));
+	}
+
+	@Override
+	public synchronized void insert(Key key, List<Node> nodes) {
+		if (nodes.size() != kBucketSize)
+			return;
+
+		long now = scheduler.currentTimeMillis();
+		CacheEntry e = new CacheEntry(key, nodes, now + validTime);
+		if (e.weight > maxBytes)
+			return;
+
+		CacheEntry old = entryFromKey.put(key, e);
+		if (old != null) {
+			removeFromWheel(old);
+			weight -= old.weight;
+			nrEvictionsByReplace.increment();
+		}
+		slotOf(e.expireTime).add(e);
+		weight += e.weight;
+
+		// evict least recently used entries until we are within the budget
+		Iterator<CacheEntry> it = entryFromKey.values().iterator();
+		while (weight > maxBytes && it.hasNext()) {
+			CacheEntry lru = it.next();
+			it.remove();
+			removeFromWheel(lru);
+			weight -= lru.weight;
+			nrEvictionsBySize.increment();
+		}
+	}
+
+	@Override
+	public synchronized List<Node> search(Key key) {
+		CacheEntry e = entryFromKey.get(key);
+		if (e == null)
+			return null;
+
+		if (e.expireTime <= scheduler.currentTimeMillis()) {
+			remove(e);
+			nrEvictionsByExpiry.increment();
+			return null;
+		}
+		return e.nodes;
+	}
+
+	@Override
+	public synchronized boolean contains(Key key) {
+		// get would move the entry in the access order, an expired entry is
+		// still reported until the wheel or a search removes it
+		return entryFromKey.containsKey(key);
+	}
+
+	@Override
+	public synchronized void clear() {
+		entryFromKey.clear();
+		for (Set<CacheEntry> slot : wheel)
+			slot.clear();
+		weight = 0;
+	}
+
+	/**
+	 * @return the estimated memory held by the cache in bytes
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Advances the timer wheel to the given time, removing all the expired
+	 * entries in the passed slots
+	 * @param now current time in millis
+	 */
+	synchronized void expire(long now) {
+		long nowTick = now / tick;
+		// no need to go around the wheel more than once
+		long from = Math.max(wheelTime, nowTick - wheel.size() + 1);
+		for (long t = from; t <= nowTick; ++t) {
+			Iterator<CacheEntry> it = wheel.get((int) (t & (wheel.size() - 1))).iterator();
+			while (it.hasNext()) {
+				CacheEntry e = it.next();
+				// entries of later rounds stay in the slot
+				if (e.expireTime > now)
+					continue;
+				it.remove();
+				entryFromKey.remove(e.key);
+				weight -= e.weight;
+				nrEvictionsByExpiry.increment();
+			}
+		}
+		wheelTime = nowTick;
+	}
+
+	private void remove(CacheEntry e) {
+		entryFromKey.remove(e.key);
+		removeFromWheel(e);
+		weight -= e.weight;
+	}
+
+	private void removeFromWheel(CacheEntry e) {
+		slotOf(e.expireTime).remove(e);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "entries: " + entryFromKey.size() + " bytes: " + weight
+			+ " evicted by size: " + nrEvictionsBySize.get()
+			+ " evicted by expiry: " + nrEvictionsByExpiry.get()
+			+ " evicted by replace: " + nrEvictionsByReplace.get();
+	}
+}
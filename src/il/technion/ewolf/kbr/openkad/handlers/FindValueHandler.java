@@ -0,0 +1,70 @@
+package il.technion.ewolf.kbr.openkad.handlers;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.msg.FindValueRequest;
+import il.technion.ewolf.kbr.openkad.msg.FindValueResponse;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.net.Communicator;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.MessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Handles find value requests by sending back the value from the local
+ * value store, if it is there
+ *
+ */
+public class FindValueHandler extends AbstractHandler {
+
+	private final Communicator kadServer;
+	private final Node localNode;
+	private final ValueStore valueStore;
+
+	@Inject
+	FindValueHandler(
+			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
+			Communicator kadServer,
+			@Named("openkad.local.node") Node localNode,
+			ValueStore valueStore) {
+		super(msgDispatcherProvider);
+		this.kadServer = kadServer;
+		this.localNode = localNode;
+		this.valueStore = valueStore;
+	}
+
+	@Override
+	public void completed(KadMessage msg, Void attachment) {
+		FindValueRequest req = (FindValueRequest) msg;
+		FindValueResponse res = req.generateResponse(localNode);
+		if (req.getKey() != null)
+			res.setValue(valueStore.get(req.getKey()));
+
+		try {
+			kadServer.send(msg.getSrc(), res);
+		} catch (IOException e) {
+			// nothing to do
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void failed(Throwable exc, Void attachment) {
+		// should never b here
+	}
+
+	@Override
+	protected Collection<MessageFilter> getFilters() {
+		return Arrays.asList(new MessageFilter[] {
+				new TypeMessageFilter(FindValueRequest.class)
+		});
+	}
+}
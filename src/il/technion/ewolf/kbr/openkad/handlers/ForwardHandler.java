@@ -1,16 +1,14 @@
 package il.technion.ewolf.kbr.openkad.handlers;
 
-import static ch.lambdaj.Lambda.filter;
-import static ch.lambdaj.Lambda.having;
 import static ch.lambdaj.Lambda.on;
 import static ch.lambdaj.Lambda.sort;
-import static org.hamcrest.Matchers.is;
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
 import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
 import il.technion.ewolf.kbr.openkad.msg.ForwardResponse;
@@ -26,11 +24,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -43,6 +43,14 @@ import com.google.inject.name.Named;
  * Handle forward requests according to the forward algorithm TODO: link for
  * published article
  * 
+ * No thread waits for a forwarded request: the find value and the relaying to
+ * the next hop continue from the callbacks of their messages, so the number of
+ * requests handled at the same time is only bounded by
+ * openkad.forward.max_inflight
+ * 
+ * Requests for a key that is already being looked up are attached to the
+ * running lookup, and all of them get its results
+ * 
  * @author eyal.kibbar@gmail.com
  * 
  */
@@ -61,16 +69,21 @@ public class ForwardHandler extends AbstractHandler {
 	private final int nrColors;
 	private final int kBucketSize;
 	private final long timeout;
+	private final int maxInflight;
 
-	private final ExecutorService opExecutor;
-	private final ExecutorService forwardExecutor;
+	// state
+	// all the requests waiting for the lookup of a key, by key
+	private final Map<Key, List<ForwardRequest>> inflight = new HashMap<Key, List<ForwardRequest>>();
 
 	// testing
-	private final AtomicInteger nrFindNodesWithWrongColor;
-	private final AtomicInteger nrForwardHandling;
-	private final AtomicInteger nrForwardHandlingFromInitiator;
-	private final AtomicInteger nrShortForwardTimeouts;
-	private final AtomicInteger nrNacksSent;
+	private final Counter nrFindNodesWithWrongColor;
+	private final Counter nrForwardHandling;
+	private final Counter nrForwardHandlingFromInitiator;
+	private final Counter nrShortForwardTimeouts;
+	private final Counter nrNacksSent;
+	private final AtomicInteger nrForwardsInFlight;
+	private final Counter nrAttachedForwards;
+
 	@Inject
 	ForwardHandler(final KadCache cache, final Communicator kadServer, final KadBuckets kBuckets,
 
@@ -82,16 +95,16 @@ public class ForwardHandler extends AbstractHandler {
 			@Named("openkad.color.nrcolors") final int nrColors,
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize,
 			@Named("openkad.net.forwarded.timeout") final long timeout,
-
-			@Named("openkad.executors.op") final ExecutorService opExecutor,
-			@Named("openkad.executors.forward") final ExecutorService forwardExecutor,
+			@Named("openkad.forward.max_inflight") final int maxInflight,
 
 			// testing
-			@Named("openkad.testing.nrFindNodesWithWrongColor") final AtomicInteger nrFindNodesWithWrongColor,
-			@Named("openkad.testing.nrForwardHandling") final AtomicInteger nrForwardHandling,
-			@Named("openkad.testing.nrForwardHandlingFromInitiator") final AtomicInteger nrForwardHandlingFromInitiator,
-			@Named("openkad.testing.nrShortForwardTimeouts") final AtomicInteger nrShortForwardTimeouts,
-			@Named("openkad.testing.nrNacksSent") final AtomicInteger nrNacksSent) {
+			@Named("openkad.testing.nrFindNodesWithWrongColor") final Counter nrFindNodesWithWrongColor,
+			@Named("openkad.testing.nrForwardHandling") final Counter nrForwardHandling,
+			@Named("openkad.testing.nrForwardHandlingFromInitiator") final Counter nrForwardHandlingFromInitiator,
+			@Named("openkad.testing.nrShortForwardTimeouts") final Counter nrShortForwardTimeouts,
+			@Named("openkad.testing.nrNacksSent") final Counter nrNacksSent,
+			@Named("openkad.testing.nrForwardsInFlight") final AtomicInteger nrForwardsInFlight,
+			@Named("openkad.testing.nrAttachedForwards") final Counter nrAttachedForwards) {
 
 		super(msgDispatcherProvider);
 		this.cache = cache;
@@ -107,43 +120,108 @@ public class ForwardHandler extends AbstractHandler {
 		this.nrColors = nrColors;
 		this.kBucketSize = kBucketSize;
 		this.timeout = timeout;
-
-		this.opExecutor = opExecutor;
-		this.forwardExecutor = forwardExecutor;
+		this.maxInflight = maxInflight;
 
 		this.nrFindNodesWithWrongColor = nrFindNodesWithWrongColor;
 		this.nrForwardHandling = nrForwardHandling;
 		this.nrForwardHandlingFromInitiator = nrForwardHandlingFromInitiator;
 		this.nrShortForwardTimeouts = nrShortForwardTimeouts;
 		this.nrNacksSent = nrNacksSent;
+		this.nrForwardsInFlight = nrForwardsInFlight;
+		this.nrAttachedForwards = nrAttachedForwards;
 	}
 
-	private void doFindValue(final ForwardRequest req) throws RejectedExecutionException {
-		opExecutor.execute(new Runnable() {
+	/**
+	 * Attaches the request to the lookup of its key, a new lookup is needed if
+	 * there is no such lookup
+	 * @return the requests waiting for the new lookup, null if the request was
+	 *         attached to a running lookup
+	 */
+	private List<ForwardRequest> attach(final ForwardRequest req) {
+		synchronized (inflight) {
+			final List<ForwardRequest> waiting = inflight.get(req.getKey());
+			if (waiting != null) {
+				waiting.add(req);
+				return null;
+			}
+			final List<ForwardRequest> $ = new ArrayList<ForwardRequest>();
+			$.add(req);
+			inflight.put(req.getKey(), $);
+			return $;
+		}
+	}
 
-			@Override
-			public void run() {
-				if (myColor != req.getKey().getColor(nrColors))
-					nrFindNodesWithWrongColor.incrementAndGet();
+	/**
+	 * Ends a lookup, no more requests are attached to it
+	 * @return the requests that waited for the lookup, empty if it has already
+	 *         ended
+	 */
+	private List<ForwardRequest> detach(final Key key, final List<ForwardRequest> waiting) {
+		synchronized (inflight) {
+			if (inflight.get(key) != waiting)
+				return Collections.emptyList();
+			inflight.remove(key);
+			return waiting;
+		}
+	}
 
-				// System.out.println(localNode+": doing the find node");
-				final FindValueOperation op = findValueOperationProvider.get().setBootstrap(req.getBootstrap())
-						.setKey(req.getKey());
+	private void sendBackResults(final Key key, final List<ForwardRequest> waiting, final int findNodeHops,
+			final int pathLength, final List<Node> results) {
+		for (final ForwardRequest req : detach(key, waiting)) {
+			try {
+				kadServer.send(req.getSrc(), req.generateMessage(localNode).setFindNodeHops(findNodeHops)
+						.setPathLength(pathLength).setNodes(results));
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
-				final List<Node> results = op.doFindValue();
+	private void sendBackNacks(final Key key, final List<ForwardRequest> waiting, final List<Node> bootstrap) {
+		for (final ForwardRequest req : detach(key, waiting))
+			sendBackNack(req, bootstrap);
+	}
 
-				// System.out.println(localNode+": finished find node, returning results");
+	/**
+	 * Reserves a place for another forwarded request
+	 * @throws RejectedExecutionException if there are too many forwarded
+	 *         requests in flight
+	 */
+	private void acquireInflight() throws RejectedExecutionException {
+		if (nrForwardsInFlight.incrementAndGet() > maxInflight) {
+			nrForwardsInFlight.decrementAndGet();
+			throw new RejectedExecutionException();
+		}
+	}
+
+	private void releaseInflight() {
+		nrForwardsInFlight.decrementAndGet();
+	}
 
-				final ForwardMessage msg = req.generateMessage(localNode).setFindNodeHops(op.getNrQueried()).setPathLength(0)
-						.setNodes(results);
+	/**
+	 * Starts the find value, its place must already be acquired
+	 */
+	private void doFindValue(final ForwardRequest req, final List<ForwardRequest> waiting) {
+		if (myColor != req.getKey().getColor(nrColors))
+			nrFindNodesWithWrongColor.increment();
 
-				// System.out.println(localNode+": sending "+results+" back to "+req.getSrc());
+		// System.out.println(localNode+": doing the find node");
+		final FindValueOperation op = findValueOperationProvider.get().setBootstrap(req.getBootstrap())
+				.setKey(req.getKey());
 
-				try {
-					kadServer.send(req.getSrc(), msg);
-				} catch (final IOException e) {
-					e.printStackTrace();
-				}
+		op.doFindValue(null, new CompletionHandler<List<Node>, Void>() {
+
+			@Override
+			public void completed(final List<Node> results, final Void nothing) {
+				releaseInflight();
+				// System.out.println(localNode+": finished find node, returning results");
+				sendBackResults(req.getKey(), waiting, op.getNrQueried(), 0, results);
+			}
+
+			@Override
+			public void failed(final Throwable exc, final Void nothing) {
+				releaseInflight();
+				sendBackNacks(req.getKey(), waiting, new ArrayList<Node>(1));
 			}
 		});
 	}
@@ -152,16 +230,15 @@ public class ForwardHandler extends AbstractHandler {
 	public void completed(final KadMessage msg, final Void nothing) {
 		final ForwardRequest req = (ForwardRequest) msg;
 
-		nrForwardHandling.incrementAndGet();
+		nrForwardHandling.increment();
 		if (req.isInitiator()) // TODO: remove before publish
-			nrForwardHandlingFromInitiator.incrementAndGet();
+			nrForwardHandlingFromInitiator.increment();
 
 		// System.out.println(localNode+": recved forward request from "+req.getSrc());
 
 		// check the cache first
 		final List<Node> cachedResults = cache.search(req.getKey());
 		if (cachedResults != null) {
-			System.out.println(localNode + ": cache hit !");
 			try {
 				kadServer.send(req.getSrc(), req.generateResponse(localNode).setNodes(cachedResults));
 			} catch (final IOException e) {
@@ -176,19 +253,34 @@ public class ForwardHandler extends AbstractHandler {
 		assert (cachedResults == null);
 		// System.out.println(localNode+": result was not in cache");
 
+		final List<ForwardRequest> waiting = attach(req);
+		if (waiting == null) {
+			// the key is already being looked up, its results
+			// will be sent to this requester as well
+			nrAttachedForwards.increment();
+			try {
+				kadServer.send(req.getSrc(), req.generateResponse(localNode).setAck());
+			} catch (final IOException e) {
+				// failed to send ack
+				// nothing to do
+			}
+			return;
+		}
+
 		// either forward to someone else or do the job myself
 		if (myColor == req.getKey().getColor(nrColors))
 			// i need to perform the find value because i have
 			// the right color
 			// System.out.println(localNode+": I have the right color");
-			doFindValueAndSendAckOrNack(req);
+			doFindValueAndSendAckOrNack(req, waiting);
 		else
 			// i am in the wrong color, forward the request to
 			// someone else, preferably with the correct color
-			doForwardAndSendAckOrNack(req);
+			doForwardAndSendAckOrNack(req, waiting);
 	}
 
-	private MessageDispatcher<Void> generateExpectDispatcher(final ForwardRequest incomingReq, final ForwardRequest outgoingReq) {
+	private MessageDispatcher<Void> generateExpectDispatcher(final ForwardRequest incomingReq, final ForwardRequest outgoingReq,
+			final List<ForwardRequest> waiting) {
 
 		return msgDispatcherProvider.get().setConsumable(true).addFilter(new IdMessageFilter(outgoingReq.getId()))
 				.addFilter(new TypeMessageFilter(ForwardMessage.class)).setTimeout(timeout, TimeUnit.MILLISECONDS)
@@ -196,49 +288,52 @@ public class ForwardHandler extends AbstractHandler {
 
 					@Override
 					public void failed(final Throwable exc, final Void nothing) {
-						// nothing to do
+						// the relaying is over, if no one has answered
+						// the requesters they will time out
+						releaseInflight();
+						detach(incomingReq.getKey(), waiting);
 					}
 
 					@Override
 					public void completed(final KadMessage msg, final Void nothing) {
+						releaseInflight();
 						// forward back to src
 						final ForwardMessage res = (ForwardMessage) msg;
 						// System.out.println(localNode+": "+res.getSrc()+" had an answer: "+res.getNodes());
 
-						if (res.isNack())
-							sendBackNack(incomingReq, res.getNodes());
-						// doFindValueOrSendNack(incomingReq, res.getNodes());
+						if (res.isNack()) {
+							sendBackNacks(incomingReq.getKey(), waiting, res.getNodes());
+							// doFindValueOrSendNack(incomingReq, res.getNodes());
+							return;
+						}
 
 						// response contains real results !!
-						// send them back to the requester !
-						try {
-							kadServer.send(
-									incomingReq.getSrc(),
-									incomingReq.generateMessage(localNode).setFindNodeHops(res.getFindNodeHops())
-											.setPathLength(1 + res.getPathLength()).setNodes(res.getNodes()));
-
-						} catch (final IOException e) {
-							e.printStackTrace();
-						}
+						// send them back to the requesters !
+						sendBackResults(incomingReq.getKey(), waiting, res.getFindNodeHops(), 1 + res.getPathLength(),
+								res.getNodes());
 					}
 				}).register();
 	}
 
-	private void doFindValueAndSendAckOrNack(final ForwardRequest req) {
+	private void doFindValueAndSendAckOrNack(final ForwardRequest req, final List<ForwardRequest> waiting) {
 		// do the find value myself
 		try {
-			doFindValue(req);
-
-			kadServer.send(req.getSrc(), req.generateResponse(localNode).setAck());
-
+			acquireInflight();
 		} catch (final RejectedExecutionException e) {
 			// i'm too busy to do the find value myself
 			// send back a nack
-			sendBackNack(req, new ArrayList<Node>(1));
+			sendBackNacks(req.getKey(), waiting, new ArrayList<Node>(1));
+			return;
+		}
+
+		// ack before starting, the results may be ready right away
+		try {
+			kadServer.send(req.getSrc(), req.generateResponse(localNode).setAck());
 		} catch (final IOException e) {
 			// failed to send ack
 			// nothing to do
 		}
+		doFindValue(req, waiting);
 	}
 
 	void sendBackNack(final ForwardRequest req, List<Node> bootstrap) {
@@ -247,7 +342,7 @@ public class ForwardHandler extends AbstractHandler {
 		bootstrap = mergeBootstraps(req.getBootstrap(), bucket, req.getKey());
 		try {
 			this.kadServer.send(req.getSrc(), req.generateMessage(localNode).setNodes(bootstrap).setNack());
-			nrNacksSent.incrementAndGet();
+			nrNacksSent.increment();
 
 		} catch (final IOException e1) {
 			// could not send back the nack
@@ -275,7 +370,7 @@ public class ForwardHandler extends AbstractHandler {
 	}
 
 	private void sendForwardRequest(final ForwardRequest incomingReq, final ForwardRequest outgoingReq,
-			final MessageDispatcher<Void> expectDispatcher, final Node nextHop) {
+			final MessageDispatcher<Void> expectDispatcher, final Node nextHop, final List<ForwardRequest> waiting) {
 
 		msgDispatcherProvider.get().setConsumable(true).addFilter(new IdMessageFilter(outgoingReq.getId()))
 				.addFilter(new TypeMessageFilter(ForwardResponse.class))
@@ -285,11 +380,13 @@ public class ForwardHandler extends AbstractHandler {
 					public void failed(final Throwable exc, final Void nothing) {
 						// no need to wait for result, it will
 						// never arrive
+						final List<ForwardRequest> reqs = detach(incomingReq.getKey(), waiting);
 						expectDispatcher.cancel(exc);
-						nrShortForwardTimeouts.incrementAndGet();
+						nrShortForwardTimeouts.increment();
 						kBuckets.markAsDead(nextHop);
 
-						sendBackNack(incomingReq, new ArrayList<Node>(1));
+						for (final ForwardRequest req : reqs)
+							sendBackNack(req, new ArrayList<Node>(1));
 						// doFindValueOrSendNack(incomingReq,
 						// incomingReq.getBootstrap());
 					}
@@ -308,73 +405,76 @@ public class ForwardHandler extends AbstractHandler {
 							// handler (the answer can either nack or the
 							// results)
 
-						} else if (res.isNack())
+						} else if (res.isNack()) {
 							// do the op myself with the nack x-tra nodes
 							// doFindValueOrSendNack(incomingReq,
 							// res.getNodes());
-							sendBackNack(incomingReq, res.getNodes());
-						else {
+							sendBackNacks(incomingReq.getKey(), waiting, res.getNodes());
+							expectDispatcher.cancel(new CancellationException());
+						} else {
 							// response is neither ack nor nack
 							// the remote node had an answer !!
 							// System.out.println(localNode+": remote node had an answer in its cache");
 							// no need to expect a message, we already got the
 							// results
+							// return it to the requesters
+							sendBackResults(incomingReq.getKey(), waiting, 0, 0, res.getNodes());
 							expectDispatcher.cancel(new CancellationException());
-
-							// return it to the requester
-							try {
-								kadServer.send(incomingReq.getSrc(), incomingReq.generateMessage(localNode).setPathLength(0)
-										.setNodes(res.getNodes()));
-
-							} catch (final IOException e) {
-								// could not send back the results
-								// nothing to do
-								e.printStackTrace();
-							}
 						}
 					}
-				}).send(nextHop, outgoingReq);
+				}).asyncSend(nextHop, outgoingReq);
 	}
 
 	/**
 	 * finds the next hop according to its color If there is a node with the
-	 * right color, return it otherwise, if there is a node with a better key
-	 * than me, return it if there isn't, return null
+	 * right color in the bootstraps or in the key's bucket, return it
+	 * otherwise, if there is a node with a better key than me, return it if
+	 * there isn't, return null
 	 * 
 	 * @param bootstraps
+	 * @param incomingSrc the requester, it is not taken from the bucket
 	 * @return
 	 */
-	private Node calcNextHop(final List<Node> bootstraps, final Key key) {
+	private Node calcNextHop(final List<Node> bootstraps, final Key key, final Node incomingSrc) {
 		if (bootstraps.isEmpty())
 			return null;
 
 		// search the bootstraps for a node with the correct color
+		// the colors are cached in the keys, the nodes from the routing
+		// table got theirs when they were inserted
 		final int keyColor = key.getColor(nrColors);
-		final List<Node> correctColorNodes = filter(having(on(Node.class).getKey().getColor(nrColors), is(keyColor)), bootstraps);
+		for (final Node n : bootstraps) {
+			if (n.getKey().getColor(nrColors) == keyColor)
+				// we found a node with the correct color !
+				return n;
+		}
 
-		if (!correctColorNodes.isEmpty())
-			// we found some nodes with the correct color !
-			// return one of them
-			return correctColorNodes.get(0);
+		// the bootstraps keep only the closest nodes of the bucket, it may
+		// have more nodes with the correct color
+		final KeyComparator comparator = new KeyComparator(key);
+		Node sameColor = null;
+		for (final Node n : kBuckets.getAllFromBucketByColor(key, keyColor)) {
+			if (!n.equals(incomingSrc) && (sameColor == null || comparator.compare(n.getKey(), sameColor.getKey()) < 0))
+				sameColor = n;
+		}
+		if (sameColor != null)
+			return sameColor;
 
 		// we did not find any node with the correct color
 		// find a nodes with the best key
 		final Node $ = bootstraps.get(0);
 
-		final KeyComparator comparator = new KeyComparator(key);
 		// check that the node with the best key has a better key than me
 		return comparator.compare(localNode.getKey(), $.getKey()) <= 0 ? null : $;
 	}
 
-	private void doForwardAndSendAckOrNack(final ForwardRequest incomingReq) {
+	private void doForwardAndSendAckOrNack(final ForwardRequest incomingReq, final List<ForwardRequest> waiting) {
 		// forward the request to someone else
-		System.out.println(localNode + ": I dont have the right color");
 		final List<Node> myBootstrap = kBuckets.getAllFromBucket(incomingReq.getKey());
 		if (myBootstrap.isEmpty()) {
 			// if we cannot continue advancing to target, do the find node
 			// myself
-			System.out.println(localNode + ": could not adavnce to target, do the find node myself");
-			doFindValueAndSendAckOrNack(incomingReq);
+			doFindValueAndSendAckOrNack(incomingReq, waiting);
 			return;
 		}
 
@@ -382,46 +482,40 @@ public class ForwardHandler extends AbstractHandler {
 
 		final ForwardRequest outgoingReq = forwardRequestProvider.get().setKey(incomingReq.getKey()).setBootstrap(mergedBootstraps);
 
-		final Node nextHop = calcNextHop(mergedBootstraps, incomingReq.getKey());
+		final Node nextHop = calcNextHop(mergedBootstraps, incomingReq.getKey(), incomingReq.getSrc());
 		if (nextHop == null) {
-			System.out.println(localNode + ": no suitable next hop was found");
-			doFindValueAndSendAckOrNack(incomingReq);
+			doFindValueAndSendAckOrNack(incomingReq, waiting);
 			return;
 		}
 
-		System.out.println(localNode + ": forwarding to " + nextHop);
-
-		// expect a message from nextHop
-		final MessageDispatcher<Void> expectMessage = generateExpectDispatcher(incomingReq, outgoingReq);
-
 		try {
-			// send a request to next hop
-			// if next hop returns a result, the expect message
-			// will be canceled and the result will be sent back
-			// to the requester
-			// if the next hop only returns an ACK, we will continue
-			// waiting for the result in the expect message.
-			forwardExecutor.execute(new Runnable() {
-				@Override
-				public void run() {
-					sendForwardRequest(incomingReq, outgoingReq, expectMessage, nextHop);
-				}
-			});
-			// message is scheduled for forwarding
-			// send ack back to the requester
-			try {
-				kadServer.send(incomingReq.getSrc(), incomingReq.generateResponse(localNode).setAck());
-			} catch (final IOException e) {
-				// failed to send ack
-				// nothing to do
-			}
-
+			acquireInflight();
 		} catch (final RejectedExecutionException e) {
-			expectMessage.cancel(e);
 			// could not forward request
 			// send nack
-			sendBackNack(incomingReq, kBuckets.getClosestNodesByKey(incomingReq.getKey(), kBucketSize));
+			sendBackNacks(incomingReq.getKey(), waiting, kBuckets.getClosestNodesByKey(incomingReq.getKey(), kBucketSize));
+			return;
 		}
+
+		// expect a message from nextHop, the place taken by this request
+		// is released when the expect message is done
+		final MessageDispatcher<Void> expectMessage = generateExpectDispatcher(incomingReq, outgoingReq, waiting);
+
+		// send ack back to the requester
+		try {
+			kadServer.send(incomingReq.getSrc(), incomingReq.generateResponse(localNode).setAck());
+		} catch (final IOException e) {
+			// failed to send ack
+			// nothing to do
+		}
+
+		// send a request to next hop
+		// if next hop returns a result, the expect message
+		// will be canceled and the result will be sent back
+		// to the requester
+		// if the next hop only returns an ACK, we will continue
+		// waiting for the result in the expect message.
+		sendForwardRequest(incomingReq, outgoingReq, expectMessage, nextHop, waiting);
 	}
 
 	@Override
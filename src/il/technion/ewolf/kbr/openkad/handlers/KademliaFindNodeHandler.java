@@ -2,7 +2,8 @@ package il.technion.ewolf.kbr.openkad.handlers;
 
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
-import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.cache.NearestKeyKadCache;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
@@ -16,7 +17,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -32,20 +32,22 @@ import com.google.inject.name.Named;
 public class KademliaFindNodeHandler extends AbstractHandler implements FindNodeHandler {
 	private final Communicator kadServer;
 	private final Node localNode;
-	private final KadCache cache;
+	private final NearestKeyKadCache cache;
 	private final KBuckets kBuckets;
 	private final int kBucketSize;
 
-	private final AtomicInteger nrFindnodeHits;
-	private final AtomicInteger nrFindnodeMiss;
+	private final Counter nrFindnodeHits;
+	private final Counter nrFindnodeMiss;
+	private final Counter nrNearestCacheHits;
 
 	@Inject
 	KademliaFindNodeHandler(final Provider<MessageDispatcher<Void>> msgDispatcherProvider, final Communicator kadServer,
-			@Named("openkad.local.node") final Node localNode, final KadCache cache, final KBuckets kBuckets,
+			@Named("openkad.local.node") final Node localNode, final NearestKeyKadCache cache, final KBuckets kBuckets,
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize,
 
-			@Named("openkad.testing.nrFindnodeHits") final AtomicInteger nrFindnodeHits,
-			@Named("openkad.testing.nrFindnodeMiss") final AtomicInteger nrFindnodeMiss) {
+			@Named("openkad.testing.nrFindnodeHits") final Counter nrFindnodeHits,
+			@Named("openkad.testing.nrFindnodeMiss") final Counter nrFindnodeMiss,
+			@Named("openkad.testing.nrNearestCacheHits") final Counter nrNearestCacheHits) {
 
 		super(msgDispatcherProvider);
 		this.kadServer = kadServer;
@@ -56,6 +58,7 @@ public class KademliaFindNodeHandler extends AbstractHandler implements FindNode
 
 		this.nrFindnodeHits = nrFindnodeHits;
 		this.nrFindnodeMiss = nrFindnodeMiss;
+		this.nrNearestCacheHits = nrNearestCacheHits;
 	}
 
 	@Override
@@ -73,10 +76,19 @@ public class KademliaFindNodeHandler extends AbstractHandler implements FindNode
 			cachedResults = this.cache.search(findNodeRequest.getKey());
 
 			if (cachedResults == null) {
-				this.nrFindnodeMiss.incrementAndGet();
-				findNodeResponse.setNodes(this.kBuckets.getClosestNodesByKey(findNodeRequest.getKey(), this.kBucketSize));
+				this.nrFindnodeMiss.increment();
+				List<Node> closest = this.kBuckets.getClosestNodesByKey(findNodeRequest.getKey(), this.kBucketSize);
+
+				// not an exact hit, but the cached result of a nearby key may
+				// have nodes closer than the ones in my buckets
+				final List<Node> nearest = this.cache.searchNearest(findNodeRequest.getKey());
+				if (nearest != null) {
+					this.nrNearestCacheHits.increment();
+					closest = NearestKeyKadCache.mergeClosest(findNodeRequest.getKey(), closest, nearest, this.kBucketSize);
+				}
+				findNodeResponse.setNodes(closest);
 			} else {
-				this.nrFindnodeHits.incrementAndGet();
+				this.nrFindnodeHits.increment();
 				findNodeResponse.setNodes(new ArrayList<Node>(cachedResults)).setCachedResults(true);
 
 			}
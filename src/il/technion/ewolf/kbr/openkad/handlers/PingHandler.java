@@ -1,6 +1,7 @@
 package il.technion.ewolf.kbr.openkad.handlers;
 
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
 import il.technion.ewolf.kbr.openkad.msg.PingResponse;
@@ -12,7 +13,6 @@ import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -27,14 +27,14 @@ public class PingHandler extends AbstractHandler {
 
 	private final Communicator kadServer;
 	private final Node localNode;
-	private final AtomicInteger nrIncomingPings;
+	private final Counter nrIncomingPings;
 	
 	@Inject
 	PingHandler(
 			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
 			Communicator kadServer,
 			@Named("openkad.local.node") Node localNode,
-			@Named("openkad.testing.nrIncomingPings") AtomicInteger nrIncomingPings) {
+			@Named("openkad.testing.nrIncomingPings") Counter nrIncomingPings) {
 		super(msgDispatcherProvider);
 		this.kadServer = kadServer;
 		this.localNode = localNode;
@@ -43,7 +43,7 @@ public class PingHandler extends AbstractHandler {
 
 	@Override
 	public void completed(KadMessage msg, Void attachment) {
-		nrIncomingPings.incrementAndGet();
+		nrIncomingPings.increment();
 		PingResponse pingResponse = ((PingRequest)msg).generateResponse(localNode);
 		
 		try {
@@ -0,0 +1,107 @@
+package il.technion.ewolf.kbr.openkad.handlers;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.StoreValueRequest;
+import il.technion.ewolf.kbr.openkad.msg.StoreValueResponse;
+import il.technion.ewolf.kbr.openkad.net.Communicator;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.MessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+import il.technion.ewolf.kbr.openkad.op.RepublishOperation;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Handles store requests by writing the value to the local value store
+ *
+ */
+public class StoreValueHandler extends AbstractHandler {
+
+	protected final Communicator kadServer;
+	protected final Node localNode;
+	private final ValueStore valueStore;
+	private final RepublishOperation republishOperation;
+	private final Scheduler scheduler;
+	private final int maxValueSize;
+	private final long maxTtl;
+
+	private final Counter nrStoredValues;
+
+	@Inject
+	StoreValueHandler(
+			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
+			Communicator kadServer,
+			@Named("openkad.local.node") Node localNode,
+			ValueStore valueStore,
+			RepublishOperation republishOperation,
+			Scheduler scheduler,
+			@Named("openkad.store.max_value_size") int maxValueSize,
+			@Named("openkad.store.max_ttl") long maxTtl,
+			@Named("openkad.testing.nrStoredValues") Counter nrStoredValues) {
+		super(msgDispatcherProvider);
+		this.kadServer = kadServer;
+		this.localNode = localNode;
+		this.valueStore = valueStore;
+		this.republishOperation = republishOperation;
+		this.scheduler = scheduler;
+		this.maxValueSize = maxValueSize;
+		this.maxTtl = maxTtl;
+		this.nrStoredValues = nrStoredValues;
+	}
+
+	/**
+	 * Writes a received value to the value store
+	 * @return true if the value was stored
+	 */
+	protected boolean store(Key key, byte[] value, long ttl) {
+		if (key == null || value == null || value.length > maxValueSize || ttl <= 0)
+			return false;
+		try {
+			valueStore.put(key, value, scheduler.currentTimeMillis() + Math.min(ttl, maxTtl));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		// the sender already stores this value at the other replicas
+		republishOperation.markReceived(key);
+		nrStoredValues.increment();
+		return true;
+	}
+
+	@Override
+	public void completed(KadMessage msg, Void attachment) {
+		StoreValueRequest req = (StoreValueRequest) msg;
+		boolean stored = store(req.getKey(), req.getValue(), req.getTtl());
+
+		StoreValueResponse res = req.generateResponse(localNode).setStored(stored);
+		try {
+			kadServer.send(msg.getSrc(), res);
+		} catch (IOException e) {
+			// nothing to do
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void failed(Throwable exc, Void attachment) {
+		// should never b here
+	}
+
+	@Override
+	protected Collection<MessageFilter> getFilters() {
+		return Arrays.asList(new MessageFilter[] {
+				new TypeMessageFilter(StoreValueRequest.class)
+		});
+	}
+}
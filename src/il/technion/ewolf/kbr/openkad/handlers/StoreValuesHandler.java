@@ -0,0 +1,69 @@
+package il.technion.ewolf.kbr.openkad.handlers;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.StoreValuesRequest;
+import il.technion.ewolf.kbr.openkad.msg.StoreValuesResponse;
+import il.technion.ewolf.kbr.openkad.net.Communicator;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.MessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+import il.technion.ewolf.kbr.openkad.op.RepublishOperation;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Handles batches of store requests sent by republishing nodes
+ *
+ */
+public class StoreValuesHandler extends StoreValueHandler {
+
+	@Inject
+	StoreValuesHandler(
+			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
+			Communicator kadServer,
+			@Named("openkad.local.node") Node localNode,
+			ValueStore valueStore,
+			RepublishOperation republishOperation,
+			Scheduler scheduler,
+			@Named("openkad.store.max_value_size") int maxValueSize,
+			@Named("openkad.store.max_ttl") long maxTtl,
+			@Named("openkad.testing.nrStoredValues") Counter nrStoredValues) {
+		super(msgDispatcherProvider, kadServer, localNode, valueStore, republishOperation,
+				scheduler, maxValueSize, maxTtl, nrStoredValues);
+	}
+
+	@Override
+	public void completed(KadMessage msg, Void attachment) {
+		StoreValuesRequest req = (StoreValuesRequest) msg;
+		int nrStored = 0;
+		for (int i = 0; i < req.getNrValues(); ++i) {
+			if (store(req.getKey(i), req.getValue(i), req.getTtl(i)))
+				++nrStored;
+		}
+
+		StoreValuesResponse res = req.generateResponse(localNode).setNrStored(nrStored);
+		try {
+			kadServer.send(msg.getSrc(), res);
+		} catch (IOException e) {
+			// nothing to do
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	protected Collection<MessageFilter> getFilters() {
+		return Arrays.asList(new MessageFilter[] {
+				new TypeMessageFilter(StoreValuesRequest.class)
+		});
+	}
+}
@@ -0,0 +1,54 @@
+package il.technion.ewolf.kbr.openkad.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which is cheap to update from many threads.
+ * The count is striped over several cells, each thread updates the cell
+ * selected by its id so concurrent updates rarely hit the same cache line.
+ * Reading the count sums all the cells, so it is not an atomic snapshot.
+ *
+ */
+public class Counter {
+
+	// cells are 8 longs (a cache line) apart
+	private static final int PADDING = 8;
+	private static final int NR_CELLS = Integer.highestOneBit(
+			Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+	private final AtomicLongArray cells = new AtomicLongArray(NR_CELLS * PADDING);
+
+	private static int cellOf(Thread t) {
+		long id = t.getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+		return ((h ^ (h >>> 16)) & (NR_CELLS - 1)) * PADDING;
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long x) {
+		cells.getAndAdd(cellOf(Thread.currentThread()), x);
+	}
+
+	/**
+	 * @return the sum of all the updates
+	 */
+	public long get() {
+		long $ = 0;
+		for (int i = 0; i < NR_CELLS; ++i)
+			$ += cells.get(i * PADDING);
+		return $;
+	}
+
+	public void reset() {
+		for (int i = 0; i < NR_CELLS; ++i)
+			cells.set(i * PADDING, 0);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+}
@@ -0,0 +1,10 @@
+package il.technion.ewolf.kbr.openkad.metrics;
+
+/**
+ * A value which is read when the metrics are reported
+ *
+ */
+public interface Gauge {
+
+	long getValue();
+}
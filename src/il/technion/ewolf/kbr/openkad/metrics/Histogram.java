@@ -0,0 +1,108 @@
+package il.technion.ewolf.kbr.openkad.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed memory histogram of non negative values.
+ * Values are counted in log-linear buckets: each power of 2 range is split
+ * into 32 sub buckets, so every recorded value is known up to ~3% no matter
+ * how large it is. Values up to 2^40 are tracked (about 12 days in micros),
+ * larger values are counted in the last bucket.
+ *
+ * Recording is lock free and never allocates.
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int NR_BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NR_BUCKETS);
+	private final Counter count = new Counter();
+	private final Counter sum = new Counter();
+	private final AtomicLong max = new AtomicLong(0);
+
+	static int indexOf(long value) {
+		if (value < 2 * SUB_COUNT)
+			return (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BITS;
+		return shift * SUB_COUNT + (int) (value >>> shift);
+	}
+
+	static long lowestValueOf(int index) {
+		if (index < 2 * SUB_COUNT)
+			return index;
+		int shift = index / SUB_COUNT - 1;
+		return (long) (index - shift * SUB_COUNT) << shift;
+	}
+
+	/**
+	 * Records a value
+	 * @param value the value, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		long v = Math.min(Math.max(value, 0), MAX_VALUE);
+		buckets.incrementAndGet(indexOf(v));
+		count.increment();
+		sum.add(v);
+
+		long m = max.get();
+		while (v > m && !max.compareAndSet(m, v))
+			m = max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the lowest value of the bucket holding the given percentile,
+	 *         or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < NR_BUCKETS; ++i)
+			total += buckets.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < NR_BUCKETS; ++i) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(lowestValueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < NR_BUCKETS; ++i)
+			buckets.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count: " + getCount() + " mean: " + getMean()
+			+ " p50: " + getPercentile(50) + " p99: " + getPercentile(99)
+			+ " max: " + getMax();
+	}
+}
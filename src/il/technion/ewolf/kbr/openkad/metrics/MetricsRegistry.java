@@ -0,0 +1,263 @@
+package il.technion.ewolf.kbr.openkad.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Holds all the metrics of a single KadNet instance by name.
+ * Metrics are created on first use, so the same name always returns the same
+ * instance. All the metrics use a fixed amount of memory.
+ *
+ * The metrics can be exported over JMX as a single MBean in which counters
+ * and gauges are attributes named after them, and each histogram exports
+ * the attributes name.count, name.mean, name.p50, name.p99 and name.max
+ *
+ */
+public class MetricsRegistry {
+
+	private static final String[] HISTOGRAM_STATS = { "count", "mean", "p50", "p99", "max" };
+
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final ConcurrentMap<String, ConcurrentMap<Class<?>, Counter>> countersByClass =
+		new ConcurrentHashMap<String, ConcurrentMap<Class<?>, Counter>>();
+	private final ConcurrentMap<String, ConcurrentMap<Class<?>, Histogram>> histogramsByClass =
+		new ConcurrentHashMap<String, ConcurrentMap<Class<?>, Histogram>>();
+	private ObjectName registeredName = null;
+
+	public Counter counter(String name) {
+		Counter $ = counters.get(name);
+		if ($ != null)
+			return $;
+		Counter old = counters.putIfAbsent(name, $ = new Counter());
+		return old == null ? $ : old;
+	}
+
+	public Histogram histogram(String name) {
+		Histogram $ = histograms.get(name);
+		if ($ != null)
+			return $;
+		Histogram old = histograms.putIfAbsent(name, $ = new Histogram());
+		return old == null ? $ : old;
+	}
+
+	/**
+	 * Same as counter(prefix + c.getSimpleName()), but the name is built only
+	 * once per class. Used for metrics kept per message type
+	 */
+	public Counter counter(String prefix, Class<?> c) {
+		ConcurrentMap<Class<?>, Counter> byClass = byPrefix(countersByClass, prefix);
+		Counter $ = byClass.get(c);
+		if ($ != null)
+			return $;
+		Counter old = byClass.putIfAbsent(c, $ = counter(prefix + c.getSimpleName()));
+		return old == null ? $ : old;
+	}
+
+	/**
+	 * Same as {@link #counter(String, Class)} for histograms
+	 */
+	public Histogram histogram(String prefix, Class<?> c) {
+		ConcurrentMap<Class<?>, Histogram> byClass = byPrefix(histogramsByClass, prefix);
+		Histogram $ = byClass.get(c);
+		if ($ != null)
+			return $;
+		Histogram old = byClass.putIfAbsent(c, $ = histogram(prefix + c.getSimpleName()));
+		return old == null ? $ : old;
+	}
+
+	private static <T> ConcurrentMap<Class<?>, T> byPrefix(
+			ConcurrentMap<String, ConcurrentMap<Class<?>, T>> maps, String prefix) {
+		ConcurrentMap<Class<?>, T> $ = maps.get(prefix);
+		if ($ != null)
+			return $;
+		ConcurrentMap<Class<?>, T> old = maps.putIfAbsent(prefix, $ = new ConcurrentHashMap<Class<?>, T>());
+		return old == null ? $ : old;
+	}
+
+	/**
+	 * Registers a gauge, replacing any gauge with the same name
+	 * @param name the gauge's name
+	 * @param gauge reads the value
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Creates an int value which is reported as a gauge. Used for values
+	 * which are set rather than counted (maximums, sizes)
+	 * @param name the gauge's name
+	 * @return the value to be updated
+	 */
+	public AtomicInteger intGauge(String name) {
+		final AtomicInteger $ = new AtomicInteger(0);
+		gauge(name, new Gauge() {
+			@Override
+			public long getValue() {
+				return $.get();
+			}
+		});
+		return $;
+	}
+
+	/**
+	 * Same as {@link #intGauge(String)} for long values
+	 */
+	public AtomicLong longGauge(String name) {
+		final AtomicLong $ = new AtomicLong(0);
+		gauge(name, new Gauge() {
+			@Override
+			public long getValue() {
+				return $.get();
+			}
+		});
+		return $;
+	}
+
+	/**
+	 * @return all the counters and gauges values and histograms stats by
+	 *         their attribute name, sorted by name
+	 */
+	public SortedMap<String, Number> snapshot() {
+		SortedMap<String, Number> $ = new TreeMap<String, Number>();
+		for (Map.Entry<String, Counter> e : counters.entrySet())
+			$.put(e.getKey(), e.getValue().get());
+		for (Map.Entry<String, Gauge> e : gauges.entrySet())
+			$.put(e.getKey(), e.getValue().getValue());
+		for (Map.Entry<String, Histogram> e : histograms.entrySet())
+			for (String stat : HISTOGRAM_STATS)
+				$.put(e.getKey() + "." + stat, readStat(e.getValue(), stat));
+		return $;
+	}
+
+	private static Number readStat(Histogram h, String stat) {
+		if ("count".equals(stat))
+			return h.getCount();
+		if ("mean".equals(stat))
+			return h.getMean();
+		if ("p50".equals(stat))
+			return h.getPercentile(50);
+		if ("p99".equals(stat))
+			return h.getPercentile(99);
+		return h.getMax();
+	}
+
+	private Number readAttribute(String attribute) throws AttributeNotFoundException {
+		Counter c = counters.get(attribute);
+		if (c != null)
+			return c.get();
+		Gauge g = gauges.get(attribute);
+		if (g != null)
+			return g.getValue();
+
+		int dot = attribute.lastIndexOf('.');
+		Histogram h = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+		if (h == null)
+			throw new AttributeNotFoundException(attribute);
+		return readStat(h, attribute.substring(dot + 1));
+	}
+
+	/**
+	 * Exports all the metrics to the platform MBean server
+	 * @param name the MBean's object name
+	 * @throws JMException if the MBean could not be registered
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		if (registeredName != null)
+			return;
+		ObjectName objectName = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), objectName);
+		registeredName = objectName;
+	}
+
+	public synchronized void unregisterMBean() {
+		if (registeredName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(registeredName);
+		} catch (JMException e) {
+			// already gone
+		}
+		registeredName = null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Number> e : snapshot().entrySet())
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Read only view of the registry. The attributes list is built on each
+	 * request since metrics are created lazily
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			return readAttribute(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList $ = new AttributeList();
+			for (String a : attributes) {
+				try {
+					$.add(new Attribute(a, readAttribute(a)));
+				} catch (AttributeNotFoundException e) {
+					// skip unknown attributes
+				}
+			}
+			return $;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Number> e : snapshot().entrySet())
+				attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+						e.getKey(), true, false, false));
+
+			return new MBeanInfo(MetricsRegistry.class.getName(), "openkad metrics",
+					attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null, null, null);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("metrics are read only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package il.technion.ewolf.kbr.openkad.msg;
+
+import il.technion.ewolf.kbr.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Several messages to the same node sent in a single packet.
+ * The receiver handles each of the messages as if it was sent on its own
+ *
+ */
+public class EnvelopeMessage extends KadMessage {
+
+	private static final long serialVersionUID = 2871536092813420761L;
+
+	private List<KadMessage> messages = new ArrayList<KadMessage>();
+
+	@Inject
+	EnvelopeMessage(
+			@Named("openkad.rnd.id") long id,
+			@Named("openkad.local.node") Node src) {
+		super(id, src);
+	}
+
+	/**
+	 * @return the messages in this envelope, in the order they were sent
+	 */
+	public List<KadMessage> getMessages() {
+		return messages;
+	}
+
+	public EnvelopeMessage setMessages(List<KadMessage> messages) {
+		this.messages = messages;
+		return this;
+	}
+
+	public EnvelopeMessage addMessage(KadMessage msg) {
+		messages.add(msg);
+		return this;
+	}
+}
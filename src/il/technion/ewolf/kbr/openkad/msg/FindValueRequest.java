@@ -0,0 +1,40 @@
+package il.technion.ewolf.kbr.openkad.msg;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A find value request as defined in the kademlia protocol: asks the
+ * destination node for a value it stores
+ *
+ */
+public class FindValueRequest extends KadRequest {
+
+	private static final long serialVersionUID = 8023551377620446473L;
+
+	private Key key;
+
+	@Inject
+	FindValueRequest(
+			@Named("openkad.rnd.id") long id,
+			@Named("openkad.local.node") Node src) {
+		super(id, src);
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	public FindValueRequest setKey(Key key) {
+		this.key = key;
+		return this;
+	}
+
+	@Override
+	public FindValueResponse generateResponse(Node localNode) {
+		return new FindValueResponse(getId(), localNode);
+	}
+}
@@ -0,0 +1,30 @@
+package il.technion.ewolf.kbr.openkad.msg;
+
+import il.technion.ewolf.kbr.Node;
+
+/**
+ * A response to a find value request, with the value if the node has it
+ *
+ */
+public class FindValueResponse extends KadResponse {
+
+	private static final long serialVersionUID = -3387560950276958374L;
+
+	private byte[] value;
+
+	FindValueResponse(long id, Node src) {
+		super(id, src);
+	}
+
+	/**
+	 * @return the value, null if the node does not have it
+	 */
+	public byte[] getValue() {
+		return value;
+	}
+
+	public FindValueResponse setValue(byte[] value) {
+		this.value = value;
+		return this;
+	}
+}
@@ -51,7 +51,7 @@ public class ForwardMessage extends KadMessage {
 	public ForwardMessage setNack() {
 		if (isAck())
 			throw new IllegalStateException("cannot be both ack and nack");
-		this.ack = false;
+		this.nack = true;
 		return this;
 	}
 	
@@ -0,0 +1,63 @@
+package il.technion.ewolf.kbr.openkad.msg;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A store request as defined in the kademlia protocol: asks the destination
+ * node to keep a value for the given time
+ *
+ */
+public class StoreValueRequest extends KadRequest {
+
+	private static final long serialVersionUID = -2716093409262151787L;
+
+	private Key key;
+	private byte[] value;
+	private long ttl;
+
+	@Inject
+	StoreValueRequest(
+			@Named("openkad.rnd.id") long id,
+			@Named("openkad.local.node") Node src) {
+		super(id, src);
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	public byte[] getValue() {
+		return value;
+	}
+
+	/**
+	 * @return time to keep the value in millis
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	public StoreValueRequest setKey(Key key) {
+		this.key = key;
+		return this;
+	}
+
+	public StoreValueRequest setValue(byte[] value) {
+		this.value = value;
+		return this;
+	}
+
+	public StoreValueRequest setTtl(long ttl) {
+		this.ttl = ttl;
+		return this;
+	}
+
+	@Override
+	public StoreValueResponse generateResponse(Node localNode) {
+		return new StoreValueResponse(getId(), localNode);
+	}
+}
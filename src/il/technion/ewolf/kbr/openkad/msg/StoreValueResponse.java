@@ -0,0 +1,30 @@
+package il.technion.ewolf.kbr.openkad.msg;
+
+import il.technion.ewolf.kbr.Node;
+
+/**
+ * A response to a store request
+ *
+ */
+public class StoreValueResponse extends KadResponse {
+
+	private static final long serialVersionUID = 4186412874468373069L;
+
+	private boolean stored;
+
+	StoreValueResponse(long id, Node src) {
+		super(id, src);
+	}
+
+	/**
+	 * @return true if the value was stored
+	 */
+	public boolean isStored() {
+		return stored;
+	}
+
+	public StoreValueResponse setStored(boolean stored) {
+		this.stored = stored;
+		return this;
+	}
+}
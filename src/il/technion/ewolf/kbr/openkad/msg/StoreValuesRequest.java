@@ -0,0 +1,67 @@
+package il.technion.ewolf.kbr.openkad.msg;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A batch of store requests sent to the same node, used when republishing
+ * values: asks the destination node to keep each value for its ttl
+ *
+ */
+public class StoreValuesRequest extends KadRequest {
+
+	private static final long serialVersionUID = 6025339172829417562L;
+
+	private final List<Key> keys = new ArrayList<Key>();
+	private final List<byte[]> values = new ArrayList<byte[]>();
+	private final List<Long> ttls = new ArrayList<Long>();
+
+	@Inject
+	StoreValuesRequest(
+			@Named("openkad.rnd.id") long id,
+			@Named("openkad.local.node") Node src) {
+		super(id, src);
+	}
+
+	/**
+	 * @param key the value's key
+	 * @param value the value
+	 * @param ttl time to keep the value in millis
+	 */
+	public StoreValuesRequest addValue(Key key, byte[] value, long ttl) {
+		keys.add(key);
+		values.add(value);
+		ttls.add(ttl);
+		return this;
+	}
+
+	public int getNrValues() {
+		return keys.size();
+	}
+
+	public Key getKey(int i) {
+		return keys.get(i);
+	}
+
+	public byte[] getValue(int i) {
+		return values.get(i);
+	}
+
+	/**
+	 * @return time to keep the i-th value in millis
+	 */
+	public long getTtl(int i) {
+		return ttls.get(i);
+	}
+
+	@Override
+	public StoreValuesResponse generateResponse(Node localNode) {
+		return new StoreValuesResponse(getId(), localNode);
+	}
+}
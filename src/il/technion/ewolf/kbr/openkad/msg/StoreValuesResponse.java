@@ -0,0 +1,30 @@
+package il.technion.ewolf.kbr.openkad.msg;
+
+import il.technion.ewolf.kbr.Node;
+
+/**
+ * A response to a batch of store requests
+ *
+ */
+public class StoreValuesResponse extends KadResponse {
+
+	private static final long serialVersionUID = -1409264517384726614L;
+
+	private int nrStored;
+
+	StoreValuesResponse(long id, Node src) {
+		super(id, src);
+	}
+
+	/**
+	 * @return the number of values in the batch that were stored
+	 */
+	public int getNrStored() {
+		return nrStored;
+	}
+
+	public StoreValuesResponse setNrStored(int nrStored) {
+		this.nrStored = nrStored;
+		return this;
+	}
+}
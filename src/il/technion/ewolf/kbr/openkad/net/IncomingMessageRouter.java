@@ -0,0 +1,131 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import static ch.lambdaj.Lambda.filter;
+import static ch.lambdaj.Lambda.having;
+import static ch.lambdaj.Lambda.on;
+import static org.hamcrest.Matchers.is;
+import il.technion.ewolf.kbr.NodeRegistry;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+import il.technion.ewolf.kbr.openkad.msg.EnvelopeMessage;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
+import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
+import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
+import il.technion.ewolf.kbr.openkad.msg.ForwardResponse;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Hands an incoming message to all the message dispatchers expecting it.
+ * Shared by all the communicators, so a message is handled the same way no
+ * matter how it got here.
+ *
+ */
+public class IncomingMessageRouter {
+
+	// dependencies
+	private final Set<MessageDispatcher<?>> expecters;
+	private final Set<MessageDispatcher<?>> nonConsumableExpecters;
+	private final NodeRegistry nodeRegistry;
+	private final MetricsRegistry metrics;
+
+	// state
+	private final ConcurrentMap<Class<?>, Counter> incomingCounters = new ConcurrentHashMap<Class<?>, Counter>();
+
+	@Inject
+	IncomingMessageRouter(
+			@Named("openkad.net.expecters") Set<MessageDispatcher<?>> expecters,
+			@Named("openkad.net.expecters.nonConsumable") Set<MessageDispatcher<?>> nonConsumableExpecters,
+			NodeRegistry nodeRegistry,
+			MetricsRegistry metrics) {
+
+		this.expecters = expecters;
+		this.nonConsumableExpecters = nonConsumableExpecters;
+		this.nodeRegistry = nodeRegistry;
+		this.metrics = metrics;
+	}
+
+	private List<MessageDispatcher<?>> extractShouldHandle(KadMessage msg) {
+		List<MessageDispatcher<?>> shouldHandle = Collections.emptyList();
+		List<MessageDispatcher<?>> nonConsumableShouldHandle = Collections.emptyList();
+		List<MessageDispatcher<?>> $ = new ArrayList<MessageDispatcher<?>>();
+		synchronized (expecters) {
+			if (!expecters.isEmpty())
+				shouldHandle = filter(having(on(MessageDispatcher.class).shouldHandleMessage(msg), is(true)), expecters);
+		}
+
+		synchronized (nonConsumableExpecters) {
+			if (!nonConsumableExpecters.isEmpty())
+				nonConsumableShouldHandle = filter(having(on(MessageDispatcher.class).shouldHandleMessage(msg), is(true)),
+						nonConsumableExpecters);
+		}
+
+		$.addAll(nonConsumableShouldHandle);
+		$.addAll(shouldHandle);
+		return $;
+	}
+
+	/**
+	 * Replaces the de-serialized nodes in the message with their canonical
+	 * instances, so nodes seen many times are not kept many times
+	 *
+	 * @param msg an incoming message
+	 */
+	private void internNodes(KadMessage msg) {
+		if (msg instanceof FindNodeResponse) {
+			FindNodeResponse res = (FindNodeResponse) msg;
+			res.setNodes(nodeRegistry.internAll(res.getNodes()));
+		} else if (msg instanceof ForwardResponse) {
+			ForwardResponse res = (ForwardResponse) msg;
+			res.setNodes(nodeRegistry.internAll(res.getNodes()));
+		} else if (msg instanceof ForwardMessage) {
+			ForwardMessage fwd = (ForwardMessage) msg;
+			fwd.setNodes(nodeRegistry.internAll(fwd.getNodes()));
+		} else if (msg instanceof ForwardRequest) {
+			ForwardRequest req = (ForwardRequest) msg;
+			req.setBootstrap(nodeRegistry.internAll(req.getBootstrap()));
+		}
+	}
+
+	private Counter incomingCounter(Class<?> c) {
+		Counter $ = incomingCounters.get(c);
+		if ($ == null)
+			incomingCounters.put(c, $ = metrics.counter("openkad.net.incoming.", c));
+		return $;
+	}
+
+	/**
+	 * Calls all the expecters of a message. Must be called from the
+	 * server executor, handlers may take a while
+	 *
+	 * @param msg an incoming message, its src address already fixed
+	 */
+	public void route(KadMessage msg) {
+		internNodes(msg);
+		incomingCounter(msg.getClass()).increment();
+
+		if (msg instanceof EnvelopeMessage) {
+			for (KadMessage m : ((EnvelopeMessage) msg).getMessages())
+				route(m);
+			return;
+		}
+
+		for (MessageDispatcher<?> m : extractShouldHandle(msg)) {
+			try {
+				m.handle(msg);
+			} catch (Exception e) {
+				// handle fail should not interrupt other handlers
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -1,10 +1,8 @@
 package il.technion.ewolf.kbr.openkad.net;
 
-import static ch.lambdaj.Lambda.filter;
-import static ch.lambdaj.Lambda.having;
-import static ch.lambdaj.Lambda.on;
-import static org.hamcrest.Matchers.is;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.msg.EnvelopeMessage;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
 
@@ -13,15 +11,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -36,50 +28,85 @@ import com.google.inject.name.Named;
  */
 public class KadServer implements Communicator {
 
+	/**
+	 * A byte array output stream that exposes its buffer, so a datagram can
+	 * be sent without copying the serialized message
+	 */
+	private static final class SendBuffer extends ByteArrayOutputStream {
+		private final DatagramPacket pkt = new DatagramPacket(new byte[0], 0);
+
+		SendBuffer() {
+			super(1024 * 4);
+		}
+
+		DatagramPacket toPacket() {
+			this.pkt.setData(this.buf, 0, this.count);
+			return this.pkt;
+		}
+
+		void trim() {
+			// do not hold on to buffers of unusually large messages
+			if (this.buf.length > 1024 * 64)
+				this.buf = new byte[1024 * 4];
+		}
+	}
+
 	// dependencies
 	private final KadSerializer serializer;
 	private final Provider<DatagramSocket> sockProvider;
 	private final BlockingQueue<DatagramPacket> pkts;
 	private final ExecutorService srvExecutor;
-	private final Set<MessageDispatcher<?>> expecters;
-	private final Set<MessageDispatcher<?>> nonConsumableExpecters;
 	private final String kadScheme;
+	private final IncomingMessageRouter router;
+	private final MessageBatcher batcher;
 
 	// testing
-	private final AtomicInteger nrOutgoingPings;
-	private final AtomicInteger nrIncomingMessages;
-	private final AtomicLong nrBytesSent;
-	private final AtomicLong nrBytesRecved;
+	private final Counter nrOutgoingPings;
+	private final Counter nrIncomingMessages;
+	private final Counter nrBytesSent;
+	private final Counter nrBytesRecved;
 
 	// state
 	private final AtomicBoolean isActive = new AtomicBoolean(false);
+	private final ThreadLocal<SendBuffer> sendBuffers = new ThreadLocal<SendBuffer>() {
+		@Override
+		protected SendBuffer initialValue() {
+			return new SendBuffer();
+		}
+	};
+	private final MessageBatcher.Sender sender = new MessageBatcher.Sender() {
+		@Override
+		public int send(final Node to, final KadMessage msg, final int maxBytes) throws IOException {
+			return sendNow(to, msg, maxBytes);
+		}
+	};
 	// private final BlockingQueue<DatagramPacket> pktsout;
 
 	@Inject
 	KadServer(
 			final KadSerializer serializer,
 			@Named("openkad.scheme.name") final String kadScheme,
+			final IncomingMessageRouter router,
+			final MessageBatcher batcher,
 			@Named("openkad.net.udp.sock") final Provider<DatagramSocket> sockProvider,
 			@Named("openkad.net.buffer") final BlockingQueue<DatagramPacket> pkts,
 			@Named("openkad.net.sendbuffer") final BlockingQueue<DatagramPacket> pktsout,
 			@Named("openkad.executors.server") final ExecutorService srvExecutor,
-			@Named("openkad.net.expecters") final Set<MessageDispatcher<?>> expecters,
-			@Named("openkad.net.expecters.nonConsumable") final Set<MessageDispatcher<?>> nonConsumableExpecters,
 
 			// testing
-			@Named("openkad.testing.nrOutgoingPings") final AtomicInteger nrOutgoingPings,
-			@Named("openkad.testing.nrIncomingMessages") final AtomicInteger nrIncomingMessages,
-			@Named("openkad.testing.nrBytesSent") final AtomicLong nrBytesSent,
-			@Named("openkad.testing.nrBytesRecved") final AtomicLong nrBytesRecved) {
+			@Named("openkad.testing.nrOutgoingPings") final Counter nrOutgoingPings,
+			@Named("openkad.testing.nrIncomingMessages") final Counter nrIncomingMessages,
+			@Named("openkad.testing.nrBytesSent") final Counter nrBytesSent,
+			@Named("openkad.testing.nrBytesRecved") final Counter nrBytesRecved) {
 
 		this.kadScheme = kadScheme;
+		this.router = router;
+		this.batcher = batcher;
 		this.serializer = serializer;
 		this.sockProvider = sockProvider;
 		this.pkts = pkts;
 		// this.pktsout = pktsout;
 		this.srvExecutor = srvExecutor;
-		this.expecters = expecters;
-		this.nonConsumableExpecters = nonConsumableExpecters;
 
 		this.nrOutgoingPings = nrOutgoingPings;
 		this.nrIncomingMessages = nrIncomingMessages;
@@ -111,55 +138,39 @@ public class KadServer implements Communicator {
 		// to.getKey());
 
 		if (msg instanceof PingRequest)
-			this.nrOutgoingPings.incrementAndGet();
+			this.nrOutgoingPings.increment();
 
-		ByteArrayOutputStream bout = null;
+		if (this.batcher.isEnabled())
+			this.batcher.add(to, msg, this.sender);
+		else
+			sendNow(to, msg, Integer.MAX_VALUE);
+	}
 
+	private int sendNow(final Node to, final KadMessage msg, final int maxBytes) throws IOException {
+		// the buffer and packet are reused by all the sends of this thread,
+		// the socket copies the data before send returns
+		final SendBuffer bout = this.sendBuffers.get();
 		try {
-			bout = new ByteArrayOutputStream();
 			this.serializer.write(msg, bout);
-			// here is the memory allocated.
-			final byte[] bytes = bout.toByteArray();
-			this.nrBytesSent.addAndGet(bytes.length);
-
-			final DatagramPacket pkt = new DatagramPacket(bytes, 0, bytes.length);
+			final int $ = bout.size();
+			if ($ > maxBytes)
+				return $;
+			this.nrBytesSent.add($);
 
+			final DatagramPacket pkt = bout.toPacket();
 			pkt.setSocketAddress(to.getSocketAddress(this.kadScheme));
 			this.sockProvider.get().send(pkt);
+			return $;
 
 		} finally {
-			try {
-
-				bout.close();
-				bout = null;
-
-			} catch (final Exception e) {
-			}
-		}
-	}
-	private List<MessageDispatcher<?>> extractShouldHandle(final KadMessage msg) {
-		List<MessageDispatcher<?>> shouldHandle = Collections.emptyList();
-		List<MessageDispatcher<?>> nonConsumableShouldHandle = Collections.emptyList();
-		final List<MessageDispatcher<?>> $ = new ArrayList<MessageDispatcher<?>>();
-		synchronized (this.expecters) {
-			if (!this.expecters.isEmpty())
-				shouldHandle = filter(having(on(MessageDispatcher.class).shouldHandleMessage(msg), is(true)), this.expecters);
-		}
-
-		synchronized (this.nonConsumableExpecters) {
-			if (!this.nonConsumableExpecters.isEmpty())
-				nonConsumableShouldHandle = filter(having(on(MessageDispatcher.class).shouldHandleMessage(msg), is(true)),
-						this.nonConsumableExpecters);
+			bout.reset();
+			bout.trim();
 		}
-
-		$.addAll(nonConsumableShouldHandle);
-		$.addAll(shouldHandle);
-		return $;
 	}
 
 	private void handleIncomingPacket(final DatagramPacket pkt) {
-		this.nrIncomingMessages.incrementAndGet();
-		this.nrBytesRecved.addAndGet(pkt.getLength());
+		this.nrIncomingMessages.increment();
+		this.nrBytesRecved.add(pkt.getLength());
 		this.srvExecutor.execute(new Runnable() {
 
 			@Override
@@ -175,6 +186,10 @@ public class KadServer implements Communicator {
 
 					// fix incoming src address
 					msg.getSrc().setInetAddress(pkt.getAddress());
+					if (msg instanceof EnvelopeMessage) {
+						for (final KadMessage m : ((EnvelopeMessage) msg).getMessages())
+							m.getSrc().setInetAddress(pkt.getAddress());
+					}
 				} catch (final Exception e) {
 					e.printStackTrace();
 					return;
@@ -187,15 +202,7 @@ public class KadServer implements Communicator {
 				}
 
 				// call all the expecters
-				final List<MessageDispatcher<?>> shouldHandle = extractShouldHandle(msg);
-
-				for (final MessageDispatcher<?> m : shouldHandle)
-					try {
-						m.handle(msg);
-					} catch (final Exception e) {
-						// handle fail should not interrupt other handlers
-						e.printStackTrace();
-					}
+				KadServer.this.router.route(msg);
 			}
 		});
 	}
@@ -235,6 +242,7 @@ public class KadServer implements Communicator {
 	 */
 	@Override
 	public void shutdown(final Thread kadServerThread) {
+		this.batcher.flushAll();
 		this.isActive.set(false);
 		this.sockProvider.get().close();
 		kadServerThread.interrupt();
@@ -0,0 +1,249 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.msg.EnvelopeMessage;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Coalesces the messages sent to the same node within a short window into a
+ * single {@link EnvelopeMessage}, so fewer packets are sent.
+ * A batch is sent when its window ends or when the next message would take it
+ * over the size budget, whichever comes first.
+ *
+ * The messages are not serialized to measure them. Each message type has an
+ * estimate of the bytes it adds to an envelope, learned from the envelopes
+ * sent. An envelope found larger than the budget when it is serialized is
+ * split in two.
+ *
+ */
+public class MessageBatcher {
+
+	/**
+	 * Serializes and sends a single message
+	 */
+	public interface Sender {
+		/**
+		 * @param to the destination node
+		 * @param msg the message to be sent
+		 * @param maxBytes the message is not sent if it is larger than this
+		 * @return the size of the serialized message, it was sent only if it is
+		 *         at most maxBytes
+		 * @throws IOException any socket exception
+		 */
+		int send(Node to, KadMessage msg, int maxBytes) throws IOException;
+	}
+
+	/**
+	 * The messages waiting to be sent to a single node
+	 */
+	private final class Batch extends ScheduledTask {
+		private final SocketAddress addr;
+		private final Node to;
+		private final Sender sender;
+		private final List<KadMessage> messages = new ArrayList<KadMessage>();
+		private int size;
+
+		Batch(SocketAddress addr, Node to, Sender sender, int size) {
+			this.addr = addr;
+			this.to = to;
+			this.sender = sender;
+			this.size = size;
+		}
+
+		@Override
+		public void run() {
+			flush(this);
+		}
+	}
+
+	// dependencies
+	private final KadSerializer serializer;
+	private final Scheduler scheduler;
+	private final Provider<EnvelopeMessage> envelopeProvider;
+	private final String kadScheme;
+	private final long window;
+	private final int maxBytes;
+
+	// testing
+	private final Counter nrEnvelopesSent;
+	private final Counter nrBatchedMessages;
+
+	// state
+	private final Map<SocketAddress, Batch> batches = new HashMap<SocketAddress, Batch>();
+	private final ConcurrentMap<Class<?>, Integer> estimates = new ConcurrentHashMap<Class<?>, Integer>();
+	private volatile int emptySize = -1;
+
+	@Inject
+	MessageBatcher(
+			KadSerializer serializer,
+			Scheduler scheduler,
+			Provider<EnvelopeMessage> envelopeProvider,
+			@Named("openkad.scheme.name") String kadScheme,
+			@Named("openkad.net.batch.window") long window,
+			@Named("openkad.net.batch.max_bytes") int maxBytes,
+
+			// testing
+			@Named("openkad.testing.nrEnvelopesSent") Counter nrEnvelopesSent,
+			@Named("openkad.testing.nrBatchedMessages") Counter nrBatchedMessages) {
+
+		this.serializer = serializer;
+		this.scheduler = scheduler;
+		this.envelopeProvider = envelopeProvider;
+		this.kadScheme = kadScheme;
+		this.window = window;
+		this.maxBytes = maxBytes;
+
+		this.nrEnvelopesSent = nrEnvelopesSent;
+		this.nrBatchedMessages = nrBatchedMessages;
+	}
+
+	/**
+	 * @return false if messages should be sent right away
+	 */
+	public boolean isEnabled() {
+		return window > 0;
+	}
+
+	/**
+	 * @return the size of an envelope without messages, measured once
+	 */
+	private int getEmptySize() throws IOException {
+		int $ = emptySize;
+		if ($ < 0) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			serializer.write(envelopeProvider.get(), bout);
+			$ = emptySize = bout.size();
+		}
+		return $;
+	}
+
+	/**
+	 * @return the estimated bytes the message adds to an envelope, 0 for a
+	 *         type never sent in an envelope
+	 */
+	private int estimate(KadMessage msg) {
+		Integer $ = estimates.get(msg.getClass());
+		return $ == null ? 0 : $;
+	}
+
+	private void learn(List<KadMessage> messages, int envelopeSize) {
+		int share = Math.max(1, (envelopeSize - emptySize) / messages.size());
+		for (KadMessage m : messages) {
+			Integer old = estimates.get(m.getClass());
+			estimates.put(m.getClass(), old == null ? share : (3 * old + share) / 4);
+		}
+	}
+
+	/**
+	 * Adds a message to the batch of its destination. Messages too large to
+	 * share a packet are sent right away
+	 *
+	 * @param to the destination node
+	 * @param msg the message to be sent
+	 * @param sender sends the message or the envelope when the batch is flushed
+	 * @throws IOException if the message could not be serialized or sent
+	 */
+	public void add(Node to, KadMessage msg, Sender sender) throws IOException {
+		int empty = getEmptySize();
+		int size = estimate(msg);
+		if (empty + size > maxBytes) {
+			sender.send(to, msg, Integer.MAX_VALUE);
+			return;
+		}
+
+		SocketAddress addr = to.getSocketAddress(kadScheme);
+		Batch full = null;
+		Batch created = null;
+		synchronized (batches) {
+			Batch batch = batches.get(addr);
+			if (batch != null && batch.size + size > maxBytes) {
+				batches.remove(addr);
+				full = batch;
+				batch = null;
+			}
+			if (batch == null) {
+				batch = created = new Batch(addr, to, sender, empty);
+				batches.put(addr, batch);
+			}
+			batch.messages.add(msg);
+			batch.size += size;
+		}
+
+		if (full != null) {
+			full.cancel();
+			send(full.to, full.sender, full.messages);
+		}
+		if (created != null)
+			scheduler.schedule(created, window);
+	}
+
+	private void flush(Batch batch) {
+		synchronized (batches) {
+			// the batch was already sent since it was full
+			if (batches.get(batch.addr) != batch)
+				return;
+			batches.remove(batch.addr);
+		}
+		send(batch.to, batch.sender, batch.messages);
+	}
+
+	/**
+	 * Sends all the waiting messages, called before the communicator is shut
+	 * down
+	 */
+	public void flushAll() {
+		List<Batch> all;
+		synchronized (batches) {
+			all = new ArrayList<Batch>(batches.values());
+			batches.clear();
+		}
+		for (Batch batch : all) {
+			batch.cancel();
+			send(batch.to, batch.sender, batch.messages);
+		}
+	}
+
+	private void send(Node to, Sender sender, List<KadMessage> messages) {
+		// no more messages are added to a batch once it is removed from the map
+		try {
+			if (messages.size() == 1) {
+				sender.send(to, messages.get(0), Integer.MAX_VALUE);
+				return;
+			}
+
+			int size = sender.send(to, envelopeProvider.get().setMessages(messages), maxBytes);
+			learn(messages, size);
+			if (size <= maxBytes) {
+				nrEnvelopesSent.increment();
+				nrBatchedMessages.add(messages.size());
+				return;
+			}
+		} catch (IOException e) {
+			// the socket was probably closed, the messages are lost
+			// just like any message sent over udp
+			return;
+		}
+
+		// the estimates were too low
+		int half = messages.size() / 2;
+		send(to, sender, new ArrayList<KadMessage>(messages.subList(0, half)));
+		send(to, sender, new ArrayList<KadMessage>(messages.subList(half, messages.size())));
+	}
+}
@@ -3,14 +3,18 @@ package il.technion.ewolf.kbr.openkad.net;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.concurrent.FutureCallback;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.metrics.Histogram;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.KadRequest;
 import il.technion.ewolf.kbr.openkad.net.filter.MessageFilter;
 
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
@@ -41,33 +45,44 @@ public class MessageDispatcher<A> {
 	private boolean isConsumbale = true;
 	private long timeout;
 	private final Set<MessageFilter> filters = new HashSet<MessageFilter>();
-	private TimerTask timeoutTimerTask = null;
+	private ScheduledTask timeoutTimerTask = null;
 	private final AtomicBoolean isDone;
+	private Histogram latency = null;
+	private Counter timeouts = null;
+	private long sendTime = 0;
+	private Node pendingTo = null;
+	private KadRequest pendingReq = null;
 	// dependencies
 	private final BlockingQueue<MessageDispatcher<?>> outstandingRequests;
+	private final Deque<MessageDispatcher<?>> pendingRequests;
 	private final Set<MessageDispatcher<?>> expecters; // must be sync'ed set
 	private final Set<MessageDispatcher<?>> nonConsumableexpecters; // must be sync'ed set
 	
-	private final Timer timer;
+	private final Scheduler scheduler;
 	private final Communicator communicator;
+	private final MetricsRegistry metrics;
 
 	
 	@Inject
 	public
 	MessageDispatcher(
 			@Named("openkad.net.req_queue") BlockingQueue<MessageDispatcher<?>> outstandingRequests,
+			@Named("openkad.net.req_queue.pending") Deque<MessageDispatcher<?>> pendingRequests,
 			@Named("openkad.net.expecters") Set<MessageDispatcher<?>> expecters,
 			@Named("openkad.net.expecters.nonConsumable") Set<MessageDispatcher<?>> nonConsumableexpecters,
-			@Named("openkad.timer") Timer timer,
+			Scheduler scheduler,
 			@Named("openkad.net.timeout") long timeout,
-			Communicator communicator) {
+			Communicator communicator,
+			MetricsRegistry metrics) {
 		
 		this.outstandingRequests = outstandingRequests;
+		this.pendingRequests = pendingRequests;
 		this.expecters = expecters;
 		this.nonConsumableexpecters = nonConsumableexpecters;
-		this.timer = timer;
+		this.scheduler = scheduler;
 		this.timeout = timeout;
 		this.communicator = communicator;
+		this.metrics = metrics;
 		this.isDone = new AtomicBoolean(false);
 	}
 	
@@ -92,7 +107,8 @@ public class MessageDispatcher<A> {
 		if (timeoutTimerTask != null)
 			timeoutTimerTask.cancel();
 		
-		outstandingRequests.remove(this);
+		pendingRequests.remove(this);
+		releaseOutstanding();
 		cancelExpect();
 		
 		if (callback != null)
@@ -117,11 +133,13 @@ public class MessageDispatcher<A> {
 		if (timeoutTimerTask != null)
 			timeoutTimerTask.cancel();
 		
-		outstandingRequests.remove(this);
+		releaseOutstanding();
 		if (isConsumbale) {
 			expecters.remove(this);
 			if (!isDone.compareAndSet(false, true))
 				return;
+			if (latency != null)
+				latency.record((System.nanoTime() - sendTime) / 1000);
 		}
 		
 		if (callback != null)
@@ -158,7 +176,7 @@ public class MessageDispatcher<A> {
 	
 	public Future<KadMessage> futureRegister() {
 		
-		FutureCallback<KadMessage, A> f = new FutureCallback<KadMessage, A>() {
+		FutureCallback<KadMessage, A> f = new FutureCallback<KadMessage, A>(scheduler) {
 			@Override
 			public synchronized boolean cancel(boolean mayInterruptIfRunning) {
 				MessageDispatcher.this.cancel(new CancellationException());
@@ -177,14 +195,26 @@ public class MessageDispatcher<A> {
 		if (!isConsumbale)
 			return;
 		
-		timeoutTimerTask = new TimerTask() {
+		timeoutTimerTask = new ScheduledTask() {
 			
 			@Override
 			public void run() {
+				if (timeouts != null && !isDone.get())
+					timeouts.increment();
 				MessageDispatcher.this.cancel(new TimeoutException());
 			}
 		};
-		timer.schedule(timeoutTimerTask, timeout);
+		scheduler.schedule(timeoutTimerTask, timeout);
+	}
+	
+	/**
+	 * Remembers the metrics of the request type and the send time, the
+	 * latency of the request is recorded when its response is handled
+	 */
+	private void markSent(KadRequest req) {
+		latency = metrics.histogram("openkad.latency.rpc.", req.getClass());
+		timeouts = metrics.counter("openkad.timeouts.rpc.", req.getClass());
+		sendTime = System.nanoTime();
 	}
 	
 	public boolean trySend(Node to, KadRequest req) {
@@ -196,6 +226,7 @@ public class MessageDispatcher<A> {
 			{
 				//outstandingRequests.put(this);
 				expect();
+				markSent(req);
 				communicator.send(to, req);
 				setupTimeout();
 				return true;
@@ -215,8 +246,14 @@ public class MessageDispatcher<A> {
 			if (!outstandingRequests.offer(this, timeout, TimeUnit.MILLISECONDS))
 				throw new RejectedExecutionException();
 			*/
-			outstandingRequests.put(this);
+			synchronized (outstandingRequests) {
+				// woken by releaseOutstanding, through the scheduler so
+				// a virtual clock knows this thread waits for a free slot
+				while (!outstandingRequests.offer(this))
+					scheduler.await(outstandingRequests);
+			}
 			expect();
+			markSent(req);
 			communicator.send(to, req);
 			
 			setupTimeout();
@@ -226,9 +263,50 @@ public class MessageDispatcher<A> {
 		}
 	}
 	
+	/**
+	 * Sends the request without blocking. If the outstanding requests queue
+	 * is full the request waits in the pending queue, and it is sent as soon
+	 * as another request leaves the outstanding requests queue
+	 */
+	public void asyncSend(Node to, KadRequest req) {
+		if (trySend(to, req))
+			return;
+		
+		pendingTo = to;
+		pendingReq = req;
+		pendingRequests.offerLast(this);
+		// a request may have left the queue before this one was pending
+		if (outstandingRequests.remainingCapacity() > 0)
+			sendPending();
+	}
+	
+	private void releaseOutstanding() {
+		if (outstandingRequests.remove(this)) {
+			synchronized (outstandingRequests) {
+				scheduler.wakeAll(outstandingRequests);
+			}
+			sendPending();
+		}
+	}
+	
+	private void sendPending() {
+		while (outstandingRequests.remainingCapacity() > 0) {
+			MessageDispatcher<?> d = pendingRequests.pollFirst();
+			if (d == null)
+				return;
+			if (d.isDone.get())
+				continue;
+			if (!d.trySend(d.pendingTo, d.pendingReq)) {
+				// lost the free slot to another request
+				pendingRequests.offerFirst(d);
+				return;
+			}
+		}
+	}
+	
 	public Future<KadMessage> futureSend(Node to, KadRequest req) {
 		
-		FutureCallback<KadMessage, A> f = new FutureCallback<KadMessage, A>();
+		FutureCallback<KadMessage, A> f = new FutureCallback<KadMessage, A>(scheduler);
 		setCallback(null, f);
 		
 		send(to, req);
@@ -0,0 +1,186 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Sends and receives messages over a {@link SimNetwork} instead of a socket.
+ * Incoming messages are handled exactly as in {@link KadServer}: in the
+ * server executor, by the {@link IncomingMessageRouter}.
+ * In a virtual time network they are handled by the thread driving the clock.
+ *
+ */
+public class SimCommunicator implements Communicator {
+
+	// dependencies
+	private final SimNetwork network;
+	private final KadSerializer serializer;
+	private final Node localNode;
+	private final String kadScheme;
+	private final ExecutorService srvExecutor;
+	private final IncomingMessageRouter router;
+	private final MessageBatcher batcher;
+
+	// testing
+	private final Counter nrOutgoingPings;
+	private final Counter nrIncomingMessages;
+	private final Counter nrBytesSent;
+	private final Counter nrBytesRecved;
+
+	// state
+	private SocketAddress localAddress = null;
+	private final MessageBatcher.Sender sender = new MessageBatcher.Sender() {
+		@Override
+		public int send(Node to, KadMessage msg, int maxBytes) throws IOException {
+			return sendNow(to, msg, maxBytes);
+		}
+	};
+
+	@Inject
+	SimCommunicator(
+			SimNetwork network,
+			KadSerializer serializer,
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.scheme.name") String kadScheme,
+			@Named("openkad.executors.server") ExecutorService srvExecutor,
+			IncomingMessageRouter router,
+			MessageBatcher batcher,
+
+			// testing
+			@Named("openkad.testing.nrOutgoingPings") Counter nrOutgoingPings,
+			@Named("openkad.testing.nrIncomingMessages") Counter nrIncomingMessages,
+			@Named("openkad.testing.nrBytesSent") Counter nrBytesSent,
+			@Named("openkad.testing.nrBytesRecved") Counter nrBytesRecved) {
+
+		this.network = network;
+		this.serializer = serializer;
+		this.localNode = localNode;
+		this.kadScheme = kadScheme;
+		this.srvExecutor = srvExecutor;
+		this.router = router;
+		this.batcher = batcher;
+
+		this.nrOutgoingPings = nrOutgoingPings;
+		this.nrIncomingMessages = nrIncomingMessages;
+		this.nrBytesSent = nrBytesSent;
+		this.nrBytesRecved = nrBytesRecved;
+	}
+
+	@Override
+	public synchronized void bind() {
+		if (localAddress != null)
+			return;
+		localAddress = localNode.getSocketAddress(kadScheme);
+		network.register(localAddress, this);
+	}
+
+	@Override
+	public void send(Node to, KadMessage msg) throws IOException {
+		if (msg instanceof PingRequest)
+			nrOutgoingPings.increment();
+
+		if (batcher.isEnabled())
+			batcher.add(to, msg, sender);
+		else
+			sendNow(to, msg, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the size of the serialized message, 0 if there was no need to
+	 *         serialize it
+	 */
+	private int sendNow(Node to, KadMessage msg, int maxBytes) throws IOException {
+		Object payload = msg;
+		int $ = 0;
+		// a message that has a size limit is measured even if it is not
+		// serialized, so the network behaves the same either way
+		if (network.isSerializing() || maxBytes < Integer.MAX_VALUE) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			serializer.write(msg, bout);
+			$ = bout.size();
+			if ($ > maxBytes)
+				return $;
+			if (network.isSerializing()) {
+				nrBytesSent.add($);
+				payload = bout.toByteArray();
+			}
+		}
+		network.send(to.getSocketAddress(kadScheme), payload);
+		return $;
+	}
+
+	/**
+	 * Called by the network when a message arrives
+	 * @param payload the message or its serialized bytes
+	 * @return false if the message was dropped because the server executor is full
+	 */
+	boolean deliver(final Object payload) {
+		nrIncomingMessages.increment();
+		if (network.isVirtual()) {
+			route(payload);
+			return true;
+		}
+		try {
+			srvExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					route(payload);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	private void route(Object payload) {
+		KadMessage msg;
+		try {
+			msg = toMessage(payload);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		router.route(msg);
+	}
+
+	private KadMessage toMessage(Object payload) throws IOException, ClassCastException, ClassNotFoundException {
+		if (!(payload instanceof byte[]))
+			return (KadMessage) payload;
+
+		byte[] bytes = (byte[]) payload;
+		nrBytesRecved.add(bytes.length);
+		return serializer.read(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * Messages are pushed by the network, there is nothing to poll
+	 */
+	@Override
+	public void run() {
+	}
+
+	@Override
+	public synchronized void shutdown(Thread serverThread) {
+		batcher.flushAll();
+		if (localAddress != null)
+			network.unregister(localAddress, this);
+		localAddress = null;
+		try {
+			serverThread.join();
+		} catch (InterruptedException e) {
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.concurrent.TimerScheduler;
+import il.technion.ewolf.kbr.concurrent.VirtualScheduler;
+
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in memory network shared by many nodes in the same JVM.
+ * Each node's {@link SimCommunicator} registers itself by its socket address
+ * when bound, messages sent to an address are handed to the communicator
+ * registered with it after a random latency, or dropped.
+ *
+ * When serialization is off the message instance itself is handed to the
+ * destination, so messages must not be modified after they are sent.
+ *
+ * A network created with a {@link VirtualScheduler} runs in virtual time:
+ * messages are delivered by the thread driving the scheduler, and all the
+ * nodes' timeouts and timers use the same virtual clock.
+ *
+ */
+public class SimNetwork {
+
+	// settings
+	private long minLatency = 0;
+	private long maxLatency = 0;
+	private double lossRate = 0;
+	private boolean serialize = false;
+
+	// state
+	private final ConcurrentMap<SocketAddress, SimCommunicator> nodes = new ConcurrentHashMap<SocketAddress, SimCommunicator>();
+	private final Random rnd;
+	private final ScheduledExecutorService deliveryExecutor;
+	private final Timer timer = new Timer("openkad.sim.timer", true);
+	private final Scheduler scheduler;
+	private final VirtualScheduler virtualScheduler;
+
+	// stats
+	private final AtomicLong nrDelivered = new AtomicLong(0);
+	private final AtomicLong nrDropped = new AtomicLong(0);
+
+	public SimNetwork() {
+		this(new Random().nextLong(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param seed seed of the latency and loss randomness
+	 * @param nrThreads number of threads handing messages to their destination
+	 */
+	public SimNetwork(long seed, int nrThreads) {
+		this.rnd = new Random(seed);
+		this.scheduler = new TimerScheduler(timer);
+		this.virtualScheduler = null;
+		final AtomicInteger threadNr = new AtomicInteger(0);
+		this.deliveryExecutor = new ScheduledThreadPoolExecutor(nrThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "openkad.sim.delivery-" + threadNr.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Creates a network running in virtual time
+	 * @param scheduler the virtual clock, driven by the caller
+	 * @param seed seed of the latency and loss randomness
+	 */
+	public SimNetwork(VirtualScheduler scheduler, long seed) {
+		this.rnd = new Random(seed);
+		this.scheduler = scheduler;
+		this.virtualScheduler = scheduler;
+		this.deliveryExecutor = null;
+	}
+
+	/**
+	 * Every message is delayed by a uniformly random latency in the given range
+	 */
+	public SimNetwork setLatency(long min, long max, TimeUnit unit) {
+		if (min < 0 || max < min)
+			throw new IllegalArgumentException("bad latency range: " + min + " - " + max);
+		this.minLatency = unit.toMicros(min);
+		this.maxLatency = unit.toMicros(max);
+		return this;
+	}
+
+	/**
+	 * @param lossRate probability of a message to be dropped
+	 */
+	public SimNetwork setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+		return this;
+	}
+
+	/**
+	 * @param serialize if true, messages are serialized by the sender and
+	 *        de-serialized by the destination as with a real network
+	 */
+	public SimNetwork setSerialize(boolean serialize) {
+		this.serialize = serialize;
+		return this;
+	}
+
+	public boolean isSerializing() {
+		return serialize;
+	}
+
+	/**
+	 * @return a timer shared by all the nodes of this network, so a large
+	 *         network does not need a timer thread per node
+	 */
+	public Timer getTimer() {
+		return timer;
+	}
+
+	/**
+	 * @return the clock and scheduler shared by all the nodes of this network
+	 */
+	public Scheduler getScheduler() {
+		return scheduler;
+	}
+
+	public boolean isVirtual() {
+		return virtualScheduler != null;
+	}
+
+	/**
+	 * @return the virtual clock, or null if the network runs in real time
+	 */
+	public VirtualScheduler getVirtualScheduler() {
+		return virtualScheduler;
+	}
+
+	void register(SocketAddress addr, SimCommunicator communicator) {
+		if (nodes.putIfAbsent(addr, communicator) != null)
+			throw new IllegalStateException("address already in use: " + addr);
+	}
+
+	void unregister(SocketAddress addr, SimCommunicator communicator) {
+		nodes.remove(addr, communicator);
+	}
+
+	private long nextLatency() {
+		if (maxLatency == minLatency)
+			return minLatency;
+		synchronized (rnd) {
+			return minLatency + (long) (rnd.nextDouble() * (maxLatency - minLatency));
+		}
+	}
+
+	private boolean shouldDrop() {
+		if (lossRate <= 0)
+			return false;
+		synchronized (rnd) {
+			return rnd.nextDouble() < lossRate;
+		}
+	}
+
+	/**
+	 * Sends a message to the node registered with the given address
+	 * @param to destination address
+	 * @param payload the message or its serialized bytes
+	 */
+	void send(final SocketAddress to, final Object payload) {
+		if (shouldDrop()) {
+			nrDropped.incrementAndGet();
+			return;
+		}
+
+		if (isVirtual()) {
+			virtualScheduler.schedule(new ScheduledTask() {
+				@Override
+				public void run() {
+					deliver(to, payload);
+				}
+			}, TimeUnit.MICROSECONDS.toMillis(nextLatency()));
+			return;
+		}
+
+		try {
+			deliveryExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					deliver(to, payload);
+				}
+			}, nextLatency(), TimeUnit.MICROSECONDS);
+		} catch (RejectedExecutionException e) {
+			// network was shut down
+			nrDropped.incrementAndGet();
+		}
+	}
+
+	private void deliver(SocketAddress to, Object payload) {
+		SimCommunicator dest = nodes.get(to);
+		if (dest == null || !dest.deliver(payload)) {
+			nrDropped.incrementAndGet();
+			return;
+		}
+		nrDelivered.incrementAndGet();
+	}
+
+	public int getNrNodes() {
+		return nodes.size();
+	}
+
+	public long getNrDelivered() {
+		return nrDelivered.get();
+	}
+
+	/**
+	 * @return number of messages lost, sent to unknown addresses or
+	 *         rejected by an overloaded destination
+	 */
+	public long getNrDropped() {
+		return nrDropped.get();
+	}
+
+	/**
+	 * Stops delivering messages
+	 */
+	public void shutdown() {
+		if (deliveryExecutor != null)
+			deliveryExecutor.shutdownNow();
+		timer.cancel();
+	}
+}
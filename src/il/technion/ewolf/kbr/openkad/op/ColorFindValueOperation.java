@@ -7,8 +7,10 @@ import il.technion.ewolf.kbr.KeyColorComparator;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
@@ -24,7 +26,6 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -50,6 +51,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 	// dependencies
 	private final Provider<FindNodeRequest> findNodeRequestProvider;
 	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final Scheduler scheduler;
 	private final Provider<StoreMessage> storeMessageProvider;
 	private final KBuckets kBuckets;
 	private final Node localNode;
@@ -62,8 +64,8 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 	private final int concurrency;
 	
 	// testing
-	private final AtomicInteger nrLocalCacheHits;
-	private final AtomicInteger nrRemoteCacheHits;
+	private final Counter nrLocalCacheHits;
+	private final Counter nrRemoteCacheHits;
 	
 	@Inject
 	ColorFindValueOperation(
@@ -76,18 +78,20 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 			
 			Provider<FindNodeRequest> findNodeRequestProvider,
 			Provider<MessageDispatcher<Node>> msgDispatcherProvider,
+			Scheduler scheduler,
 			Provider<StoreMessage> storeMessageProvider,
 			Communicator kadServer,
 			KBuckets kBuckets,
 			KadCache cache,
-			@Named("openkad.testing.nrLocalCacheHits") AtomicInteger nrLocalCacheHits,
-			@Named("openkad.testing.nrRemoteCacheHits") AtomicInteger nrRemoteCacheHits) {
+			@Named("openkad.testing.nrLocalCacheHits") Counter nrLocalCacheHits,
+			@Named("openkad.testing.nrRemoteCacheHits") Counter nrRemoteCacheHits) {
 		
 		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
 		this.kBuckets = kBuckets;
 		this.findNodeRequestProvider = findNodeRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.scheduler = scheduler;
 		this.nrCandidates = nrCandidates;
 		this.nrShare = nrShare;
 		this.storeMessageProvider = storeMessageProvider;
@@ -167,10 +171,11 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 
 		List<Node> nodes = cache.search(key);
 		if (nodes != null && nodes.size() >= kBucketSize) {
-			nrLocalCacheHits.incrementAndGet();
+			nrLocalCacheHits.increment();
 			return nodes;
 		}
 		
+		kBuckets.markLookup(key);
 		knownClosestNodes = kBuckets.getClosestNodesByKey(key, kBucketSize);
 		knownClosestNodes.add(localNode);
 		alreadyQueried.add(localNode);
@@ -186,7 +191,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 		synchronized (this) {
 			while (returnedCachedResults == null && !querying.isEmpty()) {
 				try {
-					wait();
+					scheduler.await(this);
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
@@ -216,7 +221,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 				synchronized (this) {
 					if (!querying.isEmpty()) {
 						try {
-							wait();
+							scheduler.await(this);
 						} catch (InterruptedException e) {
 							e.printStackTrace();
 						}
@@ -233,7 +238,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 		cache.insert(key, knownClosestNodes);
 		
 		if (returnedCachedResults != null)
-			nrRemoteCacheHits.incrementAndGet();
+			nrRemoteCacheHits.increment();
 
 		synchronized (this) {
 			nrQueried = alreadyQueried.size()+querying.size()-1;
@@ -263,7 +268,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 
 	@Override
 	public synchronized void completed(KadMessage msg, Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
 		querying.remove(n);
 		alreadyQueried.add(n);
 		
@@ -284,7 +289,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 	
 	@Override
 	public synchronized void failed(Throwable exc, Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
 		querying.remove(n);
 		alreadyQueried.add(n);
 	}
@@ -3,12 +3,13 @@ package il.technion.ewolf.kbr.openkad.op;
 import static ch.lambdaj.Lambda.on;
 import static ch.lambdaj.Lambda.sort;
 import il.technion.ewolf.kbr.Key;
-import il.technion.ewolf.kbr.KeyColorComparator;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
@@ -21,7 +22,6 @@ import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -48,14 +48,19 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 	private final Set<Node> querying;
 	private Node returnedCachedResults = null;
 	private final List<Node> lastSentTo;
-	private Comparator<Key> colorComparator;
+	// nodes from the routing table with the key's color, they may not be
+	// among the closest nodes
+	private List<Node> colorCandidates;
 	private KeyComparator keyComparator;
 	private final List<Node> firstSentTo;
 	private final AtomicInteger nrMsgsSent;
+	private Runnable onDone = null;
+	private boolean sending = false;
 
 	// dependencies
 	private final Provider<FindNodeRequest> findNodeRequestProvider;
 	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final Scheduler scheduler;
 	private final Provider<StoreMessage> storeMessageProvider;
 	private final KBuckets kBuckets;
 	private final Node localNode;
@@ -66,8 +71,8 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 	private final int nrColors;
 	private final int myColor;
 	// testing
-	private final AtomicInteger nrLocalCacheHits;
-	private final AtomicInteger nrRemoteCacheHits;
+	private final Counter nrLocalCacheHits;
+	private final Counter nrRemoteCacheHits;
 
 	@Inject
 	EagerColorFindValueOperation(@Named("openkad.local.node") final Node localNode,
@@ -75,15 +80,17 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 			@Named("openkad.color.nrcolors") final int nrColors, @Named("openkad.local.color") final int myColor,
 
 			final Provider<FindNodeRequest> findNodeRequestProvider, final Provider<MessageDispatcher<Node>> msgDispatcherProvider,
+			final Scheduler scheduler,
 			final Provider<StoreMessage> storeMessageProvider, final Communicator kadServer, final KBuckets kBuckets,
-			final KadCache cache, @Named("openkad.testing.nrLocalCacheHits") final AtomicInteger nrLocalCacheHits,
-			@Named("openkad.testing.nrRemoteCacheHits") final AtomicInteger nrRemoteCacheHits) {
+			final KadCache cache, @Named("openkad.testing.nrLocalCacheHits") final Counter nrLocalCacheHits,
+			@Named("openkad.testing.nrRemoteCacheHits") final Counter nrRemoteCacheHits) {
 
 		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
 		this.kBuckets = kBuckets;
 		this.findNodeRequestProvider = findNodeRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.scheduler = scheduler;
 		this.nrShare = nrShare;
 		this.storeMessageProvider = storeMessageProvider;
 		this.kadServer = kadServer;
@@ -118,27 +125,25 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 	}
 
 	private synchronized Node takeColorUnqueried() {
-		List<Node> allUnqueried = new ArrayList<Node>();
-		allUnqueried.addAll(this.knownClosestNodes);
-		allUnqueried.removeAll(this.querying);
-		allUnqueried.removeAll(this.alreadyQueried);
-
-		if (allUnqueried.isEmpty())
-			return null;
-
-		Node $ = null;
-
-		if (allUnqueried.size() > 1)
-			allUnqueried = sort(allUnqueried, on(Node.class).getKey(), this.colorComparator);
-		$ = allUnqueried.get(0);
+		// both lists are sorted by key, the first unqueried node with the
+		// right color is the best one
+		final int color = this.key.getColor(this.nrColors);
+		for (final Node n : this.knownClosestNodes) {
+			if (n.getKey().getColor(this.nrColors) == color && !this.querying.contains(n) && !this.alreadyQueried.contains(n)) {
+				this.querying.add(n);
+				return n;
+			}
+		}
+		for (final Node n : this.colorCandidates) {
+			if (!this.querying.contains(n) && !this.alreadyQueried.contains(n)) {
+				this.querying.add(n);
+				return n;
+			}
+		}
 
-		// if the best we could find is not in the right color, then continue
+		// if there is no node in the right color, then continue
 		// with the normal kademila lookup
-		if ($.getKey().getColor(this.nrColors) != this.key.getColor(this.nrColors))
-			return takeUnqueried();
-
-		this.querying.add($);
-		return $;
+		return takeUnqueried();
 	}
 
 	private boolean hasMoreToQuery() {
@@ -161,22 +166,33 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 		.send(to, findNodeRequest);
 	}
 
+	private void asyncSendFindNode(final Node to) {
+		final FindNodeRequest findNodeRequest = this.findNodeRequestProvider.get().setSearchCache(true).setKey(this.key);
+
+		this.msgDispatcherProvider.get().addFilter(new IdMessageFilter(findNodeRequest.getId()))
+		.addFilter(new TypeMessageFilter(FindNodeResponse.class)).setConsumable(true).setCallback(to, this)
+		.asyncSend(to, findNodeRequest);
+	}
+
 	private void sortKnownClosestNodes() {
 		this.knownClosestNodes = sort(this.knownClosestNodes, on(Node.class).getKey(), this.keyComparator);
 		if (this.knownClosestNodes.size() >= this.kBucketSize)
 			this.knownClosestNodes.subList(this.kBucketSize, this.knownClosestNodes.size()).clear();
 	}
 
-	@Override
-	public List<Node> doFindValue() {
-
+	/**
+	 * @return the cached results if there are enough of them, null if the
+	 *         nodes have to be queried
+	 */
+	private List<Node> start() {
 		final List<Node> nodes = this.cache.search(this.key);
 		if (nodes != null && nodes.size() >= this.kBucketSize) {
-			this.nrLocalCacheHits.incrementAndGet();
+			this.nrLocalCacheHits.increment();
 			return nodes;
 		}
 
 		this.keyComparator = new KeyComparator(this.key);
+		this.kBuckets.markLookup(this.key);
 		this.knownClosestNodes = this.kBuckets.getClosestNodesByKey(this.key, this.kBucketSize);
 		this.knownClosestNodes.add(this.localNode);
 		final Collection<Node> bootstrap = getBootstrap();
@@ -185,8 +201,18 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 		sortKnownClosestNodes();
 		this.alreadyQueried.add(this.localNode);
 
-		final KeyComparator keyComparator = new KeyComparator(this.key);
-		this.colorComparator = new KeyColorComparator(this.key, this.nrColors);
+		this.colorCandidates = this.kBuckets.getAllFromBucketByColor(this.key, this.key.getColor(this.nrColors));
+		if (this.colorCandidates.size() > 1)
+			this.colorCandidates = sort(this.colorCandidates, on(Node.class).getKey(), this.keyComparator);
+		return null;
+	}
+
+	@Override
+	public List<Node> doFindValue() {
+
+		final List<Node> nodes = start();
+		if (nodes != null)
+			return nodes;
 
 		do {
 			final Node node = takeColorUnqueried();
@@ -209,7 +235,7 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 							{
 								//If there are pending msgs, i wait for their reply
 								this.querying.remove(node);
-								wait();
+								scheduler.await(this);
 							}
 						} catch (InterruptedException e) {
 							e.printStackTrace();
@@ -224,7 +250,7 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 				{
 					if (!this.querying.isEmpty())
 						try {
-							wait();
+							scheduler.await(this);
 						} catch (final InterruptedException e) {
 							e.printStackTrace();
 						}
@@ -232,6 +258,10 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 			}
 		} while (true);
 
+		return finish();
+	}
+
+	private List<Node> finish() {
 		this.knownClosestNodes = Collections.unmodifiableList(this.knownClosestNodes);
 
 		// only share if i dont have the right color
@@ -241,11 +271,72 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 		this.cache.insert(this.key, this.knownClosestNodes);
 
 		if (this.returnedCachedResults != null)
-			this.nrRemoteCacheHits.incrementAndGet();
+			this.nrRemoteCacheHits.increment();
 
 		return this.knownClosestNodes;
 	}
 
+	/**
+	 * Does the same as {@link #doFindValue()} without blocking: more nodes are
+	 * queried every time a response arrives, and the handler is called by the
+	 * last response
+	 */
+	@Override
+	public <A> void doFindValue(final A attachment, final CompletionHandler<List<Node>, A> handler) {
+		final List<Node> nodes = start();
+		if (nodes != null) {
+			handler.completed(nodes, attachment);
+			return;
+		}
+
+		synchronized (this) {
+			this.onDone = new Runnable() {
+				@Override
+				public void run() {
+					handler.completed(finish(), attachment);
+				}
+			};
+		}
+		sendMore();
+	}
+
+	private void sendMore() {
+		Runnable done = null;
+		synchronized (this) {
+			// a failed send calls back into here, the outer call carries on
+			if (this.onDone == null || this.sending)
+				return;
+			this.sending = true;
+
+			while (this.returnedCachedResults == null) {
+				final Node node = takeColorUnqueried();
+				if (node == null)
+					break;
+
+				if (trySendFindNode(node)) {
+					this.nrMsgsSent.incrementAndGet();
+				} else if (this.querying.size() == 1) {
+					// nothing of mine is outstanding, the request is sent
+					// as soon as another request is done
+					this.nrMsgsSent.incrementAndGet();
+					asyncSendFindNode(node);
+				} else {
+					// continue when one of my pending requests is done
+					this.querying.remove(node);
+					break;
+				}
+			}
+			this.sending = false;
+
+			if (!hasMoreToQuery() || this.returnedCachedResults != null) {
+				done = this.onDone;
+				this.onDone = null;
+			}
+		}
+		if (done != null)
+			done.run();
+	}
+
 	private void sendStoreResults(final List<Node> toShareWith) {
 		toShareWith.remove(this.returnedCachedResults);
 		if (toShareWith.size() > this.nrShare)
@@ -265,8 +356,13 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 	}
 
 	@Override
-	public synchronized void completed(final KadMessage msg, final Node n) {
-		notifyAll();
+	public void completed(final KadMessage msg, final Node n) {
+		handleResponse(msg, n);
+		sendMore();
+	}
+
+	private synchronized void handleResponse(final KadMessage msg, final Node n) {
+		scheduler.wakeAll(this);
 		this.querying.remove(n);
 		this.alreadyQueried.add(n);
 
@@ -296,9 +392,12 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 	}
 
 	@Override
-	public synchronized void failed(final Throwable exc, final Node n) {
-		notifyAll();
-		this.querying.remove(n);
-		this.alreadyQueried.add(n);
+	public void failed(final Throwable exc, final Node n) {
+		synchronized (this) {
+			scheduler.wakeAll(this);
+			this.querying.remove(n);
+			this.alreadyQueried.add(n);
+		}
+		sendMore();
 	}
 }
@@ -2,6 +2,7 @@ package il.technion.ewolf.kbr.openkad.op;
 
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -40,4 +41,24 @@ public abstract class FindValueOperation {
 	
 	public abstract List<Node> doFindValue();
 	
+	/**
+	 * Starts the operation without waiting for it to finish, the handler is
+	 * called with the results when it is done.
+	 * Operations that cannot run without blocking do the whole operation on
+	 * the calling thread
+	 * 
+	 * @param attachment any arbitrary attachment given back to the handler
+	 * @param handler called once with the results
+	 */
+	public <A> void doFindValue(A attachment, CompletionHandler<List<Node>, A> handler) {
+		List<Node> $;
+		try {
+			$ = doFindValue();
+		} catch (RuntimeException e) {
+			handler.failed(e, attachment);
+			return;
+		}
+		handler.completed($, attachment);
+	}
+	
 }
@@ -5,8 +5,13 @@ import static ch.lambdaj.Lambda.sort;
 import il.technion.ewolf.kbr.KeyColorComparator;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.FutureCallback;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.metrics.Histogram;
 import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
 import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
 import il.technion.ewolf.kbr.openkad.msg.ForwardResponse;
@@ -15,11 +20,12 @@ import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
 import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
@@ -29,8 +35,10 @@ import com.google.inject.name.Named;
 public class ForwardFindValueOperation extends FindValueOperation {
 
 	// state
-	private int nrQueried = 0;
+	private final AtomicInteger nrQueried = new AtomicInteger(0);
 	private List<Node> bootstrap;
+	private List<Node> candidates;
+	private CompletionHandler<List<Node>, Void> done;
 
 	// dependencies
 	private final int kBucketSize;
@@ -45,20 +53,22 @@ public class ForwardFindValueOperation extends FindValueOperation {
 	private final Provider<MessageDispatcher<Void>> msgDispatcherProvider;
 	private final Provider<FindValueOperation> findValueOperationProvider;
 	// private final Provider<StoreMessage> storeMessageProvider;
+	private final Scheduler scheduler;
 
 	private final KBuckets kBuckets;
 	private final KadCache cache;
 	// private final KadServer kadServer;
 
 	// testing
-	private final AtomicInteger nrLongTimeouts;
-	private final List<Integer> hopsToResultHistogram;
-	private final List<Integer> findNodeHopsHistogram;
+	private final Counter nrLongTimeouts;
+	private final Counter nrShortForwardTimeouts;
+	private final Histogram hopsToResultHistogram;
+	private final Histogram findNodeHopsHistogram;
 	private final AtomicInteger maxHopsToResult;
-	private final AtomicInteger remoteCacheHits;
-	private final AtomicInteger localCacheHits;
-	private final AtomicInteger nrNacks;
-	private final AtomicInteger nrFindNodesWithWrongColor;
+	private final Counter remoteCacheHits;
+	private final Counter localCacheHits;
+	private final Counter nrNacks;
+	private final Counter nrFindNodesWithWrongColor;
 
 	@Inject
 	ForwardFindValueOperation(
@@ -74,20 +84,22 @@ public class ForwardFindValueOperation extends FindValueOperation {
 			final Provider<MessageDispatcher<Void>> msgDispatcherProvider,
 			@Named("openkad.op.lastFindValue") final Provider<FindValueOperation> findValueOperationProvider,
 			// Provider<StoreMessage> storeMessageProvider,
+			final Scheduler scheduler,
 
 			final KBuckets kBuckets,
 			final KadCache cache,
 			// KadServer kadServer,
 
 			// testing
-			@Named("openkad.testing.nrLongTimeouts") final AtomicInteger nrLongTimeouts,
-			@Named("openkad.testing.hopsToResultHistogram") final List<Integer> hopsToResultHistogram,
-			@Named("openkad.testing.findNodeHopsHistogram") final List<Integer> findNodeHopsHistogram,
+			@Named("openkad.testing.nrLongTimeouts") final Counter nrLongTimeouts,
+			@Named("openkad.testing.nrShortForwardTimeouts") final Counter nrShortForwardTimeouts,
+			@Named("openkad.testing.hopsToResultHistogram") final Histogram hopsToResultHistogram,
+			@Named("openkad.testing.findNodeHopsHistogram") final Histogram findNodeHopsHistogram,
 			@Named("openkad.testing.maxHopsToResult") final AtomicInteger maxHopsToResult,
-			@Named("openkad.testing.remoteCacheHits") final AtomicInteger remoteCacheHits,
-			@Named("openkad.testing.remoteCacheHits") final AtomicInteger localCacheHits,
-			@Named("openkad.testing.nrNacks") final AtomicInteger nrNacks,
-			@Named("openkad.testing.nrFindNodesWithWrongColor") final AtomicInteger nrFindNodesWithWrongColor) {
+			@Named("openkad.testing.remoteCacheHits") final Counter remoteCacheHits,
+			@Named("openkad.testing.localCacheHits") final Counter localCacheHits,
+			@Named("openkad.testing.nrNacks") final Counter nrNacks,
+			@Named("openkad.testing.nrFindNodesWithWrongColor") final Counter nrFindNodesWithWrongColor) {
 
 		this.kBucketSize = kBucketSize;
 		this.nrCandidates = nrCandidates;
@@ -101,12 +113,14 @@ public class ForwardFindValueOperation extends FindValueOperation {
 		this.msgDispatcherProvider = msgDispatcherProvider;
 		this.findValueOperationProvider = findValueOperationProvider;
 		// this.storeMessageProvider = storeMessageProvider;
+		this.scheduler = scheduler;
 
 		this.kBuckets = kBuckets;
 		this.cache = cache;
 		// this.kadServer = kadServer;
 
 		this.nrLongTimeouts = nrLongTimeouts;
+		this.nrShortForwardTimeouts = nrShortForwardTimeouts;
 		this.hopsToResultHistogram = hopsToResultHistogram;
 		this.findNodeHopsHistogram = findNodeHopsHistogram;
 		this.maxHopsToResult = maxHopsToResult;
@@ -118,173 +132,242 @@ public class ForwardFindValueOperation extends FindValueOperation {
 
 	@Override
 	public int getNrQueried() {
-		return this.nrQueried;
+		return this.nrQueried.get();
 	}
 
-	private List<Node> sendForwardRequest(final Node to, final ForwardRequest req) throws CancellationException,
-			InterruptedException, ExecutionException {
-		// System.out.println(localNode+": forwarding to "+to);
+	/**
+	 * One forward request to a candidate: waits for its ack, nack or cached
+	 * results and then for the forwarded results. Whichever of the two ends
+	 * the attempt first decides how the operation continues
+	 */
+	private class Attempt {
+
+		private final Node to;
+		private final ForwardRequest req;
+		private final AtomicBoolean isOver = new AtomicBoolean(false);
+		private MessageDispatcher<Void> expectMessage;
+
+		Attempt(final Node to, final ForwardRequest req) {
+			this.to = to;
+			this.req = req;
+		}
 
-		final Future<KadMessage> requestFuture = this.msgDispatcherProvider.get().setConsumable(true)
-				.addFilter(new IdMessageFilter(req.getId())).addFilter(new TypeMessageFilter(ForwardResponse.class))
-				.futureSend(to, req);
+		private boolean end() {
+			return this.isOver.compareAndSet(false, true);
+		}
 
-		final ForwardResponse res = (ForwardResponse) requestFuture.get();
-		if (res.isAck()) {
-			// System.out.println(localNode+": remote node return ack");
+		void start() {
+			this.expectMessage = ForwardFindValueOperation.this.msgDispatcherProvider.get().setConsumable(true)
+					.addFilter(new IdMessageFilter(this.req.getId())).addFilter(new TypeMessageFilter(ForwardMessage.class))
+					.setTimeout(ForwardFindValueOperation.this.timeout, TimeUnit.MILLISECONDS)
+					.setCallback(null, new CompletionHandler<KadMessage, Void>() {
+
+						@Override
+						public void completed(final KadMessage msg, final Void nothing) {
+							if (end())
+								onForwardMessage((ForwardMessage) msg);
+						}
+
+						@Override
+						public void failed(final Throwable exc, final Void nothing) {
+							if (end())
+								onLongTimeout();
+						}
+					}).register();
+
+			// send the forward request, the result/ack/nack arrives to the
+			// callback
+			ForwardFindValueOperation.this.msgDispatcherProvider.get().setConsumable(true)
+					.addFilter(new IdMessageFilter(this.req.getId())).addFilter(new TypeMessageFilter(ForwardResponse.class))
+					.setCallback(null, new CompletionHandler<KadMessage, Void>() {
+
+						@Override
+						public void completed(final KadMessage msg, final Void nothing) {
+							onForwardResponse((ForwardResponse) msg);
+						}
+
+						@Override
+						public void failed(final Throwable exc, final Void nothing) {
+							if (end())
+								onShortTimeout();
+						}
+					}).asyncSend(this.to, this.req);
+		}
 
-		} else if (res.isNack()) {
-			// System.out.println(localNode+": remote node return nack");
+		private void onForwardResponse(final ForwardResponse res) {
+			if (res.isAck())
+				// System.out.println(localNode+": remote node return ack");
+				// the results should arrive to the expect message
+				return;
 
-			this.nrNacks.incrementAndGet();
-			this.bootstrap.addAll(res.getNodes());
+			if (!end())
+				return;
+			this.expectMessage.cancel(new CancellationException());
 
-			// try to avoid sending more messages to this node
-			this.kBuckets.markAsDead(res.getSrc());
+			if (res.isNack()) {
+				// System.out.println(localNode+": remote node return nack");
 
-			// Logical throw to indicate result was a nack.
-			// will be caught outside to cancel the expect.
-			throw new CancellationException("nack");
+				ForwardFindValueOperation.this.nrNacks.increment();
+				ForwardFindValueOperation.this.bootstrap.addAll(res.getNodes());
+
+				// try to avoid sending more messages to this node
+				ForwardFindValueOperation.this.kBuckets.markAsDead(res.getSrc());
+				onShortTimeout();
+				return;
+			}
 
-		} else {
 			assert (res.getNodes() != null);
-			this.remoteCacheHits.incrementAndGet();
+			ForwardFindValueOperation.this.remoteCacheHits.increment();
 			// System.out.println(localNode+": cache hit");
 
 			// we had a cache hit !
 			// no need to wait for future messages
-			final int hopsToResult = 1;
+			recordHopsToResult(1);
+			// shareResults(colorCandidates, results);
+			finish(res.getNodes());
+		}
 
-			if (hopsToResult > this.maxHopsToResult.get())
-				this.maxHopsToResult.set(hopsToResult);
-			this.hopsToResultHistogram.add(hopsToResult);
-			return res.getNodes();
+		private void onShortTimeout() {
+			ForwardFindValueOperation.this.nrShortForwardTimeouts.increment();
+			this.expectMessage.cancel(new CancellationException());
+			ForwardFindValueOperation.this.kBuckets.markAsDead(this.to);
+			tryNextCandidate();
+		}
 
+		private void onForwardMessage(final ForwardMessage msg) {
+			if (msg.isNack()) {
+				ForwardFindValueOperation.this.nrNacks.increment();
+				ForwardFindValueOperation.this.bootstrap.addAll(msg.getNodes());
+				ForwardFindValueOperation.this.kBuckets.markAsDead(msg.getSrc());
+				onLongTimeout();
+
+			} else if (msg.getNodes() != null) {
+				// remote node has calculated the results for me
+				recordHopsToResult(1 + msg.getPathLength());
+
+				if (msg.getFindNodeHops() != 0)
+					ForwardFindValueOperation.this.findNodeHopsHistogram.record(msg.getFindNodeHops());
+				else
+					ForwardFindValueOperation.this.remoteCacheHits.increment();
+
+				// System.out.println(localNode+": remote node has calculated the results for me");
+				// shareResults(colorCandidates, results);
+				finish(msg.getNodes());
+
+			} else {
+				// remote node has returned null, move on to the
+				// next candidate
+				// System.out.println(localNode+": remote node has returned null, move on to the next candidate");
+				ForwardFindValueOperation.this.nrNacks.increment();
+				tryNextCandidate();
+			}
 		}
 
-		return null;
+		private void onLongTimeout() {
+			ForwardFindValueOperation.this.kBuckets.markAsDead(this.to);
+			ForwardFindValueOperation.this.nrLongTimeouts.increment();
+			tryNextCandidate();
+		}
 	}
 
-	private List<Node> waitForResults(final Future<KadMessage> expectMessage) throws InterruptedException, ExecutionException,
-			CancellationException {
-		final ForwardMessage msg = (ForwardMessage) expectMessage.get();
-
-		if (msg.isNack()) {
-			this.nrNacks.incrementAndGet();
-			this.bootstrap.addAll(msg.getNodes());
-			this.kBuckets.markAsDead(msg.getSrc());
-
-			throw new CancellationException("nack");
-
-		} else if (msg.getNodes() != null) {
-			// remote node has calculated the results for me
-			final int hopsToResult = 1 + msg.getPathLength();
-
-			if (hopsToResult > this.maxHopsToResult.get())
-				this.maxHopsToResult.set(hopsToResult);
-
-			this.hopsToResultHistogram.add(hopsToResult);
-
-			if (msg.getFindNodeHops() != 0)
-				this.findNodeHopsHistogram.add(msg.getFindNodeHops());
-			else
-				this.remoteCacheHits.incrementAndGet();
-
-			// System.out.println(localNode+": remote node has calculated the results for me");
-			return msg.getNodes();
-
-		} else
-			// remote node has returned null, move on to the
-			// next candidate
-			// System.out.println(localNode+": remote node has returned null, move on to the next candidate");
-			this.nrNacks.incrementAndGet();
+	private void recordHopsToResult(final int hopsToResult) {
+		if (hopsToResult > this.maxHopsToResult.get())
+			this.maxHopsToResult.set(hopsToResult);
+		this.hopsToResultHistogram.record(hopsToResult);
+	}
 
-		return null;
+	private void finish(final List<Node> results) {
+		this.done.completed(results, null);
 	}
 
 	@Override
 	public List<Node> doFindValue() {
+		final FutureCallback<List<Node>, Void> f = new FutureCallback<List<Node>, Void>(scheduler);
+		doFindValue(null, f);
+		try {
+			return f.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Collections.emptyList();
+		} catch (final ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs the operation as a chain of callbacks, each forward request is sent
+	 * when the previous one has failed, and no thread waits for the results
+	 */
+	@Override
+	public <A> void doFindValue(final A attachment, final CompletionHandler<List<Node>, A> handler) {
 
 		final List<Node> nodes = this.cache.search(this.key);
-		if (nodes != null)
-			return nodes;
+		if (nodes != null) {
+			handler.completed(nodes, attachment);
+			return;
+		}
+
+		this.done = new CompletionHandler<List<Node>, Void>() {
 
+			@Override
+			public void completed(final List<Node> results, final Void nothing) {
+				handler.completed(results, attachment);
+			}
+
+			@Override
+			public void failed(final Throwable exc, final Void nothing) {
+				handler.failed(exc, attachment);
+			}
+		};
+
+		this.kBuckets.markLookup(this.key);
 		this.bootstrap = this.kBuckets.getClosestNodesByKey(this.key, this.kBucketSize);
 		this.bootstrap.add(this.localNode);
-		final List<Node> candidates = sort(this.bootstrap, on(Node.class).getKey(), new KeyColorComparator(this.key, this.nrColors));
+		this.candidates = sort(this.bootstrap, on(Node.class).getKey(), new KeyColorComparator(this.key, this.nrColors));
 
 		if (this.myColor == this.key.getColor(this.nrColors)) {
-			this.hopsToResultHistogram.add(0);
-			return doFindNode();
+			this.hopsToResultHistogram.record(0);
+			doFindNode();
+			return;
 		}
 
 		// List<Node> colorCandidates = kBuckets.getNodesFromColorBucket(key);
 		// candidates.removeAll(colorCandidates);
 		// candidates.addAll(0, colorCandidates);
-		if (candidates.size() > this.nrCandidates)
-			candidates.subList(this.nrCandidates, candidates.size()).clear();
+		if (this.candidates.size() > this.nrCandidates)
+			this.candidates.subList(this.nrCandidates, this.candidates.size()).clear();
 
-		do {
-			if (candidates.isEmpty()) {
-				this.hopsToResultHistogram.add(0);
-				return doFindNode();
-			}
+		tryNextCandidate();
+	}
 
-			final Node n = candidates.remove(0);
-			++this.nrQueried;
+	private void tryNextCandidate() {
+		if (this.candidates.isEmpty()) {
+			this.hopsToResultHistogram.record(0);
+			doFindNode();
+			return;
+		}
 
-			if (n.equals(this.localNode)) {
-				this.hopsToResultHistogram.add(0);
-				return doFindNode();
-			}
+		final Node n = this.candidates.remove(0);
+		this.nrQueried.incrementAndGet();
 
-			// sort and cut the bootstrap
-			this.bootstrap = sort(this.bootstrap, on(Node.class).getKey(), new KeyComparator(this.key));
-			if (this.bootstrap.size() > this.kBucketSize)
-				this.bootstrap.subList(this.kBucketSize, this.bootstrap.size()).clear();
-
-			final ForwardRequest req = this.forwardRequestProvider.get().setInitiator() // TODO:
-																						// remove
-																						// b4
-																						// publish
-					.setBootstrap(this.bootstrap).setKey(this.key);
-
-			final Future<KadMessage> expectMessage = this.msgDispatcherProvider.get().setConsumable(true)
-					.addFilter(new IdMessageFilter(req.getId())).addFilter(new TypeMessageFilter(ForwardMessage.class))
-					.setTimeout(this.timeout, TimeUnit.MILLISECONDS).futureRegister();
-
-			// send the forward request and wait for result/ack/nack
-			try {
-				final List<Node> results = sendForwardRequest(n, req);
-				if (results != null) {
-					expectMessage.cancel(false);
-					// shareResults(colorCandidates, results);
-					return results;
-				}
-				// results is null, that means the remote node will
-				// calculate the result for me
-
-			} catch (final Exception e) {
-				System.out.println(this.localNode + ": failed recv ack or nack from remote node");
-				expectMessage.cancel(false);
-				this.kBuckets.markAsDead(n);
-				continue;
-			}
+		if (n.equals(this.localNode)) {
+			this.hopsToResultHistogram.record(0);
+			doFindNode();
+			return;
+		}
 
-			// wait for the result to arrive
-			try {
-				final List<Node> results = waitForResults(expectMessage);
-				if (results != null)
-					// shareResults(colorCandidates, results);
-					return results;
-
-			} catch (final Exception e) {
-				System.out.println(this.localNode + ": failed to recv expected message");
-				this.kBuckets.markAsDead(n);
-				this.nrLongTimeouts.incrementAndGet();
-			}
+		// sort and cut the bootstrap
+		this.bootstrap = sort(this.bootstrap, on(Node.class).getKey(), new KeyComparator(this.key));
+		if (this.bootstrap.size() > this.kBucketSize)
+			this.bootstrap.subList(this.kBucketSize, this.bootstrap.size()).clear();
+
+		final ForwardRequest req = this.forwardRequestProvider.get().setInitiator() // TODO:
+																					// remove
+																					// b4
+																					// publish
+				.setBootstrap(this.bootstrap).setKey(this.key);
 
-		} while (true);
+		new Attempt(n, req).start();
 	}
 
 	/*
@@ -299,20 +382,28 @@ public class ForwardFindValueOperation extends FindValueOperation {
 	 * } catch (Exception e) {} } }
 	 */
 
-	private List<Node> doFindNode() {
+	private void doFindNode() {
 
 		if (this.myColor != this.key.getColor(this.nrColors))
-			this.nrFindNodesWithWrongColor.incrementAndGet();
+			this.nrFindNodesWithWrongColor.increment();
 		final FindValueOperation op = this.findValueOperationProvider.get().setBootstrap(this.bootstrap).setKey(this.key);
 
-		final List<Node> $ = op.doFindValue();
+		op.doFindValue(null, new CompletionHandler<List<Node>, Void>() {
 
-		this.nrQueried += op.getNrQueried();
-		System.out.println("nrQueried: " + this.nrQueried);
+			@Override
+			public void completed(final List<Node> results, final Void nothing) {
+				ForwardFindValueOperation.this.nrQueried.addAndGet(op.getNrQueried());
 
-		if (op.getNrQueried() == 0)
-			this.localCacheHits.incrementAndGet();
+				if (op.getNrQueried() == 0)
+					ForwardFindValueOperation.this.localCacheHits.increment();
 
-		return $;
+				finish(results);
+			}
+
+			@Override
+			public void failed(final Throwable exc, final Void nothing) {
+				ForwardFindValueOperation.this.done.failed(exc, null);
+			}
+		});
 	}
 }
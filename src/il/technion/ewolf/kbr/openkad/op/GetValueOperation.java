@@ -0,0 +1,104 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import static ch.lambdaj.Lambda.on;
+import static ch.lambdaj.Lambda.sort;
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyComparator;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.msg.FindValueRequest;
+import il.technion.ewolf.kbr.openkad.msg.FindValueResponse;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Gets a value stored in the network: looks in the local value store, then
+ * finds the nodes closest to the key and asks them for the value, the
+ * closest first, openkad.net.concurrency nodes at a time
+ *
+ */
+public class GetValueOperation {
+
+	// state
+	private Key key;
+
+	// dependencies
+	private final Provider<FindNodeOperation> findNodeOperationProvider;
+	private final Provider<FindValueRequest> findValueRequestProvider;
+	private final Provider<MessageDispatcher<Void>> msgDispatcherProvider;
+	private final ValueStore valueStore;
+	private final Node localNode;
+	private final int concurrency;
+
+	@Inject
+	GetValueOperation(
+			Provider<FindNodeOperation> findNodeOperationProvider,
+			Provider<FindValueRequest> findValueRequestProvider,
+			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
+			ValueStore valueStore,
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.net.concurrency") int concurrency) {
+
+		this.findNodeOperationProvider = findNodeOperationProvider;
+		this.findValueRequestProvider = findValueRequestProvider;
+		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.valueStore = valueStore;
+		this.localNode = localNode;
+		this.concurrency = concurrency;
+	}
+
+	public GetValueOperation setKey(Key key) {
+		this.key = key;
+		return this;
+	}
+
+	private Future<KadMessage> sendFindValue(Node to) {
+		FindValueRequest req = findValueRequestProvider.get().setKey(key);
+		return msgDispatcherProvider.get()
+			.setConsumable(true)
+			.addFilter(new TypeMessageFilter(FindValueResponse.class))
+			.addFilter(new IdMessageFilter(req.getId()))
+			.futureSend(to, req);
+	}
+
+	/**
+	 * @return the value, null if none of the closest nodes has it
+	 */
+	public byte[] doGet() {
+		byte[] $ = valueStore.get(key);
+		if ($ != null)
+			return $;
+
+		List<Node> nodes = new ArrayList<Node>(findNodeOperationProvider.get().setKey(key).doFindNode());
+		nodes.remove(localNode);
+		nodes = sort(nodes, on(Node.class).getKey(), new KeyComparator(key));
+
+		for (int i = 0; i < nodes.size(); i += concurrency) {
+			List<Future<KadMessage>> futures = new ArrayList<Future<KadMessage>>();
+			for (Node n : nodes.subList(i, Math.min(i + concurrency, nodes.size())))
+				futures.add(sendFindValue(n));
+
+			for (Future<KadMessage> f : futures) {
+				try {
+					$ = ((FindValueResponse) f.get()).getValue();
+				} catch (Exception e) {
+					// the node did not answer
+					continue;
+				}
+				if ($ != null)
+					return $;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,143 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Node;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Decides when a lookup request that was not answered yet should be hedged,
+ * that is, sent to another node as well.
+ *
+ * A request is hedged once it was outstanding for longer than the
+ * openkad.hedge.percentile of its destination's last response times. Nodes
+ * with less than openkad.hedge.min_samples response times use the percentile
+ * of the last response times of all the nodes instead, so both follow
+ * changes in the network.
+ *
+ * Every request sent earns openkad.hedge.budget hedges and every hedge spends
+ * one, so hedging adds that fraction of requests at most. A burst of up to
+ * openkad.hedge.max_burst hedges can be saved.
+ *
+ */
+public class HedgePolicy {
+
+	private static final int PEER_WINDOW = 16;
+	private static final int ALL_WINDOW = 256;
+
+	private static class Latencies {
+		private final long[] samples;
+		// stops growing at the window size
+		private int nrSamples = 0;
+		private int next = 0;
+
+		Latencies(int window) {
+			this.samples = new long[window];
+		}
+
+		void record(long micros) {
+			samples[next] = micros;
+			next = (next + 1) % samples.length;
+			if (nrSamples < samples.length)
+				++nrSamples;
+		}
+
+		long getPercentile(double percentile) {
+			int n = nrSamples;
+			long[] sorted = Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(n * percentile / 100);
+			return sorted[Math.max(0, Math.min(n, rank) - 1)];
+		}
+	}
+
+	// dependencies
+	private final double percentile;
+	private final int minSamples;
+	private final double budget;
+	private final double maxBurst;
+
+	// state
+	private final Latencies allLatencies = new Latencies(ALL_WINDOW);
+	private final Map<Node, Latencies> latenciesFromNode;
+	private double tokens = 0;
+
+	@Inject
+	HedgePolicy(
+			@Named("openkad.hedge.percentile") double percentile,
+			@Named("openkad.hedge.min_samples") int minSamples,
+			@Named("openkad.hedge.budget") double budget,
+			@Named("openkad.hedge.max_burst") int maxBurst,
+			@Named("openkad.hedge.max_nodes") final int maxNodes) {
+
+		this.percentile = percentile;
+		this.minSamples = minSamples;
+		this.budget = budget;
+		this.maxBurst = maxBurst;
+
+		// the least recently answering nodes are forgotten first
+		this.latenciesFromNode = new LinkedHashMap<Node, Latencies>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Node, Latencies> eldest) {
+				return size() > maxNodes;
+			}
+		};
+	}
+
+	/**
+	 * Records the time a node took to answer a request
+	 * @param n the node that answered
+	 * @param micros the response time in micro seconds
+	 */
+	public void record(Node n, long micros) {
+		synchronized (latenciesFromNode) {
+			allLatencies.record(micros);
+			Latencies l = latenciesFromNode.get(n);
+			if (l == null) {
+				l = new Latencies(PEER_WINDOW);
+				latenciesFromNode.put(n, l);
+			}
+			l.record(micros);
+		}
+	}
+
+	/**
+	 * @param n the request destination
+	 * @return time in micro seconds after which a request to n should be
+	 *         hedged, or -1 if no response times are known yet
+	 */
+	public long getHedgeDelay(Node n) {
+		synchronized (latenciesFromNode) {
+			Latencies l = latenciesFromNode.get(n);
+			if (l != null && l.nrSamples >= minSamples)
+				return l.getPercentile(percentile);
+			if (allLatencies.nrSamples < minSamples)
+				return -1;
+			return allLatencies.getPercentile(percentile);
+		}
+	}
+
+	/**
+	 * Earns the budget of a request sent
+	 */
+	public synchronized void requestSent() {
+		tokens = Math.min(maxBurst, tokens + budget);
+	}
+
+	/**
+	 * Spends the budget of a hedge
+	 * @return false if the budget is exhausted
+	 */
+	public synchronized boolean tryHedge() {
+		if (tokens < 1)
+			return false;
+		--tokens;
+		return true;
+	}
+}
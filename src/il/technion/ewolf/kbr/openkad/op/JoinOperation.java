@@ -3,8 +3,12 @@ package il.technion.ewolf.kbr.openkad.op;
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.Latch;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.KadNode;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.bucket.KadBucketsUpdater;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
 import il.technion.ewolf.kbr.openkad.msg.PingResponse;
@@ -17,9 +21,10 @@ import java.net.URI;
 import java.net.UnknownHostException;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.CountDownLatch;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -27,6 +32,11 @@ import com.google.inject.name.Named;
 
 /**
  * Join operation as defined in the kademlia algorithm
+ * 
+ * After the lookup for the local key, the buckets are refreshed concurrently
+ * using the join executor (openkad.join.parallelism lookups at a time).
+ * Buckets closer than the closest node found are not refreshed since the
+ * network is too small to fill them
  * @author eyal.kibbar@gmail.com
  *
  */
@@ -39,10 +49,18 @@ public class JoinOperation  {
 	private final Key zeroKey;
 	private final String kadScheme;
 	private final KBuckets kBuckets;
+	private final KadBucketsUpdater bucketsUpdater;
 	private final Node localNode;
 	private final Provider<KadNode> kadNodeProvider;
+	private final Scheduler scheduler;
+	private final long refreshCheckInterval;
+	private final ScheduledTask refreshTask;
+	private final long republishInterval;
+	private final ScheduledTask republishTask;
+	private final ExecutorService joinExecutor;
 	// state
 	private Collection<Node> bootstrap = new HashSet<Node>();
+	private JoinProgressListener progressListener = null;
 	
 	@Inject
 	JoinOperation(
@@ -51,21 +69,41 @@ public class JoinOperation  {
 			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
 			Provider<KadNode> kadNodeProvider,
 			KBuckets kBuckets,
+			KadBucketsUpdater bucketsUpdater,
 			@Named("openkad.keys.zerokey") Key zeroKey,
 			@Named("openkad.scheme.name") String kadScheme,
 			@Named("openkad.local.node") Node localNode,
-			@Named("openkad.timer") Timer timer,
-			@Named("openkad.refresh.interval") long refreshInterval,
-			@Named("openkad.refresh.task") TimerTask refreshTask) {
+			Scheduler scheduler,
+			@Named("openkad.refresh.check_interval") long refreshCheckInterval,
+			@Named("openkad.refresh.task") ScheduledTask refreshTask,
+			@Named("openkad.republish.interval") long republishInterval,
+			@Named("openkad.republish.task") ScheduledTask republishTask,
+			@Named("openkad.executors.join") ExecutorService joinExecutor) {
 		
 		this.kadNodeProvider = kadNodeProvider;
 		this.findNodeOperationProvider = findNodeOperationProvider;
 		this.pingRequestProvider = pingRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
 		this.kBuckets = kBuckets;
+		this.bucketsUpdater = bucketsUpdater;
 		this.zeroKey = zeroKey;
 		this.kadScheme = kadScheme;
 		this.localNode = localNode;
+		this.scheduler = scheduler;
+		this.refreshCheckInterval = refreshCheckInterval;
+		this.refreshTask = refreshTask;
+		this.republishInterval = republishInterval;
+		this.republishTask = republishTask;
+		this.joinExecutor = joinExecutor;
+	}
+
+	/**
+	 * @param progressListener will be notified after each lookup of the join
+	 * @return this for fluent interface
+	 */
+	public JoinOperation setProgressListener(JoinProgressListener progressListener) {
+		this.progressListener = progressListener;
+		return this;
 	}
 	/* (non-Javadoc)
 	 * @see il.technion.ewolf.kbr.openkad.op.JoinOperation#addBootstrap(java.util.Collection)
@@ -94,7 +132,7 @@ public class JoinOperation  {
 	 */
 	public void doJoin() {
 
-		final CountDownLatch latch = new CountDownLatch(bootstrap.size());
+		final Latch latch = new Latch(scheduler, bootstrap.size());
 		CompletionHandler<KadMessage, Void> callback = new CompletionHandler<KadMessage, Void>() {
 
 			@Override
@@ -136,21 +174,73 @@ public class JoinOperation  {
 			.setKey(localNode.getKey())
 			.doFindNode();
 		
-		for (Key key : kBuckets.randomKeysForAllBuckets()) {
-			findNodeOperationProvider.get()
-				.setKey(key)
-				.doFindNode();
+		// all the buckets that can be filled: from the bucket of the closest
+		// node found to the farthest bucket. The nodes seen by the lookup
+		// must be in the buckets first
+		try {
+			bucketsUpdater.flush();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
+		List<Key> keys = kBuckets.randomKeysForIdleBuckets(0);
+		reportProgress(1, keys.size() + 1);
+		refreshBuckets(keys);
 		
 		if (kBuckets.getClosestNodesByKey(zeroKey, 1).isEmpty())
 			throw new IllegalStateException("all bootstrap nodes are down");
 		
 		try {
-			//timer.scheduleAtFixedRate(refreshTask, refreshInterval, refreshInterval);
+			// the refresh task only looks up the buckets that became idle
+			scheduler.schedule(refreshTask, refreshCheckInterval, refreshCheckInterval);
 		} catch (IllegalStateException e) {
 			// if I couldn't schedule the refresh task i don't care
 		}
+		try {
+			scheduler.schedule(republishTask, republishInterval, republishInterval);
+		} catch (IllegalStateException e) {
+			// the timer was cancelled, we are shutting down
+		}
 	}
 	
+	private void refreshBuckets(List<Key> keys) {
+		final int nrLookups = keys.size() + 1;
+		final AtomicInteger nrDone = new AtomicInteger(1);
+		final Latch latch = new Latch(scheduler, keys.size());
+		
+		for (final Key key : keys) {
+			Runnable lookup = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						findNodeOperationProvider.get()
+							.setKey(key)
+							.doFindNode();
+					} finally {
+						latch.countDown();
+						reportProgress(nrDone.incrementAndGet(), nrLookups);
+					}
+				}
+			};
+			
+			try {
+				scheduler.execute(joinExecutor, lookup);
+			} catch (RejectedExecutionException e) {
+				// too many lookups pending, do it myself
+				lookup.run();
+			}
+		}
+		
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void reportProgress(int nrDone, int nrLookups) {
+		JoinProgressListener listener = progressListener;
+		if (listener != null)
+			listener.joinProgress(nrDone, nrLookups);
+	}
 
 }
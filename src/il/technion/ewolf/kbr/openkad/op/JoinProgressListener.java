@@ -0,0 +1,16 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+/**
+ * Receives the progress of a join operation
+ *
+ */
+public interface JoinProgressListener {
+
+	/**
+	 * Called after each lookup of the join is done
+	 * 
+	 * @param nrDone number of lookups done so far
+	 * @param nrLookups total number of lookups in this join
+	 */
+	public void joinProgress(int nrDone, int nrLookups);
+}
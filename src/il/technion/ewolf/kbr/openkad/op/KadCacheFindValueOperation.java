@@ -5,8 +5,10 @@ import static ch.lambdaj.Lambda.sort;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
@@ -50,6 +52,7 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 	// dependencies
 	private final Provider<FindNodeRequest> findNodeRequestProvider;
 	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final Scheduler scheduler;
 	private final KBuckets kBuckets;
 	private final Node localNode;
 	private final int kBucketSize;
@@ -58,18 +61,19 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 	private final Communicator kadServer;
 	private final KadCache cache;
 
-	private final AtomicInteger nrLocalCacheHits;
-	private final AtomicInteger nrRemoteCacheHits;
+	private final Counter nrLocalCacheHits;
+	private final Counter nrRemoteCacheHits;
 
 	@Inject
 	KadCacheFindValueOperation(@Named("openkad.local.node") final Node localNode,
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize, @Named("openkad.cache.share") final int nrShare,
 			final Provider<FindNodeRequest> findNodeRequestProvider, final Provider<MessageDispatcher<Node>> msgDispatcherProvider,
+			final Scheduler scheduler,
 			final KBuckets kBuckets, final Provider<StoreMessage> storeMessageProvider, final Communicator kadServer,
 			final KadCache cache,
 
-			@Named("openkad.testing.nrLocalCacheHits") final AtomicInteger nrLocalCacheHits,
-			@Named("openkad.testing.nrRemoteCacheHits") final AtomicInteger nrRemoteCacheHits) {
+			@Named("openkad.testing.nrLocalCacheHits") final Counter nrLocalCacheHits,
+			@Named("openkad.testing.nrRemoteCacheHits") final Counter nrRemoteCacheHits) {
 
 		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
@@ -77,6 +81,7 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 		this.nrShare = nrShare;
 		this.findNodeRequestProvider = findNodeRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.scheduler = scheduler;
 		this.storeMessageProvider = storeMessageProvider;
 		this.kadServer = kadServer;
 		this.cache = cache;
@@ -155,11 +160,12 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 
 		final List<Node> nodes = this.cache.search(this.key);
 		if (nodes != null && nodes.size() >= this.kBucketSize) {
-			this.nrLocalCacheHits.incrementAndGet();
+			this.nrLocalCacheHits.increment();
 			return nodes;
 		}
 
 		this.keyComparator = new KeyComparator(this.key);
+		this.kBuckets.markLookup(this.key);
 		this.knownClosestNodes = this.kBuckets.getClosestNodesByKey(this.key, this.kBucketSize);
 		this.knownClosestNodes.add(this.localNode);
 		sortKnownClosestNodes();
@@ -186,7 +192,7 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 							{
 								//If there are pending msgs, i wait for their reply
 								this.querying.remove(node);
-								wait();
+								scheduler.await(this);
 							}
 						} catch (InterruptedException e) {
 							e.printStackTrace();
@@ -198,7 +204,7 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 				else
 					if (!this.querying.isEmpty())
 						try {
-							wait();
+							scheduler.await(this);
 						} catch (final InterruptedException e) {
 							e.printStackTrace();
 						}
@@ -210,14 +216,14 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 		sendStoreResults(this.lastSentTo);
 
 		if (this.returnedCachedResults != null)
-			this.nrRemoteCacheHits.incrementAndGet();
+			this.nrRemoteCacheHits.increment();
 
 		return this.knownClosestNodes;
 	}
 
 	@Override
 	public synchronized void completed(final KadMessage msg, final Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
 		this.querying.remove(n);
 		this.alreadyQueried.add(n);
 
@@ -244,7 +250,7 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 
 	@Override
 	public synchronized void failed(final Throwable exc, final Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
 		this.querying.remove(n);
 		this.alreadyQueried.add(n);
 	}
@@ -6,6 +6,7 @@ import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
@@ -37,13 +38,16 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 	private final Set<Node> alreadyQueried;
 	private final Set<Node> querying;
 	private int nrQueried;
+	private LookupTrace trace = null;
 	
 	// dependencies
 	private final Provider<FindNodeRequest> findNodeRequestProvider;
 	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final Scheduler scheduler;
 	private final int kBucketSize;
 	private final KBuckets kBuckets;
 	private final Node localNode;
+	private final LookupTracer tracer;
 	
 	@Inject
 	KadFindNodeOperation(
@@ -51,13 +55,17 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
 			Provider<FindNodeRequest> findNodeRequestProvider,
 			Provider<MessageDispatcher<Node>> msgDispatcherProvider,
-			KBuckets kBuckets) {
+			Scheduler scheduler,
+			KBuckets kBuckets,
+			LookupTracer tracer) {
 		
 		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
 		this.kBuckets = kBuckets;
 		this.findNodeRequestProvider = findNodeRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.scheduler = scheduler;
+		this.tracer = tracer;
 		
 		alreadyQueried = new HashSet<Node>();
 		querying = new HashSet<Node>();
@@ -100,6 +108,8 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 			.setSearchCache(false)
 			.setKey(key);
 		
+		if (trace != null)
+			trace.sent(to);
 		msgDispatcherProvider.get()
 			.addFilter(new IdMessageFilter(findNodeRequest.getId()))
 			.addFilter(new TypeMessageFilter(FindNodeResponse.class))
@@ -114,7 +124,11 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 	@Override
 	public List<Node> doFindNode() {
 
+		kBuckets.markLookup(key);
+		trace = tracer.startTrace("findNode", key);
 		knownClosestNodes = kBuckets.getClosestNodesByKey(key, kBucketSize);
+		if (trace != null)
+			trace.started(knownClosestNodes);
 		knownClosestNodes.add(localNode);
 		alreadyQueried.add(localNode);
 		KeyComparator keyComparator = new KeyComparator(key);
@@ -128,7 +142,7 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 				synchronized (this) {
 					if (!querying.isEmpty()) {
 						try {
-							wait();
+							scheduler.await(this);
 						} catch (InterruptedException e) {
 							e.printStackTrace();
 						}
@@ -152,6 +166,7 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 		synchronized (this) {
 			nrQueried = alreadyQueried.size()-1 + querying.size();
 		}
+		tracer.finishTrace(trace, knownClosestNodes.size());
 		
 		return knownClosestNodes;
 	}
@@ -161,11 +176,13 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 	 */
 	@Override
 	public synchronized void completed(KadMessage msg, Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
 		querying.remove(n);
 		alreadyQueried.add(n);
 		
 		List<Node> nodes = ((FindNodeResponse)msg).getNodes();
+		if (trace != null)
+			trace.responded(n, nodes);
 		nodes.removeAll(querying);
 		nodes.removeAll(alreadyQueried);
 		nodes.removeAll(knownClosestNodes);
@@ -178,9 +195,10 @@ public class KadFindNodeOperation implements CompletionHandler<KadMessage, Node>
 	 */
 	@Override
 	public synchronized void failed(Throwable exc, Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
 		querying.remove(n);
 		alreadyQueried.add(n);
-		
+		if (trace != null)
+			trace.failed(n);
 	}
 }
@@ -5,8 +5,11 @@ import static ch.lambdaj.Lambda.sort;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
-import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.cache.NearestKeyKadCache;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
@@ -17,11 +20,15 @@ import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 import il.technion.ewolf.kbr.openkad.op.FindValueOperation;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
@@ -33,6 +40,12 @@ import com.google.inject.name.Named;
  * article: send a store message to the last node who did not have the value
  * (list of nodes)
  * 
+ * When the lookup only waits for slow requests, a request outstanding for
+ * longer than the {@link HedgePolicy} delay of its destination is hedged: the
+ * same query is sent to the next best unqueried node, and the lookup goes on
+ * with whichever of the two answers first. Response times are measured on
+ * the {@link Scheduler}'s clock, so hedging works in virtual time as well.
+ * 
  * @author eyal.kibbar@gmail.com
  * 
  */
@@ -40,36 +53,55 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 
 	// state
 	private List<Node> knownClosestNodes;
+	private List<Node> spareNodes = new LinkedList<Node>();
 	private final Set<Node> alreadyQueried;
 	private final Set<Node> querying;
 	private final List<Node> lastSentTo;
 	private Node returnedCachedResults = null;
 	private KeyComparator keyComparator;
 	private final AtomicInteger nrMsgsSent;
+	private LookupTrace trace = null;
+	private final Map<Node, Long> sendTime = new HashMap<Node, Long>();
+	private final Map<Node, Node> hedgePartner = new HashMap<Node, Node>();
+	private final Set<Node> hedges = new HashSet<Node>();
+	private final Set<Node> hedgeChecked = new HashSet<Node>();
+	private boolean done = false;
 
 	// dependencies
 	private final Provider<FindNodeRequest> findNodeRequestProvider;
 	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final Scheduler scheduler;
 	private final KBuckets kBuckets;
 	private final Node localNode;
 	private final int kBucketSize;
 	private final int nrShare;
 	private final Provider<StoreMessage> storeMessageProvider;
 	private final Communicator kadServer;
-	private final KadCache cache;
+	private final NearestKeyKadCache cache;
+	private final LookupTracer tracer;
+	private final HedgePolicy hedgePolicy;
 
-	private final AtomicInteger nrLocalCacheHits;
-	private final AtomicInteger nrRemoteCacheHits;
+	private final Counter nrLocalCacheHits;
+	private final Counter nrRemoteCacheHits;
+	private final Counter nrNearestCacheHits;
+	private final Counter nrHedgedRequests;
+	private final Counter nrHedgeWins;
 
 	@Inject
 	KadLocalCacheFindValueOperation(@Named("openkad.local.node") final Node localNode,
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize, @Named("openkad.cache.share") final int nrShare,
 			final Provider<FindNodeRequest> findNodeRequestProvider, final Provider<MessageDispatcher<Node>> msgDispatcherProvider,
+			final Scheduler scheduler,
 			final KBuckets kBuckets, final Provider<StoreMessage> storeMessageProvider, final Communicator kadServer,
-			final KadCache cache,
+			final NearestKeyKadCache cache,
+			final LookupTracer tracer,
+			final HedgePolicy hedgePolicy,
 
-			@Named("openkad.testing.nrLocalCacheHits") final AtomicInteger nrLocalCacheHits,
-			@Named("openkad.testing.nrRemoteCacheHits") final AtomicInteger nrRemoteCacheHits) {
+			@Named("openkad.testing.nrLocalCacheHits") final Counter nrLocalCacheHits,
+			@Named("openkad.testing.nrRemoteCacheHits") final Counter nrRemoteCacheHits,
+			@Named("openkad.testing.nrNearestCacheHits") final Counter nrNearestCacheHits,
+			@Named("openkad.testing.nrHedgedRequests") final Counter nrHedgedRequests,
+			@Named("openkad.testing.nrHedgeWins") final Counter nrHedgeWins) {
 
 		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
@@ -77,6 +109,7 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 		this.nrShare = nrShare;
 		this.findNodeRequestProvider = findNodeRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.scheduler = scheduler;
 		this.storeMessageProvider = storeMessageProvider;
 		this.kadServer = kadServer;
 		this.cache = cache;
@@ -89,6 +122,11 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 
 		this.nrLocalCacheHits = nrLocalCacheHits;
 		this.nrRemoteCacheHits = nrRemoteCacheHits;
+		this.nrNearestCacheHits = nrNearestCacheHits;
+		this.nrHedgedRequests = nrHedgedRequests;
+		this.nrHedgeWins = nrHedgeWins;
+		this.tracer = tracer;
+		this.hedgePolicy = hedgePolicy;
 
 	}
 
@@ -115,6 +153,9 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 	private boolean trySendFindNode(final Node to) {
 		final FindNodeRequest findNodeRequest = this.findNodeRequestProvider.get().setSearchCache(true).setKey(this.key);
 
+		if (this.trace != null)
+			this.trace.sent(to);
+		this.sendTime.put(to, this.scheduler.currentTimeMillis());
 		return this.msgDispatcherProvider.get().addFilter(new IdMessageFilter(findNodeRequest.getId()))
 				.addFilter(new TypeMessageFilter(FindNodeResponse.class)).setConsumable(true).setCallback(to, this)
 				.trySend(to, findNodeRequest);
@@ -123,6 +164,9 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 	private void sendFindNode(final Node to) {
 		final FindNodeRequest findNodeRequest = this.findNodeRequestProvider.get().setSearchCache(true).setKey(this.key);
 
+		if (this.trace != null)
+			this.trace.sent(to);
+		this.sendTime.put(to, this.scheduler.currentTimeMillis());
 		this.msgDispatcherProvider.get().addFilter(new IdMessageFilter(findNodeRequest.getId()))
 		.addFilter(new TypeMessageFilter(FindNodeResponse.class)).setConsumable(true).setCallback(to, this)
 		.send(to, findNodeRequest);
@@ -130,8 +174,109 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 
 	private void sortKnownClosestNodes() {
 		this.knownClosestNodes = sort(this.knownClosestNodes, on(Node.class).getKey(), this.keyComparator);
-		if (this.knownClosestNodes.size() >= this.kBucketSize)
-			this.knownClosestNodes.subList(this.kBucketSize, this.knownClosestNodes.size()).clear();
+		if (this.knownClosestNodes.size() >= this.kBucketSize) {
+			// the nodes cut off are kept as hedging candidates
+			final List<Node> cut = this.knownClosestNodes.subList(this.kBucketSize, this.knownClosestNodes.size());
+			this.spareNodes.addAll(cut);
+			cut.clear();
+			this.spareNodes = sort(this.spareNodes, on(Node.class).getKey(), this.keyComparator);
+			if (this.spareNodes.size() > this.kBucketSize)
+				this.spareNodes.subList(this.kBucketSize, this.spareNodes.size()).clear();
+		}
+	}
+
+	/**
+	 * @return the best node not queried yet, including the nodes that are no
+	 *         longer among the k closest, or null if there is none
+	 */
+	private synchronized Node takeHedgeCandidate() {
+		final Node $ = takeUnqueried();
+		if ($ != null)
+			return $;
+		for (final Node n : this.spareNodes) {
+			if (!this.querying.contains(n) && !this.alreadyQueried.contains(n)) {
+				this.querying.add(n);
+				return n;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sends the request sent to n to another node as well
+	 */
+	private synchronized void hedge(final Node n) {
+		this.hedgeChecked.add(n);
+		if (!this.hedgePolicy.tryHedge())
+			return;
+		final Node to = takeHedgeCandidate();
+		if (to == null)
+			return;
+		if (!trySendFindNode(to)) {
+			this.querying.remove(to);
+			return;
+		}
+		this.nrMsgsSent.incrementAndGet();
+		this.nrHedgedRequests.increment();
+		this.hedges.add(to);
+		this.hedgePartner.put(n, to);
+		this.hedgePartner.put(to, n);
+	}
+
+	/**
+	 * Waits for a response, hedging the requests that are outstanding for too
+	 * long on the way
+	 */
+	private synchronized void waitOrHedge() throws InterruptedException {
+		final long now = this.scheduler.currentTimeMillis();
+		long nextHedge = Long.MAX_VALUE;
+		for (final Node n : new ArrayList<Node>(this.querying)) {
+			if (this.hedgeChecked.contains(n) || this.hedges.contains(n) || !this.sendTime.containsKey(n))
+				continue;
+			final long delay = this.hedgePolicy.getHedgeDelay(n);
+			if (delay < 0)
+				continue;
+			final long hedgeTime = this.sendTime.get(n) + (delay + 999) / 1000;
+			if (hedgeTime <= now)
+				hedge(n);
+			else
+				nextHedge = Math.min(nextHedge, hedgeTime);
+		}
+
+		if (nextHedge == Long.MAX_VALUE) {
+			scheduler.await(this);
+			return;
+		}
+
+		final ScheduledTask wakeup = new ScheduledTask() {
+			@Override
+			public void run() {
+				synchronized (KadLocalCacheFindValueOperation.this) {
+					scheduler.wakeAll(KadLocalCacheFindValueOperation.this);
+				}
+			}
+		};
+		scheduler.schedule(wakeup, nextHedge - now);
+		try {
+			scheduler.await(this);
+		} finally {
+			// not needed if a response woke us up first
+			wakeup.cancel();
+		}
+	}
+
+	/**
+	 * A response from n makes its hedge partner's response unnecessary
+	 */
+	private void releasePartner(final Node n) {
+		final Node partner = this.hedgePartner.remove(n);
+		if (partner == null)
+			return;
+		this.hedgePartner.remove(partner);
+		if (this.querying.remove(partner))
+			this.alreadyQueried.add(partner);
+		if (this.hedges.contains(n))
+			this.nrHedgeWins.increment();
 	}
 
 	@Override
@@ -139,12 +284,23 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 
 		final List<Node> nodes = this.cache.search(this.key);
 		if (nodes != null && nodes.size() >= this.kBucketSize) {
-			this.nrLocalCacheHits.incrementAndGet();
+			this.nrLocalCacheHits.increment();
 			return nodes;
 		}
 
 		this.keyComparator = new KeyComparator(this.key);
+		this.kBuckets.markLookup(this.key);
+		this.trace = this.tracer.startTrace("findValue", this.key);
 		this.knownClosestNodes = this.kBuckets.getClosestNodesByKey(this.key, this.kBucketSize);
+
+		// start from the cached result of a nearby key, if it has closer nodes
+		final List<Node> nearest = this.cache.searchNearest(this.key);
+		if (nearest != null) {
+			this.nrNearestCacheHits.increment();
+			this.knownClosestNodes = NearestKeyKadCache.mergeClosest(this.key, this.knownClosestNodes, nearest, this.kBucketSize);
+		}
+		if (this.trace != null)
+			this.trace.started(this.knownClosestNodes);
 		this.knownClosestNodes.add(this.localNode);
 		sortKnownClosestNodes();
 		this.alreadyQueried.add(this.localNode);
@@ -164,50 +320,66 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 							{
 								//If only I try to send I send and block
 								this.nrMsgsSent.incrementAndGet();
+								this.hedgePolicy.requestSent();
 								sendFindNode(node);
 							}
 							else
 							{
 								//If there are pending msgs, i wait for their reply
 								this.querying.remove(node);
-								wait();
+								scheduler.await(this);
 							}
 						} catch (InterruptedException e) {
 							e.printStackTrace();
 						}
 					}else{
 						this.nrMsgsSent.incrementAndGet();
+						this.hedgePolicy.requestSent();
 					}
 				}
 				else
 					if (!this.querying.isEmpty())
 						try {
-							wait();
+							waitOrHedge();
 						} catch (final InterruptedException e) {
 							e.printStackTrace();
 						}
 			}
 		} while (true);
 
-		this.knownClosestNodes = Collections.unmodifiableList(this.knownClosestNodes);
+		synchronized (this) {
+			// responses of released hedge partners may still arrive
+			this.done = true;
+			this.knownClosestNodes = Collections.unmodifiableList(this.knownClosestNodes);
+		}
 
 		if (this.returnedCachedResults != null)
-			this.nrRemoteCacheHits.incrementAndGet();
+			this.nrRemoteCacheHits.increment();
 
 		this.cache.insert(key, this.knownClosestNodes);
+		this.tracer.finishTrace(this.trace, this.knownClosestNodes.size());
 		return this.knownClosestNodes;
 	}
 
 	@Override
 	public synchronized void completed(final KadMessage msg, final Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
+		final Long sent = this.sendTime.get(n);
+		if (sent != null)
+			this.hedgePolicy.record(n, TimeUnit.MILLISECONDS.toMicros(this.scheduler.currentTimeMillis() - sent));
+
+		if (this.done)
+			return;
 		this.querying.remove(n);
 		this.alreadyQueried.add(n);
+		releasePartner(n);
 
 		if (this.returnedCachedResults != null)
 			return;
 
 		final List<Node> nodes = ((FindNodeResponse) msg).getNodes();
+		if (this.trace != null)
+			this.trace.responded(n, nodes);
 		nodes.removeAll(this.querying);
 		nodes.removeAll(this.alreadyQueried);
 		nodes.removeAll(this.knownClosestNodes);
@@ -228,8 +400,16 @@ public class KadLocalCacheFindValueOperation extends FindValueOperation implemen
 
 	@Override
 	public synchronized void failed(final Throwable exc, final Node n) {
-		notifyAll();
+		scheduler.wakeAll(this);
+		if (this.done)
+			return;
+		// the partner is needed again
+		final Node partner = this.hedgePartner.remove(n);
+		if (partner != null)
+			this.hedgePartner.remove(partner);
 		this.querying.remove(n);
 		this.alreadyQueried.add(n);
+		if (this.trace != null)
+			this.trace.failed(n);
 	}
 }
@@ -0,0 +1,188 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records all the find node requests sent by a single lookup.
+ * Distances are measured as the index of the highest bit differing from the
+ * target key (the bucket index), so an improvement of 3 means the closest
+ * node known to the lookup got 3 buckets closer to the target.
+ *
+ */
+public class LookupTrace {
+
+	/**
+	 * A single find node request of the lookup
+	 */
+	public static class Rpc {
+		private final Node to;
+		private final long sendTime;
+		private final long rtt;
+		private final int nrReturned;
+		private final int improvement;
+
+		Rpc(Node to, long sendTime, long rtt, int nrReturned, int improvement) {
+			this.to = to;
+			this.sendTime = sendTime;
+			this.rtt = rtt;
+			this.nrReturned = nrReturned;
+			this.improvement = improvement;
+		}
+
+		public Node getTo() {
+			return to;
+		}
+
+		/**
+		 * @return the time the request was sent, in micros since the lookup started
+		 */
+		public long getSendTime() {
+			return sendTime;
+		}
+
+		/**
+		 * @return round trip time in micros, or -1 if the request failed or timed out
+		 */
+		public long getRtt() {
+			return rtt;
+		}
+
+		public boolean isTimeout() {
+			return rtt < 0;
+		}
+
+		public int getNrReturned() {
+			return nrReturned;
+		}
+
+		/**
+		 * @return how many buckets closer to the target the closest known node got
+		 */
+		public int getImprovement() {
+			return improvement;
+		}
+
+		@Override
+		public String toString() {
+			return "to: " + to.getKey() + " sent: " + sendTime + "us "
+				+ (isTimeout() ? "timeout" : "rtt: " + rtt + "us returned: " + nrReturned
+						+ " improvement: " + improvement);
+		}
+	}
+
+	private final String opName;
+	private final Key target;
+	private final long startTime = System.nanoTime();
+	private final long startTimeMillis = System.currentTimeMillis();
+
+	// state
+	private final Map<Node, Long> sendTimeFromNode = new HashMap<Node, Long>();
+	private final List<Rpc> rpcs = new ArrayList<Rpc>();
+	private int bestDistance;
+	private long duration = -1;
+	private int nrResults = 0;
+
+	LookupTrace(String opName, Key target) {
+		this.opName = opName;
+		this.target = target;
+		this.bestDistance = target.getBitLength();
+	}
+
+	private int distanceOf(Node n) {
+		return target.xor(n.getKey()).getFirstSetBitIndex();
+	}
+
+	private long now() {
+		return (System.nanoTime() - startTime) / 1000;
+	}
+
+	/**
+	 * @param nodes the nodes the lookup starts with
+	 */
+	public synchronized void started(Collection<Node> nodes) {
+		for (Node n : nodes)
+			bestDistance = Math.min(bestDistance, distanceOf(n));
+	}
+
+	public synchronized void sent(Node to) {
+		sendTimeFromNode.put(to, now());
+	}
+
+	/**
+	 * @param from the node that answered
+	 * @param returned the nodes it returned
+	 */
+	public synchronized void responded(Node from, Collection<Node> returned) {
+		Long sendTime = sendTimeFromNode.remove(from);
+		if (sendTime == null)
+			return;
+
+		int best = bestDistance;
+		for (Node n : returned)
+			best = Math.min(best, distanceOf(n));
+
+		rpcs.add(new Rpc(from, sendTime, now() - sendTime, returned.size(), bestDistance - best));
+		bestDistance = best;
+	}
+
+	public synchronized void failed(Node from) {
+		Long sendTime = sendTimeFromNode.remove(from);
+		if (sendTime != null)
+			rpcs.add(new Rpc(from, sendTime, -1, 0, 0));
+	}
+
+	synchronized void finished(int nrResults) {
+		this.duration = now();
+		this.nrResults = nrResults;
+	}
+
+	public String getOpName() {
+		return opName;
+	}
+
+	public Key getTarget() {
+		return target;
+	}
+
+	public long getStartTimeMillis() {
+		return startTimeMillis;
+	}
+
+	/**
+	 * @return the lookup duration in micros
+	 */
+	public synchronized long getDuration() {
+		return duration;
+	}
+
+	public synchronized int getNrResults() {
+		return nrResults;
+	}
+
+	/**
+	 * @return the requests in the order they were answered or failed
+	 */
+	public synchronized List<Rpc> getRpcs() {
+		return Collections.unmodifiableList(new ArrayList<Rpc>(rpcs));
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(opName).append(" ").append(target)
+			.append(" took: ").append(duration).append("us")
+			.append(" results: ").append(nrResults)
+			.append(" rpcs: ").append(rpcs.size()).append("\n");
+		for (Rpc rpc : rpcs)
+			sb.append("\t").append(rpc).append("\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,85 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Key;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Samples lookups and keeps the traces of the last finished ones.
+ * Only openkad.trace.sample_rate of the lookups are traced, lookups that
+ * were not sampled get a null trace and pay nothing but a random number.
+ * Finished traces are kept in a lock free ring buffer of
+ * openkad.trace.buffer_size traces, the oldest traces are overwritten.
+ *
+ */
+public class LookupTracer {
+
+	// dependencies
+	private final double sampleRate;
+
+	// state
+	private final AtomicReferenceArray<LookupTrace> ring;
+	private final int mask;
+	private final AtomicLong cursor = new AtomicLong(0);
+
+	@Inject
+	LookupTracer(
+			@Named("openkad.trace.sample_rate") double sampleRate,
+			@Named("openkad.trace.buffer_size") int bufferSize) {
+
+		this.sampleRate = sampleRate;
+		int size = Integer.highestOneBit(Math.max(1, bufferSize - 1)) << 1;
+		this.ring = new AtomicReferenceArray<LookupTrace>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Decides if a lookup should be traced
+	 * @param opName the lookup operation name
+	 * @param target the lookup's key
+	 * @return a new trace, or null if the lookup was not sampled
+	 */
+	public LookupTrace startTrace(String opName, Key target) {
+		if (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)
+			return null;
+		return new LookupTrace(opName, target);
+	}
+
+	/**
+	 * Publishes a finished trace
+	 * @param trace a trace returned by startTrace, may be null
+	 * @param nrResults the number of nodes the lookup returned
+	 */
+	public void finishTrace(LookupTrace trace, int nrResults) {
+		if (trace == null)
+			return;
+		trace.finished(nrResults);
+		ring.set((int) (cursor.getAndIncrement() & mask), trace);
+	}
+
+	/**
+	 * @return the traces in the buffer, oldest first
+	 */
+	public List<LookupTrace> dump() {
+		List<LookupTrace> $ = new ArrayList<LookupTrace>();
+		long end = cursor.get();
+		for (long i = Math.max(0, end - ring.length()); i < end; ++i) {
+			LookupTrace t = ring.get((int) (i & mask));
+			if (t != null)
+				$.add(t);
+		}
+		return $;
+	}
+
+	public void clear() {
+		for (int i = 0; i < ring.length(); ++i)
+			ring.set(i, null);
+	}
+}
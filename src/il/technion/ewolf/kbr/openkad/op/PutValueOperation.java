@@ -0,0 +1,141 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import static ch.lambdaj.Lambda.on;
+import static ch.lambdaj.Lambda.sort;
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyComparator;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.StoreValueRequest;
+import il.technion.ewolf.kbr.openkad.msg.StoreValueResponse;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Stores a value at the k nodes closest to its key: finds the closest nodes
+ * and sends each of them a store request. The local node stores the value
+ * as well if it is one of the closest nodes
+ *
+ */
+public class PutValueOperation {
+
+	// state
+	private Key key;
+	private byte[] value;
+	private long ttl;
+
+	// dependencies
+	private final Provider<FindNodeOperation> findNodeOperationProvider;
+	private final Provider<StoreValueRequest> storeValueRequestProvider;
+	private final Provider<MessageDispatcher<Void>> msgDispatcherProvider;
+	private final ValueStore valueStore;
+	private final Scheduler scheduler;
+	private final Node localNode;
+	private final int kBucketSize;
+	private final long maxTtl;
+
+	@Inject
+	PutValueOperation(
+			Provider<FindNodeOperation> findNodeOperationProvider,
+			Provider<StoreValueRequest> storeValueRequestProvider,
+			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
+			ValueStore valueStore,
+			Scheduler scheduler,
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.store.max_ttl") long maxTtl) {
+
+		this.findNodeOperationProvider = findNodeOperationProvider;
+		this.storeValueRequestProvider = storeValueRequestProvider;
+		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.valueStore = valueStore;
+		this.scheduler = scheduler;
+		this.localNode = localNode;
+		this.kBucketSize = kBucketSize;
+		this.maxTtl = maxTtl;
+	}
+
+	public PutValueOperation setKey(Key key) {
+		this.key = key;
+		return this;
+	}
+
+	public PutValueOperation setValue(byte[] value) {
+		this.value = value;
+		return this;
+	}
+
+	/**
+	 * @param ttl time to keep the value in millis
+	 */
+	public PutValueOperation setTtl(long ttl) {
+		this.ttl = ttl;
+		return this;
+	}
+
+	/**
+	 * @return the k nodes closest to the key, including the local node
+	 */
+	private List<Node> findClosestNodes() {
+		List<Node> $ = new ArrayList<Node>(findNodeOperationProvider.get().setKey(key).doFindNode());
+		if (!$.contains(localNode))
+			$.add(localNode);
+		$ = sort($, on(Node.class).getKey(), new KeyComparator(key));
+		if ($.size() > kBucketSize)
+			$.subList(kBucketSize, $.size()).clear();
+		return $;
+	}
+
+	/**
+	 * @return the number of nodes that stored the value
+	 */
+	public int doPut() {
+		List<Future<KadMessage>> futures = new ArrayList<Future<KadMessage>>();
+		int $ = 0;
+
+		for (Node n : findClosestNodes()) {
+			if (n.equals(localNode)) {
+				try {
+					valueStore.put(key, value, scheduler.currentTimeMillis() + Math.min(ttl, maxTtl));
+					++$;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+
+			StoreValueRequest req = storeValueRequestProvider.get()
+				.setKey(key)
+				.setValue(value)
+				.setTtl(ttl);
+
+			futures.add(msgDispatcherProvider.get()
+				.setConsumable(true)
+				.addFilter(new TypeMessageFilter(StoreValueResponse.class))
+				.addFilter(new IdMessageFilter(req.getId()))
+				.futureSend(n, req));
+		}
+
+		for (Future<KadMessage> f : futures) {
+			try {
+				if (((StoreValueResponse) f.get()).isStored())
+					++$;
+			} catch (Exception e) {
+				// the node did not answer
+			}
+		}
+		return $;
+	}
+}
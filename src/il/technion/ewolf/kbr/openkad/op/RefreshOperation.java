@@ -0,0 +1,104 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Bucket refresh as defined in the kademlia algorithm:
+ * a find node operation for a random key is done only in buckets that
+ * had no lookups for openkad.refresh.interval.
+ * The refreshes are spread randomly over openkad.refresh.jitter and are
+ * executed by the refresh executor, which caps the number of concurrent
+ * refreshes
+ */
+public class RefreshOperation {
+
+	// dependencies
+	private final Provider<FindNodeOperation> findNodeOperationProvider;
+	private final KBuckets kBuckets;
+	private final Scheduler scheduler;
+	private final ExecutorService refreshExecutor;
+	private final Random rnd;
+	private final long refreshInterval;
+	private final long jitter;
+
+	// testing
+	private final Counter nrBucketRefreshes;
+
+	@Inject
+	RefreshOperation(
+			Provider<FindNodeOperation> findNodeOperationProvider,
+			KBuckets kBuckets,
+			Scheduler scheduler,
+			@Named("openkad.executors.refresh") ExecutorService refreshExecutor,
+			@Named("openkad.rnd") Random rnd,
+			@Named("openkad.refresh.interval") long refreshInterval,
+			@Named("openkad.refresh.jitter") long jitter,
+
+			// testing
+			@Named("openkad.testing.nrBucketRefreshes") Counter nrBucketRefreshes) {
+
+		this.findNodeOperationProvider = findNodeOperationProvider;
+		this.kBuckets = kBuckets;
+		this.scheduler = scheduler;
+		this.refreshExecutor = refreshExecutor;
+		this.rnd = rnd;
+		this.refreshInterval = refreshInterval;
+		this.jitter = jitter;
+		this.nrBucketRefreshes = nrBucketRefreshes;
+	}
+
+	/**
+	 * Schedules a refresh for every idle bucket. Does not block.
+	 */
+	public void doRefresh() {
+		List<Key> keys = kBuckets.randomKeysForIdleBuckets(refreshInterval);
+		for (final Key key : keys) {
+			// mark the bucket so it will not be scheduled again
+			// while this refresh is waiting
+			kBuckets.markLookup(key);
+
+			long delay = jitter > 0 ? (long) (rnd.nextDouble() * jitter) : 0;
+			try {
+				scheduler.schedule(new ScheduledTask() {
+					@Override
+					public void run() {
+						submitRefresh(key);
+					}
+				}, delay);
+			} catch (IllegalStateException e) {
+				// timer was cancelled, we are shutting down
+				return;
+			}
+		}
+	}
+
+	private void submitRefresh(final Key key) {
+		try {
+			scheduler.execute(refreshExecutor, new Runnable() {
+				@Override
+				public void run() {
+					nrBucketRefreshes.increment();
+					findNodeOperationProvider.get()
+						.setKey(key)
+						.doFindNode();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// too many pending refreshes, this bucket will be refreshed
+			// after the next refresh interval
+		}
+	}
+}
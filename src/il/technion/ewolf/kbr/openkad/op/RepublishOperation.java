@@ -0,0 +1,401 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import static ch.lambdaj.Lambda.on;
+import static ch.lambdaj.Lambda.sort;
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyComparator;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.FutureCallback;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.StoreValuesRequest;
+import il.technion.ewolf.kbr.openkad.msg.StoreValuesResponse;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Republishes the values held by the local node to the nodes currently
+ * closest to their keys, so the values survive as nodes leave and join.
+ *
+ * The keys are grouped by the bucket they fall in, and within a bucket a
+ * lookup is shared by all the keys in the region of the key space it covered:
+ * a lookup whose result reaches outside the smallest subtree containing both
+ * the lookup key and another key found every node in that subtree. The closest
+ * nodes of such a key are taken from the lookup result together with the nodes
+ * in the local buckets, other keys start a new lookup. The values are sent to
+ * each destination in batches of openkad.republish.batch_size bytes at most,
+ * paced to openkad.republish.max_rate bytes per second. The pacing does not
+ * hold a thread: the batches that do not fit in the rate yet are sent by a
+ * task scheduled for the time they fit. Only the keys are kept until then, the
+ * values of a batch are read from the store just before it is sent.
+ *
+ * Only one republish runs at a time, a republish started while another one is
+ * still sending is skipped (and counted).
+ *
+ * A key stored at the local node by another node during the last
+ * openkad.republish.interval is not republished, that node already stored it
+ * at the other replicas.
+ *
+ */
+public class RepublishOperation {
+
+	// dependencies
+	private final Provider<FindNodeOperation> findNodeOperationProvider;
+	private final Provider<StoreValuesRequest> storeValuesRequestProvider;
+	private final Provider<MessageDispatcher<Void>> msgDispatcherProvider;
+	private final KBuckets kBuckets;
+	private final ValueStore valueStore;
+	private final Scheduler scheduler;
+	private final Node localNode;
+	private final int kBucketSize;
+	private final long interval;
+	private final int batchSize;
+	private final int maxRate;
+
+	// testing
+	private final Counter nrRepublishLookups;
+	private final Counter nrRepublishedValues;
+	private final Counter nrRepublishSkipped;
+	private final Counter nrOverlappingRepublishes;
+
+	// state
+	private final Map<Key, Long> receiveTime = new ConcurrentHashMap<Key, Long>();
+	private final AtomicBoolean running = new AtomicBoolean(false);
+
+	/**
+	 * The values to send to a single node in a single request
+	 */
+	private static final class Batch {
+		private final Node to;
+		private final StoreValuesRequest req;
+		private final int size;
+
+		Batch(Node to, StoreValuesRequest req, int size) {
+			this.to = to;
+			this.req = req;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Sends the batches of a single republish at openkad.republish.max_rate
+	 * and collects the responses
+	 */
+	private final class BatchSender<A> implements CompletionHandler<KadMessage, Void> {
+		private final Iterator<Map.Entry<Node, List<Key>>> destinations;
+		private final A attachment;
+		private final CompletionHandler<Integer, A> handler;
+		private final long startTime = scheduler.currentTimeMillis();
+		private final AtomicInteger nrPending = new AtomicInteger(0);
+		private final AtomicInteger nrStored = new AtomicInteger(0);
+		private final AtomicBoolean isDone = new AtomicBoolean(false);
+		private Node to = null;
+		private ListIterator<Key> keys = null;
+		private Batch next = null;
+		private long nrBytesSent = 0;
+		private volatile boolean allSent = false;
+
+		BatchSender(Map<Node, List<Key>> keysByNode, A attachment, CompletionHandler<Integer, A> handler) {
+			this.destinations = keysByNode.entrySet().iterator();
+			this.attachment = attachment;
+			this.handler = handler;
+		}
+
+		/**
+		 * Reads the values of the next batch from the store
+		 * @return null if there are no more values to send
+		 */
+		private Batch nextBatch() {
+			StoreValuesRequest req = null;
+			int reqSize = 0;
+			// a node whose values all expired gives no batch
+			while (req == null) {
+				while (keys == null || !keys.hasNext()) {
+					if (!destinations.hasNext())
+						return null;
+					Map.Entry<Node, List<Key>> e = destinations.next();
+					to = e.getKey();
+					keys = e.getValue().listIterator();
+				}
+
+				while (keys.hasNext()) {
+					Key key = keys.next();
+					ByteBuffer value = valueStore.getBuffer(key);
+					long ttl = valueStore.getExpireTime(key) - scheduler.currentTimeMillis();
+					if (value == null || ttl <= 0)
+						continue;
+
+					if (req != null && reqSize + value.remaining() > batchSize) {
+						// the key starts the next batch
+						keys.previous();
+						break;
+					}
+					if (req == null)
+						req = storeValuesRequestProvider.get();
+					byte[] bytes = new byte[value.remaining()];
+					value.get(bytes);
+					req.addValue(key, bytes, ttl);
+					reqSize += bytes.length;
+				}
+			}
+			return new Batch(to, req, reqSize);
+		}
+
+		/**
+		 * Sends the batches that fit in the rate, and schedules itself for the
+		 * time the next one fits
+		 */
+		synchronized void sendMore() {
+			while (next != null || (next = nextBatch()) != null) {
+				long wait = maxRate <= 0 ? 0 : startTime + nrBytesSent * 1000 / maxRate - scheduler.currentTimeMillis();
+				if (wait > 0) {
+					scheduler.schedule(new ScheduledTask() {
+						@Override
+						public void run() {
+							sendMore();
+						}
+					}, wait);
+					return;
+				}
+
+				Batch b = next;
+				next = null;
+				nrPending.incrementAndGet();
+				nrBytesSent += b.size;
+				msgDispatcherProvider.get()
+					.setConsumable(true)
+					.addFilter(new TypeMessageFilter(StoreValuesResponse.class))
+					.addFilter(new IdMessageFilter(b.req.getId()))
+					.setCallback(null, this)
+					.asyncSend(b.to, b.req);
+			}
+			allSent = true;
+			checkDone();
+		}
+
+		private void checkDone() {
+			if (!allSent || nrPending.get() != 0 || !isDone.compareAndSet(false, true))
+				return;
+			nrRepublishedValues.add(nrStored.get());
+			running.set(false);
+			handler.completed(nrStored.get(), attachment);
+		}
+
+		@Override
+		public void completed(KadMessage msg, Void nothing) {
+			nrStored.addAndGet(((StoreValuesResponse) msg).getNrStored());
+			nrPending.decrementAndGet();
+			checkDone();
+		}
+
+		@Override
+		public void failed(Throwable exc, Void nothing) {
+			// the values will be sent again in the next republish
+			nrPending.decrementAndGet();
+			checkDone();
+		}
+	}
+
+	@Inject
+	RepublishOperation(
+			Provider<FindNodeOperation> findNodeOperationProvider,
+			Provider<StoreValuesRequest> storeValuesRequestProvider,
+			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
+			KBuckets kBuckets,
+			ValueStore valueStore,
+			Scheduler scheduler,
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.republish.interval") long interval,
+			@Named("openkad.republish.batch_size") int batchSize,
+			@Named("openkad.republish.max_rate") int maxRate,
+
+			// testing
+			@Named("openkad.testing.nrRepublishLookups") Counter nrRepublishLookups,
+			@Named("openkad.testing.nrRepublishedValues") Counter nrRepublishedValues,
+			@Named("openkad.testing.nrRepublishSkipped") Counter nrRepublishSkipped,
+			@Named("openkad.testing.nrOverlappingRepublishes") Counter nrOverlappingRepublishes) {
+
+		this.findNodeOperationProvider = findNodeOperationProvider;
+		this.storeValuesRequestProvider = storeValuesRequestProvider;
+		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.kBuckets = kBuckets;
+		this.valueStore = valueStore;
+		this.scheduler = scheduler;
+		this.localNode = localNode;
+		this.kBucketSize = kBucketSize;
+		this.interval = interval;
+		this.batchSize = batchSize;
+		this.maxRate = maxRate;
+		this.nrRepublishLookups = nrRepublishLookups;
+		this.nrRepublishedValues = nrRepublishedValues;
+		this.nrRepublishSkipped = nrRepublishSkipped;
+		this.nrOverlappingRepublishes = nrOverlappingRepublishes;
+	}
+
+	/**
+	 * Marks a key as stored at the local node by another replica
+	 */
+	public void markReceived(Key key) {
+		receiveTime.put(key, scheduler.currentTimeMillis());
+	}
+
+	/**
+	 * @return the keys to republish grouped by their bucket
+	 */
+	private Map<Integer, List<Key>> keysByBucket(long now) {
+		for (Iterator<Long> it = receiveTime.values().iterator(); it.hasNext();) {
+			if (now - it.next() >= interval)
+				it.remove();
+		}
+
+		Map<Integer, List<Key>> $ = new TreeMap<Integer, List<Key>>();
+		for (Key key : valueStore.getKeys()) {
+			if (receiveTime.containsKey(key)) {
+				nrRepublishSkipped.increment();
+				continue;
+			}
+			int bucket = key.xor(localNode.getKey()).getFirstSetBitIndex();
+			List<Key> keys = $.get(bucket);
+			if (keys == null) {
+				keys = new ArrayList<Key>();
+				$.put(bucket, keys);
+			}
+			keys.add(key);
+		}
+		return $;
+	}
+
+	/**
+	 * @return true if the lookup of lookupKey found all the nodes that can be
+	 *         among the closest nodes of key
+	 */
+	private boolean isCovered(Key key, Key lookupKey, List<Node> found) {
+		if (found.size() < kBucketSize)
+			return true;
+		int subtree = key.xor(lookupKey).getFirstSetBitIndex();
+		for (Node n : found) {
+			if (n.getKey().xor(lookupKey).getFirstSetBitIndex() > subtree)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the key to the keys of each of its closest nodes
+	 */
+	private void addClosestNodes(Key key, List<Node> found, Map<Node, List<Key>> keysByNode) {
+		Set<Node> candidates = new HashSet<Node>(found);
+		candidates.addAll(kBuckets.getClosestNodesByKey(key, kBucketSize));
+		candidates.add(localNode);
+
+		List<Node> closest = sort(candidates, on(Node.class).getKey(), new KeyComparator(key));
+		for (Node n : closest.subList(0, Math.min(kBucketSize, closest.size()))) {
+			if (n.equals(localNode))
+				continue;
+			List<Key> nodeKeys = keysByNode.get(n);
+			if (nodeKeys == null) {
+				nodeKeys = new ArrayList<Key>();
+				keysByNode.put(n, nodeKeys);
+			}
+			nodeKeys.add(key);
+		}
+	}
+
+	/**
+	 * @return the keys to send to each node
+	 */
+	private Map<Node, List<Key>> keysByNode(Map<Integer, List<Key>> keysByBucket) {
+		Map<Node, List<Key>> $ = new LinkedHashMap<Node, List<Key>>();
+		for (List<Key> keys : keysByBucket.values()) {
+			List<Key> remaining = new ArrayList<Key>(keys);
+			while (!remaining.isEmpty()) {
+				Key lookupKey = remaining.get(0);
+				nrRepublishLookups.increment();
+				List<Node> found = findNodeOperationProvider.get()
+					.setKey(lookupKey)
+					.doFindNode();
+
+				for (Iterator<Key> it = remaining.iterator(); it.hasNext();) {
+					Key key = it.next();
+					if (key != lookupKey && !isCovered(key, lookupKey, found))
+						continue;
+					it.remove();
+					addClosestNodes(key, found, $);
+				}
+			}
+		}
+		return $;
+	}
+
+	/**
+	 * Republishes all the values that were not received from another replica
+	 * lately. Blocks only for the lookups, the batches are sent in the
+	 * background.
+	 *
+	 * @param attachment given to the handler
+	 * @param handler called with the number of values stored by other nodes
+	 *        when all the batches were answered or timed out
+	 * @return false if the republish was skipped since another one is running,
+	 *         the handler is not called
+	 */
+	public <A> boolean doRepublish(A attachment, CompletionHandler<Integer, A> handler) {
+		if (!running.compareAndSet(false, true)) {
+			nrOverlappingRepublishes.increment();
+			return false;
+		}
+
+		Map<Node, List<Key>> keysByNode;
+		try {
+			keysByNode = keysByNode(keysByBucket(scheduler.currentTimeMillis()));
+		} catch (RuntimeException e) {
+			running.set(false);
+			throw e;
+		}
+		new BatchSender<A>(keysByNode, attachment, handler).sendMore();
+		return true;
+	}
+
+	/**
+	 * Does the same as {@link #doRepublish(Object, CompletionHandler)} and
+	 * waits until all the batches were answered or timed out.
+	 *
+	 * @return the number of values stored by other nodes, 0 if another
+	 *         republish is running
+	 */
+	public int doRepublish() throws InterruptedException {
+		FutureCallback<Integer, Void> f = new FutureCallback<Integer, Void>(scheduler);
+		if (!doRepublish(null, f))
+			return 0;
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.msg.PingResponse;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Checks which of the nodes saved in the previous run are still alive.
+ * The saved nodes are pinged in the background at a bounded rate
+ * (openkad.warmstart.rate pings per second):
+ * nodes that answered are inserted as contacted and their round trip time is
+ * recorded, nodes that did not answer are marked dead in their buckets.
+ *
+ * The warm start is ready when openkad.warmstart.min_buckets buckets have a node
+ * that answered, or when all the saved nodes were pinged.
+ *
+ */
+public class WarmStartOperation {
+
+	// dependencies
+	private final Provider<PingRequest> pingRequestProvider;
+	private final Provider<MessageDispatcher<Void>> msgDispatcherProvider;
+	private final Provider<KadNode> kadNodeProvider;
+	private final KBuckets kBuckets;
+	private final Node localNode;
+	private final int rate;
+	private final int minBuckets;
+
+	// testing
+	private final AtomicLong warmStartTime;
+
+	// state
+	private final CountDownLatch ready = new CountDownLatch(1);
+	private final Map<Node, Long> rttFromNode = new ConcurrentHashMap<Node, Long>();
+	private final Set<Integer> populatedBuckets = new HashSet<Integer>();
+	private long startTime;
+
+	@Inject
+	WarmStartOperation(
+			Provider<PingRequest> pingRequestProvider,
+			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
+			Provider<KadNode> kadNodeProvider,
+			KBuckets kBuckets,
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.warmstart.rate") int rate,
+			@Named("openkad.warmstart.min_buckets") int minBuckets,
+
+			// testing
+			@Named("openkad.testing.warmStartTime") AtomicLong warmStartTime) {
+
+		this.pingRequestProvider = pingRequestProvider;
+		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.kadNodeProvider = kadNodeProvider;
+		this.kBuckets = kBuckets;
+		this.localNode = localNode;
+		this.rate = rate;
+		this.minBuckets = minBuckets;
+		this.warmStartTime = warmStartTime;
+	}
+
+	/**
+	 * Starts pinging the saved nodes in the background. Does not block.
+	 *
+	 * @param savedNodes the nodes loaded from the previous run
+	 */
+	public void doWarmStart(final Collection<Node> savedNodes) {
+		startTime = System.currentTimeMillis();
+		if (savedNodes.isEmpty()) {
+			setReady();
+			return;
+		}
+
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pingAll(savedNodes);
+				} catch (InterruptedException e) {
+					// shutting down
+				} finally {
+					setReady();
+				}
+			}
+		}, "openkad-warmstart");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void pingAll(Collection<Node> savedNodes) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(savedNodes.size());
+		final long pingInterval = rate > 0 ? TimeUnit.SECONDS.toMillis(1) / rate : 0;
+
+		for (final Node n : savedNodes) {
+			final PingRequest pingRequest = pingRequestProvider.get();
+			final long sendTime = System.currentTimeMillis();
+
+			msgDispatcherProvider.get()
+				.addFilter(new IdMessageFilter(pingRequest.getId()))
+				.addFilter(new TypeMessageFilter(PingResponse.class))
+				.setConsumable(true)
+				.setCallback(null, new CompletionHandler<KadMessage, Void>() {
+
+					@Override
+					public void completed(KadMessage msg, Void nothing) {
+						try {
+							rttFromNode.put(n, System.currentTimeMillis() - sendTime);
+							kBuckets.insert(kadNodeProvider.get()
+								.setNode(msg.getSrc())
+								.setNodeWasContacted());
+							bucketPopulated(n);
+						} finally {
+							latch.countDown();
+						}
+					}
+
+					@Override
+					public void failed(Throwable exc, Void nothing) {
+						try {
+							kBuckets.markAsDead(n);
+						} finally {
+							latch.countDown();
+						}
+					}
+				})
+				.send(n, pingRequest);
+
+			if (pingInterval > 0)
+				Thread.sleep(pingInterval);
+		}
+
+		latch.await();
+	}
+
+	private void bucketPopulated(Node n) {
+		int bucket = n.getKey().xor(localNode.getKey()).getFirstSetBitIndex();
+		synchronized (populatedBuckets) {
+			populatedBuckets.add(bucket);
+			if (populatedBuckets.size() < minBuckets)
+				return;
+		}
+		setReady();
+	}
+
+	private synchronized void setReady() {
+		if (ready.getCount() == 0)
+			return;
+		warmStartTime.set(System.currentTimeMillis() - startTime);
+		ready.countDown();
+	}
+
+	/**
+	 * @return true if enough buckets were populated or all saved nodes were pinged
+	 */
+	public boolean isReady() {
+		return ready.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the warm start to be ready
+	 *
+	 * @param timeout maximum time to wait
+	 * @param unit the timeout unit
+	 * @return true if ready, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+		return ready.await(timeout, unit);
+	}
+
+	/**
+	 * @return the saved nodes that answered so far, fastest first
+	 */
+	public List<Node> getRankedResponders() {
+		List<Node> $ = new ArrayList<Node>(rttFromNode.keySet());
+		Collections.sort($, new Comparator<Node>() {
+			@Override
+			public int compare(Node n1, Node n2) {
+				return rttFromNode.get(n1).compareTo(rttFromNode.get(n2));
+			}
+		});
+		return $;
+	}
+}
@@ -0,0 +1,574 @@
+package il.technion.ewolf.kbr.openkad.store;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.Scheduler;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A log structured value store.
+ * Values are appended to segment files in the store directory, and an in
+ * memory index maps each key to the location of its latest value. Segments
+ * are read through memory mapped buffers, so the store never holds the values
+ * on the heap. The active segment is mapped once at its full size and written
+ * through the mapping, its file is cut back to the written size when the
+ * segment is rolled or the store is closed.
+ *
+ * A record is: crc32 of the body (int), body length (int) and the body:
+ * expire time (long), key length (short), key, value length (int), value.
+ * A corrupt or truncated record ends its segment, it is cut off when the
+ * store is opened.
+ *
+ * The store is opened on first use. It is compacted periodically: expired
+ * values are dropped from the index, and the live values of segments with
+ * less than openkad.store.compaction.min_live live data are copied to the
+ * active segment before the segment is deleted. An expired value may hide an
+ * older value of the same key in an older segment, so when it is dropped
+ * while older segments remain, an already expired record of its key is
+ * appended in its place.
+ *
+ */
+public class LogValueStore implements ValueStore {
+
+	private static final String SEGMENT_SUFFIX = ".log";
+	// crc, body length
+	private static final int RECORD_HEADER = 4 + 4;
+	// expire time, key length, value length
+	private static final int BODY_HEADER = 8 + 2 + 4;
+
+	private static final class Segment {
+		private final long id;
+		private final File file;
+		private final FileChannel channel;
+		private final AtomicLong liveBytes = new AtomicLong(0);
+		// the written size, the file of the active segment is longer
+		private volatile long size;
+		private volatile MappedByteBuffer mapped = null;
+
+		Segment(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+
+		/**
+		 * @return a read only view of the given range, without copying it
+		 */
+		ByteBuffer read(long offset, int length) throws IOException {
+			MappedByteBuffer m = mapped;
+			if (m == null || m.capacity() < offset + length)
+				m = remap(offset + length);
+			ByteBuffer $ = m.duplicate();
+			$.limit((int) offset + length);
+			$.position((int) offset);
+			return $.slice().asReadOnlyBuffer();
+		}
+
+		private synchronized MappedByteBuffer remap(long needed) throws IOException {
+			MappedByteBuffer m = mapped;
+			if (m != null && m.capacity() >= needed)
+				return m;
+			if (size < needed)
+				throw new IOException("read beyond the end of " + file);
+			// only the written part is mapped, mapping more would extend the file
+			m = channel.map(MapMode.READ_ONLY, 0, size);
+			mapped = m;
+			return m;
+		}
+
+		/**
+		 * Writes at the end of the segment through a writable mapping, which
+		 * is created once at minCapacity or the needed size
+		 */
+		synchronized void append(ByteBuffer record, long minCapacity) throws IOException {
+			long end = size + record.remaining();
+			MappedByteBuffer m = mapped;
+			if (m == null || m.isReadOnly() || m.capacity() < end) {
+				// extends the file, the tail is zeros until it is written
+				m = channel.map(MapMode.READ_WRITE, 0, Math.max(minCapacity, end));
+				mapped = m;
+			}
+			ByteBuffer b = m.duplicate();
+			b.position((int) size);
+			b.put(record);
+			size = end;
+		}
+
+		synchronized void force() {
+			MappedByteBuffer m = mapped;
+			if (m != null && !m.isReadOnly())
+				m.force();
+		}
+
+		/**
+		 * Forces the written records and cuts off the unwritten tail of the
+		 * file. The segment may still be read afterwards
+		 */
+		synchronized void seal() throws IOException {
+			force();
+			if (channel.size() > size)
+				channel.truncate(size);
+		}
+
+		void truncate(long newSize) throws IOException {
+			channel.truncate(newSize);
+			size = newSize;
+			mapped = null;
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static final class Location {
+		private final Segment segment;
+		private final long offset;
+		private final int recordSize;
+		private final long valueOffset;
+		private final int valueLength;
+		private final long expireTime;
+
+		Location(Segment segment, long offset, int recordSize, long valueOffset, int valueLength, long expireTime) {
+			this.segment = segment;
+			this.offset = offset;
+			this.recordSize = recordSize;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.expireTime = expireTime;
+		}
+	}
+
+	private static final class Record {
+		private final Key key;
+		private final Location location;
+
+		Record(Key key, Location location) {
+			this.key = key;
+			this.location = location;
+		}
+	}
+
+	// dependencies
+	private final File dir;
+	private final long segmentSize;
+	private final double minLive;
+	private final long compactionInterval;
+	private final boolean sync;
+	private final Scheduler scheduler;
+
+	// state
+	private final ConcurrentMap<Key, Location> index = new ConcurrentHashMap<Key, Location>();
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private final ScheduledTask compactionTask;
+	private volatile Segment active = null;
+	private FileChannel lockChannel = null;
+	private FileLock lock = null;
+	private boolean closed = false;
+
+	@Inject
+	public LogValueStore(
+			@Named("openkad.store.dir") String path,
+			@Named("openkad.store.segment_size") long segmentSize,
+			@Named("openkad.store.compaction.min_live") double minLive,
+			@Named("openkad.store.compaction.interval") long compactionInterval,
+			@Named("openkad.store.sync") boolean sync,
+			Scheduler scheduler) {
+
+		if (segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("segment size must be less than 2GB");
+
+		this.dir = new File(path);
+		this.segmentSize = segmentSize;
+		this.minLive = minLive;
+		this.compactionInterval = compactionInterval;
+		this.sync = sync;
+		this.scheduler = scheduler;
+
+		this.compactionTask = new ScheduledTask() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Opens the store and recovers the index from the segments
+	 * @param create if false, a store that does not exist yet is not created
+	 * @return true if the store is open
+	 */
+	private synchronized boolean open(boolean create) throws IOException {
+		if (closed)
+			throw new IOException("store is closed");
+		if (active != null)
+			return true;
+		if (!dir.exists() && !create)
+			return false;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create store directory " + dir);
+
+		lockChannel = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel();
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException("store " + dir + " is used by another node");
+		}
+
+		File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		for (File f : files) {
+			String name = f.getName();
+			Segment s = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), f);
+			segments.put(s.id, s);
+			recover(s);
+		}
+
+		Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		active = (last == null || last.size >= segmentSize) ? newSegment() : last;
+
+		scheduler.schedule(compactionTask, compactionInterval, compactionInterval);
+		return true;
+	}
+
+	private Segment newSegment() throws IOException {
+		long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		Segment $ = new Segment(id, new File(dir, String.format("%016d", id) + SEGMENT_SUFFIX));
+		segments.put(id, $);
+		return $;
+	}
+
+	private static int crc(ByteBuffer buf, byte[] chunk) {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = buf.duplicate();
+		while (b.hasRemaining()) {
+			int n = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @return the records of a segment in the order they were written, up to
+	 *         its first bad record
+	 */
+	private static List<Record> readRecords(Segment s) throws IOException {
+		List<Record> $ = new ArrayList<Record>();
+		byte[] chunk = new byte[8 * 1024];
+		ByteBuffer all = s.size == 0 ? ByteBuffer.allocate(0) : s.read(0, (int) s.size);
+
+		int pos = 0;
+		while (pos + RECORD_HEADER + BODY_HEADER <= all.limit()) {
+			int crc = all.getInt(pos);
+			int bodyLength = all.getInt(pos + 4);
+			if (bodyLength < BODY_HEADER || bodyLength > all.limit() - pos - RECORD_HEADER)
+				break;
+
+			int body = pos + RECORD_HEADER;
+			long expireTime = all.getLong(body);
+			int keyLength = all.getShort(body + 8) & 0xffff;
+			if (BODY_HEADER + keyLength > bodyLength)
+				break;
+			int valueLength = all.getInt(body + 10 + keyLength);
+			if (BODY_HEADER + keyLength + valueLength != bodyLength)
+				break;
+
+			ByteBuffer bodyBuf = all.duplicate();
+			bodyBuf.limit(body + bodyLength);
+			bodyBuf.position(body);
+			if (crc(bodyBuf, chunk) != crc)
+				break;
+
+			byte[] keyBytes = new byte[keyLength];
+			bodyBuf.position(body + 10);
+			bodyBuf.get(keyBytes);
+			$.add(new Record(new Key(keyBytes), new Location(s, pos, RECORD_HEADER + bodyLength,
+					body + BODY_HEADER + keyLength, valueLength, expireTime)));
+			pos += RECORD_HEADER + bodyLength;
+		}
+		return $;
+	}
+
+	/**
+	 * Adds all the records of a segment to the index, later records replace
+	 * earlier ones. Cuts off the segment at its first bad record
+	 */
+	private void recover(Segment s) throws IOException {
+		long now = scheduler.currentTimeMillis();
+		long end = 0;
+		for (Record r : readRecords(s)) {
+			if (r.location.expireTime > now) {
+				replace(r.key, r.location);
+			} else {
+				// a newer value that already expired removes the older ones
+				Location old = index.remove(r.key);
+				if (old != null)
+					old.segment.liveBytes.addAndGet(-old.recordSize);
+			}
+			end = r.location.offset + r.location.recordSize;
+		}
+
+		if (end < s.size) {
+			// a torn write of the last record or the unwritten tail of the
+			// active segment before a crash, not worth failing the store
+			new IOException("truncating " + s.file + " at " + end + " of " + s.size + " bytes").printStackTrace();
+			s.truncate(end);
+		}
+	}
+
+	private void replace(Key key, Location loc) {
+		Location old = index.put(key, loc);
+		if (old != null)
+			old.segment.liveBytes.addAndGet(-old.recordSize);
+		loc.segment.liveBytes.addAndGet(loc.recordSize);
+	}
+
+	/**
+	 * Appends a record to the active segment, rolling it when full
+	 * @return the record's location
+	 */
+	private Location append(ByteBuffer record, int valueStart, int valueLength, long expireTime) throws IOException {
+		int recordSize = record.remaining();
+		if (active.size > 0 && active.size + recordSize > segmentSize) {
+			active.seal();
+			active = newSegment();
+		}
+
+		Segment s = active;
+		long pos = s.size;
+		s.append(record, segmentSize);
+		if (sync)
+			s.force();
+		return new Location(s, pos, recordSize, pos + valueStart, valueLength, expireTime);
+	}
+
+	private static ByteBuffer newRecord(Key key, byte[] value, long expireTime) {
+		byte[] keyBytes = key.getBytes();
+		int bodyLength = BODY_HEADER + keyBytes.length + value.length;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bodyLength);
+		record.putInt(0)
+			.putInt(bodyLength)
+			.putLong(expireTime)
+			.putShort((short) keyBytes.length)
+			.put(keyBytes)
+			.putInt(value.length)
+			.put(value);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER, bodyLength);
+		record.putInt(0, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	@Override
+	public void put(Key key, byte[] value, long expireTime) throws IOException {
+		ByteBuffer record = newRecord(key, value, expireTime);
+		synchronized (this) {
+			open(true);
+			replace(key, append(record, RECORD_HEADER + BODY_HEADER + key.getBytes().length, value.length, expireTime));
+		}
+	}
+
+	/**
+	 * @return true if the store exists and is open
+	 */
+	private boolean ensureOpen() {
+		if (active != null)
+			return true;
+		try {
+			return open(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private Location getLocation(Key key) {
+		if (!ensureOpen())
+			return null;
+		Location $ = index.get(key);
+		if ($ == null || $.expireTime <= scheduler.currentTimeMillis())
+			return null;
+		return $;
+	}
+
+	@Override
+	public ByteBuffer getBuffer(Key key) {
+		// a compaction may delete the segment between reading the index and reading the value
+		for (int i = 0; i < 2; ++i) {
+			Location loc = getLocation(key);
+			if (loc == null)
+				return null;
+			try {
+				return loc.segment.read(loc.valueOffset, loc.valueLength);
+			} catch (IOException e) {
+				if (index.get(key) == loc)
+					return null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public byte[] get(Key key) {
+		ByteBuffer buf = getBuffer(key);
+		if (buf == null)
+			return null;
+		byte[] $ = new byte[buf.remaining()];
+		buf.get($);
+		return $;
+	}
+
+	@Override
+	public long getExpireTime(Key key) {
+		Location loc = getLocation(key);
+		return loc == null ? 0 : loc.expireTime;
+	}
+
+	@Override
+	public List<Key> getKeys() {
+		List<Key> $ = new ArrayList<Key>();
+		if (!ensureOpen())
+			return $;
+		long now = scheduler.currentTimeMillis();
+		for (Map.Entry<Key, Location> e : index.entrySet()) {
+			if (e.getValue().expireTime > now)
+				$.add(e.getKey());
+		}
+		return $;
+	}
+
+	@Override
+	public synchronized void compact() throws IOException {
+		if (active == null || closed)
+			return;
+
+		long now = scheduler.currentTimeMillis();
+		for (Iterator<Location> it = index.values().iterator(); it.hasNext();) {
+			Location loc = it.next();
+			if (loc.expireTime <= now) {
+				it.remove();
+				loc.segment.liveBytes.addAndGet(-loc.recordSize);
+			}
+		}
+
+		for (Segment s : new ArrayList<Segment>(segments.values())) {
+			if (s == active || s.liveBytes.get() >= minLive * s.size)
+				continue;
+
+			// segments are compacted oldest first, so older segments that
+			// remain were not compacted and may hold values the dropped
+			// records hide
+			boolean hasOlder = segments.firstKey() < s.id;
+			Set<Key> shadowed = new HashSet<Key>();
+			for (Record r : readRecords(s)) {
+				Location loc = index.get(r.key);
+				if (loc != null && loc.segment == s && loc.offset == r.location.offset) {
+					// the records are copied straight from the mapped segment
+					Location moved = append(s.read(loc.offset, loc.recordSize),
+							(int) (loc.valueOffset - loc.offset), loc.valueLength, loc.expireTime);
+					replace(r.key, moved);
+				} else if (loc == null && hasOlder && shadowed.add(r.key)) {
+					// the key's latest value expired, keep older values from
+					// coming back when the store is reopened
+					append(newRecord(r.key, new byte[0], r.location.expireTime), 0, 0, r.location.expireTime);
+				}
+			}
+			active.force();
+
+			segments.remove(s.id);
+			s.close();
+			if (!s.file.delete())
+				throw new IOException("could not delete " + s.file);
+		}
+	}
+
+	/**
+	 * @return total size of all the segments in bytes
+	 */
+	public synchronized long getDiskSize() {
+		long $ = 0;
+		for (Segment s : segments.values())
+			$ += s.size;
+		return $;
+	}
+
+	/**
+	 * @return number of segment files
+	 */
+	public synchronized int getNrSegments() {
+		return segments.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		compactionTask.cancel();
+		try {
+			if (active != null)
+				active.seal();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Segment s : segments.values())
+			s.close();
+		segments.clear();
+		index.clear();
+		active = null;
+		try {
+			if (lock != null)
+				lock.release();
+			if (lockChannel != null)
+				lockChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package il.technion.ewolf.kbr.openkad.store;
+
+import il.technion.ewolf.kbr.Key;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Stores the values put in the network by the nodes for which the local node
+ * is one of the closest nodes
+ *
+ */
+public interface ValueStore {
+
+	/**
+	 * Stores a value, replacing any value stored with the same key
+	 * @param key the value's key
+	 * @param value the value
+	 * @param expireTime the time in millis after which the value is removed
+	 * @throws IOException if the value could not be written
+	 */
+	public void put(Key key, byte[] value, long expireTime) throws IOException;
+
+	/**
+	 * @param key the value's key
+	 * @return a read only view of the stored value, null if it does not exist
+	 *         or expired
+	 */
+	public ByteBuffer getBuffer(Key key);
+
+	/**
+	 * @param key the value's key
+	 * @return a copy of the stored value, null if it does not exist or expired
+	 */
+	public byte[] get(Key key);
+
+	/**
+	 * @param key the value's key
+	 * @return the value's expire time in millis, 0 if it does not exist
+	 */
+	public long getExpireTime(Key key);
+
+	/**
+	 * @return the keys of all the values not yet expired
+	 */
+	public List<Key> getKeys();
+
+	/**
+	 * Removes expired values and reclaims the space of removed or replaced values
+	 * @throws IOException
+	 */
+	public void compact() throws IOException;
+
+	public void close();
+}
@@ -0,0 +1,203 @@
+package test.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A minimal throughput harness: runs an operation in a loop on a number of
+ * threads, first for a warmup period and then for a measured period, and
+ * reports operations per second and bytes allocated per operation.
+ *
+ * Allocation is read from the HotSpot thread MXBean, it is reported as -1
+ * when the JVM does not support it.
+ *
+ */
+public class Bench {
+
+	/**
+	 * The measured operation
+	 */
+	public interface Op {
+		/**
+		 * @param thread index of the calling thread, between 0 and nrThreads-1
+		 */
+		void run(int thread) throws Exception;
+	}
+
+	public static class Result {
+		private final String name;
+		private final int nrThreads;
+		private final long nrOps;
+		private final long nanos;
+		private final long allocatedBytes;
+
+		Result(String name, int nrThreads, long nrOps, long nanos, long allocatedBytes) {
+			this.name = name;
+			this.nrThreads = nrThreads;
+			this.nrOps = nrOps;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getNrThreads() {
+			return nrThreads;
+		}
+
+		public long getNrOps() {
+			return nrOps;
+		}
+
+		public double getOpsPerSec() {
+			return nrOps * 1e9 / nanos;
+		}
+
+		/**
+		 * @return average latency of a single operation as seen by one thread
+		 */
+		public double getNanosPerOp() {
+			return nrOps == 0 ? 0 : (double) nanos * nrThreads / nrOps;
+		}
+
+		public double getBytesPerOp() {
+			if (allocatedBytes < 0 || nrOps == 0)
+				return -1;
+			return (double) allocatedBytes / nrOps;
+		}
+
+		public static String csvHeader() {
+			return "name,threads,ops,ops_per_sec,ns_per_op,bytes_per_op";
+		}
+
+		public String toCsv() {
+			return String.format(Locale.US, "%s,%d,%d,%.1f,%.1f,%.1f",
+					name, nrThreads, nrOps, getOpsPerSec(), getNanosPerOp(), getBytesPerOp());
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%-40s %3d threads %14.1f ops/s %12.1f ns/op %10.1f B/op",
+					name, nrThreads, getOpsPerSec(), getNanosPerOp(), getBytesPerOp());
+		}
+	}
+
+	// settings
+	private long warmupMillis = 1000;
+	private long measureMillis = 2000;
+
+	// state
+	private final List<Result> results = new ArrayList<Result>();
+
+	public Bench setWarmup(long warmupMillis) {
+		this.warmupMillis = warmupMillis;
+		return this;
+	}
+
+	public Bench setMeasure(long measureMillis) {
+		this.measureMillis = measureMillis;
+		return this;
+	}
+
+	public List<Result> getResults() {
+		return results;
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) mx;
+		if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Runs op on nrThreads threads and prints the result
+	 * @param name name of the benchmark
+	 * @param nrThreads number of threads concurrently running op
+	 * @param op the operation
+	 * @return the result, also added to getResults
+	 */
+	public Result run(String name, final int nrThreads, final Op op) throws Exception {
+		final long[] nrOps = new long[nrThreads];
+		final long[] allocated = new long[nrThreads];
+		final long[] deadlines = new long[2];
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final CyclicBarrier barrier = new CyclicBarrier(nrThreads, new Runnable() {
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				deadlines[0] = now + warmupMillis * 1000000L;
+				deadlines[1] = deadlines[0] + measureMillis * 1000000L;
+			}
+		});
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < nrThreads; ++i) {
+			final int thread = i;
+			threads.add(new Thread(name + "-" + i) {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						while (System.nanoTime() < deadlines[0])
+							op.run(thread);
+
+						long allocStart = allocatedBytes();
+						long n = 0;
+						do {
+							for (int j = 0; j < 16; ++j)
+								op.run(thread);
+							n += 16;
+						} while (System.nanoTime() < deadlines[1]);
+
+						long allocEnd = allocatedBytes();
+						nrOps[thread] = n;
+						allocated[thread] = allocStart < 0 ? -1 : allocEnd - allocStart;
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+
+		if (error.get() != null)
+			throw new RuntimeException(name + " failed", error.get());
+
+		long totalOps = 0;
+		long totalAllocated = 0;
+		for (int i = 0; i < nrThreads; ++i) {
+			totalOps += nrOps[i];
+			totalAllocated = (totalAllocated < 0 || allocated[i] < 0) ? -1 : totalAllocated + allocated[i];
+		}
+
+		Result $ = new Result(name, nrThreads, totalOps, measureMillis * 1000000L, totalAllocated);
+		results.add($);
+		System.out.println($);
+		return $;
+	}
+
+	/**
+	 * Parses a comma separated list of ints, such as "1,4,16"
+	 */
+	public static int[] parseInts(String s) {
+		String[] parts = s.split(",");
+		int[] $ = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i)
+			$[i] = Integer.parseInt(parts[i].trim());
+		return $;
+	}
+}
@@ -0,0 +1,132 @@
+package test.bench;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.bucket.Bucket;
+import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
+import il.technion.ewolf.kbr.openkad.bucket.SlackBucket;
+
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.name.Named;
+import com.google.inject.util.Modules;
+
+/**
+ * Measures the routing table operations of {@link KadBuckets} with the
+ * {@link il.technion.ewolf.kbr.openkad.bucket.StableBucket} (default) and
+ * {@link SlackBucket} policies, for different table sizes and thread counts.
+ *
+ * usage: KBucketsBench [sizes] [threads] [csv file]
+ * for example: KBucketsBench 100,1000,10000,100000 1,4,16 kbuckets.csv
+ *
+ */
+public class KBucketsBench {
+
+	private static final int NR_KEYS = 4096;
+	private static final int K = 20;
+
+	private static Module slackBuckets(KadNetModule module) {
+		return Modules.override(module).with(new AbstractModule() {
+			@Override
+			protected void configure() {
+			}
+
+			@Provides
+			@Named("openkad.bucket.kbuckets")
+			Bucket provideKBucket(@Named("openkad.bucket.kbuckets.maxsize") int maxSize) {
+				return new SlackBucket(maxSize);
+			}
+		});
+	}
+
+	private static void benchTable(Bench bench, String policy, int size, int[] threads) throws Exception {
+		KadNetModule module = new KadNetModule()
+			.setProperty("openkad.bucket.kbuckets.maxsize", "" + K)
+			.setProperty("openkad.seed", "" + size);
+		Injector injector = Guice.createInjector("slack".equals(policy) ? slackBuckets(module) : module);
+
+		final KadBuckets kbuckets = injector.getInstance(KadBuckets.class);
+		KeyFactory keyFactory = injector.getInstance(KeyFactory.class);
+
+		// half of the nodes are inserted up front, all of them are inserted during the benchmark
+		final KadNode[] nodes = new KadNode[2 * size];
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = injector.getInstance(KadNode.class)
+				.setNode(new Node(keyFactory.generate()))
+				.setNodeWasContacted();
+		}
+		for (int i = 0; i < size; ++i)
+			kbuckets.insert(nodes[i]);
+
+		final Key[] keys = new Key[NR_KEYS];
+		for (int i = 0; i < keys.length; ++i)
+			keys[i] = keyFactory.generate();
+
+		String prefix = policy + "/" + size + "/";
+		System.out.println(prefix + " table holds " + kbuckets.getAllNodes().size() + " nodes");
+
+		for (int nrThreads : threads) {
+			bench.run(prefix + "insert", nrThreads, new Bench.Op() {
+				@Override
+				public void run(int thread) {
+					kbuckets.insert(nodes[ThreadLocalRandom.current().nextInt(nodes.length)]);
+				}
+			});
+			bench.run(prefix + "getClosestNodesByKey", nrThreads, new Bench.Op() {
+				@Override
+				public void run(int thread) {
+					kbuckets.getClosestNodesByKey(keys[ThreadLocalRandom.current().nextInt(NR_KEYS)], K);
+				}
+			});
+			bench.run(prefix + "getClosestNodesByColor", nrThreads, new Bench.Op() {
+				@Override
+				public void run(int thread) {
+					kbuckets.getClosestNodesByColor(keys[ThreadLocalRandom.current().nextInt(NR_KEYS)], K);
+				}
+			});
+			bench.run(prefix + "getAllFromBucket", nrThreads, new Bench.Op() {
+				@Override
+				public void run(int thread) {
+					kbuckets.getAllFromBucket(keys[ThreadLocalRandom.current().nextInt(NR_KEYS)]);
+				}
+			});
+			bench.run(prefix + "getAllNodes", nrThreads, new Bench.Op() {
+				@Override
+				public void run(int thread) {
+					kbuckets.getAllNodes();
+				}
+			});
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = Bench.parseInts(args.length > 0 ? args[0] : "100,1000,10000,100000");
+		int[] threads = Bench.parseInts(args.length > 1 ? args[1] : "1,4,16");
+
+		Bench bench = new Bench();
+		for (String policy : new String[] { "stable", "slack" }) {
+			for (int size : sizes)
+				benchTable(bench, policy, size, threads);
+		}
+
+		if (args.length > 2) {
+			PrintStream out = new PrintStream(args[2]);
+			out.println(Bench.Result.csvHeader());
+			for (Bench.Result r : bench.getResults())
+				out.println(r.toCsv());
+			out.close();
+		}
+
+		// the injectors' timers are not daemons
+		System.exit(0);
+	}
+}
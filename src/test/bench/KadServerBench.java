@@ -0,0 +1,272 @@
+package test.bench;
+
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.MessageHandler;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+import il.technion.ewolf.kbr.openkad.msg.ContentMessage;
+import il.technion.ewolf.kbr.openkad.msg.ContentRequest;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.net.IncomingMessageRouter;
+import il.technion.ewolf.kbr.openkad.net.KadSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.Serializable;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Measures the receive path of a node: decoding a datagram, routing the
+ * message to its expecters and handling it, for ping, find node and content
+ * traffic. Everything runs over loopback in a single JVM.
+ *
+ * The "bypass" mode skips the socket and runs each stage in a loop on the
+ * calling threads: decode (serializer read), route (finding the expecters
+ * and calling the handlers, which includes sending the response) and both.
+ * The "socket" mode sends the pre-encoded datagrams to the node's udp port
+ * at a fixed rate and counts the messages the node routed, so the rate can
+ * be raised until messages start to drop.
+ *
+ * Responses are sent to a plain socket that only counts them.
+ *
+ * usage: KadServerBench [bypass|socket|all] [threads] [rate]
+ * for example: KadServerBench all 1,4 1000
+ *
+ */
+public class KadServerBench {
+
+	private static final String TAG = "bench";
+	private static final int POOL_SIZE = 64;
+
+	// dependencies
+	private final KadSerializer serializer;
+	private final IncomingMessageRouter router;
+	private final MetricsRegistry metrics;
+	private final int serverPort;
+
+	// state
+	private final Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>();
+	private final Map<String, KadMessage[]> decoded = new LinkedHashMap<String, KadMessage[]>();
+	private final AtomicLong nrResponses = new AtomicLong(0);
+	private final DatagramSocket sink;
+	private final KeybasedRouting server;
+
+	KadServerBench(int serverPort) throws Exception {
+		this.serverPort = serverPort;
+
+		File nodesFile = File.createTempFile("nodes", null);
+		nodesFile.deleteOnExit();
+		Injector serverInjector = Guice.createInjector(new KadNetModule()
+			.setProperty("openkad.net.udp.port", "" + serverPort)
+			.setProperty("openkad.file.nodes.path", nodesFile.getPath())
+			.setProperty("openkad.metrics.jmx", "false")
+			// measure the pipeline, not the executors' rejections
+			.setProperty("openkad.executors.server.max_pending", "1024")
+			.setProperty("openkad.executors.client.nrthreads", "4")
+			.setProperty("openkad.executors.client.max_pending", "1024"));
+
+		server = serverInjector.getInstance(KeybasedRouting.class);
+		server.create();
+		server.register(TAG, new MessageHandler() {
+			@Override
+			public void onIncomingMessage(Node from, String tag, Serializable content) {
+			}
+
+			@Override
+			public Serializable onIncomingRequest(Node from, String tag, Serializable content) {
+				return content;
+			}
+		});
+
+		serializer = serverInjector.getInstance(KadSerializer.class);
+		router = serverInjector.getInstance(IncomingMessageRouter.class);
+		metrics = serverInjector.getInstance(MetricsRegistry.class);
+
+		// the client is never created, it is only used to build its messages
+		Injector client = Guice.createInjector(new KadNetModule()
+			.setProperty("openkad.net.udp.port", "" + (serverPort + 1)));
+		sink = new DatagramSocket(serverPort + 1);
+		startSink();
+
+		String payload = "content of a typical application message, a few dozens of bytes";
+		add("ping", client.getInstance(PingRequest.class));
+		add("findNode", client.getInstance(FindNodeRequest.class)
+				.setKey(client.getInstance(KeybasedRouting.class).getKeyFactory().generate()));
+		add("contentMessage", client.getInstance(ContentMessage.class)
+				.setTag(TAG)
+				.setContent(payload));
+		add("contentRequest", client.getInstance(ContentRequest.class)
+				.setTag(TAG)
+				.setContent(payload));
+	}
+
+	private void add(String name, KadMessage msg) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		serializer.write(msg, bout);
+		byte[] bytes = bout.toByteArray();
+		encoded.put(name, bytes);
+
+		KadMessage[] pool = new KadMessage[POOL_SIZE];
+		for (int i = 0; i < pool.length; ++i)
+			pool[i] = serializer.read(new ByteArrayInputStream(bytes));
+		decoded.put(name, pool);
+		System.out.println(name + ": " + bytes.length + " bytes");
+	}
+
+	private void startSink() {
+		Thread t = new Thread("bench.sink") {
+			@Override
+			public void run() {
+				DatagramPacket pkt = new DatagramPacket(new byte[1024 * 64], 1024 * 64);
+				while (!sink.isClosed()) {
+					try {
+						sink.receive(pkt);
+						nrResponses.incrementAndGet();
+					} catch (Exception e) {
+						// closed
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void benchBypass(Bench bench, int[] threads) throws Exception {
+		for (final Map.Entry<String, byte[]> e : encoded.entrySet()) {
+			final byte[] bytes = e.getValue();
+			final KadMessage[] pool = decoded.get(e.getKey());
+
+			for (int nrThreads : threads) {
+				bench.run("decode/" + e.getKey(), nrThreads, new Bench.Op() {
+					@Override
+					public void run(int thread) throws Exception {
+						serializer.read(new ByteArrayInputStream(bytes));
+					}
+				});
+				bench.run("route/" + e.getKey(), nrThreads, new Bench.Op() {
+					@Override
+					public void run(int thread) {
+						router.route(pool[ThreadLocalRandom.current().nextInt(POOL_SIZE)]);
+					}
+				});
+				bench.run("decode+route/" + e.getKey(), nrThreads, new Bench.Op() {
+					@Override
+					public void run(int thread) throws Exception {
+						router.route(serializer.read(new ByteArrayInputStream(bytes)));
+					}
+				});
+			}
+		}
+	}
+
+	private long nrRouted(KadMessage msg) {
+		return metrics.counter("openkad.net.incoming." + msg.getClass().getSimpleName()).get();
+	}
+
+	/**
+	 * Waits until the node is done with all the messages it received
+	 */
+	private void awaitQuiet() throws InterruptedException {
+		long last = -1;
+		for (;;) {
+			long n = nrResponses.get();
+			for (KadMessage[] pool : decoded.values())
+				n += nrRouted(pool[0]);
+			if (n == last)
+				return;
+			last = n;
+			Thread.sleep(200);
+		}
+	}
+
+	void benchSocket(int rate, long warmupMillis, long measureMillis) throws Exception {
+		DatagramSocket sock = new DatagramSocket();
+		InetSocketAddress to = new InetSocketAddress("127.0.0.1", serverPort);
+		long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+		for (Map.Entry<String, byte[]> e : encoded.entrySet()) {
+			KadMessage msg = decoded.get(e.getKey())[0];
+			DatagramPacket pkt = new DatagramPacket(e.getValue(), e.getValue().length, to);
+			awaitQuiet();
+
+			long start = System.nanoTime();
+			long measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+			long measureEnd = measureStart + TimeUnit.MILLISECONDS.toNanos(measureMillis);
+			long routedBefore = -1;
+			long responsesBefore = -1;
+			long nrSent = 0;
+			for (long i = 0;; ++i) {
+				long due = start + i * periodNanos;
+				if (due >= measureEnd)
+					break;
+				if (routedBefore < 0 && due >= measureStart) {
+					routedBefore = nrRouted(msg);
+					responsesBefore = nrResponses.get();
+				}
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+				try {
+					sock.send(pkt);
+					if (due >= measureStart)
+						++nrSent;
+				} catch (SocketException exc) {
+					// send buffer full, counted as a drop
+				}
+			}
+			// only the messages handled in time count for the throughput
+			long nrRoutedMsgs = nrRouted(msg) - routedBefore;
+			long nrResponsesRecved = nrResponses.get() - responsesBefore;
+			double seconds = measureMillis / 1000.0;
+
+			// a message not handled at all was dropped by the socket or the executors
+			awaitQuiet();
+			long nrDropped = Math.max(0, nrSent - (nrRouted(msg) - routedBefore));
+
+			System.out.println(String.format(Locale.US,
+					"socket/%-20s target %8d msg/s sent %10.1f msg/s routed %10.1f msg/s responses %10.1f msg/s dropped %d",
+					e.getKey(), rate, nrSent / seconds, nrRoutedMsgs / seconds,
+					nrResponsesRecved / seconds, nrDropped));
+		}
+		sock.close();
+	}
+
+	void shutdown() {
+		server.shutdown();
+		sink.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "all";
+		int[] threads = Bench.parseInts(args.length > 1 ? args[1] : "1,4");
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		KadServerBench b = new KadServerBench(31000);
+		if (!"socket".equals(mode))
+			b.benchBypass(new Bench(), threads);
+		if (!"bypass".equals(mode))
+			b.benchSocket(rate, 1000, 2000);
+
+		b.shutdown();
+		// the injectors' timers are not daemons
+		System.exit(0);
+	}
+}
@@ -0,0 +1,340 @@
+package test.bench;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.MessageHandler;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.SimNetModule;
+import il.technion.ewolf.kbr.openkad.metrics.Histogram;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+import il.technion.ewolf.kbr.openkad.net.SimNetwork;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.gson.GsonBuilder;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+/**
+ * Drives a sustained findNode or sendRequest load at a cluster and reports
+ * the lookups latency percentiles, throughput, messages per lookup and the
+ * hops and cache hits counted by the testing bindings.
+ *
+ * Lookups are issued at a fixed rate, independently of the responses, and
+ * their latency is measured from the time they were due. So a cluster that
+ * can not keep up shows in the latency instead of silently lowering the rate.
+ *
+ * usage: LoadGenerator [-option value]...
+ * <pre>
+ * -nodes      number of local nodes (16)
+ * -port       udp port of the first local node (30000)
+ * -join       comma separated bootstrap uris of an existing cluster, if not
+ *             given the local nodes form their own cluster
+ * -sim        true to run the local nodes over an in memory network (false)
+ * -op         findNode or sendRequest (findNode), sendRequest targets the
+ *             local nodes only
+ * -dist       uniform or zipf (uniform)
+ * -zipf       the zipf exponent (1.0)
+ * -keys       number of distinct keys (10000)
+ * -rate       lookups per second (100)
+ * -threads    max concurrent lookups (64)
+ * -warmup     warmup seconds (5)
+ * -duration   measured seconds (30)
+ * -out        result file, .json or .csv
+ * </pre>
+ *
+ */
+public class LoadGenerator {
+
+	private static final String TAG = "loadgen";
+
+	private static final String[] COUNTERS = {
+		"openkad.testing.nrIncomingMessages",
+		"openkad.testing.nrLocalCacheHits",
+		"openkad.testing.nrNearestCacheHits",
+		"openkad.testing.remoteCacheHits",
+		"openkad.testing.nrFindnodeHits",
+		"openkad.testing.nrFindnodeMiss"
+	};
+
+	private static final String HOPS = "openkad.testing.findNodeHopsHistogram";
+
+	// settings
+	private final Map<String, String> options = new HashMap<String, String>();
+
+	// state
+	private final List<KeybasedRouting> kbrs = new ArrayList<KeybasedRouting>();
+	private final List<MetricsRegistry> metrics = new ArrayList<MetricsRegistry>();
+	private SimNetwork network = null;
+	private Key[] keys;
+	private double[] zipfCdf = null;
+
+	// results
+	private final Histogram latency = new Histogram();
+	private final AtomicLong nrErrors = new AtomicLong(0);
+
+	LoadGenerator(String[] args) {
+		options.put("nodes", "16");
+		options.put("port", "30000");
+		options.put("sim", "false");
+		options.put("op", "findNode");
+		options.put("dist", "uniform");
+		options.put("zipf", "1.0");
+		options.put("keys", "10000");
+		options.put("rate", "100");
+		options.put("threads", "64");
+		options.put("warmup", "5");
+		options.put("duration", "30");
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("-") || !options.containsKey(args[i].substring(1)) &&
+					!"-join".equals(args[i]) && !"-out".equals(args[i]))
+				throw new IllegalArgumentException("unknown option: " + args[i]);
+			options.put(args[i].substring(1), args[i + 1]);
+		}
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	private void startNodes() throws Exception {
+		int nrNodes = intOption("nodes");
+		int basePort = intOption("port");
+		if (Boolean.parseBoolean(options.get("sim")))
+			network = new SimNetwork();
+
+		for (int i = 0; i < nrNodes; ++i) {
+			File nodesFile = File.createTempFile("nodes", null);
+			nodesFile.deleteOnExit();
+			KadNetModule module = new KadNetModule()
+				.setProperty("openkad.file.nodes.path", nodesFile.getPath())
+				.setProperty("openkad.metrics.jmx", "false")
+				.setProperty("openkad.net.udp.port", "" + (basePort + i));
+			Module m = network == null ? module : SimNetModule.override(module, network);
+
+			Injector injector = Guice.createInjector(m);
+			KeybasedRouting kbr = injector.getInstance(KeybasedRouting.class);
+			kbr.create();
+			kbr.register(TAG, new MessageHandler() {
+				@Override
+				public void onIncomingMessage(Node from, String tag, Serializable content) {
+				}
+
+				@Override
+				public Serializable onIncomingRequest(Node from, String tag, Serializable content) {
+					return content;
+				}
+			});
+			kbrs.add(kbr);
+			metrics.add(injector.getInstance(MetricsRegistry.class));
+		}
+
+		List<URI> bootstraps = new ArrayList<URI>();
+		if (options.containsKey("join")) {
+			for (String uri : options.get("join").split(","))
+				bootstraps.add(new URI(uri.trim()));
+		} else {
+			bootstraps.add(new URI("openkad.udp://127.0.0.1:" + basePort + "/"));
+		}
+		for (int i = options.containsKey("join") ? 0 : 1; i < kbrs.size(); ++i)
+			kbrs.get(i).join(bootstraps);
+	}
+
+	private void createKeys() {
+		int nrKeys = intOption("keys");
+		keys = new Key[nrKeys];
+		for (int i = 0; i < nrKeys; ++i)
+			keys[i] = kbrs.get(0).getKeyFactory().create(TAG, "" + i);
+
+		if (!"zipf".equals(options.get("dist")))
+			return;
+
+		// the i-th key is chosen with probability proportional to 1/i^s
+		double s = Double.parseDouble(options.get("zipf"));
+		zipfCdf = new double[nrKeys];
+		double sum = 0;
+		for (int i = 0; i < nrKeys; ++i) {
+			sum += 1.0 / Math.pow(i + 1, s);
+			zipfCdf[i] = sum;
+		}
+		for (int i = 0; i < nrKeys; ++i)
+			zipfCdf[i] /= sum;
+	}
+
+	private Key nextKey() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		if (zipfCdf == null)
+			return keys[rnd.nextInt(keys.length)];
+		int i = Arrays.binarySearch(zipfCdf, rnd.nextDouble());
+		if (i < 0)
+			i = -i - 1;
+		return keys[Math.min(i, keys.length - 1)];
+	}
+
+	private void lookup() throws Exception {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		KeybasedRouting from = kbrs.get(rnd.nextInt(kbrs.size()));
+		if ("sendRequest".equals(options.get("op"))) {
+			Node to = kbrs.get(rnd.nextInt(kbrs.size())).getLocalNode();
+			from.sendRequest(to, TAG, rnd.nextLong()).get();
+		} else if (from.findNode(nextKey()).isEmpty()) {
+			nrErrors.incrementAndGet();
+		}
+	}
+
+	private Map<String, Long> sumCounters() {
+		Map<String, Long> $ = new LinkedHashMap<String, Long>();
+		for (String name : COUNTERS) {
+			long sum = 0;
+			for (MetricsRegistry m : metrics)
+				sum += m.counter(name).get();
+			$.put(name, sum);
+		}
+		return $;
+	}
+
+	/**
+	 * Issues lookups at the configured rate until the measurement ends
+	 * @return the results by name
+	 */
+	Map<String, Object> run() throws Exception {
+		final long periodNanos = TimeUnit.SECONDS.toNanos(1) / intOption("rate");
+		final long start = System.nanoTime();
+		final long measureStart = start + TimeUnit.SECONDS.toNanos(intOption("warmup"));
+		final long measureEnd = measureStart + TimeUnit.SECONDS.toNanos(intOption("duration"));
+		ExecutorService executor = Executors.newFixedThreadPool(intOption("threads"));
+
+		Map<String, Long> countersBefore = null;
+		long nrMeasured = 0;
+		for (long i = 0;; ++i) {
+			final long due = start + i * periodNanos;
+			if (due >= measureEnd)
+				break;
+			if (countersBefore == null && due >= measureStart) {
+				countersBefore = sumCounters();
+				for (MetricsRegistry m : metrics)
+					m.histogram(HOPS).reset();
+			}
+
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+
+			final boolean measured = due >= measureStart;
+			if (measured)
+				++nrMeasured;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						lookup();
+					} catch (Exception e) {
+						nrErrors.incrementAndGet();
+					}
+					if (measured)
+						latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		long elapsedNanos = System.nanoTime() - measureStart;
+		if (countersBefore == null)
+			countersBefore = sumCounters();
+		Map<String, Long> countersAfter = sumCounters();
+
+		Map<String, Object> $ = new LinkedHashMap<String, Object>();
+		$.put("op", options.get("op"));
+		$.put("dist", options.get("dist"));
+		$.put("nodes", kbrs.size());
+		$.put("target_rate", intOption("rate"));
+		$.put("lookups", nrMeasured);
+		$.put("errors", nrErrors.get());
+		$.put("throughput", nrMeasured * 1e9 / elapsedNanos);
+		$.put("latency_p50_us", latency.getPercentile(50));
+		$.put("latency_p99_us", latency.getPercentile(99));
+		$.put("latency_p999_us", latency.getPercentile(99.9));
+		$.put("latency_max_us", latency.getMax());
+
+		long nrMessages = countersAfter.get(COUNTERS[0]) - countersBefore.get(COUNTERS[0]);
+		$.put("messages_per_lookup", nrMeasured == 0 ? 0 : (double) nrMessages / nrMeasured);
+		for (String name : COUNTERS)
+			$.put(name, countersAfter.get(name) - countersBefore.get(name));
+
+		long nrHops = 0;
+		double hopsSum = 0;
+		long maxHops = 0;
+		for (MetricsRegistry m : metrics) {
+			Histogram h = m.histogram(HOPS);
+			nrHops += h.getCount();
+			hopsSum += h.getMean() * h.getCount();
+			maxHops = Math.max(maxHops, h.getMax());
+		}
+		$.put(HOPS + ".mean", nrHops == 0 ? 0 : hopsSum / nrHops);
+		$.put(HOPS + ".max", maxHops);
+		return $;
+	}
+
+	private static void write(Map<String, Object> results, String path) throws Exception {
+		PrintStream out = new PrintStream(path);
+		if (path.endsWith(".json")) {
+			out.println(new GsonBuilder().setPrettyPrinting().create().toJson(results));
+		} else {
+			out.println(join(results.keySet()));
+			out.println(join(results.values()));
+		}
+		out.close();
+	}
+
+	private static String join(Collection<?> values) {
+		StringBuilder sb = new StringBuilder();
+		for (Object v : values) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(v instanceof Double ? String.format(Locale.US, "%.3f", v) : v);
+		}
+		return sb.toString();
+	}
+
+	void shutdown() {
+		for (KeybasedRouting kbr : kbrs)
+			kbr.shutdown();
+		if (network != null)
+			network.shutdown();
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator gen = new LoadGenerator(args);
+		gen.startNodes();
+		gen.createKeys();
+
+		Map<String, Object> results = gen.run();
+		for (Map.Entry<String, Object> e : results.entrySet())
+			System.out.println(e.getKey() + " = " + e.getValue());
+		if (gen.options.containsKey("out"))
+			write(results, gen.options.get("out"));
+
+		gen.shutdown();
+		System.exit(0);
+	}
+}
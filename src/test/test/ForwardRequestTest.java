@@ -0,0 +1,85 @@
+package test.test;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
+import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.net.Communicator;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.SimNetwork;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Injector;
+import com.google.inject.TypeLiteral;
+
+public class ForwardRequestTest extends SimNetworkFixture {
+
+	@Before
+	public void createNetwork() throws Exception {
+		createNodes(new SimNetwork(1, 2)
+			.setLatency(1, 5, TimeUnit.MILLISECONDS), 16);
+	}
+
+	/**
+	 * Sends forward requests for the targets' keys from the first node to the
+	 * relay, and checks that each one was answered with its target
+	 */
+	private void assertForwardsFound(Node relay, List<Node> targets) throws Exception {
+		Injector injector = injectors.get(0);
+		List<Future<KadMessage>> results = new ArrayList<Future<KadMessage>>();
+		for (Node target : targets) {
+			ForwardRequest req = injector.getInstance(ForwardRequest.class)
+				.setKey(target.getKey())
+				.setBootstrap(new ArrayList<Node>());
+			results.add(injector.getInstance(com.google.inject.Key.get(new TypeLiteral<MessageDispatcher<Void>>() {}))
+				.setConsumable(true)
+				.addFilter(new IdMessageFilter(req.getId()))
+				.addFilter(new TypeMessageFilter(ForwardMessage.class))
+				.setTimeout(30, TimeUnit.SECONDS)
+				.futureRegister());
+			injector.getInstance(Communicator.class).send(relay, req);
+		}
+
+		for (int i = 0; i < results.size(); ++i) {
+			ForwardMessage msg = (ForwardMessage) results.get(i).get();
+			Assert.assertFalse(msg.isNack());
+			Assert.assertEquals(targets.get(i), msg.getNodes().get(0));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void concurrentForwardRequestsShouldAllBeResolved() throws Exception {
+		List<Node> targets = new ArrayList<Node>();
+		for (int i = 0; i < 64; ++i)
+			targets.add(kbrs.get(i % kbrs.size()).getLocalNode());
+		assertForwardsFound(kbrs.get(1).getLocalNode(), targets);
+
+		MetricsRegistry relayMetrics = injectors.get(1).getInstance(MetricsRegistry.class);
+		Assert.assertEquals(0, relayMetrics.counter("openkad.testing.nrNacksSent").get());
+		Assert.assertEquals(0, relayMetrics.intGauge("openkad.testing.nrForwardsInFlight").get());
+	}
+
+	@Test(timeout = 60000)
+	public void forwardRequestsForTheSameKeyShouldShareOneLookup() throws Exception {
+		List<Node> targets = new ArrayList<Node>();
+		for (int i = 0; i < 32; ++i)
+			targets.add(kbrs.get(7).getLocalNode());
+		assertForwardsFound(kbrs.get(1).getLocalNode(), targets);
+
+		MetricsRegistry relayMetrics = injectors.get(1).getInstance(MetricsRegistry.class);
+		Assert.assertTrue(relayMetrics.counter("openkad.testing.nrAttachedForwards").get() > 0);
+		Assert.assertEquals(0, relayMetrics.counter("openkad.testing.nrNacksSent").get());
+	}
+}
@@ -0,0 +1,83 @@
+package test.test;
+
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.op.HedgePolicy;
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class HedgePolicyTest {
+
+	private KeyFactory keyFactory;
+
+	private HedgePolicy createPolicy(String budget) {
+		Injector injector = Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.hedge.percentile", "90")
+				.setProperty("openkad.hedge.min_samples", "4")
+				.setProperty("openkad.hedge.budget", budget)
+				.setProperty("openkad.hedge.max_burst", "2"));
+		keyFactory = injector.getInstance(KeyFactory.class);
+		return injector.getInstance(HedgePolicy.class);
+	}
+
+	@Test
+	public void itShouldUseThePercentileOfEachNode() {
+		HedgePolicy policy = createPolicy("0.1");
+		Node fast = new Node(keyFactory.generate());
+		Node slow = new Node(keyFactory.generate());
+		Node unknown = new Node(keyFactory.generate());
+
+		Assert.assertEquals(-1, policy.getHedgeDelay(fast));
+		for (int i = 1; i <= 10; ++i) {
+			policy.record(fast, i * 100);
+			policy.record(slow, i * 10000);
+		}
+		Assert.assertEquals(900, policy.getHedgeDelay(fast));
+		Assert.assertEquals(90000, policy.getHedgeDelay(slow));
+
+		// nodes without enough samples use the percentile of all the nodes
+		long all = policy.getHedgeDelay(unknown);
+		Assert.assertTrue(all > 900 && all <= 90000);
+	}
+
+	@Test
+	public void itShouldForgetOldResponseTimesOfAllTheNodes() {
+		HedgePolicy policy = createPolicy("0.1");
+		Node unknown = new Node(keyFactory.generate());
+
+		for (int i = 0; i < 1000; ++i)
+			policy.record(new Node(keyFactory.generate()), 100000);
+		Assert.assertEquals(100000, policy.getHedgeDelay(unknown));
+
+		// the network became faster
+		for (int i = 0; i < 1000; ++i)
+			policy.record(new Node(keyFactory.generate()), 1000);
+		Assert.assertEquals(1000, policy.getHedgeDelay(unknown));
+	}
+
+	@Test
+	public void hedgesShouldNotExceedTheBudget() {
+		HedgePolicy policy = createPolicy("0.1");
+		Assert.assertFalse(policy.tryHedge());
+
+		int nrHedges = 0;
+		for (int i = 0; i < 100; ++i) {
+			policy.requestSent();
+			if (policy.tryHedge())
+				++nrHedges;
+		}
+		Assert.assertTrue(nrHedges >= 9 && nrHedges <= 10);
+
+		// unused budget is saved up to max_burst
+		for (int i = 0; i < 100; ++i)
+			policy.requestSent();
+		Assert.assertTrue(policy.tryHedge());
+		Assert.assertTrue(policy.tryHedge());
+		Assert.assertFalse(policy.tryHedge());
+	}
+}
@@ -0,0 +1,78 @@
+package test.test;
+
+import static ch.lambdaj.Lambda.on;
+import static ch.lambdaj.Lambda.sort;
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyColorComparator;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class KadBucketsTest {
+
+	private static final int NR_COLORS = 10;
+
+	private Injector injector;
+	private KadBuckets kbuckets;
+	private KeyFactory keyFactory;
+
+	@Before
+	public void setup() {
+		injector = Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.color.nrcolors", "" + NR_COLORS)
+				.setProperty("openkad.seed", "1"));
+		kbuckets = injector.getInstance(KadBuckets.class);
+		keyFactory = injector.getInstance(KeyFactory.class);
+	}
+
+	private void insertNodes(int nrNodes) {
+		for (int i = 0; i < nrNodes; ++i) {
+			kbuckets.insert(injector.getInstance(KadNode.class)
+					.setNode(new Node(keyFactory.generate()))
+					.setNodeWasContacted());
+		}
+	}
+
+	@Test
+	public void itShouldReturnTheSameNodesAsSortingByColor() {
+		insertNodes(300);
+		List<Node> all = kbuckets.getAllNodes();
+
+		for (int i = 0; i < 20; ++i) {
+			Key key = keyFactory.generate();
+			List<Node> expected = sort(all, on(Node.class).getKey(), new KeyColorComparator(key, NR_COLORS));
+			Assert.assertEquals(expected, kbuckets.getClosestNodesByColor(key, all.size()));
+		}
+	}
+
+	@Test
+	public void theColorIndexShouldFollowTheBucketChanges() {
+		Key key = keyFactory.generate();
+		Assert.assertTrue(kbuckets.getAllFromBucketByColor(key, key.getColor(NR_COLORS)).isEmpty());
+
+		insertNodes(300);
+		for (int color = 0; color < NR_COLORS; ++color) {
+			List<Node> expected = new ArrayList<Node>();
+			for (Node n : kbuckets.getAllFromBucket(key)) {
+				if (n.getKey().getColor(NR_COLORS) == color)
+					expected.add(n);
+			}
+			List<Node> found = kbuckets.getAllFromBucketByColor(key, color);
+			Assert.assertEquals(expected.size(), found.size());
+			Assert.assertTrue(found.containsAll(expected));
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package test.test;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.inject.Guice;
+
+public class KeyTest {
+
+	private final KeyFactory keyFactory = Guice.createInjector(new KadNetModule()
+			.setProperty("openkad.seed", "1"))
+			.getInstance(KeyFactory.class);
+
+	@Test
+	public void keysShouldHaveDifferentColors() {
+		Set<Integer> colors = new HashSet<Integer>();
+		for (int i = 0; i < 200; ++i) {
+			Key key = keyFactory.generate();
+			int color = key.getColor(10);
+			Assert.assertEquals(Math.abs(key.getInt().intValue()) % 10, color);
+			// the second call returns the cached color
+			Assert.assertEquals(color, key.getColor(10));
+			colors.add(color);
+		}
+		Assert.assertEquals(10, colors.size());
+	}
+
+	@Test
+	public void theColorShouldDependOnTheNumberOfColors() throws Exception {
+		Key key = keyFactory.generate();
+		int expected = Math.abs(key.getInt().intValue()) % 7;
+		key.getColor(10);
+		Assert.assertEquals(expected, key.getColor(7));
+
+		// the cached color is not serialized
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bout);
+		out.writeObject(key);
+		out.close();
+		Key copy = (Key) new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+		Assert.assertEquals(expected, copy.getColor(7));
+	}
+}
@@ -258,7 +258,7 @@ public class KeybasedRoutingTest {
 		System.out.println("finished joining");
 
 		for (int j = 0; j < stats.size(); ++j) {
-			stats.get(j).nrHandledMsgs.set(0);
+			stats.get(j).nrHandledMsgs.reset();
 		}
 
 		for (int i = 0; i < kbrs.size(); ++i) {
@@ -280,9 +280,9 @@ public class KeybasedRoutingTest {
 			Assert.assertEquals(1, findNodeResults.size());
 		}
 
-		int total = 0;
+		long total = 0;
 		for (int j = 0; j < stats.size(); ++j) {
-			int curr = stats.get(j).nrHandledMsgs.get();
+			long curr = stats.get(j).nrHandledMsgs.get();
 			System.out.println("node: " + j + " nrHandledMsgs: " + curr);
 			total += curr;
 		}
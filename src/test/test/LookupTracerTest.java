@@ -0,0 +1,69 @@
+package test.test;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.op.LookupTrace;
+import il.technion.ewolf.kbr.openkad.op.LookupTracer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class LookupTracerTest {
+
+	private Injector createInjector(String sampleRate) {
+		return Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.trace.sample_rate", sampleRate)
+				.setProperty("openkad.trace.buffer_size", "4"));
+	}
+
+	@Test
+	public void itShouldNotTraceWhenNotSampled() {
+		Injector injector = createInjector("0");
+		LookupTracer tracer = injector.getInstance(LookupTracer.class);
+		Key key = injector.getInstance(KeyFactory.class).generate();
+
+		Assert.assertNull(tracer.startTrace("findNode", key));
+		tracer.finishTrace(null, 0);
+		Assert.assertTrue(tracer.dump().isEmpty());
+	}
+
+	@Test
+	public void itShouldRecordRpcsAndKeepTheLastTraces() {
+		Injector injector = createInjector("1");
+		LookupTracer tracer = injector.getInstance(LookupTracer.class);
+		KeyFactory keyFactory = injector.getInstance(KeyFactory.class);
+		Key key = keyFactory.generate();
+
+		Node far = new Node(keyFactory.generate());
+		Node closer = new Node(keyFactory.generate());
+		LookupTrace trace = tracer.startTrace("findNode", key);
+		trace.started(Arrays.asList(far));
+		trace.sent(far);
+		trace.sent(closer);
+		trace.responded(far, Arrays.asList(closer));
+		trace.failed(closer);
+		tracer.finishTrace(trace, 1);
+
+		List<LookupTrace.Rpc> rpcs = trace.getRpcs();
+		Assert.assertEquals(2, rpcs.size());
+		Assert.assertFalse(rpcs.get(0).isTimeout());
+		Assert.assertTrue(rpcs.get(0).getImprovement() >= 0);
+		Assert.assertTrue(rpcs.get(1).isTimeout());
+
+		for (int i = 0; i < 5; ++i)
+			tracer.finishTrace(tracer.startTrace("findNode", keyFactory.generate()), 0);
+
+		List<LookupTrace> traces = tracer.dump();
+		Assert.assertEquals(4, traces.size());
+		Assert.assertFalse(traces.contains(trace));
+	}
+}
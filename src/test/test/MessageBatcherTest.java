@@ -0,0 +1,79 @@
+package test.test;
+
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.msg.EnvelopeMessage;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.net.KadSerializer;
+import il.technion.ewolf.kbr.openkad.net.MessageBatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class MessageBatcherTest {
+
+	private static final int MAX_BYTES = 1400;
+
+	@Test
+	public void packetsShouldNotExceedTheBudget() throws Exception {
+		final Injector injector = Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.net.udp.port", "5555")
+				// long enough for the batches to be sent only when full or flushed
+				.setProperty("openkad.net.batch.window", "" + 60 * 60 * 1000)
+				.setProperty("openkad.net.batch.max_bytes", "" + MAX_BYTES));
+		final KadSerializer serializer = injector.getInstance(KadSerializer.class);
+		final List<KadMessage> received = new ArrayList<KadMessage>();
+		final List<Integer> envelopeSizes = new ArrayList<Integer>();
+
+		MessageBatcher.Sender sender = new MessageBatcher.Sender() {
+			@Override
+			public int send(Node to, KadMessage msg, int maxBytes) throws IOException {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				serializer.write(msg, bout);
+				if (bout.size() > maxBytes)
+					return bout.size();
+				if (msg instanceof EnvelopeMessage) {
+					envelopeSizes.add(bout.size());
+					received.addAll(((EnvelopeMessage) msg).getMessages());
+				} else {
+					received.add(msg);
+				}
+				return bout.size();
+			}
+		};
+
+		MessageBatcher batcher = injector.getInstance(MessageBatcher.class);
+		Node to = new Node(injector.getInstance(KeyFactory.class).generate());
+		to.setInetAddress(InetAddress.getByName("127.0.0.1"));
+		to.addEndpoint("openkad.udp", 6666);
+
+		List<KadMessage> sent = new ArrayList<KadMessage>();
+		for (int i = 0; i < 100; ++i) {
+			KadMessage msg = i % 10 == 0
+					? injector.getInstance(FindNodeRequest.class).setKey(injector.getInstance(KeyFactory.class).generate())
+					: injector.getInstance(PingRequest.class);
+			sent.add(msg);
+			batcher.add(to, msg, sender);
+		}
+		// waiting messages are sent on shutdown
+		batcher.flushAll();
+
+		Assert.assertEquals(sent, received);
+		Assert.assertTrue(envelopeSizes.size() > 1);
+		for (int size : envelopeSizes)
+			Assert.assertTrue(size <= MAX_BYTES);
+	}
+}
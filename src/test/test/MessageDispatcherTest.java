@@ -7,16 +7,20 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.TimerScheduler;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.KadRequest;
 import il.technion.ewolf.kbr.openkad.net.Communicator;
 import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
 
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Timer;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -52,8 +56,8 @@ public class MessageDispatcherTest {
 		timeout = 100;
 
 		dispatcher = new MessageDispatcher<Object>(mockedOutstandingRequests,
-				mockedExpecters, mockedNonConsumableExpecters, mockedTimer,
-				timeout, mockedKadServer);
+				new ConcurrentLinkedDeque<MessageDispatcher<?>>(), mockedExpecters, mockedNonConsumableExpecters, new TimerScheduler(mockedTimer),
+				timeout, mockedKadServer, new MetricsRegistry());
 	}
 
 	@Test
@@ -62,7 +66,7 @@ public class MessageDispatcherTest {
 
 		dispatcher.setConsumable(true).send(mockedNode, mockedRequest);
 
-		verify(mockedOutstandingRequests).put(dispatcher);
+		verify(mockedOutstandingRequests).offer(dispatcher);
 		verify(mockedKadServer, times(1)).send(mockedNode, mockedRequest);
 	}
 
@@ -88,7 +92,7 @@ public class MessageDispatcherTest {
 
 		dispatcher.handle(msg);
 
-		verify(mockedOutstandingRequests, never()).put(dispatcher);
+		verify(mockedOutstandingRequests, never()).offer(dispatcher);
 		verify(mockedExpecters, never()).remove(dispatcher);
 		verify(mockedNonConsumableExpecters, never()).remove(dispatcher);
 	}
@@ -102,7 +106,7 @@ public class MessageDispatcherTest {
 
 		dispatcher.handle(msg);
 
-		verify(mockedOutstandingRequests, never()).put(dispatcher);
+		verify(mockedOutstandingRequests, never()).offer(dispatcher);
 		verify(mockedExpecters, times(1)).remove(dispatcher);
 	}
 
@@ -203,4 +207,30 @@ public class MessageDispatcherTest {
 
 		f.get();
 	}
+
+	@Test
+	public void itShouldSendPendingRequestWhenAnOutstandingRequestIsDone()
+			throws Exception {
+		BlockingQueue<MessageDispatcher<?>> outstandingRequests = new ArrayBlockingQueue<MessageDispatcher<?>>(1);
+		Deque<MessageDispatcher<?>> pendingRequests = new ConcurrentLinkedDeque<MessageDispatcher<?>>();
+		MessageDispatcher<Object> first = new MessageDispatcher<Object>(outstandingRequests,
+				pendingRequests, mockedExpecters, mockedNonConsumableExpecters, new TimerScheduler(mockedTimer),
+				timeout, mockedKadServer, new MetricsRegistry());
+		MessageDispatcher<Object> second = new MessageDispatcher<Object>(outstandingRequests,
+				pendingRequests, mockedExpecters, mockedNonConsumableExpecters, new TimerScheduler(mockedTimer),
+				timeout, mockedKadServer, new MetricsRegistry());
+		KadRequest otherRequest = mock(KadRequest.class);
+
+		first.asyncSend(mockedNode, mockedRequest);
+		second.asyncSend(mockedNode, otherRequest);
+
+		verify(mockedKadServer, never()).send(mockedNode, otherRequest);
+		Assert.assertTrue(pendingRequests.contains(second));
+
+		first.handle(mock(KadMessage.class));
+
+		verify(mockedKadServer, times(1)).send(mockedNode, otherRequest);
+		Assert.assertTrue(pendingRequests.isEmpty());
+		Assert.assertTrue(outstandingRequests.contains(second));
+	}
 }
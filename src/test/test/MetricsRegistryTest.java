@@ -0,0 +1,84 @@
+package test.test;
+
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
+import il.technion.ewolf.kbr.openkad.metrics.Histogram;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+	private MetricsRegistry metrics;
+
+	@Before
+	public void setup() {
+		metrics = new MetricsRegistry();
+	}
+
+	@Test
+	public void itShouldReturnTheSameMetricForTheSameName() {
+		Assert.assertSame(metrics.counter("a"), metrics.counter("a"));
+		Assert.assertSame(metrics.histogram("b"), metrics.histogram("b"));
+	}
+
+	@Test
+	public void itShouldNameMetricsByClassAfterTheClass() {
+		Assert.assertSame(metrics.counter("a.String"), metrics.counter("a.", String.class));
+		Assert.assertSame(metrics.counter("a.", String.class), metrics.counter("a.", String.class));
+		Assert.assertSame(metrics.histogram("b.Integer"), metrics.histogram("b.", Integer.class));
+	}
+
+	@Test
+	public void itShouldCountFromManyThreads() throws Exception {
+		final Counter counter = metrics.counter("c");
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; ++j)
+						counter.increment();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		Assert.assertEquals(40000, counter.get());
+	}
+
+	@Test
+	public void itShouldEstimatePercentilesWithinFewPercents() {
+		Histogram h = metrics.histogram("h");
+		for (int i = 1; i <= 100000; ++i)
+			h.record(i);
+
+		Assert.assertEquals(100000, h.getCount());
+		Assert.assertEquals(100000, h.getMax());
+		Assert.assertEquals(50000.5, h.getMean(), 0.001);
+		Assert.assertEquals(50000, h.getPercentile(50), 50000 * 0.04);
+		Assert.assertEquals(99000, h.getPercentile(99), 99000 * 0.04);
+	}
+
+	@Test
+	public void itShouldExportOverJmx() throws Exception {
+		metrics.counter("nrSent").add(3);
+		metrics.histogram("latency").record(7);
+		metrics.registerMBean("test.test:type=MetricsRegistryTest");
+		try {
+			ObjectName name = new ObjectName("test.test:type=MetricsRegistryTest");
+			Assert.assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "nrSent"));
+			Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "latency.count"));
+		} finally {
+			metrics.unregisterMBean();
+		}
+	}
+}
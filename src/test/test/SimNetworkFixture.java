@@ -0,0 +1,109 @@
+package test.test;
+
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.SimNetModule;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+import il.technion.ewolf.kbr.openkad.net.SimNetwork;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Nodes over a simulated network, shut down after each test.
+ * Every test gets its own network, so all of them use the same ports.
+ *
+ */
+public abstract class SimNetworkFixture {
+
+	private static final int BASE_PORT = 20000;
+
+	protected final List<KeybasedRouting> kbrs = new ArrayList<KeybasedRouting>();
+	protected final List<Injector> injectors = new ArrayList<Injector>();
+	private final List<File> storeDirs = new ArrayList<File>();
+	protected SimNetwork network;
+
+	/**
+	 * Creates nodes over the network and joins them to the first one
+	 * @param network the network the nodes communicate over
+	 * @param nrNodes number of nodes to create
+	 * @param properties pairs of property name and value set on every node
+	 */
+	protected void createNodes(SimNetwork network, int nrNodes, String... properties) throws Exception {
+		this.network = network;
+		for (int i = 0; i < nrNodes; ++i) {
+			File nodesFile = File.createTempFile("nodes", null);
+			nodesFile.deleteOnExit();
+			File storeDir = new File(nodesFile.getPath() + ".store");
+			storeDirs.add(storeDir);
+			KadNetModule module = new KadNetModule();
+			for (int j = 0; j + 1 < properties.length; j += 2)
+				module.setProperty(properties[j], properties[j + 1]);
+			Injector injector = Guice.createInjector(SimNetModule.override(module
+					.setProperty("openkad.keyfactory.keysize", "4")
+					.setProperty("openkad.bucket.kbuckets.maxsize", "5")
+					.setProperty("openkad.file.nodes.path", nodesFile.getPath())
+					.setProperty("openkad.store.path", storeDir.getPath())
+					.setProperty("openkad.seed", "" + (i + BASE_PORT))
+					.setProperty("openkad.net.udp.port", "" + (i + BASE_PORT)), network));
+			KeybasedRouting kbr = injector.getInstance(KeybasedRouting.class);
+			kbr.create();
+			kbrs.add(kbr);
+			injectors.add(injector);
+		}
+
+		for (int i = 1; i < kbrs.size(); ++i)
+			kbrs.get(i).join(Arrays.asList(new URI("openkad.udp://127.0.0.1:" + BASE_PORT + "/")));
+	}
+
+	protected void assertAllFound() {
+		for (int i = 0; i < kbrs.size(); ++i) {
+			KeybasedRouting from = kbrs.get((i * 7 + 3) % kbrs.size());
+			Node target = kbrs.get(i).getLocalNode();
+			List<Node> found = from.findNode(target.getKey());
+			Assert.assertEquals(target, found.get(0));
+		}
+	}
+
+	/**
+	 * @return the sum of the named counter over all the nodes
+	 */
+	protected long sumCounters(String name) {
+		long $ = 0;
+		for (Injector injector : injectors)
+			$ += injector.getInstance(MetricsRegistry.class).counter(name).get();
+		return $;
+	}
+
+	@After
+	public void shutdown() {
+		for (KeybasedRouting kbr : kbrs)
+			kbr.shutdown();
+		kbrs.clear();
+		injectors.clear();
+		if (network != null)
+			network.shutdown();
+		network = null;
+		for (File dir : storeDirs)
+			delete(dir);
+		storeDirs.clear();
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i)
+			delete(files[i]);
+		f.delete();
+	}
+}
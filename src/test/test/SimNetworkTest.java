@@ -0,0 +1,49 @@
+package test.test;
+
+import il.technion.ewolf.kbr.openkad.net.SimNetwork;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class SimNetworkTest extends SimNetworkFixture {
+
+	@Test(timeout = 60000)
+	public void nodesShouldFindEachOtherOverTheSimulatedNetwork() throws Exception {
+		createNodes(new SimNetwork(1, 2), 32);
+		Assert.assertEquals(32, network.getNrNodes());
+		assertAllFound();
+		Assert.assertTrue(network.getNrDelivered() > 0);
+	}
+
+	@Test(timeout = 60000)
+	public void nodesShouldFindEachOtherWithLatencyAndSerialization() throws Exception {
+		createNodes(new SimNetwork(1, 2)
+			.setLatency(1, 5, TimeUnit.MILLISECONDS)
+			.setSerialize(true), 16);
+		assertAllFound();
+	}
+
+	@Test(timeout = 60000)
+	public void batchedMessagesShouldBeDeliveredInEnvelopes() throws Exception {
+		createNodes(new SimNetwork(1, 2)
+			.setLatency(1, 5, TimeUnit.MILLISECONDS)
+			.setSerialize(true), 16,
+				"openkad.net.batch.window", "5");
+		assertAllFound();
+		Assert.assertTrue(sumCounters("openkad.testing.nrEnvelopesSent") > 0);
+	}
+
+	@Test(timeout = 60000)
+	public void slowRequestsShouldBeHedged() throws Exception {
+		createNodes(new SimNetwork(1, 2)
+			.setLatency(1, 100, TimeUnit.MILLISECONDS), 16,
+				"openkad.hedge.percentile", "50",
+				"openkad.hedge.budget", "1");
+		for (int i = 0; i < 3; ++i)
+			assertAllFound();
+		Assert.assertTrue(sumCounters("openkad.testing.nrHedgedRequests") > 0);
+	}
+}
@@ -1,17 +1,17 @@
 package test.test;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import il.technion.ewolf.kbr.openkad.metrics.Counter;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
 public class Statistics {
 	
-	public AtomicInteger nrHandledMsgs; 
+	public Counter nrHandledMsgs; 
 
 	@Inject
 	public Statistics(
-			@Named("openkad.testing.nrIncomingMessages") AtomicInteger nrHandledMsgs){
+			@Named("openkad.testing.nrIncomingMessages") Counter nrHandledMsgs){
 		this.nrHandledMsgs = nrHandledMsgs;
 	}
 	
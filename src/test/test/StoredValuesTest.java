@@ -0,0 +1,92 @@
+package test.test;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+import il.technion.ewolf.kbr.openkad.net.SimNetwork;
+import il.technion.ewolf.kbr.openkad.op.RepublishOperation;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Injector;
+
+public class StoredValuesTest extends SimNetworkFixture {
+
+	@Before
+	public void createNetwork() throws Exception {
+		createNodes(new SimNetwork(1, 2)
+			.setSerialize(true), 16);
+	}
+
+	@Test(timeout = 60000)
+	public void storedValuesShouldBeFoundByAllNodes() throws Exception {
+		Key key = kbrs.get(3).getKeyFactory().create("value");
+		byte[] value = "some value".getBytes();
+		Assert.assertNull(kbrs.get(0).get(key));
+		Assert.assertTrue(kbrs.get(3).put(key, value, 1, TimeUnit.HOURS) > 0);
+
+		for (KeybasedRouting kbr : kbrs)
+			Assert.assertTrue(Arrays.equals(value, kbr.get(key)));
+	}
+
+	@Test(timeout = 60000)
+	public void storedValuesShouldBeRepublishedInBatches() throws Exception {
+		Injector injector = injectors.get(0);
+		ValueStore valueStore = injector.getInstance(ValueStore.class);
+		List<Key> keys = new ArrayList<Key>();
+		for (int i = 0; i < 50; ++i) {
+			Key key = kbrs.get(0).getKeyFactory().create("value" + i);
+			valueStore.put(key, ("value" + i).getBytes(), System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+			keys.add(key);
+		}
+
+		Assert.assertTrue(injector.getInstance(RepublishOperation.class).doRepublish() >= keys.size());
+		MetricsRegistry metrics = injector.getInstance(MetricsRegistry.class);
+		Assert.assertTrue(metrics.counter("openkad.testing.nrRepublishLookups").get() < keys.size());
+
+		// every key is found at its closest nodes
+		for (Key key : keys) {
+			Node closest = closestReplica(key);
+			ValueStore closestStore = injectors.get(kbrs.indexOf(findKbr(closest))).getInstance(ValueStore.class);
+			Assert.assertNotNull(closestStore.get(key));
+		}
+
+		// the replicas do not send back the values they just received
+		Node replica = closestReplica(keys.get(0));
+		Injector replicaInjector = injectors.get(kbrs.indexOf(findKbr(replica)));
+		replicaInjector.getInstance(RepublishOperation.class).doRepublish();
+		MetricsRegistry replicaMetrics = replicaInjector.getInstance(MetricsRegistry.class);
+		Assert.assertTrue(replicaMetrics.counter("openkad.testing.nrRepublishSkipped").get() > 0);
+		Assert.assertEquals(0, replicaMetrics.counter("openkad.testing.nrRepublishedValues").get());
+	}
+
+	/**
+	 * @return the closest node to the key other than the first node, which
+	 *         republished it
+	 */
+	private Node closestReplica(Key key) {
+		for (Node n : kbrs.get(1).findNode(key)) {
+			if (!n.equals(kbrs.get(0).getLocalNode()))
+				return n;
+		}
+		throw new AssertionError("no replica found for " + key);
+	}
+
+	private KeybasedRouting findKbr(Node n) {
+		for (KeybasedRouting kbr : kbrs) {
+			if (kbr.getLocalNode().equals(n))
+				return kbr;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,116 @@
+package test.test;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.cache.TinyLfuKadCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class TinyLfuKadCacheTest {
+
+	private TinyLfuKadCache cache;
+	private KeyFactory keyFactory;
+	private List<Node> nodes;
+
+	@Before
+	public void setup() {
+		Injector injector = Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.bucket.kbuckets.maxsize", "2")
+				.setProperty("openkad.cache.size", "100"));
+
+		cache = injector.getInstance(TinyLfuKadCache.class);
+		keyFactory = injector.getInstance(KeyFactory.class);
+		nodes = Arrays.asList(new Node(keyFactory.generate()), new Node(keyFactory.generate()));
+	}
+
+	@Test
+	public void itShouldFindInsertedKeys() {
+		Key key = keyFactory.generate();
+		Assert.assertNull(cache.search(key));
+		cache.insert(key, nodes);
+		Assert.assertEquals(nodes, cache.search(key));
+	}
+
+	@Test
+	public void itShouldNotCacheShortResults() {
+		Key key = keyFactory.generate();
+		cache.insert(key, nodes.subList(0, 1));
+		Assert.assertNull(cache.search(key));
+	}
+
+	@Test
+	public void itShouldKeepPopularKeysWhenScanned() {
+		List<Key> popular = new ArrayList<Key>();
+		for (int i = 0; i < 50; ++i) {
+			Key key = keyFactory.generate();
+			popular.add(key);
+			cache.insert(key, nodes);
+		}
+		for (int j = 0; j < 10; ++j)
+			for (Key key : popular)
+				cache.search(key);
+
+		// a scan of keys that are never used again
+		for (int i = 0; i < 1000; ++i)
+			cache.insert(keyFactory.generate(), nodes);
+
+		int hits = 0;
+		for (Key key : popular)
+			if (cache.search(key) != null)
+				++hits;
+
+		Assert.assertTrue("only " + hits + " popular keys survived", hits >= 45);
+	}
+
+	@Test
+	public void itShouldNotCountMembershipChecksAsUses() {
+		List<Key> probed = new ArrayList<Key>();
+		for (int i = 0; i < 50; ++i) {
+			Key key = keyFactory.generate();
+			probed.add(key);
+			cache.insert(key, nodes);
+		}
+		for (int j = 0; j < 10; ++j)
+			for (Key key : probed)
+				Assert.assertTrue(cache.contains(key));
+
+		for (int i = 0; i < 1000; ++i)
+			cache.insert(keyFactory.generate(), nodes);
+
+		int hits = 0;
+		for (Key key : probed)
+			if (cache.contains(key))
+				++hits;
+
+		Assert.assertTrue(hits + " probed keys survived the scan", hits < 45);
+	}
+
+	@Test
+	public void itShouldNotGrowBeyondItsSize() {
+		List<Key> keys = new ArrayList<Key>();
+		for (int i = 0; i < 1000; ++i) {
+			Key key = keyFactory.generate();
+			keys.add(key);
+			cache.insert(key, nodes);
+		}
+
+		int found = 0;
+		for (Key key : keys)
+			if (cache.search(key) != null)
+				++found;
+
+		Assert.assertTrue(found <= 100);
+	}
+}
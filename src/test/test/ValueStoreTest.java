@@ -0,0 +1,222 @@
+package test.test;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.concurrent.VirtualScheduler;
+import il.technion.ewolf.kbr.openkad.store.LogValueStore;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ValueStoreTest {
+
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private File dir;
+	private VirtualScheduler scheduler;
+	private LogValueStore store;
+
+	private LogValueStore open(long segmentSize) {
+		return new LogValueStore(dir.getPath(), segmentSize, 0.5, HOUR, false, scheduler);
+	}
+
+	private static long getSegmentsLength(File d) {
+		long $ = 0;
+		for (File f : d.listFiles()) {
+			if (!f.getName().equals("lock"))
+				$ += f.length();
+		}
+		return $;
+	}
+
+	private static Key key(int i) {
+		return new Key(new byte[] { (byte) i, 1, 2, 3 });
+	}
+
+	private static byte[] value(int i, int length) {
+		byte[] $ = new byte[length];
+		Arrays.fill($, (byte) i);
+		return $;
+	}
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("store", null);
+		dir.delete();
+		scheduler = new VirtualScheduler(0);
+		store = open(1024);
+	}
+
+	@After
+	public void cleanup() {
+		store.close();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void itShouldGetStoredValues() throws Exception {
+		Assert.assertNull(store.get(key(1)));
+		Assert.assertFalse(dir.exists());
+
+		store.put(key(1), value(1, 10), HOUR);
+		store.put(key(2), value(2, 20), HOUR);
+		Assert.assertTrue(Arrays.equals(value(1, 10), store.get(key(1))));
+		Assert.assertTrue(Arrays.equals(value(2, 20), store.get(key(2))));
+
+		store.put(key(1), value(3, 5), HOUR);
+		Assert.assertTrue(Arrays.equals(value(3, 5), store.get(key(1))));
+		Assert.assertEquals(2, store.getKeys().size());
+	}
+
+	@Test
+	public void valuesShouldExpire() throws Exception {
+		store.put(key(1), value(1, 10), HOUR);
+		store.put(key(2), value(2, 10), 2 * HOUR);
+		scheduler.advance(HOUR);
+		Assert.assertNull(store.get(key(1)));
+		Assert.assertNotNull(store.get(key(2)));
+		Assert.assertEquals(Arrays.asList(key(2)), store.getKeys());
+	}
+
+	@Test
+	public void itShouldRecoverAfterReopen() throws Exception {
+		for (int i = 0; i < 100; ++i)
+			store.put(key(i), value(i, 50), HOUR);
+		store.put(key(7), value(8, 3), HOUR);
+		Assert.assertTrue(store.getNrSegments() > 1);
+		store.close();
+
+		store = open(1024);
+		Assert.assertEquals(100, store.getKeys().size());
+		Assert.assertTrue(Arrays.equals(value(8, 3), store.get(key(7))));
+		Assert.assertTrue(Arrays.equals(value(99, 50), store.get(key(99))));
+	}
+
+	@Test
+	public void itShouldDropATornRecord() throws Exception {
+		store.put(key(1), value(1, 10), HOUR);
+		store.put(key(2), value(2, 10), HOUR);
+		store.close();
+
+		// cut the last record in the middle
+		File segment = dir.listFiles()[dir.listFiles()[0].getName().equals("lock") ? 1 : 0];
+		RandomAccessFile f = new RandomAccessFile(segment, "rw");
+		f.setLength(f.length() - 5);
+		f.close();
+
+		store = open(1024);
+		Assert.assertTrue(Arrays.equals(value(1, 10), store.get(key(1))));
+		Assert.assertNull(store.get(key(2)));
+
+		// new records are appended after the last good one
+		store.put(key(3), value(3, 10), HOUR);
+		store.close();
+		store = open(1024);
+		Assert.assertNotNull(store.get(key(1)));
+		Assert.assertNotNull(store.get(key(3)));
+	}
+
+	@Test
+	public void itShouldReadTheActiveSegmentWhileItIsWritten() throws Exception {
+		for (int i = 0; i < 40; ++i) {
+			store.put(key(i), value(i, 50), HOUR);
+			Assert.assertTrue(Arrays.equals(value(i, 50), store.get(key(i))));
+		}
+		long diskSize = store.getDiskSize();
+		store.close();
+
+		// the unwritten tail of the active segment is cut off
+		Assert.assertEquals(diskSize, getSegmentsLength(dir));
+		store = open(1024);
+		Assert.assertEquals(40, store.getKeys().size());
+	}
+
+	@Test
+	public void itShouldRecoverTheActiveSegmentAfterACrash() throws Exception {
+		store.put(key(1), value(1, 10), HOUR);
+		store.put(key(2), value(2, 10), HOUR);
+
+		// a copy of the open store is what a crash leaves behind
+		File crashed = File.createTempFile("store", null);
+		crashed.delete();
+		crashed.mkdirs();
+		for (File f : dir.listFiles()) {
+			if (!f.getName().equals("lock"))
+				Files.copy(f.toPath(), new File(crashed, f.getName()).toPath());
+		}
+		Assert.assertEquals(1024, getSegmentsLength(crashed));
+
+		LogValueStore recovered = new LogValueStore(crashed.getPath(), 1024, 0.5, HOUR, false, scheduler);
+		try {
+			Assert.assertTrue(Arrays.equals(value(1, 10), recovered.get(key(1))));
+			Assert.assertTrue(Arrays.equals(value(2, 10), recovered.get(key(2))));
+
+			// new records are appended after the last written one
+			recovered.put(key(3), value(3, 10), HOUR);
+			recovered.close();
+			recovered = new LogValueStore(crashed.getPath(), 1024, 0.5, HOUR, false, scheduler);
+			Assert.assertEquals(3, recovered.getKeys().size());
+		} finally {
+			recovered.close();
+			for (File f : crashed.listFiles())
+				f.delete();
+			crashed.delete();
+		}
+	}
+
+	@Test
+	public void compactionShouldReclaimSpace() throws Exception {
+		for (int j = 0; j < 10; ++j) {
+			for (int i = 0; i < 10; ++i)
+				store.put(key(i), value(i + j, 50), HOUR);
+		}
+		long before = store.getDiskSize();
+
+		store.compact();
+		Assert.assertTrue(store.getDiskSize() < before);
+		Assert.assertTrue(store.getNrSegments() <= 2);
+		for (int i = 0; i < 10; ++i)
+			Assert.assertTrue(Arrays.equals(value(i + 9, 50), store.get(key(i))));
+
+		// the compaction task removes expired values
+		scheduler.advance(HOUR);
+		Assert.assertEquals(0, store.getKeys().size());
+		Assert.assertEquals(1, store.getNrSegments());
+	}
+
+	@Test
+	public void compactionShouldNotBringBackReplacedValues() throws Exception {
+		// the first segment stays, most of it is live
+		store.put(key(100), value(1, 50), 10 * HOUR);
+		for (int i = 0; i < 12; ++i)
+			store.put(key(i), value(i, 50), 10 * HOUR);
+
+		// the second segment expires and is compacted away
+		store.put(key(100), value(2, 50), HOUR);
+		for (int i = 20; i < 32; ++i)
+			store.put(key(i), value(i, 50), HOUR);
+		store.put(key(50), value(50, 50), 10 * HOUR);
+		int nrSegments = store.getNrSegments();
+		Assert.assertEquals(3, nrSegments);
+
+		scheduler.advance(HOUR);
+		Assert.assertNull(store.get(key(100)));
+		Assert.assertTrue(store.getNrSegments() < nrSegments);
+		store.close();
+
+		store = open(1024);
+		Assert.assertNull(store.get(key(100)));
+		Assert.assertNull(store.get(key(20)));
+		Assert.assertTrue(Arrays.equals(value(0, 50), store.get(key(0))));
+		Assert.assertEquals(13, store.getKeys().size());
+	}
+}
@@ -0,0 +1,151 @@
+package test.test;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.FutureCallback;
+import il.technion.ewolf.kbr.concurrent.Latch;
+import il.technion.ewolf.kbr.concurrent.ScheduledTask;
+import il.technion.ewolf.kbr.concurrent.VirtualScheduler;
+import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
+import il.technion.ewolf.kbr.openkad.bucket.KadBucketsUpdater;
+import il.technion.ewolf.kbr.openkad.metrics.MetricsRegistry;
+import il.technion.ewolf.kbr.openkad.net.SimNetwork;
+import il.technion.ewolf.kbr.openkad.op.RepublishOperation;
+import il.technion.ewolf.kbr.openkad.store.ValueStore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Blocking calls run in a thread submitted to the scheduler while the test
+ * thread drives the clock
+ */
+public class VirtualTimeTest extends SimNetworkFixture {
+
+	private VirtualScheduler scheduler;
+
+	@Before
+	public void createScheduler() {
+		scheduler = new VirtualScheduler(0);
+	}
+
+	@Test(timeout = 60000)
+	public void nodesShouldFindEachOtherInVirtualTime() throws Exception {
+		Future<Void> lookups = scheduler.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				createNodes(new SimNetwork(scheduler, 1)
+					.setLatency(50, 200, TimeUnit.MILLISECONDS), 16);
+				assertAllFound();
+				return null;
+			}
+		});
+		Assert.assertTrue(scheduler.runUntilDone(lookups, TimeUnit.HOURS.toMillis(1)));
+		lookups.get();
+
+		// every message took at least 50 virtual millis
+		Assert.assertTrue(scheduler.currentTimeMillis() >= 50 * 16);
+	}
+
+	@Test(timeout = 60000)
+	public void slowRequestsShouldBeHedgedInVirtualTime() throws Exception {
+		Future<Void> lookups = scheduler.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				createNodes(new SimNetwork(scheduler, 1)
+					.setLatency(1, 100, TimeUnit.MILLISECONDS), 16,
+						"openkad.hedge.percentile", "50",
+						"openkad.hedge.budget", "1");
+				for (int i = 0; i < 3; ++i)
+					assertAllFound();
+				return null;
+			}
+		});
+		Assert.assertTrue(scheduler.runUntilDone(lookups, TimeUnit.HOURS.toMillis(1)));
+		lookups.get();
+		Assert.assertTrue(sumCounters("openkad.testing.nrHedgedRequests") > 0);
+	}
+
+	@Test(timeout = 60000)
+	public void bucketsShouldBeUpdatedBeforeTheClockMoves() throws Exception {
+		Future<Void> lookup = scheduler.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				createNodes(new SimNetwork(scheduler, 1)
+					.setLatency(50, 200, TimeUnit.MILLISECONDS), 16);
+				final KadBuckets kBuckets = injectors.get(15).getInstance(KadBuckets.class);
+				kbrs.get(15).findNode(kbrs.get(15).getKeyFactory().generate());
+				long lookupTime = scheduler.currentTimeMillis();
+
+				// the task runs once all the threads are done with the current time
+				final Set<Node> beforeClockMoves = new HashSet<Node>();
+				final Latch taken = new Latch(scheduler, 1);
+				scheduler.schedule(new ScheduledTask() {
+					@Override
+					public void run() {
+						beforeClockMoves.addAll(kBuckets.getAllNodes());
+						taken.countDown();
+					}
+				}, 0);
+				taken.await();
+				Assert.assertEquals(lookupTime, scheduler.currentTimeMillis());
+
+				injectors.get(15).getInstance(KadBucketsUpdater.class).flush();
+				Assert.assertFalse(beforeClockMoves.isEmpty());
+				Assert.assertEquals(new HashSet<Node>(kBuckets.getAllNodes()), beforeClockMoves);
+				return null;
+			}
+		});
+		Assert.assertTrue(scheduler.runUntilDone(lookup, TimeUnit.HOURS.toMillis(1)));
+		lookup.get();
+	}
+
+	@Test(timeout = 60000)
+	public void republishShouldBePacedInVirtualTime() throws Exception {
+		final List<Key> keys = new ArrayList<Key>();
+		Future<Integer> republish = scheduler.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				createNodes(new SimNetwork(scheduler, 1)
+					.setLatency(1, 5, TimeUnit.MILLISECONDS), 16,
+						"openkad.republish.batch_size", "64",
+						"openkad.republish.max_rate", "100");
+				ValueStore valueStore = injectors.get(0).getInstance(ValueStore.class);
+				for (int i = 0; i < 50; ++i) {
+					Key key = kbrs.get(0).getKeyFactory().create("value" + i);
+					valueStore.put(key, ("value" + i).getBytes(), scheduler.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+					keys.add(key);
+				}
+				RepublishOperation republishOperation = injectors.get(0).getInstance(RepublishOperation.class);
+				FutureCallback<Integer, Void> stored = new FutureCallback<Integer, Void>(scheduler);
+				Assert.assertTrue(republishOperation.doRepublish(null, stored));
+
+				// a republish started while the batches are still sent is skipped
+				Assert.assertFalse(republishOperation.doRepublish(null, new FutureCallback<Integer, Void>(scheduler)));
+				Assert.assertEquals(1, injectors.get(0).getInstance(MetricsRegistry.class)
+						.counter("openkad.testing.nrOverlappingRepublishes").get());
+				return stored.get();
+			}
+		});
+		Assert.assertTrue(scheduler.runUntilDone(republish, TimeUnit.HOURS.toMillis(1)));
+		long endTime = scheduler.currentTimeMillis();
+		Assert.assertTrue(republish.get() >= keys.size());
+
+		// every value was sent at least once at 100 bytes per virtual second,
+		// only the last batch is sent without waiting for its bytes
+		long nrBytes = 0;
+		for (int i = 0; i < keys.size(); ++i)
+			nrBytes += ("value" + i).length();
+		Assert.assertTrue(endTime >= (nrBytes - 64) * 1000 / 100);
+	}
+}